@@ -16,6 +16,10 @@
  */
 package de.carne.nio.compression.bzip2;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 /**
  * Bzip2 constants
  */
@@ -31,10 +35,14 @@ final class Bzip2 {
 	static final int MIN_HUFFMAN_COUNT = 2;
 	static final int MAX_HUFFMAN_COUNT = 6;
 	static final int MAX_HUFFMAN_BITS = 20;
+	static final int HUFFMAN_TABLE_BITS = 10;
 	static final int MAX_HUFFMAN_SYMBOL_COUNT = 258;
 	static final int MIN_SELECTOR_COUNT = 1;
 	static final int MAX_SELECTOR_COUNT = 2 + (MAX_BLOCK_SIZE / 50);
 
+	static final long BLOCK_SIGNATURE = 0x314159265359L;
+	static final long EOS_SIGNATURE = 0x177245385090L;
+
 	static final int[] RNDTABLE = new int[] { 619, 720, 127, 481, 931, 816, 813, 233, 566, 247, 985, 724, 205, 454, 863,
 			491, 741, 242, 949, 214, 733, 859, 335, 708, 621, 574, 73, 654, 730, 472, 419, 436, 278, 496, 867, 210, 399,
 			680, 480, 51, 878, 465, 811, 169, 869, 675, 611, 697, 867, 561, 862, 687, 507, 283, 482, 129, 807, 591, 733,
@@ -62,6 +70,10 @@ final class Bzip2 {
 
 	static final int[] CRCTABLE = new int[256];
 
+	// Additional tables for slicing-by-8 CRC calculation
+	// (CRCTABLES[n * 256 + b] is the CRC of b followed by n zero bytes)
+	private static final int[] CRCTABLES = new int[8 * 256];
+
 	static {
 		for (int i = 0; i < CRCTABLE.length; i++) {
 			int r = (i << 24);
@@ -71,6 +83,48 @@ final class Bzip2 {
 			}
 			CRCTABLE[i] = r;
 		}
+		System.arraycopy(CRCTABLE, 0, CRCTABLES, 0, CRCTABLE.length);
+		for (int i = CRCTABLE.length; i < CRCTABLES.length; i++) {
+			final int r = CRCTABLES[i - CRCTABLE.length];
+
+			CRCTABLES[i] = (r << 8) ^ CRCTABLE[r >>> 24];
+		}
+	}
+
+	private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * Updates a bzip2 CRC (MSB first CRC-32) with a range of bytes.
+	 * <p>
+	 * The bulk of the data is processed 8 bytes at a time (slicing-by-8).
+	 *
+	 * @param crc the CRC to update.
+	 * @param buffer the buffer containing the bytes to add.
+	 * @param offset the offset of the first byte to add.
+	 * @param length the number of bytes to add.
+	 * @return the updated CRC.
+	 */
+	static int updateCRC(int crc, byte[] buffer, int offset, int length) {
+		final int end = offset + length;
+		final int end8 = end - 7;
+		int index = offset;
+		int c = crc;
+
+		while (index < end8) {
+			final int hi = c ^ (int) INT_BE.get(buffer, index);
+			final int lo = (int) INT_BE.get(buffer, index + 4);
+
+			c = CRCTABLES[7 * 256 + (hi >>> 24)] ^ CRCTABLES[6 * 256 + ((hi >>> 16) & 0xff)]
+					^ CRCTABLES[5 * 256 + ((hi >>> 8) & 0xff)] ^ CRCTABLES[4 * 256 + (hi & 0xff)]
+					^ CRCTABLES[3 * 256 + (lo >>> 24)] ^ CRCTABLES[2 * 256 + ((lo >>> 16) & 0xff)]
+					^ CRCTABLES[256 + ((lo >>> 8) & 0xff)] ^ CRCTABLES[lo & 0xff];
+			index += 8;
+		}
+		while (index < end) {
+			c = CRCTABLE[(c >>> 24) ^ (buffer[index] & 0xff)] ^ (c << 8);
+			index++;
+		}
+		return c;
 	}
 
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.bzip2;
+
+/**
+ * Buffer collecting the input data of a single bzip2 block.
+ * <p>
+ * The input is stored after applying the initial run-length encoding (runs of 4 to 255 equal bytes are stored as 4
+ * bytes followed by the remaining run length). The block CRC is calculated over the original input.
+ */
+final class Bzip2BlockBuffer {
+
+	// Leave room for the flush of a pending run (bzip2 uses the same margin)
+	private static final int BLOCK_SIZE_MARGIN = 19;
+	private static final int MAX_RUN_LENGTH = 255;
+
+	private final int blockSizeLimit;
+	private final byte[] block;
+	private int blockLength = 0;
+	private int blockCRCReg = -1;
+	private int runByte = -1;
+	private int runLength = 0;
+
+	/**
+	 * Constructs a new {@linkplain Bzip2BlockBuffer} instance.
+	 *
+	 * @param blockSize the block size to use.
+	 */
+	Bzip2BlockBuffer(Bzip2BlockSize blockSize) {
+		int blockSizeUnits = blockSize.ordinal();
+
+		if (blockSizeUnits < 1) {
+			throw new IllegalArgumentException("Invalid bzip2 block size: " + blockSize);
+		}
+		this.blockSizeLimit = blockSizeUnits * Bzip2.BLOCK_SIZE_UNIT - BLOCK_SIZE_MARGIN;
+		this.block = new byte[blockSizeUnits * Bzip2.BLOCK_SIZE_UNIT];
+	}
+
+	/**
+	 * Resets the buffer to an empty block.
+	 */
+	void reset() {
+		this.blockLength = 0;
+		this.blockCRCReg = -1;
+		this.runByte = -1;
+		this.runLength = 0;
+	}
+
+	/**
+	 * Adds input bytes to the block.
+	 * <p>
+	 * The bytes are added until either all bytes have been consumed or the block is full.
+	 *
+	 * @param buffer the buffer containing the bytes to add.
+	 * @param offset the offset of the first byte to add.
+	 * @param length the number of bytes to add.
+	 * @return the number of consumed bytes.
+	 */
+	int add(byte[] buffer, int offset, int length) {
+		int end = offset + length;
+		int index = offset;
+
+		while (index < end && this.blockLength < this.blockSizeLimit) {
+			int b = buffer[index] & 0xff;
+
+			if (b == this.runByte && this.runLength < MAX_RUN_LENGTH) {
+				this.runLength++;
+			} else {
+				flushRun();
+				this.runByte = b;
+				this.runLength = 1;
+			}
+			index++;
+		}
+
+		int consumed = index - offset;
+
+		this.blockCRCReg = Bzip2.updateCRC(this.blockCRCReg, buffer, offset, consumed);
+		return consumed;
+	}
+
+	/**
+	 * Checks whether the block is full.
+	 *
+	 * @return {@code true} if the block is full.
+	 */
+	boolean isFull() {
+		return this.blockLength >= this.blockSizeLimit;
+	}
+
+	/**
+	 * Checks whether the block is empty.
+	 *
+	 * @return {@code true} if no input has been added since the last reset.
+	 */
+	boolean isEmpty() {
+		return this.blockLength == 0 && this.runLength == 0;
+	}
+
+	/**
+	 * Completes the block by flushing any pending run.
+	 */
+	void complete() {
+		flushRun();
+	}
+
+	/**
+	 * Gets the block data (valid after {@linkplain #complete()}).
+	 *
+	 * @return the block data.
+	 */
+	byte[] block() {
+		return this.block;
+	}
+
+	/**
+	 * Gets the block length (valid after {@linkplain #complete()}).
+	 *
+	 * @return the block length.
+	 */
+	int blockLength() {
+		return this.blockLength;
+	}
+
+	/**
+	 * Gets the block CRC.
+	 *
+	 * @return the block CRC.
+	 */
+	int blockCRC() {
+		return this.blockCRCReg ^ -1;
+	}
+
+	private void flushRun() {
+		if (this.runLength > 0) {
+			byte b = (byte) this.runByte;
+			byte[] blockBytes = this.block;
+			int blockIndex = this.blockLength;
+
+			switch (this.runLength) {
+			case 1:
+				blockBytes[blockIndex++] = b;
+				break;
+			case 2:
+				blockBytes[blockIndex++] = b;
+				blockBytes[blockIndex++] = b;
+				break;
+			case 3:
+				blockBytes[blockIndex++] = b;
+				blockBytes[blockIndex++] = b;
+				blockBytes[blockIndex++] = b;
+				break;
+			default:
+				blockBytes[blockIndex++] = b;
+				blockBytes[blockIndex++] = b;
+				blockBytes[blockIndex++] = b;
+				blockBytes[blockIndex++] = b;
+				blockBytes[blockIndex++] = (byte) (this.runLength - 4);
+				break;
+			}
+			this.blockLength = blockIndex;
+			this.runByte = -1;
+			this.runLength = 0;
+		}
+	}
+
+}
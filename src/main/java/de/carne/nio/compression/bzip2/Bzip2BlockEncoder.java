@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.bzip2;
+
+import java.util.Arrays;
+
+import de.carne.nio.compression.common.MsbBitEncoder;
+import de.carne.nio.compression.common.SuffixArray;
+
+/**
+ * Encoder for a single bzip2 block (Burrows-Wheeler transform, move-to-front/run-length coding and multi-table Huffman
+ * coding).
+ * <p>
+ * All work structures are kept and reused for the following blocks.
+ */
+final class Bzip2BlockEncoder {
+
+	private static final int RUNA = 0;
+	private static final int RUNB = 1;
+	private static final int GROUP_SIZE = 50;
+	private static final int MAX_ENCODE_BITS = 17;
+	private static final int CODE_LENGTH_BITS = 5;
+	private static final int ITERATION_COUNT = 4;
+	private static final int LESSER_INITIAL_COST = 0;
+	private static final int GREATER_INITIAL_COST = 15;
+
+	private int[] bwtText = new int[0];
+	private int[] bwtSuffixes = new int[0];
+	private byte[] bwtBlock = new byte[0];
+	private char[] mtfSymbols = new char[0];
+	private int mtfSymbolCount = 0;
+	private final boolean[] inUse = new boolean[256];
+	private final byte[] unseqToSeq = new byte[256];
+	private final byte[] mtfTable = new byte[256];
+	private final int[] mtfFreq = new int[Bzip2.MAX_HUFFMAN_SYMBOL_COUNT];
+	private final byte[][] codeLengths = new byte[Bzip2.MAX_HUFFMAN_COUNT][Bzip2.MAX_HUFFMAN_SYMBOL_COUNT];
+	private final int[][] codes = new int[Bzip2.MAX_HUFFMAN_COUNT][Bzip2.MAX_HUFFMAN_SYMBOL_COUNT];
+	private final int[][] groupFreq = new int[Bzip2.MAX_HUFFMAN_COUNT][Bzip2.MAX_HUFFMAN_SYMBOL_COUNT];
+	private final byte[] selectors = new byte[Bzip2.MAX_SELECTOR_COUNT];
+	private final int[] heap = new int[Bzip2.MAX_HUFFMAN_SYMBOL_COUNT + 2];
+	private final int[] weight = new int[Bzip2.MAX_HUFFMAN_SYMBOL_COUNT * 2];
+	private final int[] parent = new int[Bzip2.MAX_HUFFMAN_SYMBOL_COUNT * 2];
+
+	/**
+	 * Encodes a block.
+	 *
+	 * @param block the block data (after the initial run-length encoding).
+	 * @param length the length of the block data.
+	 * @param blockCRC the CRC of the original (not run-length encoded) block data.
+	 * @param bits the {@linkplain MsbBitEncoder} receiving the encoded block.
+	 */
+	void encodeBlock(byte[] block, int length, int blockCRC, MsbBitEncoder bits) {
+		int origPtr = blockSortBWT(block, length);
+		int alphaSize = generateMTFValues(length);
+
+		bits.encodeBits((int) (Bzip2.BLOCK_SIGNATURE >>> 24), 24);
+		bits.encodeBits((int) Bzip2.BLOCK_SIGNATURE & 0xffffff, 24);
+		bits.encodeBits(blockCRC, 32);
+		// Blocks are never randomized
+		bits.encodeBit(false);
+		bits.encodeBits(origPtr, 24);
+		encodeInUse(bits);
+		encodeMTFValues(alphaSize, bits);
+	}
+
+	/*
+	 * Sorts the block rotations by sorting the suffixes of the doubled block. The first rotation-length characters of a
+	 * suffix starting within the first half equal the corresponding rotation, hence the relative order is the same
+	 * (identical rotations may end up in any order, which does not affect the transform).
+	 */
+	private int blockSortBWT(byte[] block, int length) {
+		int textLength = length << 1;
+
+		if (this.bwtText.length < textLength) {
+			this.bwtText = new int[textLength];
+			this.bwtSuffixes = new int[textLength];
+		}
+		if (this.bwtBlock.length < length) {
+			this.bwtBlock = new byte[length];
+		}
+		for (int i = 0; i < length; i++) {
+			int symbol = block[i] & 0xff;
+
+			this.bwtText[i] = symbol;
+			this.bwtText[length + i] = symbol;
+		}
+		SuffixArray.sort(this.bwtText, this.bwtSuffixes, textLength, 256);
+
+		int origPtr = -1;
+		int bwtIndex = 0;
+
+		for (int i = 0; i < textLength; i++) {
+			int suffix = this.bwtSuffixes[i];
+
+			if (suffix < length) {
+				if (suffix == 0) {
+					origPtr = bwtIndex;
+					this.bwtBlock[bwtIndex] = block[length - 1];
+				} else {
+					this.bwtBlock[bwtIndex] = block[suffix - 1];
+				}
+				bwtIndex++;
+			}
+		}
+		return origPtr;
+	}
+
+	private int generateMTFValues(int length) {
+		Arrays.fill(this.inUse, false);
+		for (int i = 0; i < length; i++) {
+			this.inUse[this.bwtBlock[i] & 0xff] = true;
+		}
+
+		int inUseCount = 0;
+
+		for (int i = 0; i < 256; i++) {
+			if (this.inUse[i]) {
+				this.unseqToSeq[i] = (byte) inUseCount;
+				this.mtfTable[inUseCount] = (byte) inUseCount;
+				inUseCount++;
+			}
+		}
+
+		int alphaSize = inUseCount + 2;
+		int eob = inUseCount + 1;
+
+		if (this.mtfSymbols.length < length + 1) {
+			this.mtfSymbols = new char[length + 1];
+		}
+		Arrays.fill(this.mtfFreq, 0);
+
+		char[] symbols = this.mtfSymbols;
+		int[] freq = this.mtfFreq;
+		byte[] table = this.mtfTable;
+		int symbolCount = 0;
+		int zeroRun = 0;
+
+		for (int i = 0; i < length; i++) {
+			byte seq = this.unseqToSeq[this.bwtBlock[i] & 0xff];
+
+			if (table[0] == seq) {
+				zeroRun++;
+			} else {
+				if (zeroRun > 0) {
+					symbolCount = encodeZeroRun(zeroRun, symbols, symbolCount, freq);
+					zeroRun = 0;
+				}
+
+				byte previous = table[0];
+				int position = 1;
+
+				table[0] = seq;
+				while (table[position] != seq) {
+					byte swap = table[position];
+
+					table[position] = previous;
+					previous = swap;
+					position++;
+				}
+				table[position] = previous;
+				symbols[symbolCount++] = (char) (position + 1);
+				freq[position + 1]++;
+			}
+		}
+		if (zeroRun > 0) {
+			symbolCount = encodeZeroRun(zeroRun, symbols, symbolCount, freq);
+		}
+		symbols[symbolCount++] = (char) eob;
+		freq[eob]++;
+		this.mtfSymbolCount = symbolCount;
+		return alphaSize;
+	}
+
+	private static int encodeZeroRun(int zeroRun, char[] symbols, int symbolCount, int[] freq) {
+		int run = zeroRun - 1;
+		int count = symbolCount;
+
+		while (true) {
+			if ((run & 1) != 0) {
+				symbols[count++] = RUNB;
+				freq[RUNB]++;
+			} else {
+				symbols[count++] = RUNA;
+				freq[RUNA]++;
+			}
+			if (run < 2) {
+				break;
+			}
+			run = (run - 2) >>> 1;
+		}
+		return count;
+	}
+
+	private void encodeInUse(MsbBitEncoder bits) {
+		int inUse16 = 0;
+
+		for (int i = 0; i < 16; i++) {
+			for (int j = 0; j < 16; j++) {
+				if (this.inUse[i * 16 + j]) {
+					inUse16 |= 0x8000 >>> i;
+					break;
+				}
+			}
+		}
+		bits.encodeBits(inUse16, 16);
+		for (int i = 0; i < 16; i++) {
+			if ((inUse16 & (0x8000 >>> i)) != 0) {
+				int inUseBits = 0;
+
+				for (int j = 0; j < 16; j++) {
+					if (this.inUse[i * 16 + j]) {
+						inUseBits |= 0x8000 >>> j;
+					}
+				}
+				bits.encodeBits(inUseBits, 16);
+			}
+		}
+	}
+
+	private void encodeMTFValues(int alphaSize, MsbBitEncoder bits) {
+		char[] symbols = this.mtfSymbols;
+		int symbolCount = this.mtfSymbolCount;
+		int groupCount = huffmanGroupCount(symbolCount);
+
+		initCodeLengths(alphaSize, groupCount, symbolCount);
+
+		int selectorCount = 0;
+
+		for (int iteration = 0; iteration < ITERATION_COUNT; iteration++) {
+			for (int group = 0; group < groupCount; group++) {
+				Arrays.fill(this.groupFreq[group], 0, alphaSize, 0);
+			}
+			selectorCount = 0;
+			for (int groupStart = 0; groupStart < symbolCount; groupStart += GROUP_SIZE) {
+				int groupEnd = Math.min(groupStart + GROUP_SIZE, symbolCount);
+				int bestGroup = 0;
+				int bestCost = Integer.MAX_VALUE;
+
+				for (int group = 0; group < groupCount; group++) {
+					byte[] lengths = this.codeLengths[group];
+					int cost = 0;
+
+					for (int i = groupStart; i < groupEnd; i++) {
+						cost += lengths[symbols[i]];
+					}
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestGroup = group;
+					}
+				}
+				this.selectors[selectorCount++] = (byte) bestGroup;
+
+				int[] freq = this.groupFreq[bestGroup];
+
+				for (int i = groupStart; i < groupEnd; i++) {
+					freq[symbols[i]]++;
+				}
+			}
+			for (int group = 0; group < groupCount; group++) {
+				makeCodeLengths(this.codeLengths[group], this.groupFreq[group], alphaSize);
+			}
+		}
+		for (int group = 0; group < groupCount; group++) {
+			assignCodes(this.codeLengths[group], this.codes[group], alphaSize);
+		}
+
+		// Selectors (move-to-front and unary coded)
+		bits.encodeBits(groupCount, 3);
+		bits.encodeBits(selectorCount, 15);
+
+		byte[] selectorMtf = new byte[] { 0, 1, 2, 3, 4, 5 };
+
+		for (int i = 0; i < selectorCount; i++) {
+			byte selector = this.selectors[i];
+			int position = 0;
+			byte current = selectorMtf[0];
+
+			while (current != selector) {
+				position++;
+
+				byte previous = current;
+
+				current = selectorMtf[position];
+				selectorMtf[position] = previous;
+			}
+			selectorMtf[0] = current;
+			for (int unary = 0; unary < position; unary++) {
+				bits.encodeBit(true);
+			}
+			bits.encodeBit(false);
+		}
+
+		// Code lengths (delta coded)
+		for (int group = 0; group < groupCount; group++) {
+			byte[] lengths = this.codeLengths[group];
+			int current = lengths[0];
+
+			bits.encodeBits(current, CODE_LENGTH_BITS);
+			for (int symbol = 0; symbol < alphaSize; symbol++) {
+				int length = lengths[symbol];
+
+				while (current < length) {
+					bits.encodeBits(2, 2);
+					current++;
+				}
+				while (current > length) {
+					bits.encodeBits(3, 2);
+					current--;
+				}
+				bits.encodeBit(false);
+			}
+		}
+
+		// Symbols
+		int selectorIndex = 0;
+
+		for (int groupStart = 0; groupStart < symbolCount; groupStart += GROUP_SIZE) {
+			int groupEnd = Math.min(groupStart + GROUP_SIZE, symbolCount);
+			int group = this.selectors[selectorIndex++];
+			byte[] lengths = this.codeLengths[group];
+			int[] groupCodes = this.codes[group];
+
+			for (int i = groupStart; i < groupEnd; i++) {
+				int symbol = symbols[i];
+
+				bits.encodeBits(groupCodes[symbol], lengths[symbol]);
+			}
+		}
+	}
+
+	private static int huffmanGroupCount(int symbolCount) {
+		int groupCount;
+
+		if (symbolCount < 200) {
+			groupCount = 2;
+		} else if (symbolCount < 600) {
+			groupCount = 3;
+		} else if (symbolCount < 1200) {
+			groupCount = 4;
+		} else if (symbolCount < 2400) {
+			groupCount = 5;
+		} else {
+			groupCount = 6;
+		}
+		return groupCount;
+	}
+
+	/*
+	 * Initializes the code lengths by partitioning the symbol range into ranges of roughly equal frequency (one per
+	 * Huffman table).
+	 */
+	private void initCodeLengths(int alphaSize, int groupCount, int symbolCount) {
+		int partCount = groupCount;
+		int remainingFreq = symbolCount;
+		int groupStart = 0;
+
+		while (partCount > 0) {
+			int targetFreq = remainingFreq / partCount;
+			int groupEnd = groupStart - 1;
+			int groupFreq = 0;
+
+			while (groupFreq < targetFreq && groupEnd < alphaSize - 1) {
+				groupEnd++;
+				groupFreq += this.mtfFreq[groupEnd];
+			}
+			if (groupEnd > groupStart && partCount != groupCount && partCount != 1
+					&& ((groupCount - partCount) & 1) == 1) {
+				groupFreq -= this.mtfFreq[groupEnd];
+				groupEnd--;
+			}
+
+			byte[] lengths = this.codeLengths[partCount - 1];
+
+			for (int symbol = 0; symbol < alphaSize; symbol++) {
+				lengths[symbol] = (byte) (groupStart <= symbol && symbol <= groupEnd ? LESSER_INITIAL_COST
+						: GREATER_INITIAL_COST);
+			}
+			partCount--;
+			groupStart = groupEnd + 1;
+			remainingFreq -= groupFreq;
+		}
+	}
+
+	/*
+	 * Calculates length limited Huffman code lengths. The node weights carry the subtree depth in their low byte to
+	 * favor flat trees. If the maximum length is exceeded, the frequencies are scaled down and the calculation is
+	 * repeated.
+	 */
+	private void makeCodeLengths(byte[] lengths, int[] freq, int alphaSize) {
+		int[] heap = this.heap;
+		int[] weight = this.weight;
+		int[] parent = this.parent;
+
+		for (int i = 0; i < alphaSize; i++) {
+			weight[i + 1] = (freq[i] == 0 ? 1 : freq[i]) << 8;
+		}
+		while (true) {
+			int nodeCount = alphaSize;
+			int heapSize = 0;
+
+			heap[0] = 0;
+			weight[0] = 0;
+			parent[0] = -2;
+			for (int i = 1; i <= alphaSize; i++) {
+				parent[i] = -1;
+				heapSize++;
+				heap[heapSize] = i;
+				upHeap(heapSize);
+			}
+			while (heapSize > 1) {
+				int node1 = heap[1];
+
+				heap[1] = heap[heapSize];
+				heapSize--;
+				downHeap(1, heapSize);
+
+				int node2 = heap[1];
+
+				heap[1] = heap[heapSize];
+				heapSize--;
+				downHeap(1, heapSize);
+				nodeCount++;
+				parent[node1] = nodeCount;
+				parent[node2] = nodeCount;
+				weight[nodeCount] = ((weight[node1] & 0xffffff00) + (weight[node2] & 0xffffff00))
+						| (1 + Math.max(weight[node1] & 0xff, weight[node2] & 0xff));
+				parent[nodeCount] = -1;
+				heapSize++;
+				heap[heapSize] = nodeCount;
+				upHeap(heapSize);
+			}
+
+			boolean tooLong = false;
+
+			for (int i = 1; i <= alphaSize; i++) {
+				int depth = 0;
+
+				for (int node = i; parent[node] >= 0; node = parent[node]) {
+					depth++;
+				}
+				lengths[i - 1] = (byte) depth;
+				tooLong |= depth > MAX_ENCODE_BITS;
+			}
+			if (!tooLong) {
+				break;
+			}
+			for (int i = 1; i <= alphaSize; i++) {
+				weight[i] = (1 + ((weight[i] >>> 8) >>> 1)) << 8;
+			}
+		}
+	}
+
+	private void upHeap(int start) {
+		int[] heap = this.heap;
+		int[] weight = this.weight;
+		int position = start;
+		int node = heap[position];
+
+		while (weight[node] < weight[heap[position >>> 1]]) {
+			heap[position] = heap[position >>> 1];
+			position >>>= 1;
+		}
+		heap[position] = node;
+	}
+
+	private void downHeap(int start, int heapSize) {
+		int[] heap = this.heap;
+		int[] weight = this.weight;
+		int position = start;
+		int node = heap[position];
+
+		while (true) {
+			int child = position << 1;
+
+			if (child > heapSize) {
+				break;
+			}
+			if (child < heapSize && weight[heap[child + 1]] < weight[heap[child]]) {
+				child++;
+			}
+			if (weight[node] < weight[heap[child]]) {
+				break;
+			}
+			heap[position] = heap[child];
+			position = child;
+		}
+		heap[position] = node;
+	}
+
+	private static void assignCodes(byte[] lengths, int[] codes, int alphaSize) {
+		int code = 0;
+
+		for (int length = 1; length <= MAX_ENCODE_BITS; length++) {
+			for (int symbol = 0; symbol < alphaSize; symbol++) {
+				if (lengths[symbol] == length) {
+					codes[symbol] = code;
+					code++;
+				}
+			}
+			code <<= 1;
+		}
+	}
+
+}
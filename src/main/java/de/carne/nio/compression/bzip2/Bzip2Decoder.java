@@ -19,45 +19,54 @@ package de.carne.nio.compression.bzip2;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Objects;
 
 import org.eclipse.jdt.annotation.Nullable;
 
 import de.carne.nio.compression.CompressionInfos;
 import de.carne.nio.compression.InvalidDataException;
 import de.carne.nio.compression.common.BitDecoder;
-import de.carne.nio.compression.common.HuffmanDecoder;
-import de.carne.nio.compression.common.MsbBitstreamBitRegister;
+import de.carne.nio.compression.common.HuffmanTableDecoder;
+import de.carne.nio.compression.common.MsbBitstreamWideBitRegister;
 import de.carne.nio.compression.spi.Decoder;
 
 /**
  * Decoder for bzip2 compressed data.
+ * <p>
+ * If the {@linkplain Bzip2Format#BZ2LIB} format is used, concatenated streams (as created by parallel bzip2
+ * compressors) are decoded as a whole.
  */
 public class Bzip2Decoder extends Decoder {
 
+	private static final int OUTPUT_STAGE_SIZE = 0x10000;
+
 	private enum State {
-		HEADER, BLOCKBEGIN, BLOCKDECODEA, BLOCKDECODEB, BLOCKDECODEC, EOF
+		HEADER, BLOCKBEGIN, BLOCKDECODE, EOF
 	}
 
 	private final Bzip2DecoderProperties properties;
-	private final BitDecoder bitDecoder = new BitDecoder(new MsbBitstreamBitRegister());
+	private final BitDecoder bitDecoder;
+	private final boolean crcCheck;
 	private int blockSizeLimit;
 	private int blockSize;
 	private int blockCRC;
 	private int blockCRCReg;
 	private int combinedCRCReg;
-	private boolean crcTestsPassed;
 	private boolean blockRandomized;
 	private int blockOrigPtr;
-	private int @Nullable [] mtfTable;
-	private byte @Nullable [] selectors;
-	private HuffmanDecoder @Nullable [] decoders;
-	private int @Nullable [] counters;
-	private int decodePosition;
+	private final int[] mtfTable = new int[64];
+	private final byte[] mtfPositions = new byte[Bzip2.MAX_HUFFMAN_COUNT];
+	private final byte[] selectors = new byte[Bzip2.MAX_SELECTOR_COUNT];
+	private final byte[] codeLengths = new byte[Bzip2.MAX_HUFFMAN_SYMBOL_COUNT];
+	private final HuffmanTableDecoder[] decoders = new HuffmanTableDecoder[Bzip2.MAX_HUFFMAN_COUNT];
+	private int @Nullable [] counters = null;
+	private byte @Nullable [] bwtBlock = null;
+	private byte @Nullable [] outputStage = null;
+	private int bwtPosition;
 	private int decodePrevious;
 	private int decodeRepeatCount;
-	private int decodeCurrent;
-	private int rndIndex;
-	private int rndCounter;
+	private int decodeRunRemaining;
 	private State state = State.EOF;
 
 	/**
@@ -75,18 +84,19 @@ public class Bzip2Decoder extends Decoder {
 	public Bzip2Decoder(Bzip2DecoderProperties properties) {
 		super(Bzip2Factory.COMPRESSION_NAME);
 		this.properties = properties;
+		this.bitDecoder = new BitDecoder(this.properties.getReadAheadProperty(), new MsbBitstreamWideBitRegister());
+		this.crcCheck = this.properties.getCrcCheckProperty();
 		this.blockSizeLimit = this.properties.getBlockSizeProperty().ordinal() * Bzip2.BLOCK_SIZE_UNIT;
+		for (int huffmanIndex = 0; huffmanIndex < this.decoders.length; huffmanIndex++) {
+			this.decoders[huffmanIndex] = new HuffmanTableDecoder(Bzip2.MAX_HUFFMAN_BITS,
+					Bzip2.MAX_HUFFMAN_SYMBOL_COUNT, Bzip2.HUFFMAN_TABLE_BITS, false);
+		}
 		reset0();
 	}
 
 	private void reset0() {
 		this.bitDecoder.reset();
 		this.combinedCRCReg = 0;
-		this.crcTestsPassed = true;
-		this.mtfTable = null;
-		this.selectors = null;
-		this.decoders = null;
-		this.counters = null;
 		if (Bzip2Format.BZ2LIB.equals(this.properties.getFormat())) {
 			this.state = State.HEADER;
 		} else {
@@ -119,6 +129,11 @@ public class Bzip2Decoder extends Decoder {
 		return decoded;
 	}
 
+	@Override
+	public ByteBuffer drainInput() {
+		return this.bitDecoder.drainBytes();
+	}
+
 	private int decode0(ByteBuffer dst, ReadableByteChannel src) throws IOException {
 		int decoded = 0;
 
@@ -128,16 +143,11 @@ public class Bzip2Decoder extends Decoder {
 			this.state = State.BLOCKBEGIN;
 			break;
 		case BLOCKBEGIN:
-			decoded = blockBegin(src) + decode0(dst, src);
+			// Do not count the EOF marker (-1) in case the end of stream has been reached
+			decoded = blockBegin(src) + Math.max(decode0(dst, src), 0);
 			break;
-		case BLOCKDECODEA:
-		case BLOCKDECODEB:
-		case BLOCKDECODEC:
-			if (this.blockRandomized) {
-				blockDecodeR(dst);
-			} else {
-				blockDecode(dst);
-			}
+		case BLOCKDECODE:
+			blockDecode(dst);
 			break;
 		case EOF:
 			decoded = -1;
@@ -180,17 +190,14 @@ public class Bzip2Decoder extends Decoder {
 				throw new InvalidDataException(this.blockOrigPtr);
 			}
 
-			final boolean[] inUse = new boolean[16];
+			final int inUse = this.bitDecoder.decodeBits(src, 16);
 
-			for (int inUseIndex = 0; inUseIndex < inUse.length; inUseIndex++) {
-				inUse[inUseIndex] = this.bitDecoder.decodeBits(src, 1) != 0;
-			}
-			this.mtfTable = new int[64];
+			Arrays.fill(this.mtfTable, 0);
 
 			int mtfCount = 0;
 
 			for (int mtf = 0; mtf < 0x100; mtf++) {
-				if (inUse[mtf >> 4] && this.bitDecoder.decodeBits(src, 1) != 0) {
+				if ((inUse & (0x8000 >>> (mtf >> 4))) != 0 && this.bitDecoder.decodeBits(src, 1) != 0) {
 					this.mtfTable[mtfCount >> 2] |= (mtf << ((mtfCount & 3) << 3));
 					mtfCount++;
 				}
@@ -212,18 +219,17 @@ public class Bzip2Decoder extends Decoder {
 				throw new InvalidDataException(selectorCount);
 			}
 
-			final byte[] mtfPositions = new byte[huffmanCount];
+			final byte[] mtfPositions = this.mtfPositions;
 
-			for (byte mtfPositionIndex = 0; mtfPositionIndex < mtfPositions.length; mtfPositionIndex++) {
+			for (byte mtfPositionIndex = 0; mtfPositionIndex < huffmanCount; mtfPositionIndex++) {
 				mtfPositions[mtfPositionIndex] = mtfPositionIndex;
 			}
-			this.selectors = new byte[selectorCount];
-			for (int selectorIndex = 0; selectorIndex < this.selectors.length; selectorIndex++) {
+			for (int selectorIndex = 0; selectorIndex < selectorCount; selectorIndex++) {
 				int runLength = 0;
 
 				while (this.bitDecoder.decodeBits(src, 1) != 0) {
 					runLength++;
-					if (runLength >= mtfPositions.length) {
+					if (runLength >= huffmanCount) {
 						throw new InvalidDataException();
 					}
 				}
@@ -236,9 +242,8 @@ public class Bzip2Decoder extends Decoder {
 				}
 				this.selectors[selectorIndex] = mtfPositions[0] = position;
 			}
-			this.decoders = new HuffmanDecoder[huffmanCount];
-			for (int huffmanIndex = 0; huffmanIndex < this.decoders.length; huffmanIndex++) {
-				final byte[] lengths = new byte[Bzip2.MAX_HUFFMAN_SYMBOL_COUNT];
+			for (int huffmanIndex = 0; huffmanIndex < huffmanCount; huffmanIndex++) {
+				final byte[] lengths = this.codeLengths;
 				int length = this.bitDecoder.decodeBits(src, 5);
 				int lengthsIndex = 0;
 
@@ -252,20 +257,25 @@ public class Bzip2Decoder extends Decoder {
 					lengths[lengthsIndex] = (byte) (length & 0xff);
 					lengthsIndex++;
 				}
+				Arrays.fill(lengths, symbolCount, lengths.length, (byte) 0);
+				this.decoders[huffmanIndex].setCodeLengths(lengths);
+			}
 
-				final HuffmanDecoder decoder = new HuffmanDecoder(Bzip2.MAX_HUFFMAN_BITS,
-						Bzip2.MAX_HUFFMAN_SYMBOL_COUNT);
+			// The block data part of the counters is completely overwritten below, hence only the counts need a reset
+			int[] blockCounters = this.counters;
 
-				decoder.setCodeLengths(lengths);
-				this.decoders[huffmanIndex] = decoder;
+			if (blockCounters == null) {
+				blockCounters = new int[0x100 + this.blockSizeLimit];
+				this.counters = blockCounters;
+			} else {
+				Arrays.fill(blockCounters, 0, 0x100, 0);
 			}
-			this.counters = new int[0x100 + this.blockSizeLimit];
 			this.blockSize = 0;
 
 			boolean done = false;
 			int groupSize = 0;
 			int groupIndex = 0;
-			HuffmanDecoder currentDecoder = null;
+			HuffmanTableDecoder currentDecoder = null;
 			int runCounter = 0;
 			int runPower = 0;
 
@@ -294,9 +304,9 @@ public class Bzip2Decoder extends Decoder {
 					if (runCounter != 0) {
 						final int mtf = mtfHead();
 
-						this.counters[mtf] += runCounter;
+						blockCounters[mtf] += runCounter;
 						do {
-							this.counters[0x100 + this.blockSize] = mtf;
+							blockCounters[0x100 + this.blockSize] = mtf;
 							this.blockSize++;
 							runCounter--;
 						} while (runCounter != 0);
@@ -308,8 +318,8 @@ public class Bzip2Decoder extends Decoder {
 						if (this.blockSize >= this.blockSizeLimit) {
 							throw new InvalidDataException();
 						}
-						this.counters[mtf]++;
-						this.counters[0x100 + this.blockSize] = mtf;
+						blockCounters[mtf]++;
+						blockCounters[0x100 + this.blockSize] = mtf;
 						this.blockSize++;
 					} else if (nextSymbol == (mtfCount + 1)) {
 						done = true;
@@ -325,117 +335,168 @@ public class Bzip2Decoder extends Decoder {
 			int sum = 0;
 
 			for (int counterIndex = 0; counterIndex < 0x100; counterIndex++) {
-				sum += this.counters[counterIndex];
-				this.counters[counterIndex] = sum - this.counters[counterIndex];
+				sum += blockCounters[counterIndex];
+				blockCounters[counterIndex] = sum - blockCounters[counterIndex];
 			}
 			for (int counterIndex = 0; counterIndex < this.blockSize; counterIndex++) {
-				this.counters[0x100
-						+ this.counters[this.counters[0x100 + counterIndex] & 0xff]++] |= (counterIndex << 8);
+				blockCounters[0x100
+						+ blockCounters[blockCounters[0x100 + counterIndex] & 0xff]++] |= (counterIndex << 8);
 			}
-			this.state = State.BLOCKDECODEA;
+			if (this.blockOrigPtr >= this.blockSize) {
+				throw new InvalidDataException(this.blockOrigPtr, this.blockSize);
+			}
+			blockInverseBWT(blockCounters);
+			this.state = State.BLOCKDECODE;
 		} else if (sig0 == (byte) 0x17 && sig1 == (byte) 0x72 && sig2 == (byte) 0x45 && sig3 == (byte) 0x38
 				&& sig4 == (byte) 0x50 && sig5 == (byte) 0x90) {
 			this.blockCRC = this.bitDecoder.decodeBits(src, 32);
-			this.crcTestsPassed = this.crcTestsPassed && this.blockCRC == this.combinedCRCReg;
-			this.state = State.EOF;
+			if (this.crcCheck && this.blockCRC != this.combinedCRCReg) {
+				throw new InvalidDataException(this.blockCRC, this.combinedCRCReg);
+			}
+			// Continue with the next stream in case of concatenated streams
+			if (Bzip2Format.BZ2LIB.equals(this.properties.getFormat()) && isStreamHeader(src)) {
+				this.combinedCRCReg = 0;
+				this.state = State.HEADER;
+			} else {
+				this.state = State.EOF;
+			}
 		} else {
 			throw new InvalidDataException(sig0, sig1, sig2, sig3, sig4, sig5);
 		}
 		return (int) (this.bitDecoder.totalIn() - totalInStart);
 	}
 
-	private void blockDecode(ByteBuffer dst) {
-		if (this.state == State.BLOCKDECODEA) {
-			this.decodePosition = this.counters[0x100 + (this.counters[0x100 + this.blockOrigPtr] >>> 8)];
-			this.decodePrevious = this.decodePosition & 0xff;
-			this.decodeRepeatCount = 0;
-			this.state = State.BLOCKDECODEB;
+	private boolean isStreamHeader(ReadableByteChannel src) throws IOException {
+		boolean isStreamHeader = false;
+
+		// Streams end byte aligned
+		this.bitDecoder.alignToByte();
+		if (this.bitDecoder.isAvailable(src, 32)) {
+			final int header = this.bitDecoder.peekBits(src, 32);
+			final int headerBlockSize = header & 0xff;
+
+			isStreamHeader = (header >>> 8) == 0x425a68 && 0x31 <= headerBlockSize && headerBlockSize <= 0x39;
 		}
-		while (this.blockSize > 0 && dst.remaining() > 0) {
-			if (this.state == State.BLOCKDECODEB) {
-				this.decodeCurrent = this.decodePosition & 0xff;
-				this.decodePosition = this.counters[0x100 + (this.decodePosition >>> 8)];
-				this.state = State.BLOCKDECODEC;
-			}
-			if (this.decodeRepeatCount == 4) {
-				while (this.decodeCurrent > 0 && dst.remaining() > 0) {
-					final byte b = (byte) (this.decodePrevious & 0xff);
+		return isStreamHeader;
+	}
 
-					shiftBlockCRC(b);
-					dst.put(b);
-					this.decodeCurrent--;
-				}
-				if (this.decodeCurrent == 0) {
-					this.decodeRepeatCount = 0;
-					this.state = State.BLOCKDECODEB;
-					this.blockSize--;
-				}
-			} else {
-				if (this.decodeCurrent != this.decodePrevious) {
-					this.decodeRepeatCount = 0;
+	/*
+	 * Performs the inverse BWT by walking the complete tt chain into the BWT block array. As bzip2 only records the
+	 * chain's start (origPtr), the walk is inherently sequential. Keeping it free of any other work (run-length
+	 * decoding, CRC, output handling) turns it into a tight loop of dependent loads.
+	 */
+	private void blockInverseBWT(int[] tt) {
+		byte[] block = this.bwtBlock;
+
+		if (block == null) {
+			block = new byte[this.blockSizeLimit];
+			this.bwtBlock = block;
+		}
+
+		final int length = this.blockSize;
+		int position = tt[0x100 + (tt[0x100 + this.blockOrigPtr] >>> 8)];
+
+		for (int blockIndex = 0; blockIndex < length; blockIndex++) {
+			block[blockIndex] = (byte) position;
+			position = tt[0x100 + (position >>> 8)];
+		}
+		if (this.blockRandomized) {
+			int rndIndex = 1;
+			int rndCounter = Bzip2.RNDTABLE[0] - 2;
+
+			for (int blockIndex = 0; blockIndex < length; blockIndex++) {
+				if (rndCounter == 0) {
+					block[blockIndex] ^= 1;
+					rndCounter = Bzip2.RNDTABLE[rndIndex];
+					rndIndex = (rndIndex + 1) & 0x1ff;
 				}
-				this.decodeRepeatCount++;
-				this.decodePrevious = this.decodeCurrent;
+				rndCounter--;
+			}
+		}
+		this.bwtPosition = 0;
+		this.decodePrevious = -1;
+		this.decodeRepeatCount = 0;
+		this.decodeRunRemaining = 0;
+	}
 
-				final byte b = (byte) (this.decodeCurrent & 0xff);
+	private void blockDecode(ByteBuffer dst) throws IOException {
+		if (dst.hasArray()) {
+			final int offset = dst.arrayOffset() + dst.position();
+			final int decoded = blockDecodeRLE(dst.array(), offset, dst.remaining());
 
-				shiftBlockCRC(b);
-				dst.put(b);
-				this.state = State.BLOCKDECODEB;
-				this.blockSize--;
+			if (this.crcCheck) {
+				this.blockCRCReg = Bzip2.updateCRC(this.blockCRCReg, dst.array(), offset, decoded);
+			}
+			dst.position(dst.position() + decoded);
+		} else {
+			byte[] stage = this.outputStage;
+
+			if (stage == null) {
+				stage = new byte[OUTPUT_STAGE_SIZE];
+				this.outputStage = stage;
+			}
+			while (dst.hasRemaining() && !isBlockDecoded()) {
+				final int decoded = blockDecodeRLE(stage, 0, Math.min(stage.length, dst.remaining()));
+
+				if (this.crcCheck) {
+					this.blockCRCReg = Bzip2.updateCRC(this.blockCRCReg, stage, 0, decoded);
+				}
+				dst.put(stage, 0, decoded);
 			}
 		}
-		if (this.blockSize == 0) {
-			this.crcTestsPassed = this.crcTestsPassed && this.blockCRC == (this.blockCRCReg ^ -1);
+		if (isBlockDecoded()) {
+			if (this.crcCheck && this.blockCRC != (this.blockCRCReg ^ -1)) {
+				throw new InvalidDataException(this.blockCRC, this.blockCRCReg ^ -1);
+			}
 			this.state = State.BLOCKBEGIN;
 		}
 	}
 
-	private void blockDecodeR(ByteBuffer dst) {
-		if (this.state == State.BLOCKDECODEA) {
-			this.decodePosition = this.counters[0x100 + (this.counters[0x100 + this.blockOrigPtr] >>> 8)];
-			this.decodePrevious = this.decodePosition & 0xff;
-			this.decodeRepeatCount = 0;
-			this.rndIndex = 1;
-			this.rndCounter = Bzip2.RNDTABLE[0] - 2;
-			this.state = State.BLOCKDECODEB;
-		}
-		while (this.blockSize > 0 && dst.remaining() > 0) {
-			if (this.state == State.BLOCKDECODEB) {
-				this.decodeCurrent = this.decodePosition & 0xff;
-				this.decodePosition = this.counters[0x100 + (this.decodePosition >>> 8)];
-				if (this.rndCounter == 0) {
-					this.decodeCurrent ^= 1;
-					this.rndCounter = Bzip2.RNDTABLE[this.rndIndex];
-					this.rndIndex = (this.rndIndex + 1) & 0x1ff;
-				}
-				this.rndCounter--;
-				this.state = State.BLOCKDECODEC;
-			}
-			if (this.decodeRepeatCount == 4) {
-				while (this.decodeCurrent > 0 && dst.remaining() > 0) {
-					dst.put((byte) (this.decodePrevious & 0xff));
-					this.decodeCurrent--;
-				}
-				if (this.decodeCurrent == 0) {
-					this.decodeRepeatCount = 0;
-					this.state = State.BLOCKDECODEB;
-					this.blockSize--;
+	private boolean isBlockDecoded() {
+		return this.bwtPosition >= this.blockSize && this.decodeRunRemaining == 0;
+	}
+
+	/*
+	 * Reverts the initial run-length encoding (runs of 4 equal bytes followed by a repeat count) while copying the BWT
+	 * block to the output array. Repeated bytes are written in bulk.
+	 */
+	private int blockDecodeRLE(byte[] output, int offset, int length) {
+		final byte[] block = Objects.requireNonNull(this.bwtBlock);
+		final int blockEnd = this.blockSize;
+		final int outputEnd = offset + length;
+		int blockPosition = this.bwtPosition;
+		int previous = this.decodePrevious;
+		int repeatCount = this.decodeRepeatCount;
+		int runRemaining = this.decodeRunRemaining;
+		int outputPosition = offset;
+
+		while (outputPosition < outputEnd) {
+			if (runRemaining > 0) {
+				final int runLength = Math.min(runRemaining, outputEnd - outputPosition);
+
+				Arrays.fill(output, outputPosition, outputPosition + runLength, (byte) previous);
+				outputPosition += runLength;
+				runRemaining -= runLength;
+			} else if (blockPosition < blockEnd) {
+				final int current = block[blockPosition++] & 0xff;
+
+				if (repeatCount == 4) {
+					runRemaining = current;
+					repeatCount = 0;
+				} else {
+					repeatCount = (current == previous ? repeatCount + 1 : 1);
+					previous = current;
+					output[outputPosition++] = (byte) current;
 				}
 			} else {
-				if (this.decodeCurrent != this.decodePrevious) {
-					this.decodeRepeatCount = 0;
-				}
-				this.decodeRepeatCount++;
-				this.decodePrevious = this.decodeCurrent;
-				dst.put((byte) (this.decodeCurrent & 0xff));
-				this.state = State.BLOCKDECODEB;
-				this.blockSize--;
+				break;
 			}
 		}
-		if (this.blockSize == 0) {
-			this.state = State.BLOCKBEGIN;
-		}
+		this.bwtPosition = blockPosition;
+		this.decodePrevious = previous;
+		this.decodeRepeatCount = repeatCount;
+		this.decodeRunRemaining = runRemaining;
+		return outputPosition - offset;
 	}
 
 	private int mtfHead() {
@@ -473,10 +534,6 @@ public class Bzip2Decoder extends Decoder {
 		return this.mtfTable[0] & 0xff;
 	}
 
-	private void shiftBlockCRC(byte b) {
-		this.blockCRCReg = Bzip2.CRCTABLE[(this.blockCRCReg >>> 24) ^ (b & 0xff)] ^ (this.blockCRCReg << 8);
-	}
-
 	private void shiftCombinedCRC() {
 		this.combinedCRCReg = ((this.combinedCRCReg << 1) | (this.combinedCRCReg >>> 31)) ^ this.blockCRC;
 	}
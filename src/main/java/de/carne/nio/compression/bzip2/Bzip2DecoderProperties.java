@@ -26,6 +26,9 @@ public class Bzip2DecoderProperties extends CompressionProperties {
 
 	private static final CompressionProperty FORMAT = new CompressionProperty("FORMAT", Bzip2Format.class);
 	private static final CompressionProperty BLOCK_SIZE = new CompressionProperty("BLOCK_SIZE", Bzip2BlockSize.class);
+	private static final CompressionProperty READ_AHEAD = new CompressionProperty("READ_AHEAD", Integer.class);
+	private static final CompressionProperty CRC_CHECK = new CompressionProperty("CRC_CHECK", Boolean.class);
+	private static final CompressionProperty THREADS = new CompressionProperty("THREADS", Integer.class);
 
 	/**
 	 * Constructs a new {@linkplain Bzip2DecoderProperties} instance with default values.
@@ -33,6 +36,9 @@ public class Bzip2DecoderProperties extends CompressionProperties {
 	public Bzip2DecoderProperties() {
 		registerProperty(FORMAT, Bzip2Format.DEFAULT);
 		registerProperty(BLOCK_SIZE, Bzip2BlockSize.SIZE9);
+		registerProperty(READ_AHEAD, Integer.valueOf(0));
+		registerProperty(CRC_CHECK, Boolean.TRUE);
+		registerProperty(THREADS, Integer.valueOf(1));
 	}
 
 	/**
@@ -71,4 +77,74 @@ public class Bzip2DecoderProperties extends CompressionProperties {
 		return getEnumProperty(BLOCK_SIZE, Bzip2BlockSize.class);
 	}
 
+	/**
+	 * Sets the read-ahead property.
+	 * <p>
+	 * If set to a value greater than {@code 0}, the encoded data is read in chunks of the given size. Use
+	 * {@linkplain Bzip2Decoder#drainInput()} to retrieve any bytes read beyond the end of the encoded data.
+	 * </p>
+	 * <p>
+	 * The bulk register refill is only used if read-ahead is enabled.
+	 * </p>
+	 *
+	 * @param readAhead the number of bytes to read ahead ({@code 0} to read only the bytes actually needed).
+	 */
+	public void setReadAheadProperty(int readAhead) {
+		setIntProperty(READ_AHEAD, readAhead);
+	}
+
+	/**
+	 * Gets the read-ahead property.
+	 *
+	 * @return the read-ahead property.
+	 */
+	public int getReadAheadProperty() {
+		return getIntProperty(READ_AHEAD);
+	}
+
+	/**
+	 * Sets the CRC check property.
+	 * <p>
+	 * If enabled, the CRC of every decoded block as well as the combined stream CRC is verified and a mismatch causes
+	 * an {@linkplain de.carne.nio.compression.InvalidDataException}. If disabled, no CRC is calculated at all, which
+	 * speeds up decoding at the cost of integrity checking.
+	 * </p>
+	 *
+	 * @param crcCheck whether to verify the block and stream CRCs.
+	 */
+	public void setCrcCheckProperty(boolean crcCheck) {
+		setBooleanProperty(CRC_CHECK, crcCheck);
+	}
+
+	/**
+	 * Gets the CRC check property.
+	 *
+	 * @return the CRC check property.
+	 */
+	public boolean getCrcCheckProperty() {
+		return getBooleanProperty(CRC_CHECK);
+	}
+
+	/**
+	 * Sets the threads property.
+	 * <p>
+	 * If set to a value greater than {@code 1}, the blocks of the encoded data are decoded in parallel using a
+	 * {@linkplain Bzip2ParallelDecoder}. The value defines the maximum number of blocks being decoded concurrently.
+	 * </p>
+	 *
+	 * @param threads the number of blocks to decode concurrently.
+	 */
+	public void setThreadsProperty(int threads) {
+		setIntProperty(THREADS, threads);
+	}
+
+	/**
+	 * Gets the threads property.
+	 *
+	 * @return the threads property.
+	 */
+	public int getThreadsProperty() {
+		return getIntProperty(THREADS);
+	}
+
 }
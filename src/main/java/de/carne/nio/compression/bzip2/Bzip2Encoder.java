@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.bzip2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.common.MsbBitEncoder;
+import de.carne.nio.compression.spi.Encoder;
+
+/**
+ * Encoder for bzip2 compressed data.
+ * <p>
+ * The input is collected into blocks of the configured block size (after the initial run-length encoding). Every
+ * completed block is sorted via a suffix array based Burrows-Wheeler transform and entropy coded using multiple
+ * Huffman tables.
+ */
+public class Bzip2Encoder extends Encoder {
+
+	private static final int INPUT_BUFFER_SIZE = 0x10000;
+
+	private final Bzip2EncoderProperties properties;
+	private final Bzip2BlockBuffer blockBuffer;
+	private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+	private final Bzip2BlockEncoder blockEncoder = new Bzip2BlockEncoder();
+	private final MsbBitEncoder bitEncoder = new MsbBitEncoder();
+	private int combinedCRCReg;
+	private boolean streamStarted;
+
+	/**
+	 * Constructs a new {@linkplain Bzip2Encoder} instance.
+	 *
+	 * @param properties the encoder properties to use.
+	 */
+	public Bzip2Encoder(Bzip2EncoderProperties properties) {
+		super(Bzip2Factory.COMPRESSION_NAME);
+		this.properties = properties;
+		this.blockBuffer = new Bzip2BlockBuffer(this.properties.getBlockSizeProperty());
+		reset0();
+	}
+
+	private void reset0() {
+		this.bitEncoder.reset();
+		this.blockBuffer.reset();
+		this.combinedCRCReg = 0;
+		this.streamStarted = false;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	public int encode(ByteBuffer src, WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int consumed = 0;
+		int encoded = 0;
+
+		try {
+			startStream();
+			while (src.hasRemaining()) {
+				int chunkLength = Math.min(src.remaining(), this.inputBuffer.length);
+
+				src.get(this.inputBuffer, 0, chunkLength);
+
+				int chunkOffset = 0;
+
+				while (chunkOffset < chunkLength) {
+					chunkOffset += this.blockBuffer.add(this.inputBuffer, chunkOffset, chunkLength - chunkOffset);
+					if (this.blockBuffer.isFull()) {
+						encodeBlock();
+					}
+				}
+				consumed += chunkLength;
+			}
+			encoded = this.bitEncoder.flush(dst);
+		} finally {
+			endProcessing(beginTime, consumed, encoded);
+		}
+		return encoded;
+	}
+
+	@Override
+	public int finishEncoding(WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int encoded = 0;
+
+		try {
+			startStream();
+			encodeBlock();
+			encodeStreamTrailer(this.bitEncoder, this.combinedCRCReg);
+			encoded = this.bitEncoder.flush(dst);
+			// Any further input starts a new (concatenated) stream
+			this.combinedCRCReg = 0;
+			this.streamStarted = false;
+		} finally {
+			endProcessing(beginTime, 0, encoded);
+		}
+		return encoded;
+	}
+
+	private void startStream() {
+		if (!this.streamStarted) {
+			encodeStreamHeader(this.bitEncoder, this.properties);
+			this.streamStarted = true;
+		}
+	}
+
+	private void encodeBlock() {
+		if (!this.blockBuffer.isEmpty()) {
+			int blockCRC = this.blockBuffer.blockCRC();
+
+			this.blockBuffer.complete();
+			this.combinedCRCReg = combineCRC(this.combinedCRCReg, blockCRC);
+			this.blockEncoder.encodeBlock(this.blockBuffer.block(), this.blockBuffer.blockLength(), blockCRC,
+					this.bitEncoder);
+		}
+		this.blockBuffer.reset();
+	}
+
+	static void encodeStreamHeader(MsbBitEncoder bits, Bzip2EncoderProperties properties) {
+		if (Bzip2Format.BZ2LIB.equals(properties.getFormat())) {
+			bits.encodeBits(0x425a68, 24);
+			bits.encodeBits(0x30 + properties.getBlockSizeProperty().ordinal(), 8);
+		}
+	}
+
+	static void encodeStreamTrailer(MsbBitEncoder bits, int combinedCRC) {
+		bits.encodeBits((int) (Bzip2.EOS_SIGNATURE >>> 24), 24);
+		bits.encodeBits((int) Bzip2.EOS_SIGNATURE & 0xffffff, 24);
+		bits.encodeBits(combinedCRC, 32);
+		bits.alignToByte();
+	}
+
+	static int combineCRC(int combinedCRC, int blockCRC) {
+		return ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ blockCRC;
+	}
+
+}
@@ -21,11 +21,13 @@ import de.carne.nio.compression.CompressionInitializationException;
 import de.carne.nio.compression.CompressionProperties;
 import de.carne.nio.compression.spi.Decoder;
 import de.carne.nio.compression.spi.DecoderFactory;
+import de.carne.nio.compression.spi.Encoder;
+import de.carne.nio.compression.spi.EncoderFactory;
 
 /**
  * Bzip2 compression factory
  */
-public class Bzip2Factory implements DecoderFactory {
+public class Bzip2Factory implements DecoderFactory, EncoderFactory {
 
 	/**
 	 * The compression name.
@@ -44,7 +46,23 @@ public class Bzip2Factory implements DecoderFactory {
 
 	@Override
 	public Decoder newDecoder(CompressionProperties properties) throws CompressionInitializationException {
-		return new Bzip2Decoder(Check.isInstanceOf(properties, Bzip2DecoderProperties.class));
+		Bzip2DecoderProperties bzip2Properties = Check.isInstanceOf(properties, Bzip2DecoderProperties.class);
+
+		return (bzip2Properties.getThreadsProperty() > 1 ? new Bzip2ParallelDecoder(bzip2Properties)
+				: new Bzip2Decoder(bzip2Properties));
+	}
+
+	@Override
+	public CompressionProperties defaultEncoderProperties() {
+		return new Bzip2EncoderProperties();
+	}
+
+	@Override
+	public Encoder newEncoder(CompressionProperties properties) throws CompressionInitializationException {
+		Bzip2EncoderProperties bzip2Properties = Check.isInstanceOf(properties, Bzip2EncoderProperties.class);
+
+		return (bzip2Properties.getThreadsProperty() > 1 ? new Bzip2ParallelEncoder(bzip2Properties)
+				: new Bzip2Encoder(bzip2Properties));
 	}
 
 }
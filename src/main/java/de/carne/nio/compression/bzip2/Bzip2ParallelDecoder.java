@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.bzip2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.InsufficientDataException;
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.common.ParallelDecoder;
+
+/**
+ * Decoder for bzip2 compressed data decoding multiple blocks in parallel.
+ * <p>
+ * The input is scanned ahead for the (not byte aligned) block signatures. Each block found this way is decoded as an
+ * independent task on the configured {@linkplain Executor}, while the decoded blocks are emitted in their original
+ * order. Concatenated streams (as created by parallel bzip2 compressors) are decoded as a whole.
+ * <p>
+ * As the signatures may also occur by chance within the encoded block data, a block failing to decode is joined with
+ * the following data up to the next signature and decoded again (until the maximum size of an encoded block is
+ * exceeded).
+ * <p>
+ * The number of blocks decoded concurrently is defined by {@linkplain Bzip2DecoderProperties#getThreadsProperty()}.
+ */
+public class Bzip2ParallelDecoder extends ParallelDecoder<Bzip2ParallelDecoder.Block> {
+
+	private enum State {
+		HEADER, SIGNATURE, EOF
+	}
+
+	private static final int SIGNATURE_BITS = 48;
+	private static final long SIGNATURE_MASK = (1L << SIGNATURE_BITS) - 1;
+	private static final int CRC_BITS = 32;
+	private static final int HEADER_SIZE = 4;
+
+	// Upper bound of an encoded block (block header, mapping table, selectors, code lengths and symbols)
+	private static final long BLOCK_BITS_MAX = SIGNATURE_BITS + CRC_BITS + 1 + 24 + 16 + 16 * 16 + 3 + 15
+			+ ((long) Bzip2.MAX_SELECTOR_COUNT) * Bzip2.MAX_HUFFMAN_COUNT
+			+ Bzip2.MAX_HUFFMAN_COUNT * (5L + Bzip2.MAX_HUFFMAN_SYMBOL_COUNT * (2L * Bzip2.MAX_HUFFMAN_BITS + 1))
+			+ (Bzip2.MAX_BLOCK_SIZE + 1L) * Bzip2.MAX_HUFFMAN_BITS;
+
+	private static final int BLOCK_OUTPUT_SIZE = 0x100000;
+	private static final int BLOCK_READ_AHEAD = 0x10000;
+
+	private final Bzip2DecoderProperties properties;
+	private final Bzip2DecoderProperties blockProperties = new Bzip2DecoderProperties();
+	private final Queue<Bzip2Decoder> blockDecoders = new ConcurrentLinkedQueue<>();
+	private final Queue<byte[]> blockOutputBuffers = new ConcurrentLinkedQueue<>();
+	private long scanPosition;
+	private int combinedCRC;
+	private long retryStart;
+	private long retryEnd;
+	private @Nullable IOException retryFailure;
+	private State state = State.EOF;
+
+	static final class Block {
+
+		final long start;
+		final long end;
+		final int combinedCRC;
+		final boolean retryable;
+
+		Block(long start, long end, int combinedCRC, boolean retryable) {
+			this.start = start;
+			this.end = end;
+			this.combinedCRC = combinedCRC;
+			this.retryable = retryable;
+		}
+
+	}
+
+	/**
+	 * Constructs a new {@linkplain Bzip2ParallelDecoder} instance using the common {@linkplain ForkJoinPool}.
+	 *
+	 * @param properties the decoder properties to use.
+	 */
+	public Bzip2ParallelDecoder(Bzip2DecoderProperties properties) {
+		this(properties, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a new {@linkplain Bzip2ParallelDecoder} instance.
+	 *
+	 * @param properties the decoder properties to use.
+	 * @param executor the {@linkplain Executor} to use for block decoding.
+	 */
+	public Bzip2ParallelDecoder(Bzip2DecoderProperties properties, Executor executor) {
+		super(Bzip2Factory.COMPRESSION_NAME, executor, properties.getThreadsProperty(), Long.MAX_VALUE);
+		this.properties = properties;
+
+		int threads = properties.getThreadsProperty();
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid bzip2 threads: " + threads);
+		}
+		this.blockProperties.setFormat(Bzip2Format.DEFAULT);
+		this.blockProperties.setBlockSizeProperty(Bzip2BlockSize.SIZE9);
+		this.blockProperties.setReadAheadProperty(BLOCK_READ_AHEAD);
+		this.blockProperties.setCrcCheckProperty(properties.getCrcCheckProperty());
+		reset0();
+	}
+
+	private void reset0() {
+		this.scanPosition = 0;
+		this.combinedCRC = 0;
+		this.retryStart = -1;
+		this.retryEnd = -1;
+		this.retryFailure = null;
+		if (Bzip2Format.BZ2LIB.equals(this.properties.getFormat())) {
+			this.state = State.HEADER;
+		} else {
+			this.state = State.SIGNATURE;
+		}
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	protected boolean isScanning() {
+		return this.state != State.EOF;
+	}
+
+	@Override
+	protected boolean isInputComplete() {
+		return this.state == State.EOF;
+	}
+
+	@Override
+	protected long consumed() {
+		Block block = pendingUnit();
+
+		return (block != null ? block.start : this.scanPosition) >>> 3;
+	}
+
+	@Override
+	protected void scan(ReadableByteChannel src) throws IOException {
+		// Keep the input of all pending blocks available for a possible retry
+		Block block = pendingUnit();
+
+		compactInput(inputIndex(block != null ? block.start : this.scanPosition));
+		switch (this.state) {
+		case HEADER:
+			scanHeader(src);
+			break;
+		case SIGNATURE:
+			scanSignature(src);
+			break;
+		case EOF:
+			break;
+		}
+	}
+
+	@Override
+	protected void unitCompleted(Block block) {
+		if (block.start == this.retryStart) {
+			this.retryStart = -1;
+			this.retryEnd = -1;
+			this.retryFailure = null;
+		}
+	}
+
+	@Override
+	protected void releaseOutput(ByteBuffer output) {
+		this.blockOutputBuffers.offer(output.array());
+	}
+
+	/*
+	 * Handles a block failing to decode. The block may have been split at a signature occurring by chance within the
+	 * encoded data. Therefore all blocks scanned so far are discarded and scanning restarts at the failed block while
+	 * skipping the signature the block has been split at.
+	 */
+	@Override
+	protected void unitFailed(Block failedBlock, IOException failure) throws IOException {
+		if (!failedBlock.retryable) {
+			throw failure;
+		}
+		cancelUnits();
+		if (this.retryFailure == null || this.retryStart != failedBlock.start) {
+			this.retryFailure = failure;
+		}
+		this.retryStart = failedBlock.start;
+		this.retryEnd = failedBlock.end;
+		this.scanPosition = failedBlock.start;
+		this.combinedCRC = failedBlock.combinedCRC;
+		setDrainStart(-1);
+		this.state = State.SIGNATURE;
+	}
+
+	private void scanHeader(ReadableByteChannel src) throws IOException {
+		int headerStart = inputIndex(this.scanPosition);
+
+		if (!ensureInput(src, headerStart + HEADER_SIZE)) {
+			throw new InsufficientDataException(HEADER_SIZE, inputLimit() - headerStart);
+		}
+		if (!isHeader(headerStart)) {
+			byte[] input = input();
+
+			throw new InvalidDataException(input[headerStart], input[headerStart + 1], input[headerStart + 2]);
+		}
+		this.scanPosition += HEADER_SIZE * 8L;
+		this.combinedCRC = 0;
+		this.state = State.SIGNATURE;
+	}
+
+	private boolean isHeader(int headerStart) {
+		byte[] input = input();
+		byte blockSize = input[headerStart + 3];
+
+		return input[headerStart] == (byte) 0x42 && input[headerStart + 1] == (byte) 0x5a
+				&& input[headerStart + 2] == (byte) 0x68 && (byte) 0x31 <= blockSize && blockSize <= (byte) 0x39;
+	}
+
+	private void scanSignature(ReadableByteChannel src) throws IOException {
+		long signatureEnd = this.scanPosition + SIGNATURE_BITS + CRC_BITS;
+
+		if (!ensureInput(src, inputIndex(signatureEnd + 7))) {
+			throw new InsufficientDataException(inputIndex(signatureEnd + 7), inputLimit());
+		}
+
+		long signature = peekBits(this.scanPosition, SIGNATURE_BITS);
+		int crc = (int) peekBits(this.scanPosition + SIGNATURE_BITS, CRC_BITS);
+
+		if (signature == Bzip2.BLOCK_SIGNATURE) {
+			long blockStart = this.scanPosition;
+			long searchStart = (blockStart == this.retryStart ? this.retryEnd + 1 : signatureEnd);
+			long blockEnd = findSignature(src, Math.max(searchStart, signatureEnd), blockStart + BLOCK_BITS_MAX);
+			byte[] block = extractBlock(blockStart, blockEnd, crc);
+
+			submitUnit(new Block(blockStart, blockEnd, this.combinedCRC, true), block.length, () -> decodeBlock(block));
+			this.combinedCRC = ((this.combinedCRC << 1) | (this.combinedCRC >>> 31)) ^ crc;
+			this.scanPosition = blockEnd;
+		} else if (signature == Bzip2.EOS_SIGNATURE) {
+			long streamEnd = (signatureEnd + 7) & ~7L;
+
+			// The stream CRC is verified in block order, as the preceding blocks may still be subject to a retry
+			if (this.properties.getCrcCheckProperty() && crc != this.combinedCRC) {
+				submitFailure(new Block(this.scanPosition, streamEnd, this.combinedCRC, false),
+						new InvalidDataException(crc, this.combinedCRC));
+			}
+
+			int streamEndIndex = inputIndex(streamEnd);
+
+			this.scanPosition = streamEnd;
+			// Continue with the next stream in case of concatenated streams
+			if (Bzip2Format.BZ2LIB.equals(this.properties.getFormat())
+					&& ensureInput(src, streamEndIndex + HEADER_SIZE) && isHeader(streamEndIndex)) {
+				this.state = State.HEADER;
+			} else {
+				setDrainStart(streamEndIndex);
+				this.state = State.EOF;
+			}
+		} else {
+			throw retryFailureOr(new InvalidDataException(signature));
+		}
+	}
+
+	private IOException retryFailureOr(IOException failure) {
+		IOException currentRetryFailure = this.retryFailure;
+
+		return (currentRetryFailure != null ? currentRetryFailure : failure);
+	}
+
+	/*
+	 * Finds the bit position of the next block or end of stream signature. As the signatures are not byte aligned,
+	 * all 8 possible bit alignments are checked for every input byte.
+	 */
+	private long findSignature(ReadableByteChannel src, long start, long limit) throws IOException {
+		int inputIndex = inputIndex(start);
+		long register = 0;
+		int registerBits = 0;
+		int skipBits = (int) (start & 7);
+
+		while (true) {
+			if (inputIndex >= inputLimit() && !readInput(src)) {
+				throw retryFailureOr(new InsufficientDataException(inputIndex + 1, inputLimit()));
+			}
+			register = (register << 8) | (input()[inputIndex] & 0xff);
+			inputIndex++;
+			registerBits += 8;
+			for (int shift = 7; shift >= 0; shift--) {
+				if (registerBits - shift - skipBits >= SIGNATURE_BITS) {
+					long candidate = (register >>> shift) & SIGNATURE_MASK;
+
+					if (candidate == Bzip2.BLOCK_SIGNATURE || candidate == Bzip2.EOS_SIGNATURE) {
+						return (inputOffset() + inputIndex) * 8L - shift - SIGNATURE_BITS;
+					}
+				}
+			}
+			if ((inputOffset() + inputIndex) * 8L - SIGNATURE_BITS > limit) {
+				throw retryFailureOr(new InvalidDataException(limit));
+			}
+		}
+	}
+
+	/*
+	 * Extracts a single block into a standalone (byte aligned) stream by appending an end of stream signature. As the
+	 * stream consists of only one block, the combined stream CRC equals the block CRC.
+	 */
+	private byte[] extractBlock(long blockStart, long blockEnd, int blockCRC) {
+		long blockBits = blockEnd - blockStart;
+		int blockBytes = (int) ((blockBits + 7) >>> 3);
+		byte[] block = new byte[(int) ((blockBits + SIGNATURE_BITS + CRC_BITS + 7) >>> 3)];
+		byte[] input = input();
+		int inputLimit = inputLimit();
+		int inputStart = inputIndex(blockStart);
+		int shift = (int) (blockStart & 7);
+
+		if (shift == 0) {
+			System.arraycopy(input, inputStart, block, 0, blockBytes);
+		} else {
+			for (int blockIndex = 0; blockIndex < blockBytes; blockIndex++) {
+				int inputIndex = inputStart + blockIndex;
+				int hi = input[inputIndex] << shift;
+				int lo = (inputIndex + 1 < inputLimit ? (input[inputIndex + 1] & 0xff) >>> (8 - shift) : 0);
+
+				block[blockIndex] = (byte) (hi | lo);
+			}
+		}
+		putBits(block, blockBits, Bzip2.EOS_SIGNATURE, SIGNATURE_BITS);
+		putBits(block, blockBits + SIGNATURE_BITS, blockCRC & 0xffffffffL, CRC_BITS);
+		return block;
+	}
+
+	private ByteBuffer decodeBlock(byte[] block) throws IOException {
+		Bzip2Decoder decoder = this.blockDecoders.poll();
+
+		if (decoder == null) {
+			decoder = new Bzip2Decoder(this.blockProperties);
+		}
+		try {
+			ReadableByteChannel blockChannel = Channels.newChannel(new ByteArrayInputStream(block));
+			byte[] output = this.blockOutputBuffers.poll();
+
+			if (output == null) {
+				output = new byte[BLOCK_OUTPUT_SIZE];
+			}
+
+			int outputLength = 0;
+
+			decoder.reset();
+			while (true) {
+				if (outputLength == output.length) {
+					output = Arrays.copyOf(output, output.length << 1);
+				}
+
+				ByteBuffer outputBuffer = ByteBuffer.wrap(output, outputLength, output.length - outputLength);
+
+				if (decoder.decode(outputBuffer, blockChannel) < 0) {
+					break;
+				}
+				outputLength = outputBuffer.position();
+			}
+			return ByteBuffer.wrap(output, 0, outputLength);
+		} finally {
+			this.blockDecoders.offer(decoder);
+		}
+	}
+
+	private int inputIndex(long position) {
+		return (int) ((position >>> 3) - inputOffset());
+	}
+
+	private long peekBits(long position, int count) {
+		byte[] input = input();
+		long bits = 0;
+
+		for (long bitPosition = position; bitPosition < position + count; bitPosition++) {
+			bits = (bits << 1) | ((input[inputIndex(bitPosition)] >>> (7 - (bitPosition & 7))) & 1);
+		}
+		return bits;
+	}
+
+	private static void putBits(byte[] buffer, long position, long bits, int count) {
+		for (int bitIndex = 0; bitIndex < count; bitIndex++) {
+			long bitPosition = position + bitIndex;
+			int bufferIndex = (int) (bitPosition >>> 3);
+			int mask = 0x80 >>> (bitPosition & 7);
+
+			if (((bits >>> (count - bitIndex - 1)) & 1) != 0) {
+				buffer[bufferIndex] |= (byte) mask;
+			} else {
+				buffer[bufferIndex] &= (byte) ~mask;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.bzip2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.common.MsbBitEncoder;
+import de.carne.nio.compression.spi.Encoder;
+
+/**
+ * Encoder for bzip2 compressed data encoding multiple blocks in parallel.
+ * <p>
+ * Every completed block is encoded as an independent task on the configured {@linkplain Executor}. The encoded blocks
+ * are concatenated at bit level in their original order and the combined stream CRC is calculated from the block CRCs.
+ * The resulting stream is identical to the one created by {@linkplain Bzip2Encoder}.
+ * <p>
+ * The number of blocks encoded concurrently (and hence the memory in use) is bounded by
+ * {@linkplain Bzip2EncoderProperties#getThreadsProperty()}.
+ */
+public class Bzip2ParallelEncoder extends Encoder {
+
+	private static final int INPUT_BUFFER_SIZE = 0x10000;
+
+	private final Bzip2EncoderProperties properties;
+	private final Executor executor;
+	private final int threads;
+	private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+	private final Queue<Bzip2BlockBuffer> blockBuffers = new ArrayDeque<>();
+	private final Queue<Bzip2BlockEncoder> blockEncoders = new ConcurrentLinkedQueue<>();
+	private final Queue<MsbBitEncoder> blockBitEncoders = new ConcurrentLinkedQueue<>();
+	private final ArrayDeque<PendingBlock> pendingBlocks = new ArrayDeque<>();
+	private final MsbBitEncoder bitEncoder = new MsbBitEncoder();
+	private @Nullable Bzip2BlockBuffer blockBuffer = null;
+	private int combinedCRCReg;
+	private boolean streamStarted;
+
+	private static final class PendingBlock {
+
+		final Bzip2BlockBuffer blockBuffer;
+		final CompletableFuture<MsbBitEncoder> future;
+
+		PendingBlock(Bzip2BlockBuffer blockBuffer, CompletableFuture<MsbBitEncoder> future) {
+			this.blockBuffer = blockBuffer;
+			this.future = future;
+		}
+
+	}
+
+	/**
+	 * Constructs a new {@linkplain Bzip2ParallelEncoder} instance using the common {@linkplain ForkJoinPool}.
+	 *
+	 * @param properties the encoder properties to use.
+	 */
+	public Bzip2ParallelEncoder(Bzip2EncoderProperties properties) {
+		this(properties, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a new {@linkplain Bzip2ParallelEncoder} instance.
+	 *
+	 * @param properties the encoder properties to use.
+	 * @param executor the {@linkplain Executor} to use for block encoding.
+	 */
+	public Bzip2ParallelEncoder(Bzip2EncoderProperties properties, Executor executor) {
+		super(Bzip2Factory.COMPRESSION_NAME);
+		this.properties = properties;
+		this.executor = executor;
+		this.threads = properties.getThreadsProperty();
+		if (this.threads < 1) {
+			throw new IllegalArgumentException("Invalid bzip2 threads: " + this.threads);
+		}
+		// Validates the block size
+		this.blockBuffers.add(new Bzip2BlockBuffer(this.properties.getBlockSizeProperty()));
+		reset0();
+	}
+
+	private void reset0() {
+		for (PendingBlock pendingBlock : this.pendingBlocks) {
+			pendingBlock.future.cancel(false);
+		}
+		this.pendingBlocks.clear();
+		this.bitEncoder.reset();
+
+		Bzip2BlockBuffer currentBlockBuffer = this.blockBuffer;
+
+		if (currentBlockBuffer != null) {
+			currentBlockBuffer.reset();
+		}
+		this.combinedCRCReg = 0;
+		this.streamStarted = false;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	public int encode(ByteBuffer src, WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int consumed = 0;
+		int encoded = 0;
+
+		try {
+			startStream();
+			while (src.hasRemaining()) {
+				int chunkLength = Math.min(src.remaining(), this.inputBuffer.length);
+
+				src.get(this.inputBuffer, 0, chunkLength);
+
+				int chunkOffset = 0;
+
+				while (chunkOffset < chunkLength) {
+					Bzip2BlockBuffer currentBlockBuffer = currentBlockBuffer();
+
+					chunkOffset += currentBlockBuffer.add(this.inputBuffer, chunkOffset, chunkLength - chunkOffset);
+					if (currentBlockBuffer.isFull()) {
+						encoded += submitBlock(currentBlockBuffer, dst);
+					}
+				}
+				consumed += chunkLength;
+			}
+			encoded += collectBlocks(dst, false);
+			encoded += this.bitEncoder.flush(dst);
+		} finally {
+			endProcessing(beginTime, consumed, encoded);
+		}
+		return encoded;
+	}
+
+	@Override
+	public int finishEncoding(WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int encoded = 0;
+
+		try {
+			startStream();
+
+			Bzip2BlockBuffer currentBlockBuffer = this.blockBuffer;
+
+			if (currentBlockBuffer != null && !currentBlockBuffer.isEmpty()) {
+				encoded += submitBlock(currentBlockBuffer, dst);
+			}
+			encoded += collectBlocks(dst, true);
+			Bzip2Encoder.encodeStreamTrailer(this.bitEncoder, this.combinedCRCReg);
+			encoded += this.bitEncoder.flush(dst);
+			// Any further input starts a new (concatenated) stream
+			this.combinedCRCReg = 0;
+			this.streamStarted = false;
+		} finally {
+			endProcessing(beginTime, 0, encoded);
+		}
+		return encoded;
+	}
+
+	private void startStream() {
+		if (!this.streamStarted) {
+			Bzip2Encoder.encodeStreamHeader(this.bitEncoder, this.properties);
+			this.streamStarted = true;
+		}
+	}
+
+	private Bzip2BlockBuffer currentBlockBuffer() {
+		Bzip2BlockBuffer currentBlockBuffer = this.blockBuffer;
+
+		if (currentBlockBuffer == null) {
+			currentBlockBuffer = this.blockBuffers.poll();
+			if (currentBlockBuffer == null) {
+				currentBlockBuffer = new Bzip2BlockBuffer(this.properties.getBlockSizeProperty());
+			}
+			this.blockBuffer = currentBlockBuffer;
+		}
+		return currentBlockBuffer;
+	}
+
+	private int submitBlock(Bzip2BlockBuffer submitBlockBuffer, WritableByteChannel dst) throws IOException {
+		int encoded = 0;
+
+		// Bound the number of blocks in flight
+		while (this.pendingBlocks.size() >= this.threads) {
+			encoded += collectBlock(dst);
+		}
+
+		int blockCRC = submitBlockBuffer.blockCRC();
+
+		submitBlockBuffer.complete();
+		this.combinedCRCReg = Bzip2Encoder.combineCRC(this.combinedCRCReg, blockCRC);
+		this.pendingBlocks.add(new PendingBlock(submitBlockBuffer,
+				CompletableFuture.supplyAsync(() -> encodeBlock(submitBlockBuffer, blockCRC), this.executor)));
+		this.blockBuffer = null;
+		return encoded;
+	}
+
+	private MsbBitEncoder encodeBlock(Bzip2BlockBuffer encodeBlockBuffer, int blockCRC) {
+		Bzip2BlockEncoder blockEncoder = this.blockEncoders.poll();
+
+		if (blockEncoder == null) {
+			blockEncoder = new Bzip2BlockEncoder();
+		}
+
+		MsbBitEncoder blockBitEncoder = this.blockBitEncoders.poll();
+
+		if (blockBitEncoder == null) {
+			blockBitEncoder = new MsbBitEncoder();
+		}
+		try {
+			blockBitEncoder.reset();
+			blockEncoder.encodeBlock(encodeBlockBuffer.block(), encodeBlockBuffer.blockLength(), blockCRC,
+					blockBitEncoder);
+		} finally {
+			this.blockEncoders.offer(blockEncoder);
+		}
+		return blockBitEncoder;
+	}
+
+	private int collectBlocks(WritableByteChannel dst, boolean all) throws IOException {
+		int encoded = 0;
+		PendingBlock pendingBlock = this.pendingBlocks.peek();
+
+		while (pendingBlock != null && (all || pendingBlock.future.isDone())) {
+			encoded += collectBlock(dst);
+			pendingBlock = this.pendingBlocks.peek();
+		}
+		return encoded;
+	}
+
+	private int collectBlock(WritableByteChannel dst) throws IOException {
+		PendingBlock pendingBlock = this.pendingBlocks.remove();
+		MsbBitEncoder blockBitEncoder;
+
+		try {
+			blockBitEncoder = pendingBlock.future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw e;
+		}
+		this.bitEncoder.encodeBits(blockBitEncoder);
+		this.blockBitEncoders.offer(blockBitEncoder);
+		pendingBlock.blockBuffer.reset();
+		this.blockBuffers.offer(pendingBlock.blockBuffer);
+		return this.bitEncoder.flush(dst);
+	}
+
+}
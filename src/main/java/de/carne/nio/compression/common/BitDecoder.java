@@ -27,11 +27,19 @@ import de.carne.nio.compression.Check;
  * Utility class providing bit-level access to {@linkplain ReadableByteChannel}.
  * <p>
  * The actual bit access is done via on or more {@linkplain BitRegister} instances.
+ * <p>
+ * By default only the bytes actually needed for bit access are read from the underlying channel. If a read-ahead size
+ * is set, the channel is read in bulk into an internal buffer instead. In this case any bytes read beyond the end of
+ * the decoded data can be retrieved via {@linkplain #drainBytes()}.
  */
 public final class BitDecoder {
 
+	private static final int MAX_FEED_SIZE = 8;
+
 	private final BitRegister[] registers;
 	private final byte[] trailingBytes;
+	private final boolean readAhead;
+	private final ByteBuffer readBuffer;
 	private int trailingBytesIndex;
 	private long totalInBits;
 
@@ -42,7 +50,7 @@ public final class BitDecoder {
 	 * @param trailingBytes the optional bytes to feed after the underlying reader has reached EOF.
 	 */
 	public BitDecoder(BitRegister register, byte... trailingBytes) {
-		this(new BitRegister[] { register }, trailingBytes);
+		this(0, new BitRegister[] { register }, trailingBytes);
 	}
 
 	/**
@@ -52,22 +60,51 @@ public final class BitDecoder {
 	 * @param trailingBytes the optional bytes to feed after the underlying reader has reached EOF.
 	 */
 	public BitDecoder(BitRegister[] registers, byte... trailingBytes) {
+		this(0, registers, trailingBytes);
+	}
+
+	/**
+	 * Constructs a new {@linkplain BitDecoder} instance.
+	 *
+	 * @param readAheadSize the size of the read-ahead buffer to use ({@code 0} to disable read-ahead).
+	 * @param register the [@linkplain BitRegister} to use for bit access.
+	 * @param trailingBytes the optional bytes to feed after the underlying reader has reached EOF.
+	 */
+	public BitDecoder(int readAheadSize, BitRegister register, byte... trailingBytes) {
+		this(readAheadSize, new BitRegister[] { register }, trailingBytes);
+	}
+
+	/**
+	 * Constructs a new {@linkplain BitDecoder} instance.
+	 *
+	 * @param readAheadSize the size of the read-ahead buffer to use ({@code 0} to disable read-ahead).
+	 * @param registers the [@linkplain BitRegister}s to use for bit access.
+	 * @param trailingBytes the optional bytes to feed after the underlying reader has reached EOF.
+	 */
+	public BitDecoder(int readAheadSize, BitRegister[] registers, byte... trailingBytes) {
+		Check.assertTrue(readAheadSize == 0 || readAheadSize >= MAX_FEED_SIZE, "Invalid read-ahead size: %1$d",
+				readAheadSize);
 		Check.assertTrue(registers.length > 0, "Empty registers");
 
 		this.registers = new BitRegister[registers.length];
 		System.arraycopy(registers, 0, this.registers, 0, registers.length);
 		this.trailingBytes = new byte[trailingBytes.length];
 		System.arraycopy(trailingBytes, 0, this.trailingBytes, 0, trailingBytes.length);
+		this.readAhead = readAheadSize > 0;
+		this.readBuffer = ByteBuffer.allocate(this.readAhead ? readAheadSize : MAX_FEED_SIZE);
 		init();
 	}
 
 	private void init() {
+		this.readBuffer.clear().flip();
 		this.trailingBytesIndex = 0;
 		this.totalInBits = 0L;
 	}
 
 	/**
 	 * Resets the decoder to it's initial state.
+	 * <p>
+	 * Any read-ahead bytes are discarded.
 	 */
 	public void reset() {
 		clear();
@@ -93,6 +130,47 @@ public final class BitDecoder {
 		return (this.totalInBits + 7) >>> 3;
 	}
 
+	/**
+	 * Gets the number of bits which are available for decoding without accessing the underlying channel.
+	 * <p>
+	 * Besides the bits currently stored in the registers this includes any read-ahead bytes not yet fed to the
+	 * registers. Trailing bytes are not counted.
+	 *
+	 * @return the number of bits which are available for decoding without accessing the underlying channel.
+	 */
+	public long bufferedBits() {
+		return Math.max(this.registers[0].bitCount() - (this.trailingBytesIndex << 3), 0)
+				+ (((long) this.readBuffer.remaining()) << 3);
+	}
+
+	/**
+	 * Checks whether a number of bits is available for decoding without reaching the end of the underlying channel.
+	 * <p>
+	 * Any bytes read from the channel during this check stay buffered until they are decoded or drained (see
+	 * {@linkplain #drainBytes()}). Trailing bytes are not taken into account.
+	 *
+	 * @param src the {@linkplain ReadableByteChannel} to check.
+	 * @param count the number of bits to check for.
+	 * @return {@code true} if the requested number of bits is available.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public boolean isAvailable(ReadableByteChannel src, int count) throws IOException {
+		Check.assertTrue(0 <= count && count <= BitRegister.MAX_BIT_COUNT, "Invalid bit count: %1$d", count);
+
+		int missingBytes = (int) ((count - bufferedBits() + 7) / 8);
+
+		while (missingBytes > 0) {
+			int buffered = this.readBuffer.remaining();
+			int filled = fillReadBuffer(src, missingBytes);
+
+			if (filled <= buffered) {
+				return false;
+			}
+			missingBytes -= filled - buffered;
+		}
+		return true;
+	}
+
 	/**
 	 * Decodes a number of bits from a {@linkplain ReadableByteChannel} without discarding them.
 	 * <p>
@@ -151,11 +229,21 @@ public final class BitDecoder {
 	public int decodeBits(ReadableByteChannel src, int count, int registerIndex) throws IOException {
 		int bits = peekBits(src, count, registerIndex);
 
+		discardBits(count);
+		return bits;
+	}
+
+	/**
+	 * Discards a number of bits which have been peeked before.
+	 *
+	 * @param count the number of bits to discard.
+	 * @see #peekBits(ReadableByteChannel, int, int)
+	 */
+	public void discardBits(int count) {
 		this.totalInBits += count;
 		for (BitRegister register : this.registers) {
 			register.discardBits(count);
 		}
-		return bits;
 	}
 
 	/**
@@ -189,12 +277,20 @@ public final class BitDecoder {
 		int read = 0;
 
 		while (register0.bitCount() > 0 && dst.hasRemaining()) {
-			dst.put((byte) register0.peekBits(8));
+			dst.put(register0.peekByte());
 			for (BitRegister register : this.registers) {
 				register.discardBits(8);
 			}
 			read++;
 		}
+		if (this.readBuffer.hasRemaining() && dst.hasRemaining()) {
+			int bufferedRead = Math.min(this.readBuffer.remaining(), dst.remaining());
+			int readBufferPosition = this.readBuffer.position();
+
+			dst.put(this.readBuffer.array(), readBufferPosition, bufferedRead);
+			this.readBuffer.position(readBufferPosition + bufferedRead);
+			read += bufferedRead;
+		}
 
 		int directRead = (dst.hasRemaining() ? src.read(dst) : 0);
 
@@ -223,40 +319,72 @@ public final class BitDecoder {
 		int read;
 
 		if (register0.bitCount() > 0) {
-			read = register0.peekBits(8) & 0xff;
+			read = register0.peekByte() & 0xff;
 			this.totalInBits += 8;
 			for (BitRegister register : this.registers) {
 				register.discardBits(8);
 			}
+		} else if (this.readBuffer.hasRemaining() || fillReadBuffer(src, 1) > 0) {
+			read = this.readBuffer.get() & 0xff;
+			this.totalInBits += 8;
 		} else {
-			ByteBuffer readBuffer = ByteBuffer.allocate(1);
+			read = -1;
+		}
+		return read;
+	}
 
-			read = src.read(readBuffer);
-			readBuffer.flip();
-			if (read == 1) {
-				read = readBuffer.get() & 0xff;
-				this.totalInBits += 8;
+	/**
+	 * Drains all bytes which have been read from the underlying channel but which have not yet been decoded.
+	 * <p>
+	 * Any pending bits not forming a complete byte are discarded. The drained bytes are not counted as decoded (see
+	 * {@linkplain #totalIn()}). This function is meant to be called after the end of the encoded data has been reached
+	 * to determine where the encoded data ends within the underlying channel.
+	 *
+	 * @return the drained bytes.
+	 */
+	public ByteBuffer drainBytes() {
+		alignToByte();
+
+		BitRegister register0 = this.registers[0];
+		int registerBytes = Math.max((register0.bitCount() >>> 3) - this.trailingBytesIndex, 0);
+		ByteBuffer drained = ByteBuffer.allocate(registerBytes + this.readBuffer.remaining());
+
+		for (int registerByteIndex = 0; registerByteIndex < registerBytes; registerByteIndex++) {
+			drained.put(register0.peekByte());
+			for (BitRegister register : this.registers) {
+				register.discardBits(8);
 			}
 		}
-		return read;
+		for (BitRegister register : this.registers) {
+			register.clear();
+		}
+		drained.put(this.readBuffer);
+		drained.flip();
+		return drained;
 	}
 
 	private void feedBytes(ReadableByteChannel src, int count) throws IOException {
-		int currentBitcount = this.registers[0].bitCount();
-
-		if (count > currentBitcount) {
-			int feedBytesRemainingCount = ((count - currentBitcount) + 7) / 8;
+		BitRegister register0 = this.registers[0];
 
+		if (count > register0.bitCount()) {
 			if (this.trailingBytesIndex == 0) {
-				ByteBuffer readBuffer = ByteBuffer.allocate(feedBytesRemainingCount);
-
-				src.read(readBuffer);
-				readBuffer.flip();
-				while (readBuffer.hasRemaining()) {
-					feedByte(readBuffer.get());
-					feedBytesRemainingCount--;
+				if (this.readAhead) {
+					refillBytes(src, count);
+				} else {
+					int feedBytesCount = ((count - register0.bitCount()) + 7) / 8;
+
+					if (this.readBuffer.remaining() < feedBytesCount) {
+						fillReadBuffer(src, feedBytesCount);
+					}
+					while (this.readBuffer.hasRemaining() && feedBytesCount > 0) {
+						feedByte(this.readBuffer.get());
+						feedBytesCount--;
+					}
 				}
 			}
+
+			int feedBytesRemainingCount = ((count - register0.bitCount()) + 7) / 8;
+
 			while (feedBytesRemainingCount > 0) {
 				if (this.trailingBytesIndex >= this.trailingBytes.length) {
 					throw new EOFException("Unable to read remaining bytes: " + feedBytesRemainingCount);
@@ -269,6 +397,41 @@ public final class BitDecoder {
 		}
 	}
 
+	private void refillBytes(ReadableByteChannel src, int count) throws IOException {
+		BitRegister register0 = this.registers[0];
+
+		do {
+			if (this.readBuffer.remaining() < BitRegister.REFILL_SIZE
+					&& fillReadBuffer(src, BitRegister.REFILL_SIZE) == 0) {
+				break;
+			}
+
+			int position = this.readBuffer.position();
+
+			if (this.readBuffer.limit() - position >= BitRegister.REFILL_SIZE) {
+				// All registers hold the same number of bits and therefore consume the same number of bytes
+				int refillCount = 0;
+
+				for (BitRegister register : this.registers) {
+					refillCount = register.refillBits(this.readBuffer.array(), position);
+				}
+				this.readBuffer.position(position + refillCount);
+			} else {
+				feedByte(this.readBuffer.get());
+			}
+		} while (count > register0.bitCount());
+	}
+
+	private int fillReadBuffer(ReadableByteChannel src, int count) throws IOException {
+		this.readBuffer.compact();
+		if (!this.readAhead) {
+			this.readBuffer.limit(Math.min(this.readBuffer.position() + count, this.readBuffer.capacity()));
+		}
+		src.read(this.readBuffer);
+		this.readBuffer.flip();
+		return this.readBuffer.remaining();
+	}
+
 	private void feedByte(byte b) {
 		for (BitRegister register : this.registers) {
 			register.feedBits(b);
@@ -26,6 +26,11 @@ public abstract class BitRegister {
 	 */
 	public static final int MAX_BIT_COUNT = 32;
 
+	/**
+	 * The minimum number of bytes which must be accessible when calling {@linkplain #refillBits(byte[], int)}.
+	 */
+	public static final int REFILL_SIZE = 8;
+
 	/**
 	 * Bit register.
 	 */
@@ -65,6 +70,21 @@ public abstract class BitRegister {
 	 */
 	public abstract int feedBits(byte b);
 
+	/**
+	 * Refills the register from a byte array.
+	 * <p>
+	 * This default implementation feeds a single byte. Wide registers feed as many bytes as possible at once.
+	 *
+	 * @param buffer the byte array to refill from.
+	 * @param offset the offset of the next byte to feed (at least {@linkplain #REFILL_SIZE} bytes must be accessible
+	 * starting at this offset).
+	 * @return the number of fed bytes.
+	 */
+	public int refillBits(byte[] buffer, int offset) {
+		feedBits(buffer[offset]);
+		return 1;
+	}
+
 	/**
 	 * Takes a peek at the register's bits.
 	 *
@@ -73,6 +93,15 @@ public abstract class BitRegister {
 	 */
 	public abstract int peekBits(int count);
 
+	/**
+	 * Takes a peek at the next byte (in stream order).
+	 * <p>
+	 * The register must be byte-aligned and contain at least one byte.
+	 *
+	 * @return the next byte.
+	 */
+	public abstract byte peekByte();
+
 	/**
 	 * Discards bits from the register.
 	 *
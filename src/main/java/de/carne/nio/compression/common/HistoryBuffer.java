@@ -19,30 +19,48 @@ package de.carne.nio.compression.common;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.Nullable;
 
 import de.carne.nio.compression.Check;
 import de.carne.nio.compression.InsufficientDataException;
 import de.carne.nio.compression.InvalidDataException;
 
 /**
- * History buffer as used for Deflate processing.
+ * History buffer as used for LZ77 style decoding (e.g. Deflate or LZMA).
+ * <p>
+ * The history buffer is a ring buffer with a power of 2 size. All wrap-around handling is done via mask arithmetic and
+ * bulk operations are split into at most two chunks (before and after the wrap-around).
+ * <p>
+ * By default all data is put into the history buffer and has to be flushed afterwards. Alternatively a direct output
+ * array can be attached (see {@linkplain #beginDirectOutput(byte[], int, int)}) causing all data to be written directly
+ * to the attached array. In this case only the trailing history data is copied into the history buffer once the direct
+ * output is detached.
  */
 public final class HistoryBuffer {
 
 	private final byte[] buffer;
+	private final int bufferMask;
 	private int bufferBeginPos;
 	private int bufferEndPos;
-	private int bufferCopyLimit;
+	private long bufferTotal;
+	private byte @Nullable [] output = null;
+	private int outputStart = 0;
+	private int outputHistoryStart = 0;
+	private int outputPos = 0;
+	private int outputLimit = 0;
 
 	/**
 	 * Construct a new {@code HistoryBuffer} instance.
 	 *
-	 * @param size the history buffer size.
+	 * @param size the history buffer size (must be a power of 2).
 	 */
 	public HistoryBuffer(int size) {
-		Check.assertTrue(size > 0, "Invalid size: %1$d", size);
+		Check.assertTrue(size > 0 && Integer.bitCount(size) == 1, "Invalid size: %1$d", size);
 
 		this.buffer = new byte[size];
+		this.bufferMask = size - 1;
 		clear();
 	}
 
@@ -61,7 +79,8 @@ public final class HistoryBuffer {
 	public void clear() {
 		this.bufferBeginPos = 0;
 		this.bufferEndPos = 0;
-		this.bufferCopyLimit = 0;
+		this.bufferTotal = 0;
+		this.outputHistoryStart = this.outputPos;
 	}
 
 	/**
@@ -70,9 +89,72 @@ public final class HistoryBuffer {
 	 * @param b the byte to put into the history buffer.
 	 */
 	public void putByte(byte b) {
+		byte[] directOutput = this.output;
+
+		if (directOutput != null) {
+			directOutput[this.outputPos] = b;
+			this.outputPos++;
+			return;
+		}
 		this.buffer[this.bufferBeginPos] = b;
-		this.bufferBeginPos = (this.bufferBeginPos + 1) % this.buffer.length;
-		this.bufferCopyLimit = Math.min(this.bufferCopyLimit + 1, this.buffer.length);
+		this.bufferBeginPos = (this.bufferBeginPos + 1) & this.bufferMask;
+		this.bufferTotal++;
+	}
+
+	/**
+	 * Gets a single byte from the history buffer.
+	 *
+	 * @param dist the distance of the history byte to get ({@code 0} for the most recently put byte).
+	 * @return the history byte.
+	 */
+	public byte getByte(int dist) {
+		byte[] directOutput = this.output;
+		int bufferDist = dist;
+
+		if (directOutput != null) {
+			int written = this.outputPos - this.outputHistoryStart;
+
+			if (dist < written) {
+				return directOutput[this.outputPos - dist - 1];
+			}
+			bufferDist -= written;
+		}
+		return this.buffer[(this.bufferBeginPos - bufferDist - 1) & this.bufferMask];
+	}
+
+	/**
+	 * Gets the underlying ring buffer array for writing to it directly.
+	 * <p>
+	 * Decoders may write runs of bytes directly into this array starting at {@linkplain #bufferPos()} (but not beyond
+	 * the end of the array) and afterwards call {@linkplain #advance(int)} to make them part of the history data.
+	 * Direct writing is not possible while a direct output array is attached.
+	 *
+	 * @return the underlying ring buffer array.
+	 */
+	public byte[] buffer() {
+		Check.assertTrue(this.output == null, "Direct output attached");
+
+		return this.buffer;
+	}
+
+	/**
+	 * Gets the ring buffer position the next byte will be put at.
+	 *
+	 * @return the ring buffer position the next byte will be put at.
+	 */
+	public int bufferPos() {
+		return this.bufferBeginPos;
+	}
+
+	/**
+	 * Advances the ring buffer position after bytes have been written directly to the ring buffer array.
+	 *
+	 * @param count the number of bytes written.
+	 * @see #buffer()
+	 */
+	public void advance(int count) {
+		this.bufferBeginPos = (this.bufferBeginPos + count) & this.bufferMask;
+		this.bufferTotal += count;
 	}
 
 	/**
@@ -84,19 +166,26 @@ public final class HistoryBuffer {
 	 * @throws IOException if an I/O error occurs.
 	 */
 	public void putBytes(BitDecoder bitDecoder, ReadableByteChannel src, int length) throws IOException {
+		byte[] directOutput = this.output;
+
+		if (directOutput != null) {
+			putDirectBytes(directOutput, bitDecoder, src, length);
+			return;
+		}
+
 		int remaining = length;
 
 		while (remaining > 0) {
-			int readLength = Math.min(length, this.buffer.length - this.bufferBeginPos);
+			int readLength = Math.min(remaining, this.buffer.length - this.bufferBeginPos);
 			ByteBuffer readBuffer = ByteBuffer.wrap(this.buffer, this.bufferBeginPos, readLength);
 			int read = bitDecoder.readBytes(src, readBuffer);
 
-			if (read < readLength) {
+			if (read <= 0) {
 				throw new InsufficientDataException(readLength, read);
 			}
-			this.bufferBeginPos = (this.bufferBeginPos + readLength) % this.buffer.length;
-			this.bufferCopyLimit = Math.min(this.bufferCopyLimit + readLength, this.buffer.length);
-			remaining -= readLength;
+			this.bufferBeginPos = (this.bufferBeginPos + read) & this.bufferMask;
+			this.bufferTotal += read;
+			remaining -= read;
 		}
 	}
 
@@ -108,29 +197,35 @@ public final class HistoryBuffer {
 	 * @throws IOException if an I/O error occurs.
 	 */
 	public void copyBlock(int dist, int len) throws IOException {
-		if (dist >= this.bufferCopyLimit) {
-			throw new InvalidDataException(this.bufferCopyLimit, dist, len);
-		}
+		byte[] directOutput = this.output;
 
-		int copyPos = this.bufferBeginPos - dist - 1;
+		if (directOutput != null) {
+			copyDirectBlock(directOutput, dist, len);
+			return;
+		}
+		int copyLimit = copyLimit();
 
-		if (copyPos < 0) {
-			copyPos += this.buffer.length;
+		if (dist >= copyLimit) {
+			throw new InvalidDataException(copyLimit, dist, len);
 		}
 
+		int copyPos = (this.bufferBeginPos - dist - 1) & this.bufferMask;
 		int remaining = len;
 
 		while (remaining > 0) {
 			int copyLen = Math.min(this.buffer.length - Math.max(this.bufferBeginPos, copyPos), remaining);
 
-			for (int copyIndex = 0; copyIndex < copyLen; copyIndex++) {
-				this.buffer[this.bufferBeginPos + copyIndex] = this.buffer[copyPos + copyIndex];
+			if (copyPos < this.bufferBeginPos) {
+				copyRepeated(this.buffer, copyPos, this.bufferBeginPos, copyLen);
+			} else {
+				// The source lies behind the target (wrapped around), hence no already copied bytes are read again
+				System.arraycopy(this.buffer, copyPos, this.buffer, this.bufferBeginPos, copyLen);
 			}
-			this.bufferBeginPos = (this.bufferBeginPos + copyLen) % this.buffer.length;
-			copyPos = (copyPos + copyLen) % this.buffer.length;
+			this.bufferBeginPos = (this.bufferBeginPos + copyLen) & this.bufferMask;
+			copyPos = (copyPos + copyLen) & this.bufferMask;
 			remaining -= copyLen;
 		}
-		this.bufferCopyLimit = Math.min(this.bufferCopyLimit + len, this.buffer.length);
+		this.bufferTotal += len;
 	}
 
 	/**
@@ -146,15 +241,150 @@ public final class HistoryBuffer {
 			if (this.bufferEndPos > this.bufferBeginPos) {
 				len = Math.min(this.buffer.length - this.bufferEndPos, dst.remaining());
 				dst.put(this.buffer, this.bufferEndPos, len);
-				this.bufferEndPos = (this.bufferEndPos + len) % this.buffer.length;
+				this.bufferEndPos = (this.bufferEndPos + len) & this.bufferMask;
 			}
 			if (this.bufferEndPos < this.bufferBeginPos) {
-				len = Math.min(this.bufferBeginPos - this.bufferEndPos, dst.remaining());
-				dst.put(this.buffer, this.bufferEndPos, len);
-				this.bufferEndPos = (this.bufferEndPos + len) % this.buffer.length;
+				int len2 = Math.min(this.bufferBeginPos - this.bufferEndPos, dst.remaining());
+
+				dst.put(this.buffer, this.bufferEndPos, len2);
+				this.bufferEndPos = (this.bufferEndPos + len2) & this.bufferMask;
+				len += len2;
 			}
 		}
 		return len;
 	}
 
+	/**
+	 * Attaches a direct output array.
+	 * <p>
+	 * All history data must have been flushed before attaching a direct output array. Until the array is detached
+	 * again via {@linkplain #endDirectOutput()}, all data is written directly to the attached array.
+	 *
+	 * @param directOutput the array to write to.
+	 * @param offset the array offset to start writing at.
+	 * @param length the maximum number of bytes to write.
+	 */
+	public void beginDirectOutput(byte[] directOutput, int offset, int length) {
+		Check.assertTrue(this.output == null, "Direct output already attached");
+		Check.assertTrue(this.bufferBeginPos == this.bufferEndPos, "History data not yet flushed");
+
+		this.output = directOutput;
+		this.outputStart = offset;
+		this.outputHistoryStart = offset;
+		this.outputPos = offset;
+		this.outputLimit = offset + length;
+	}
+
+	/**
+	 * Gets the number of bytes which can still be written to the attached direct output array.
+	 *
+	 * @return the number of bytes which can still be written to the attached direct output array.
+	 */
+	public int directOutputRemaining() {
+		return this.outputLimit - this.outputPos;
+	}
+
+	/**
+	 * Detaches the direct output array and updates the history data accordingly.
+	 *
+	 * @return the number of bytes written to the direct output array.
+	 */
+	public int endDirectOutput() {
+		byte[] directOutput = this.output;
+
+		if (directOutput == null) {
+			return Check.fail("Direct output not attached");
+		}
+
+		int written = this.outputPos - this.outputStart;
+		int historyWritten = this.outputPos - this.outputHistoryStart;
+		int historyLength = Math.min(historyWritten, this.buffer.length);
+		int historyPos = this.outputPos - historyLength;
+
+		while (historyPos < this.outputPos) {
+			int copyLen = Math.min(this.outputPos - historyPos, this.buffer.length - this.bufferBeginPos);
+
+			System.arraycopy(directOutput, historyPos, this.buffer, this.bufferBeginPos, copyLen);
+			this.bufferBeginPos = (this.bufferBeginPos + copyLen) & this.bufferMask;
+			historyPos += copyLen;
+		}
+		this.bufferEndPos = this.bufferBeginPos;
+		this.bufferTotal += historyWritten;
+		this.output = null;
+		return written;
+	}
+
+	private int copyLimit() {
+		return (int) Math.min(this.bufferTotal, this.buffer.length);
+	}
+
+	private void putDirectBytes(byte[] directOutput, BitDecoder bitDecoder, ReadableByteChannel src, int length)
+			throws IOException {
+		ByteBuffer readBuffer = ByteBuffer.wrap(directOutput, this.outputPos, length);
+
+		while (readBuffer.hasRemaining()) {
+			int read = bitDecoder.readBytes(src, readBuffer);
+
+			if (read <= 0) {
+				throw new InsufficientDataException(readBuffer.remaining(), read);
+			}
+		}
+		this.outputPos += length;
+	}
+
+	private void copyDirectBlock(byte[] directOutput, int dist, int len) throws IOException {
+		int written = this.outputPos - this.outputHistoryStart;
+
+		if (dist >= written && dist - written >= copyLimit()) {
+			throw new InvalidDataException(copyLimit() + written, dist, len);
+		}
+
+		int remaining = len;
+
+		if (dist >= written) {
+			// The block starts within the history buffer
+			int copyPos = (this.bufferBeginPos - (dist - written) - 1) & this.bufferMask;
+			int historyRemaining = Math.min(dist - written + 1, remaining);
+
+			while (historyRemaining > 0) {
+				int copyLen = Math.min(this.buffer.length - copyPos, historyRemaining);
+
+				System.arraycopy(this.buffer, copyPos, directOutput, this.outputPos, copyLen);
+				this.outputPos += copyLen;
+				copyPos = (copyPos + copyLen) & this.bufferMask;
+				historyRemaining -= copyLen;
+				remaining -= copyLen;
+			}
+		}
+
+		if (remaining > 0) {
+			copyRepeated(directOutput, this.outputPos - dist - 1, this.outputPos, remaining);
+			this.outputPos += remaining;
+		}
+	}
+
+	/*
+	 * Copies bytes within an array from a source position to a higher target position. If source and target overlap,
+	 * the source pattern is repeated (as required by LZ77 style back-references). Overlapping copies double the already
+	 * repeated pattern with each step instead of copying byte by byte.
+	 */
+	private static void copyRepeated(byte[] array, int srcPos, int dstPos, int len) {
+		int distance = dstPos - srcPos;
+
+		if (distance >= len) {
+			System.arraycopy(array, srcPos, array, dstPos, len);
+		} else if (distance == 1) {
+			Arrays.fill(array, dstPos, dstPos + len, array[srcPos]);
+		} else {
+			int copied = 0;
+
+			while (copied < len) {
+				int copyLen = Math.min(distance + copied, len - copied);
+
+				System.arraycopy(array, srcPos, array, dstPos + copied, copyLen);
+				copied += copyLen;
+			}
+		}
+	}
+
 }
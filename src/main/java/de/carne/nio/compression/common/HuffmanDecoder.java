@@ -29,6 +29,7 @@ public final class HuffmanDecoder {
 
 	private static final int LENGTHS_TABLE_BITS = 9;
 
+	private final boolean reversed;
 	private final int[] limits;
 	private final int[] positions;
 	private final int[] symbols;
@@ -41,9 +42,24 @@ public final class HuffmanDecoder {
 	 * @param maxSymbols maximum number of symbols.
 	 */
 	public HuffmanDecoder(int maxBits, int maxSymbols) {
-		Check.assertTrue(maxBits > 0, "Invalid max bits: %1$d", maxBits);
+		this(maxBits, maxSymbols, false);
+	}
+
+	/**
+	 * Constructs a new {@code HuffmanDecoder} instance.
+	 * <p>
+	 * Reversed codes are stored with their first bit in the lowest bit position (e.g. as in Deflate streams). Decoding
+	 * them via a natural LSB bit register avoids the need for bit-reversing the whole input stream.
+	 *
+	 * @param maxBits maximum length of a symbol.
+	 * @param maxSymbols maximum number of symbols.
+	 * @param reversed whether the symbol codes are stored in reversed bit order.
+	 */
+	public HuffmanDecoder(int maxBits, int maxSymbols, boolean reversed) {
+		Check.assertTrue(maxBits > 0 && maxBits <= BitRegister.MAX_BIT_COUNT, "Invalid max bits: %1$d", maxBits);
 		Check.assertTrue(maxSymbols > 0, "Invalid max symbols: %1$d", maxSymbols);
 
+		this.reversed = reversed;
 		this.limits = new int[maxBits + 1];
 		this.positions = new int[maxBits + 1];
 		this.symbols = new int[maxSymbols];
@@ -115,6 +131,11 @@ public final class HuffmanDecoder {
 	public int decodeSymbol(ReadableByteChannel src, BitDecoder bitDecoder, int bufferIndex) throws IOException {
 		int maxBits = this.positions.length - 1;
 		int value = bitDecoder.peekBits(src, maxBits, bufferIndex);
+
+		if (this.reversed) {
+			value = Integer.reverse(value) >>> (Integer.SIZE - maxBits);
+		}
+
 		int symbolLength;
 
 		if (value < this.limits[LENGTHS_TABLE_BITS]) {
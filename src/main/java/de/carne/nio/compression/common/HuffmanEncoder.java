@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.common;
+
+import java.util.Arrays;
+
+/**
+ * Builder for length limited canonical Huffman codes.
+ * <p>
+ * The code lengths are calculated using the in-place algorithm of Moffat and Katajainen. If the maximum code length is
+ * exceeded, the length distribution is adjusted to the limit while keeping the code complete.
+ */
+public final class HuffmanEncoder {
+
+	private final int maxBits;
+	private final boolean lsb;
+	private final byte[] lengths;
+	private final int[] codes;
+	private final long[] sortedSymbols;
+	private final int[] weights;
+	private final int[] lengthCounts;
+
+	/**
+	 * Constructs a new {@linkplain HuffmanEncoder} instance.
+	 *
+	 * @param maxBits the maximum code length.
+	 * @param maxSymbolCount the maximum number of symbols.
+	 * @param lsb whether the codes are emitted low bits first (in which case the codes are stored bit reversed).
+	 */
+	public HuffmanEncoder(int maxBits, int maxSymbolCount, boolean lsb) {
+		this.maxBits = maxBits;
+		this.lsb = lsb;
+		this.lengths = new byte[maxSymbolCount];
+		this.codes = new int[maxSymbolCount];
+		this.sortedSymbols = new long[maxSymbolCount];
+		this.weights = new int[maxSymbolCount];
+		this.lengthCounts = new int[Math.max(maxBits, maxSymbolCount) + 1];
+	}
+
+	/**
+	 * Gets the code lengths (valid after the last build call).
+	 *
+	 * @return the code lengths.
+	 */
+	public byte[] lengths() {
+		return this.lengths;
+	}
+
+	/**
+	 * Gets the codes (valid after the last build call).
+	 *
+	 * @return the codes.
+	 */
+	public int[] codes() {
+		return this.codes;
+	}
+
+	/**
+	 * Builds the codes for the given symbol frequencies.
+	 * <p>
+	 * Symbols with a frequency of {@code 0} get no code. To stay decodable by all decoders at least two codes are
+	 * always assigned.
+	 *
+	 * @param freqs the symbol frequencies.
+	 * @param symbolCount the number of symbols.
+	 */
+	public void build(int[] freqs, int symbolCount) {
+		Arrays.fill(this.lengths, 0, symbolCount, (byte) 0);
+
+		int usedCount = 0;
+
+		for (int symbol = 0; symbol < symbolCount; symbol++) {
+			if (freqs[symbol] != 0) {
+				this.sortedSymbols[usedCount++] = (((long) freqs[symbol]) << 32) | symbol;
+			}
+		}
+		if (usedCount < 2) {
+			int used = (usedCount > 0 ? (int) this.sortedSymbols[0] : 0);
+
+			this.lengths[used] = 1;
+			this.lengths[used != 0 ? 0 : 1] = 1;
+		} else {
+			Arrays.sort(this.sortedSymbols, 0, usedCount);
+			for (int i = 0; i < usedCount; i++) {
+				this.weights[i] = (int) (this.sortedSymbols[i] >>> 32);
+			}
+			calculateLengths(this.weights, usedCount);
+			limitLengths(usedCount);
+		}
+		assignCodes(symbolCount);
+	}
+
+	/**
+	 * Sets predefined code lengths and assigns the corresponding codes.
+	 *
+	 * @param codeLengths the code lengths to set.
+	 * @param symbolCount the number of symbols.
+	 */
+	public void set(byte[] codeLengths, int symbolCount) {
+		System.arraycopy(codeLengths, 0, this.lengths, 0, symbolCount);
+		assignCodes(symbolCount);
+	}
+
+	/*
+	 * Moffat/Katajainen in-place calculation of minimum redundancy code lengths (the weights must be sorted in
+	 * ascending order and are replaced by the code lengths).
+	 */
+	private static void calculateLengths(int[] a, int n) {
+		int root = 0;
+		int leaf = 0;
+
+		for (int next = 0; next < n - 1; next++) {
+			if (leaf >= n || (root < next && a[root] < a[leaf])) {
+				a[next] = a[root];
+				a[root++] = next;
+			} else {
+				a[next] = a[leaf++];
+			}
+			if (leaf >= n || (root < next && a[root] < a[leaf])) {
+				a[next] += a[root];
+				a[root++] = next;
+			} else {
+				a[next] += a[leaf++];
+			}
+		}
+		a[n - 2] = 0;
+		for (int next = n - 3; next >= 0; next--) {
+			a[next] = a[a[next]] + 1;
+		}
+
+		int available = 1;
+		int used = 0;
+		int depth = 0;
+
+		root = n - 2;
+
+		int next = n - 1;
+
+		while (available > 0) {
+			while (root >= 0 && a[root] == depth) {
+				used++;
+				root--;
+			}
+			while (available > used) {
+				a[next--] = depth;
+				available--;
+			}
+			available = 2 * used;
+			depth++;
+			used = 0;
+		}
+	}
+
+	private void limitLengths(int usedCount) {
+		int[] counts = this.lengthCounts;
+
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < usedCount; i++) {
+			counts[this.weights[i]]++;
+		}
+		for (int length = this.maxBits + 1; length < counts.length; length++) {
+			counts[this.maxBits] += counts[length];
+			counts[length] = 0;
+		}
+
+		// Rebalance the lengths until the code is complete again
+		long kraftTotal = 0;
+
+		for (int length = 1; length <= this.maxBits; length++) {
+			kraftTotal += ((long) counts[length]) << (this.maxBits - length);
+		}
+		while (kraftTotal > (1L << this.maxBits)) {
+			counts[this.maxBits]--;
+			for (int length = this.maxBits - 1; length > 0; length--) {
+				if (counts[length] != 0) {
+					counts[length]--;
+					counts[length + 1] += 2;
+					break;
+				}
+			}
+			kraftTotal--;
+		}
+
+		// Assign the lengths (the least frequent symbols get the longest codes)
+		int symbolIndex = 0;
+
+		for (int length = this.maxBits; length > 0; length--) {
+			for (int count = counts[length]; count > 0; count--) {
+				this.lengths[(int) this.sortedSymbols[symbolIndex++]] = (byte) length;
+			}
+		}
+	}
+
+	private void assignCodes(int symbolCount) {
+		int[] counts = this.lengthCounts;
+
+		Arrays.fill(counts, 0);
+		for (int symbol = 0; symbol < symbolCount; symbol++) {
+			counts[this.lengths[symbol]]++;
+		}
+		counts[0] = 0;
+
+		int[] nextCodes = new int[this.maxBits + 2];
+		int code = 0;
+
+		for (int length = 1; length <= this.maxBits; length++) {
+			code = (code + counts[length - 1]) << 1;
+			nextCodes[length] = code;
+		}
+		for (int symbol = 0; symbol < symbolCount; symbol++) {
+			int length = this.lengths[symbol];
+
+			if (length != 0) {
+				int symbolCode = nextCodes[length]++;
+
+				this.codes[symbol] = (this.lsb ? Integer.reverse(symbolCode) >>> (32 - length) : symbolCode);
+			}
+		}
+	}
+
+}
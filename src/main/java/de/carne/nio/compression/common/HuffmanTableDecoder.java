@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.common;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.Check;
+import de.carne.nio.compression.InvalidDataException;
+
+/**
+ * Table driven Huffman symbol decoding support.
+ * <p>
+ * Symbols are decoded via a primary lookup table indexed by the next {@code tableBits} code bits. Each table entry
+ * packs the decoded symbol and the code length into a single {@code int}. Codes longer than {@code tableBits} are
+ * resolved via a second lookup into a sub-table referenced by the primary table entry.
+ * <p>
+ * Optionally each symbol can be mapped to a value and a number of extra bits following the symbol code (e.g. the
+ * length and distance bases and their extra bits as used in Deflate). The value and the extra bit count are then
+ * packed into the table entry as well and decoding a symbol directly yields the value plus the extra bits.
+ */
+public final class HuffmanTableDecoder {
+
+	private static final int ENTRY_LENGTH_MASK = 0x3f;
+	private static final int ENTRY_SUBTABLE_FLAG = 0x40;
+	private static final int ENTRY_EXTRA_BITS_SHIFT = 7;
+	private static final int ENTRY_EXTRA_BITS_MASK = 0x1f;
+	private static final int ENTRY_VALUE_SHIFT = 12;
+	private static final int MAX_VALUE = (1 << (Integer.SIZE - ENTRY_VALUE_SHIFT)) - 1;
+
+	private final int maxBits;
+	private final int maxSymbols;
+	private final int tableBits;
+	private final boolean reversed;
+	private int[] table;
+	private final int[] lengthCounts;
+	private final int[] nextCodes;
+	private final int[] codes;
+	private final int[] subtableBits;
+
+	/**
+	 * Constructs a new {@code HuffmanTableDecoder} instance.
+	 * <p>
+	 * Reversed codes are stored with their first bit in the lowest bit position (e.g. as in Deflate streams) and have
+	 * to be decoded via a LSB bit register. Non-reversed codes have to be decoded via a MSB bit register.
+	 *
+	 * @param maxBits maximum length of a symbol.
+	 * @param maxSymbols maximum number of symbols.
+	 * @param tableBits the number of bits to resolve via the primary lookup table.
+	 * @param reversed whether the symbol codes are stored in reversed bit order.
+	 */
+	public HuffmanTableDecoder(int maxBits, int maxSymbols, int tableBits, boolean reversed) {
+		Check.assertTrue(maxBits > 0 && maxBits <= BitRegister.MAX_BIT_COUNT, "Invalid max bits: %1$d", maxBits);
+		Check.assertTrue(maxSymbols > 0 && maxSymbols <= MAX_VALUE, "Invalid max symbols: %1$d", maxSymbols);
+		Check.assertTrue(tableBits > 0 && tableBits <= maxBits, "Invalid table bits: %1$d", tableBits);
+
+		this.maxBits = maxBits;
+		this.maxSymbols = maxSymbols;
+		this.tableBits = tableBits;
+		this.reversed = reversed;
+		this.table = new int[1 << tableBits];
+		this.lengthCounts = new int[maxBits + 1];
+		this.nextCodes = new int[maxBits + 1];
+		this.codes = new int[maxSymbols];
+		this.subtableBits = new int[1 << tableBits];
+	}
+
+	/**
+	 * Sets code lengths.
+	 *
+	 * @param codeLengths the code lengths to set.
+	 * @throws IOException if inconsistent data is encountered.
+	 */
+	public void setCodeLengths(byte[] codeLengths) throws IOException {
+		setCodeLengths(codeLengths, null, null);
+	}
+
+	/**
+	 * Sets code lengths as well as the symbol values and the number of extra bits following each symbol code.
+	 * <p>
+	 * Symbols with a negative value are considered invalid and are decoded as {@code -1}. Extra bits are interpreted
+	 * in the same bit order as the symbol codes.
+	 *
+	 * @param codeLengths the code lengths to set.
+	 * @param symbolValues the values to decode for each symbol ({@code null} to decode the plain symbols).
+	 * @param symbolExtraBits the number of extra bits to decode for each symbol ({@code null} for none).
+	 * @throws IOException if inconsistent data is encountered.
+	 */
+	public void setCodeLengths(byte[] codeLengths, int @Nullable [] symbolValues, byte @Nullable [] symbolExtraBits)
+			throws IOException {
+		int[] lengthCounts = this.lengthCounts;
+
+		Arrays.fill(lengthCounts, 0);
+		for (int symbol = 0; symbol < this.maxSymbols; symbol++) {
+			int length = codeLengths[symbol] & 0xff;
+
+			if (length > this.maxBits) {
+				throw new InvalidDataException(length);
+			}
+			lengthCounts[length]++;
+		}
+		lengthCounts[0] = 0;
+
+		// Determine the canonical start code for each code length
+		int[] nextCodes = this.nextCodes;
+		int code = 0;
+
+		for (int length = 1; length <= this.maxBits; length++) {
+			code = (code + lengthCounts[length - 1]) << 1;
+			nextCodes[length] = code;
+			if (code + lengthCounts[length] > (1 << length)) {
+				throw new InvalidDataException();
+			}
+		}
+
+		// Assign the codes and determine the sub-table sizes required for the long codes
+		int[] codes = this.codes;
+		int primarySize = 1 << this.tableBits;
+		int[] subtableBits = this.subtableBits;
+
+		Arrays.fill(subtableBits, 0);
+
+		for (int symbol = 0; symbol < this.maxSymbols; symbol++) {
+			int length = codeLengths[symbol] & 0xff;
+
+			if (length != 0) {
+				int symbolCode = nextCodes[length]++;
+
+				codes[symbol] = symbolCode;
+				if (length > this.tableBits) {
+					int prefix = primaryIndex(symbolCode >>> (length - this.tableBits), this.tableBits);
+
+					subtableBits[prefix] = Math.max(subtableBits[prefix], length - this.tableBits);
+				}
+			}
+		}
+
+		// Set up the (sub-)table layout
+		int tableSize = primarySize;
+
+		for (int prefix = 0; prefix < primarySize; prefix++) {
+			int subtableSize = 1 << subtableBits[prefix];
+
+			if (subtableSize > 1) {
+				this.table[prefix] = (tableSize << ENTRY_VALUE_SHIFT) | ENTRY_SUBTABLE_FLAG | subtableBits[prefix];
+				tableSize += subtableSize;
+			} else {
+				this.table[prefix] = 0;
+			}
+		}
+		if (this.table.length < tableSize) {
+			int[] resizedTable = new int[tableSize];
+
+			System.arraycopy(this.table, 0, resizedTable, 0, primarySize);
+			this.table = resizedTable;
+		} else {
+			Arrays.fill(this.table, primarySize, tableSize, 0);
+		}
+
+		// Fill in the symbol entries
+		for (int symbol = 0; symbol < this.maxSymbols; symbol++) {
+			int length = codeLengths[symbol] & 0xff;
+
+			int value = (symbolValues != null ? symbolValues[symbol] : symbol);
+
+			if (length != 0 && value >= 0) {
+				Check.assertTrue(value <= MAX_VALUE, "Invalid value: %1$d", value);
+
+				int extraBits = (symbolExtraBits != null ? symbolExtraBits[symbol] & ENTRY_EXTRA_BITS_MASK : 0);
+
+				Check.assertTrue(length + extraBits <= BitRegister.MAX_BIT_COUNT, "Invalid extra bits: %1$d",
+						extraBits);
+
+				int entry = (value << ENTRY_VALUE_SHIFT) | (extraBits << ENTRY_EXTRA_BITS_SHIFT) | length;
+				int symbolCode = codes[symbol];
+
+				if (length <= this.tableBits) {
+					fillEntries(0, this.tableBits, primaryIndex(symbolCode, length), length, entry);
+				} else {
+					int subLength = length - this.tableBits;
+					int prefix = primaryIndex(symbolCode >>> subLength, this.tableBits);
+					int subtableEntry = this.table[prefix];
+
+					fillEntries(subtableEntry >>> ENTRY_VALUE_SHIFT, subtableEntry & ENTRY_LENGTH_MASK,
+							primaryIndex(symbolCode & ((1 << subLength) - 1), subLength), subLength, entry);
+				}
+			}
+		}
+	}
+
+	private int primaryIndex(int code, int length) {
+		return (this.reversed ? Integer.reverse(code) >>> (Integer.SIZE - length) : code);
+	}
+
+	private void fillEntries(int tableStart, int bits, int index, int length, int entry) {
+		int fillCount = 1 << (bits - length);
+
+		if (this.reversed) {
+			for (int fillIndex = 0; fillIndex < fillCount; fillIndex++) {
+				this.table[tableStart + (index | (fillIndex << length))] = entry;
+			}
+		} else {
+			int fillStart = tableStart + (index << (bits - length));
+
+			Arrays.fill(this.table, fillStart, fillStart + fillCount, entry);
+		}
+	}
+
+	/**
+	 * Decodes next symbol.
+	 *
+	 * @param src the channel to read the symbol from.
+	 * @param bitDecoder the <code>BitDecoder</code> to use for bit decoding.
+	 * @param bufferIndex the bit buffer to use for bit decoding.
+	 * @return the read symbol (respectively the symbol value plus the symbol's extra bits) or {@code -1} if the code
+	 * is not assigned or the symbol is invalid.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	public int decodeSymbol(ReadableByteChannel src, BitDecoder bitDecoder, int bufferIndex) throws IOException {
+		int bits = bitDecoder.peekBits(src, this.maxBits, bufferIndex);
+		int entry;
+
+		if (this.reversed) {
+			entry = this.table[bits & ((1 << this.tableBits) - 1)];
+			if ((entry & ENTRY_SUBTABLE_FLAG) != 0) {
+				entry = this.table[(entry >>> ENTRY_VALUE_SHIFT)
+						+ ((bits >>> this.tableBits) & ((1 << (entry & ENTRY_LENGTH_MASK)) - 1))];
+			}
+		} else {
+			entry = this.table[bits >>> (this.maxBits - this.tableBits)];
+			if ((entry & ENTRY_SUBTABLE_FLAG) != 0) {
+				int subtableBits = entry & ENTRY_LENGTH_MASK;
+
+				entry = this.table[(entry >>> ENTRY_VALUE_SHIFT)
+						+ ((bits >>> (this.maxBits - this.tableBits - subtableBits)) & ((1 << subtableBits) - 1))];
+			}
+		}
+
+		int length = entry & ENTRY_LENGTH_MASK;
+		int value = -1;
+
+		if (length != 0) {
+			int extraBits = (entry >>> ENTRY_EXTRA_BITS_SHIFT) & ENTRY_EXTRA_BITS_MASK;
+
+			value = entry >>> ENTRY_VALUE_SHIFT;
+			if (extraBits != 0) {
+				// Only re-checks the register if the bits have already been fed
+				int codeBits = bitDecoder.peekBits(src, length + extraBits, bufferIndex);
+
+				value += (this.reversed ? codeBits >>> length : codeBits) & ((1 << extraBits) - 1);
+			}
+			bitDecoder.discardBits(length + extraBits);
+		}
+		return value;
+	}
+
+}
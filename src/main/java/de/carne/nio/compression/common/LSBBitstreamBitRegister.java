@@ -52,6 +52,11 @@ public final class LSBBitstreamBitRegister extends BitRegister {
 		return bits;
 	}
 
+	@Override
+	public byte peekByte() {
+		return SWAP_MAP[peekBits(8) & 0xff];
+	}
+
 	@Override
 	public int discardBits(int count) {
 		Check.assertTrue((count >= 0) && (this.bitCount + count) < (MAX_BIT_COUNT + 8), "Invalid bit access %1$d +%2$d",
@@ -52,6 +52,11 @@ public final class LSBBytesBitRegister extends BitRegister {
 		return bits;
 	}
 
+	@Override
+	public byte peekByte() {
+		return (byte) peekBits(8);
+	}
+
 	@Override
 	public int discardBits(int count) {
 		Check.assertTrue((count >= 0) && (this.bitCount + count) < (MAX_BIT_COUNT + 8), "Invalid bit access %1$d +%2$d",
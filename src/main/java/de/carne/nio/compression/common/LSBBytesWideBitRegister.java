@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import de.carne.nio.compression.Check;
+
+/**
+ * 64 bit wide bit register for LSB byte-wise data access.
+ * <p>
+ * Refilling this register feeds up to 7 bytes at once, which guarantees at least 56 bits being available after each
+ * refill.
+ */
+public final class LSBBytesWideBitRegister extends BitRegister {
+
+	private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	@Override
+	public int feedBits(byte b) {
+		Check.assertTrue(this.bitCount <= Long.SIZE - 8, "Invalid bit count: %1$d", this.bitCount);
+
+		this.register = (this.register & ~(-1L << this.bitCount)) | ((b & 0xffL) << this.bitCount);
+		this.bitCount += 8;
+		return this.bitCount;
+	}
+
+	@Override
+	public int refillBits(byte[] buffer, int offset) {
+		final int refillCount = (Long.SIZE - 1 - this.bitCount) >>> 3;
+
+		// The register is already full (and masking with a shift by Long.SIZE would discard all bits)
+		if (refillCount == 0) {
+			return 0;
+		}
+		this.register = (this.register & ~(-1L << this.bitCount))
+				| (((long) LONG_LE.get(buffer, offset)) << this.bitCount);
+		this.bitCount += refillCount << 3;
+		return refillCount;
+	}
+
+	@Override
+	public int peekBits(int count) {
+		Check.assertTrue(0 <= count && count <= MAX_BIT_COUNT && count <= this.bitCount,
+				"Invalid bit access %1$d +%2$d", this.bitCount, count);
+
+		return (int) (this.register & ~(-1L << count));
+	}
+
+	@Override
+	public byte peekByte() {
+		return (byte) this.register;
+	}
+
+	@Override
+	public int discardBits(int count) {
+		Check.assertTrue(0 <= count && count <= this.bitCount, "Invalid bit access %1$d +%2$d", this.bitCount, count);
+
+		this.register >>>= count;
+		this.bitCount -= count;
+		return this.bitCount;
+	}
+
+}
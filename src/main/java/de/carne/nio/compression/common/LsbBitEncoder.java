@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import de.carne.nio.compression.Check;
+
+/**
+ * Utility class for encoding bits low bits first into a growing byte buffer.
+ * <p>
+ * The completed bytes are written to a {@linkplain WritableByteChannel} via {@linkplain #flush(WritableByteChannel)}.
+ * Any incomplete trailing byte is kept until it is either completed or padded via {@linkplain #alignToByte()}.
+ */
+public final class LsbBitEncoder {
+
+	private static final int INITIAL_BUFFER_SIZE = 0x10000;
+
+	private byte[] buffer;
+	private int bufferLimit = 0;
+	private long register = 0L;
+	private int bitCount = 0;
+	private long totalOutBits = 0L;
+
+	/**
+	 * Constructs a new {@linkplain LsbBitEncoder} instance.
+	 */
+	public LsbBitEncoder() {
+		this(INITIAL_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs a new {@linkplain LsbBitEncoder} instance.
+	 *
+	 * @param initialSize the initial buffer size to use.
+	 */
+	public LsbBitEncoder(int initialSize) {
+		this.buffer = new byte[Math.max(initialSize, 8)];
+	}
+
+	/**
+	 * Resets the encoder by discarding all buffered bits.
+	 */
+	public void reset() {
+		this.bufferLimit = 0;
+		this.register = 0L;
+		this.bitCount = 0;
+		this.totalOutBits = 0L;
+	}
+
+	/**
+	 * Gets the total number of bits encoded since the last reset.
+	 *
+	 * @return the total number of bits encoded since the last reset.
+	 */
+	public long totalOutBits() {
+		return this.totalOutBits;
+	}
+
+	/**
+	 * Encodes bits.
+	 *
+	 * @param bits the bits to encode (the lowest {@code count} bits are encoded).
+	 * @param count the number of bits to encode (must be in the range {@code [0, 32]}).
+	 */
+	public void encodeBits(int bits, int count) {
+		Check.assertTrue(0 <= count && count <= 32);
+
+		this.register |= (bits & (0xffffffffL >>> (32 - count))) << this.bitCount;
+		this.bitCount += count;
+		this.totalOutBits += count;
+		if (this.bitCount >= 32) {
+			ensureCapacity(4);
+
+			int index = this.bufferLimit;
+
+			this.buffer[index] = (byte) this.register;
+			this.buffer[index + 1] = (byte) (this.register >>> 8);
+			this.buffer[index + 2] = (byte) (this.register >>> 16);
+			this.buffer[index + 3] = (byte) (this.register >>> 24);
+			this.bufferLimit = index + 4;
+			this.register >>>= 32;
+			this.bitCount -= 32;
+		}
+	}
+
+	/**
+	 * Gets the number of bits required to reach the next byte boundary.
+	 *
+	 * @return the number of bits required to reach the next byte boundary.
+	 */
+	public int alignmentBits() {
+		return (8 - (this.bitCount & 7)) & 7;
+	}
+
+	/**
+	 * Pads the encoded bits with zero bits up to the next byte boundary.
+	 */
+	public void alignToByte() {
+		encodeBits(0, alignmentBits());
+		ensureCapacity(4);
+		while (this.bitCount > 0) {
+			this.buffer[this.bufferLimit++] = (byte) this.register;
+			this.register >>>= 8;
+			this.bitCount -= 8;
+		}
+	}
+
+	/**
+	 * Encodes bytes.
+	 * <p>
+	 * The bytes are encoded byte aligned (any pending bits are padded up to the next byte boundary first).
+	 *
+	 * @param bytes the array containing the bytes to encode.
+	 * @param offset the offset of the first byte to encode.
+	 * @param length the number of bytes to encode.
+	 */
+	public void encodeBytes(byte[] bytes, int offset, int length) {
+		alignToByte();
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, this.buffer, this.bufferLimit, length);
+		this.bufferLimit += length;
+		this.totalOutBits += length * 8L;
+	}
+
+	/**
+	 * Writes all completed bytes to a {@linkplain WritableByteChannel}.
+	 *
+	 * @param dst the {@linkplain WritableByteChannel} to write to.
+	 * @return the number of written bytes.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public int flush(WritableByteChannel dst) throws IOException {
+		ByteBuffer flushBuffer = ByteBuffer.wrap(this.buffer, 0, this.bufferLimit);
+
+		while (flushBuffer.hasRemaining()) {
+			dst.write(flushBuffer);
+		}
+
+		int flushed = this.bufferLimit;
+
+		this.bufferLimit = 0;
+		return flushed;
+	}
+
+	private void ensureCapacity(int count) {
+		if (this.bufferLimit + count > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length << 1, this.bufferLimit + count));
+		}
+	}
+
+}
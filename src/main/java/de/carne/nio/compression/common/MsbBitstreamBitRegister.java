@@ -39,6 +39,11 @@ public class MsbBitstreamBitRegister extends BitRegister {
 		return (count > 0 ? (int) ((this.register >>> remains) & (~(-1l << count))) : 0);
 	}
 
+	@Override
+	public byte peekByte() {
+		return (byte) peekBits(8);
+	}
+
 	@Override
 	public int discardBits(int count) {
 		this.bitCount -= count;
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import de.carne.nio.compression.Check;
+
+/**
+ * 64 bit wide bit register decoding high bits first.
+ * <p>
+ * Refilling this register feeds up to 7 bytes at once, which guarantees at least 56 bits being available after each
+ * refill.
+ */
+public final class MsbBitstreamWideBitRegister extends BitRegister {
+
+	private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	@Override
+	public int feedBits(byte b) {
+		Check.assertTrue(this.bitCount <= Long.SIZE - 8, "Invalid bit count: %1$d", this.bitCount);
+
+		this.register = (this.register << 8) | (b & 0xff);
+		this.bitCount += 8;
+		return this.bitCount;
+	}
+
+	@Override
+	public int refillBits(byte[] buffer, int offset) {
+		final int refillCount = (Long.SIZE - 1 - this.bitCount) >>> 3;
+		final int refillBits = refillCount << 3;
+
+		// Shifting by Long.SIZE is a no-op in Java, hence a full register must be left untouched
+		if (refillBits == 0) {
+			return 0;
+		}
+		this.register = (this.register << refillBits)
+				| (((long) LONG_BE.get(buffer, offset)) >>> (Long.SIZE - refillBits));
+		this.bitCount += refillBits;
+		return refillCount;
+	}
+
+	@Override
+	public int peekBits(int count) {
+		Check.assertTrue(0 <= count && count <= MAX_BIT_COUNT && count <= this.bitCount,
+				"Invalid bit access %1$d +%2$d", this.bitCount, count);
+
+		return (int) ((this.register >>> (this.bitCount - count)) & ~(-1L << count));
+	}
+
+	@Override
+	public byte peekByte() {
+		return (byte) (this.register >>> (this.bitCount - 8));
+	}
+
+	@Override
+	public int discardBits(int count) {
+		Check.assertTrue(0 <= count && count <= this.bitCount, "Invalid bit access %1$d +%2$d", this.bitCount, count);
+
+		this.bitCount -= count;
+		return this.bitCount;
+	}
+
+}
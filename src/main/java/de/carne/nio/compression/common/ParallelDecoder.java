@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.spi.Decoder;
+
+/**
+ * Base class for decoders splitting their input into independent units which are decoded in parallel.
+ * <p>
+ * Derived classes scan the input for units (see {@linkplain #scan(ReadableByteChannel)}) and submit each unit's
+ * decoding as a task (see {@linkplain #submitUnit(Object, long, UnitTask)}). The tasks are run on the configured
+ * {@linkplain Executor} and their output is emitted in submission order. Scanning ahead stops as soon as the configured
+ * number of units is pending or the pending units occupy the configured number of bytes.
+ * <p>
+ * The input is read in bulk into a growable input window, which is shared by the scan and decode steps of the derived
+ * class. Positions within the window are relative to the window start and have to be adjusted whenever the window is
+ * compacted (see {@linkplain #compactInput(int)}). Only the input up to the position reported by
+ * {@linkplain #consumed()} is counted as consumed. Any input following the end of the encoded data can be marked for
+ * draining (see {@linkplain #setDrainStart(int)}).
+ *
+ * @param <U> the type describing a unit.
+ */
+public abstract class ParallelDecoder<U> extends Decoder {
+
+	private static final int INPUT_BUFFER_SIZE = 0x100000;
+
+	private final Executor executor;
+	private final int threads;
+	private final long pendingSizeMax;
+	private final ArrayDeque<PendingUnit<U>> pendingUnits = new ArrayDeque<>();
+	private long pendingSize = 0;
+	private @Nullable ByteBuffer unitOutput = null;
+	private byte[] input = new byte[INPUT_BUFFER_SIZE];
+	private int inputLimit = 0;
+	private long inputOffset = 0;
+	private int drainStart = -1;
+
+	/**
+	 * Decoding task of a single unit.
+	 */
+	@FunctionalInterface
+	protected interface UnitTask {
+
+		/**
+		 * Decodes the unit.
+		 *
+		 * @return the decoded unit data (ready for reading).
+		 * @throws IOException if an I/O error occurs.
+		 */
+		ByteBuffer decode() throws IOException;
+
+	}
+
+	private static final class PendingUnit<U> {
+
+		final U unit;
+		final long size;
+		final CompletableFuture<ByteBuffer> future;
+
+		PendingUnit(U unit, long size, CompletableFuture<ByteBuffer> future) {
+			this.unit = unit;
+			this.size = size;
+			this.future = future;
+		}
+
+	}
+
+	/**
+	 * Constructs a new {@linkplain ParallelDecoder} instance.
+	 *
+	 * @param name the compression name.
+	 * @param executor the {@linkplain Executor} to use for unit decoding.
+	 * @param threads the maximum number of pending units.
+	 * @param pendingSizeMax the maximum number of bytes occupied by the pending units.
+	 */
+	protected ParallelDecoder(String name, Executor executor, int threads, long pendingSizeMax) {
+		super(name);
+		this.executor = executor;
+		this.threads = threads;
+		this.pendingSizeMax = pendingSizeMax;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		cancelUnits();
+		this.inputLimit = 0;
+		this.inputOffset = 0;
+		this.drainStart = -1;
+	}
+
+	@Override
+	public int decode(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		long beginTime = beginProcessing();
+		long consumedStart = consumed();
+		long dstRemainingStart = dst.remaining();
+		int decoded = -1;
+
+		try {
+			scheduleUnits(src);
+
+			ByteBuffer output = nextUnitOutput(src);
+
+			while (dst.hasRemaining()) {
+				if (output != null) {
+					int outputLength = Math.min(output.remaining(), dst.remaining());
+					int outputLimit = output.limit();
+
+					output.limit(output.position() + outputLength);
+					dst.put(output);
+					output.limit(outputLimit);
+				} else if (!decodeInline(dst, src)) {
+					break;
+				}
+				scheduleUnits(src);
+				output = nextUnitOutput(src);
+			}
+			if (output != null || !this.pendingUnits.isEmpty() || !isInputComplete()
+					|| dst.remaining() < dstRemainingStart || consumed() > consumedStart) {
+				decoded = (int) (consumed() - consumedStart);
+			}
+		} finally {
+			endProcessing(beginTime, Math.max(decoded, 0), dstRemainingStart - dst.remaining());
+		}
+		return decoded;
+	}
+
+	@Override
+	public ByteBuffer drainInput() {
+		ByteBuffer drained;
+
+		if (this.drainStart >= 0) {
+			drained = ByteBuffer.allocate(this.inputLimit - this.drainStart);
+			drained.put(this.input, this.drainStart, this.inputLimit - this.drainStart);
+			drained.flip();
+			this.drainStart = this.inputLimit;
+		} else {
+			drained = ByteBuffer.allocate(0);
+		}
+		return drained;
+	}
+
+	/**
+	 * Checks whether scanning may currently proceed (e.g. because the end of the encoded data has not yet been
+	 * reached).
+	 *
+	 * @return {@code true} if scanning may currently proceed.
+	 */
+	protected abstract boolean isScanning();
+
+	/**
+	 * Performs the next scan step (e.g. scanning a header or submitting a unit).
+	 *
+	 * @param src the {@linkplain ReadableByteChannel} providing the encoded bytes.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected abstract void scan(ReadableByteChannel src) throws IOException;
+
+	/**
+	 * Checks whether the end of the encoded data has been reached by scanning.
+	 *
+	 * @return {@code true} if the end of the encoded data has been reached.
+	 */
+	protected abstract boolean isInputComplete();
+
+	/**
+	 * Gets the total number of consumed input bytes.
+	 *
+	 * @return the total number of consumed input bytes.
+	 */
+	protected abstract long consumed();
+
+	/**
+	 * Decodes data without parallelization (e.g. for units too large for buffering).
+	 * <p>
+	 * This function is invoked once all pending units have been emitted. The default implementation does not support
+	 * inline decoding.
+	 * </p>
+	 *
+	 * @param dst the {@linkplain ByteBuffer} receiving the decoded bytes.
+	 * @param src the {@linkplain ReadableByteChannel} providing the encoded bytes.
+	 * @return {@code true} if inline decoding is active and has been performed.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected boolean decodeInline(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		return false;
+	}
+
+	/**
+	 * Handles the failure of the first pending unit.
+	 * <p>
+	 * The failed unit is still pending while this function is invoked. Implementations either throw the failure or
+	 * cancel the pending units (see {@linkplain #cancelUnits()}) and rewind the scan for another attempt. The default
+	 * implementation throws the failure.
+	 * </p>
+	 *
+	 * @param unit the failed unit.
+	 * @param failure the failure.
+	 * @throws IOException if the failure is not handled.
+	 */
+	protected void unitFailed(U unit, IOException failure) throws IOException {
+		throw failure;
+	}
+
+	/**
+	 * Notifies about the completion of the first pending unit (right before its output is emitted).
+	 *
+	 * @param unit the completed unit.
+	 */
+	protected void unitCompleted(U unit) {
+		// Nothing to do by default
+	}
+
+	/**
+	 * Releases the output of a unit after it has been emitted completely (e.g. to reuse the output buffer).
+	 *
+	 * @param output the released output.
+	 */
+	protected void releaseOutput(ByteBuffer output) {
+		// Nothing to do by default
+	}
+
+	/**
+	 * Submits a unit for decoding.
+	 *
+	 * @param unit the unit to decode.
+	 * @param size the number of bytes occupied by the unit (input and output).
+	 * @param task the decoding task.
+	 */
+	protected final void submitUnit(U unit, long size, UnitTask task) {
+		this.pendingUnits.add(new PendingUnit<>(unit, size, CompletableFuture.supplyAsync(() -> {
+			try {
+				return task.decode();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, this.executor)));
+		this.pendingSize += size;
+	}
+
+	/**
+	 * Submits a unit which is already known to fail.
+	 * <p>
+	 * The failure is reported in order, once all previously submitted units have been emitted.
+	 * </p>
+	 *
+	 * @param unit the failed unit.
+	 * @param failure the failure to report.
+	 */
+	protected final void submitFailure(U unit, IOException failure) {
+		this.pendingUnits
+				.add(new PendingUnit<>(unit, 0, CompletableFuture.failedFuture(new UncheckedIOException(failure))));
+	}
+
+	/**
+	 * Gets the first pending unit.
+	 *
+	 * @return the first pending unit or {@code null} if no unit is pending.
+	 */
+	protected final @Nullable U pendingUnit() {
+		PendingUnit<U> pendingUnit = this.pendingUnits.peek();
+
+		return (pendingUnit != null ? pendingUnit.unit : null);
+	}
+
+	/**
+	 * Cancels all pending units.
+	 */
+	protected final void cancelUnits() {
+		for (PendingUnit<U> pendingUnit : this.pendingUnits) {
+			pendingUnit.future.cancel(false);
+		}
+		this.pendingUnits.clear();
+		this.pendingSize = 0;
+		this.unitOutput = null;
+	}
+
+	private void scheduleUnits(ReadableByteChannel src) throws IOException {
+		while (isScanning() && this.pendingUnits.size() < this.threads && this.pendingSize < this.pendingSizeMax) {
+			scan(src);
+		}
+	}
+
+	private @Nullable ByteBuffer nextUnitOutput(ReadableByteChannel src) throws IOException {
+		ByteBuffer output = this.unitOutput;
+
+		if (output != null && !output.hasRemaining()) {
+			releaseOutput(output);
+			output = null;
+		}
+		while (output == null) {
+			PendingUnit<U> pendingUnit = this.pendingUnits.peek();
+
+			if (pendingUnit == null) {
+				break;
+			}
+			try {
+				output = pendingUnit.future.join();
+			} catch (CompletionException e) {
+				unitFailed(pendingUnit.unit, unitFailure(e));
+				scheduleUnits(src);
+				continue;
+			}
+			this.pendingUnits.remove();
+			this.pendingSize -= pendingUnit.size;
+			unitCompleted(pendingUnit.unit);
+			// Skip empty units
+			if (!output.hasRemaining()) {
+				releaseOutput(output);
+				output = null;
+			}
+		}
+		this.unitOutput = output;
+		return output;
+	}
+
+	private static IOException unitFailure(CompletionException e) {
+		Throwable cause = e.getCause();
+
+		if (cause instanceof UncheckedIOException) {
+			return ((UncheckedIOException) cause).getCause();
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new IOException(cause);
+	}
+
+	/**
+	 * Gets the input window.
+	 * <p>
+	 * The returned array is replaced whenever the input window grows.
+	 * </p>
+	 *
+	 * @return the input window.
+	 */
+	protected final byte[] input() {
+		return this.input;
+	}
+
+	/**
+	 * Gets the limit of the available input within the input window.
+	 *
+	 * @return the limit of the available input.
+	 */
+	protected final int inputLimit() {
+		return this.inputLimit;
+	}
+
+	/**
+	 * Gets the total input offset of the input window start.
+	 *
+	 * @return the total input offset of the input window start.
+	 */
+	protected final long inputOffset() {
+		return this.inputOffset;
+	}
+
+	/**
+	 * Ensures that the input window contains the input up to a specific limit.
+	 *
+	 * @param src the {@linkplain ReadableByteChannel} providing the encoded bytes.
+	 * @param limit the input limit to ensure.
+	 * @return {@code true} if the input is available, {@code false} if the end of the input has been reached before.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected final boolean ensureInput(ReadableByteChannel src, int limit) throws IOException {
+		while (this.inputLimit < limit) {
+			if (!readInput(src)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next input bytes into the input window (growing the window if needed).
+	 *
+	 * @param src the {@linkplain ReadableByteChannel} providing the encoded bytes.
+	 * @return {@code true} if input bytes have been read, {@code false} if the end of the input has been reached.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected final boolean readInput(ReadableByteChannel src) throws IOException {
+		if (this.inputLimit == this.input.length) {
+			this.input = Arrays.copyOf(this.input, this.input.length << 1);
+		}
+
+		int read = src.read(ByteBuffer.wrap(this.input, this.inputLimit, this.input.length - this.inputLimit));
+
+		if (read > 0) {
+			this.inputLimit += read;
+		}
+		return read > 0;
+	}
+
+	/**
+	 * Compacts the input window by discarding the input before a specific position (if the discarded input exceeds
+	 * half of the window).
+	 *
+	 * @param keepStart the window position of the first input byte to keep.
+	 * @return the number of discarded bytes (to be subtracted from all window positions held by the caller).
+	 */
+	protected final int compactInput(int keepStart) {
+		int compactLength = 0;
+
+		if (keepStart > (this.input.length >>> 1)) {
+			compactLength = keepStart;
+			System.arraycopy(this.input, compactLength, this.input, 0, this.inputLimit - compactLength);
+			this.inputLimit -= compactLength;
+			this.inputOffset += compactLength;
+		}
+		return compactLength;
+	}
+
+	/**
+	 * Marks the input following the end of the encoded data for draining (see {@linkplain #drainInput()}).
+	 *
+	 * @param start the window position of the first input byte to drain or {@code -1} to reset the mark.
+	 */
+	protected final void setDrainStart(int start) {
+		this.drainStart = start;
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.common;
+
+import java.util.Arrays;
+
+/**
+ * Suffix array construction using the SA-IS (suffix array by induced sorting) algorithm.
+ * <p>
+ * The construction runs in linear time. The text is implicitly terminated by a virtual sentinel which is smaller than
+ * any other symbol.
+ */
+public final class SuffixArray {
+
+	private SuffixArray() {
+		// Prevent instantiation
+	}
+
+	/**
+	 * Sorts the suffixes of a text.
+	 *
+	 * @param text the text to sort the suffixes for (all symbols must be in the range {@code [0, alphabetSize)}).
+	 * @param sa the array receiving the start positions of the sorted suffixes.
+	 * @param n the length of the text.
+	 * @param alphabetSize the size of the text alphabet.
+	 */
+	public static void sort(int[] text, int[] sa, int n, int alphabetSize) {
+		if (n == 1) {
+			sa[0] = 0;
+		} else if (n > 1) {
+			sais(text, sa, n, alphabetSize);
+		}
+	}
+
+	private static void sais(int[] text, int[] sa, int n, int alphabetSize) {
+		// Classify the suffixes (true = S-type); the last suffix is L-type due to the virtual sentinel
+		boolean[] types = new boolean[n];
+
+		for (int i = n - 2; i >= 0; i--) {
+			types[i] = text[i] < text[i + 1] || (text[i] == text[i + 1] && types[i + 1]);
+		}
+
+		int[] counts = new int[alphabetSize];
+		int[] bucket = new int[alphabetSize];
+
+		for (int i = 0; i < n; i++) {
+			counts[text[i]]++;
+		}
+
+		// Sort the LMS substrings
+		Arrays.fill(sa, 0, n, -1);
+		bucketEnds(counts, bucket);
+		for (int i = 1; i < n; i++) {
+			if (isLMS(types, i)) {
+				sa[--bucket[text[i]]] = i;
+			}
+		}
+		induce(text, sa, n, types, counts, bucket);
+
+		// Compact the sorted LMS substrings and name them
+		int lmsCount = 0;
+
+		for (int i = 0; i < n; i++) {
+			if (isLMS(types, sa[i])) {
+				sa[lmsCount++] = sa[i];
+			}
+		}
+		Arrays.fill(sa, lmsCount, n, -1);
+
+		int name = 0;
+		int previous = -1;
+
+		for (int i = 0; i < lmsCount; i++) {
+			int position = sa[i];
+
+			if (!isEqualLMSSubstring(text, n, types, previous, position)) {
+				name++;
+				previous = position;
+			}
+			sa[lmsCount + (position >>> 1)] = name - 1;
+		}
+
+		// Sort the LMS suffixes (recursively if the names are not yet unique)
+		int[] reducedText = new int[lmsCount];
+		int[] reducedSa = new int[lmsCount];
+		int[] lmsPositions = new int[lmsCount];
+
+		for (int i = lmsCount, j = 0; i < n; i++) {
+			if (sa[i] >= 0) {
+				reducedText[j++] = sa[i];
+			}
+		}
+		for (int i = 1, j = 0; i < n; i++) {
+			if (isLMS(types, i)) {
+				lmsPositions[j++] = i;
+			}
+		}
+		if (name < lmsCount) {
+			sort(reducedText, reducedSa, lmsCount, name);
+		} else {
+			for (int i = 0; i < lmsCount; i++) {
+				reducedSa[reducedText[i]] = i;
+			}
+		}
+
+		// Induce the final order from the sorted LMS suffixes
+		Arrays.fill(sa, 0, n, -1);
+		bucketEnds(counts, bucket);
+		for (int i = lmsCount - 1; i >= 0; i--) {
+			int position = lmsPositions[reducedSa[i]];
+
+			sa[--bucket[text[position]]] = position;
+		}
+		induce(text, sa, n, types, counts, bucket);
+	}
+
+	private static boolean isLMS(boolean[] types, int i) {
+		return i > 0 && types[i] && !types[i - 1];
+	}
+
+	private static boolean isEqualLMSSubstring(int[] text, int n, boolean[] types, int previous, int position) {
+		if (previous < 0) {
+			return false;
+		}
+		for (int d = 0;; d++) {
+			if (previous + d == n || position + d == n) {
+				return false;
+			}
+			if (text[previous + d] != text[position + d] || types[previous + d] != types[position + d]) {
+				return false;
+			}
+			if (d > 0 && isLMS(types, position + d)) {
+				return true;
+			}
+		}
+	}
+
+	private static void induce(int[] text, int[] sa, int n, boolean[] types, int[] counts, int[] bucket) {
+		// L-type suffixes (starting with the one preceding the virtual sentinel)
+		bucketStarts(counts, bucket);
+		sa[bucket[text[n - 1]]++] = n - 1;
+		for (int i = 0; i < n; i++) {
+			int j = sa[i] - 1;
+
+			if (j >= 0 && !types[j]) {
+				sa[bucket[text[j]]++] = j;
+			}
+		}
+		// S-type suffixes
+		bucketEnds(counts, bucket);
+		for (int i = n - 1; i >= 0; i--) {
+			int j = sa[i] - 1;
+
+			if (j >= 0 && types[j]) {
+				sa[--bucket[text[j]]] = j;
+			}
+		}
+	}
+
+	private static void bucketStarts(int[] counts, int[] bucket) {
+		int sum = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			bucket[i] = sum;
+			sum += counts[i];
+		}
+	}
+
+	private static void bucketEnds(int[] counts, int[] bucket) {
+		int sum = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			sum += counts[i];
+			bucket[i] = sum;
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.deflate;
+
+/**
+ * Adler-32 checksum calculation (as used by the ZLIB stream format).
+ */
+final class Adler32 {
+
+	private Adler32() {
+		// Prevent instantiation
+	}
+
+	/**
+	 * The initial checksum value.
+	 */
+	static final int INITIAL = 1;
+
+	private static final int BASE = 65521;
+
+	// Maximum number of bytes which can be summed up without the possibility of an (unsigned) int overflow
+	private static final int NMAX = 5552;
+
+	/**
+	 * Updates a checksum with a range of bytes.
+	 *
+	 * @param adler the checksum to update.
+	 * @param buffer the buffer containing the bytes to add.
+	 * @param offset the offset of the first byte to add.
+	 * @param length the number of bytes to add.
+	 * @return the updated checksum.
+	 */
+	static int update(int adler, byte[] buffer, int offset, int length) {
+		int s1 = adler & 0xffff;
+		int s2 = adler >>> 16;
+		int index = offset;
+		int remaining = length;
+
+		while (remaining > 0) {
+			int chunkEnd = index + Math.min(remaining, NMAX);
+
+			remaining -= chunkEnd - index;
+			while (index < chunkEnd) {
+				s1 += buffer[index++] & 0xff;
+				s2 += s1;
+			}
+			s1 %= BASE;
+			s2 = Integer.remainderUnsigned(s2, BASE);
+		}
+		return (s2 << 16) | s1;
+	}
+
+	/**
+	 * Combines two checksums.
+	 *
+	 * @param adler1 the checksum of the first byte sequence.
+	 * @param adler2 the checksum of the second byte sequence.
+	 * @param length2 the length of the second byte sequence.
+	 * @return the checksum of both byte sequences concatenated.
+	 */
+	static int combine(int adler1, int adler2, long length2) {
+		int remainder = (int) (length2 % BASE);
+		int s1 = adler1 & 0xffff;
+		int s2 = (int) ((((long) remainder) * s1) % BASE);
+
+		s1 += (adler2 & 0xffff) + BASE - 1;
+		s2 += (adler1 >>> 16) + (adler2 >>> 16) + BASE - remainder;
+		if (s1 >= BASE) {
+			s1 -= BASE;
+		}
+		if (s1 >= BASE) {
+			s1 -= BASE;
+		}
+		if (s2 >= (BASE << 1)) {
+			s2 -= (BASE << 1);
+		}
+		if (s2 >= BASE) {
+			s2 -= BASE;
+		}
+		return (s2 << 16) | s1;
+	}
+
+}
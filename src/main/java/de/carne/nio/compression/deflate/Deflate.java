@@ -26,6 +26,8 @@ final class Deflate {
 	}
 
 	protected static final int HUFFMAN_BITS = 15;
+	protected static final int MAIN_TABLE_BITS = 10;
+	protected static final int DIST_TABLE_BITS = 8;
 
 	protected static final int LEN_SLOTS = 29;
 
@@ -59,6 +61,22 @@ final class Deflate {
 			10, 10, 11, 11, 12, 12, 13, 13, 14, 14 };
 
 	protected static final int MATCH_MIN_LEN = 3;
+	protected static final int MATCH_MAX_LEN_32 = 258;
+
+	// Worst case number of bits required for decoding a single match (length code and extra bits plus distance code and
+	// extra bits)
+	protected static final int FAST_LOOP_MIN_INPUT_BITS = 64;
+	protected static final int FAST_LOOP_MIN_OUTPUT = MATCH_MAX_LEN_32;
+
+	protected static final int DIRECT_OUTPUT_MIN = 0x1000;
+
+	protected static final int MATCH_VALUE = 0x10000;
+
+	protected static final int[] MAIN_VALUES_32 = mainValues(LEN_START_32);
+	protected static final byte[] MAIN_EXTRA_BITS_32 = mainExtraBits(LEN_DIRECT_BITS_32);
+
+	protected static final int[] MAIN_VALUES_64 = mainValues(LEN_START_64);
+	protected static final byte[] MAIN_EXTRA_BITS_64 = mainExtraBits(LEN_DIRECT_BITS_64);
 
 	protected static final int FINAL_BLOCK_FIELD_SIZE = 1;
 
@@ -73,6 +91,10 @@ final class Deflate {
 	protected static final int DIST_TABLE_SIZE_32 = 30;
 	protected static final int DIST_TABLE_SIZE_64 = 32;
 
+	protected static final int[] DIST_VALUES_32 = distValues(DIST_TABLE_SIZE_32);
+	protected static final int[] DIST_VALUES_64 = distValues(DIST_TABLE_SIZE_64);
+	protected static final byte[] DIST_EXTRA_BITS = distExtraBits();
+
 	protected static final int NUM_LEN_CODES_FIELD_SIZE = 5;
 	protected static final int NUM_DIST_CODES_FIELD_SIZE = 5;
 	protected static final int NUM_LEVEL_CODES_FIELD_SIZE = 4;
@@ -91,4 +113,84 @@ final class Deflate {
 	protected static final int TABLE_LEVEL0_NUMBER = TABLE_LEVEL_REP_NUMBER + 1;
 	protected static final int TABLE_LEVEL0_NUMBER2 = TABLE_LEVEL0_NUMBER + 1;
 
+	protected static final int LEVEL_TABLE_BITS = 7;
+	protected static final int STORED_BLOCK_SIZE_MAX = 0xffff;
+
+	// Length slot per match length (minus MATCH_MIN_LEN) and distance slot per match distance (minus 1)
+	protected static final byte[] LEN_SLOT_32 = lenSlots();
+	protected static final byte[] DIST_SLOT = distSlots();
+
+	/*
+	 * Main symbol values: literals and the end of block symbol decode to themselves, length symbols decode to
+	 * MATCH_VALUE plus the match length base (the length's extra bits are added by the Huffman decoder). Unused
+	 * symbols are marked invalid (-1).
+	 */
+	private static int[] mainValues(byte[] lenStart) {
+		int[] values = new int[FIXED_MAIN_TABLE_SIZE];
+
+		for (int symbol = 0; symbol < values.length; symbol++) {
+			if (symbol < SYMBOL_MATCH) {
+				values[symbol] = symbol;
+			} else if (symbol < MAIN_TABLE_SIZE) {
+				values[symbol] = MATCH_VALUE + (lenStart[symbol - SYMBOL_MATCH] & 0xff) + MATCH_MIN_LEN;
+			} else {
+				values[symbol] = -1;
+			}
+		}
+		return values;
+	}
+
+	private static byte[] mainExtraBits(byte[] lenDirectBits) {
+		byte[] extraBits = new byte[FIXED_MAIN_TABLE_SIZE];
+
+		System.arraycopy(lenDirectBits, 0, extraBits, SYMBOL_MATCH, LEN_SLOTS);
+		return extraBits;
+	}
+
+	private static int[] distValues(int distTableSize) {
+		int[] values = new int[FIXED_DIST_TABLE_SIZE];
+
+		for (int symbol = 0; symbol < values.length; symbol++) {
+			values[symbol] = (symbol < distTableSize ? DIST_START[symbol] : -1);
+		}
+		return values;
+	}
+
+	private static byte[] distExtraBits() {
+		byte[] extraBits = new byte[FIXED_DIST_TABLE_SIZE];
+
+		for (int symbol = 0; symbol < extraBits.length; symbol++) {
+			extraBits[symbol] = (byte) DIST_DIRECT_BITS[symbol];
+		}
+		return extraBits;
+	}
+
+	private static byte[] lenSlots() {
+		byte[] slots = new byte[MATCH_MAX_LEN_32 - MATCH_MIN_LEN + 1];
+
+		for (int slot = 0; slot < LEN_SLOTS; slot++) {
+			int start = LEN_START_32[slot] & 0xff;
+			int end = Math.min(start + (1 << LEN_DIRECT_BITS_32[slot]), slots.length);
+
+			for (int len = start; len < end; len++) {
+				slots[len] = (byte) slot;
+			}
+		}
+		return slots;
+	}
+
+	private static byte[] distSlots() {
+		byte[] slots = new byte[HISTORY_SIZE_32];
+
+		for (int slot = 0; slot < DIST_TABLE_SIZE_32; slot++) {
+			int start = DIST_START[slot];
+			int end = Math.min(start + (1 << DIST_DIRECT_BITS[slot]), slots.length);
+
+			for (int dist = start; dist < end; dist++) {
+				slots[dist] = (byte) slot;
+			}
+		}
+		return slots;
+	}
+
 }
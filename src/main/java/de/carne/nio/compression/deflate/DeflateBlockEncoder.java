@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.deflate;
+
+import java.util.Arrays;
+
+import de.carne.nio.compression.common.HuffmanEncoder;
+import de.carne.nio.compression.common.LsbBitEncoder;
+
+/**
+ * Collects the literal and match symbols of a single Deflate block and encodes the block using the cheapest of the
+ * stored, fixed Huffman or dynamic Huffman block types.
+ */
+final class DeflateBlockEncoder {
+
+	/**
+	 * The maximum number of symbols collected per block.
+	 */
+	static final int SYMBOL_BUFFER_SIZE = 1 << 14;
+
+	private static final int REP_LEVEL_EXTRA_BITS = 2;
+	private static final int LEVEL0_EXTRA_BITS = 3;
+	private static final int LEVEL0_EXTRA_BITS2 = 7;
+	private static final int REP_LEVEL_MIN = 3;
+	private static final int REP_LEVEL_MAX = 6;
+	private static final int LEVEL0_MIN = 3;
+	private static final int LEVEL0_MAX = 10;
+	private static final int LEVEL0_MIN2 = 11;
+	private static final int LEVEL0_MAX2 = 138;
+
+	private static final HuffmanEncoder FIXED_LIT_LEN_ENCODER = new HuffmanEncoder(Deflate.HUFFMAN_BITS,
+			Deflate.FIXED_MAIN_TABLE_SIZE, true);
+	private static final HuffmanEncoder FIXED_DIST_ENCODER = new HuffmanEncoder(Deflate.HUFFMAN_BITS,
+			Deflate.FIXED_DIST_TABLE_SIZE, true);
+
+	static {
+		DeflateLevels fixedLevels = new DeflateLevels();
+
+		fixedLevels.setFixedLevels();
+
+		FIXED_LIT_LEN_ENCODER.set(fixedLevels.litLenLevels, fixedLevels.litLenLevels.length);
+		FIXED_DIST_ENCODER.set(fixedLevels.distLevels, fixedLevels.distLevels.length);
+	}
+
+	// Literals are stored as is, matches as (distance << 8) | (length - MATCH_MIN_LEN)
+	private final int[] symbols = new int[SYMBOL_BUFFER_SIZE];
+	private int symbolCount = 0;
+	private final int[] litLenFreqs = new int[Deflate.MAIN_TABLE_SIZE];
+	private final int[] distFreqs = new int[Deflate.DIST_TABLE_SIZE_32];
+	private final HuffmanEncoder litLenEncoder = new HuffmanEncoder(Deflate.HUFFMAN_BITS, Deflate.MAIN_TABLE_SIZE,
+			true);
+	private final HuffmanEncoder distEncoder = new HuffmanEncoder(Deflate.HUFFMAN_BITS, Deflate.DIST_TABLE_SIZE_32,
+			true);
+	private final HuffmanEncoder levelEncoder = new HuffmanEncoder(Deflate.LEVEL_TABLE_BITS, Deflate.LEVEL_TABLE_SIZE,
+			true);
+	private final byte[] levels = new byte[Deflate.MAIN_TABLE_SIZE + Deflate.DIST_TABLE_SIZE_32];
+	// Level symbols are stored as (extra bits << 8) | level symbol
+	private final int[] levelSymbols = new int[Deflate.MAIN_TABLE_SIZE + Deflate.DIST_TABLE_SIZE_32];
+	private int levelSymbolCount = 0;
+	private final int[] levelFreqs = new int[Deflate.LEVEL_TABLE_SIZE];
+
+	/**
+	 * Resets the block by discarding all collected symbols.
+	 */
+	void reset() {
+		this.symbolCount = 0;
+		Arrays.fill(this.litLenFreqs, 0);
+		Arrays.fill(this.distFreqs, 0);
+	}
+
+	/**
+	 * Checks whether the block does not contain any symbols.
+	 *
+	 * @return {@code true} if the block is empty.
+	 */
+	boolean isEmpty() {
+		return this.symbolCount == 0;
+	}
+
+	/**
+	 * Checks whether the block's symbol buffer is full.
+	 *
+	 * @return {@code true} if the block's symbol buffer is full.
+	 */
+	boolean isFull() {
+		return this.symbolCount == SYMBOL_BUFFER_SIZE;
+	}
+
+	/**
+	 * Gets the literal/length symbol frequencies collected so far.
+	 *
+	 * @return the literal/length symbol frequencies.
+	 */
+	int[] litLenFreqs() {
+		return this.litLenFreqs;
+	}
+
+	/**
+	 * Gets the distance symbol frequencies collected so far.
+	 *
+	 * @return the distance symbol frequencies.
+	 */
+	int[] distFreqs() {
+		return this.distFreqs;
+	}
+
+	/**
+	 * Adds a literal.
+	 *
+	 * @param literal the literal byte to add.
+	 */
+	void addLiteral(int literal) {
+		this.symbols[this.symbolCount++] = literal;
+		this.litLenFreqs[literal]++;
+	}
+
+	/**
+	 * Adds a match.
+	 *
+	 * @param length the match length (in the range {@code [3, 258]}).
+	 * @param distance the match distance (in the range {@code [1, 32768]}).
+	 */
+	void addMatch(int length, int distance) {
+		int lenIndex = length - Deflate.MATCH_MIN_LEN;
+
+		this.symbols[this.symbolCount++] = (distance << 8) | lenIndex;
+		this.litLenFreqs[Deflate.SYMBOL_MATCH + Deflate.LEN_SLOT_32[lenIndex]]++;
+		this.distFreqs[Deflate.DIST_SLOT[distance - 1]]++;
+	}
+
+	/**
+	 * Encodes the collected symbols as a block and resets the block afterwards.
+	 *
+	 * @param bits the {@linkplain LsbBitEncoder} to encode into.
+	 * @param raw the buffer containing the raw data covered by the block.
+	 * @param rawOffset the offset of the raw data covered by the block ({@code -1} if the raw data is no longer
+	 * available and the block cannot be stored).
+	 * @param rawLength the length of the raw data covered by the block.
+	 * @param last whether this is the final block of the stream.
+	 */
+	void encodeBlock(LsbBitEncoder bits, byte[] raw, int rawOffset, int rawLength, boolean last) {
+		this.litLenFreqs[Deflate.SYMBOL_END_OF_BLOCK]++;
+		this.litLenEncoder.build(this.litLenFreqs, Deflate.MAIN_TABLE_SIZE);
+		this.distEncoder.build(this.distFreqs, Deflate.DIST_TABLE_SIZE_32);
+
+		int litLenCount = Deflate.MAIN_TABLE_SIZE;
+		byte[] litLenLengths = this.litLenEncoder.lengths();
+
+		while (litLenCount > Deflate.NUM_LIT_LEN_CODES_MIN && litLenLengths[litLenCount - 1] == 0) {
+			litLenCount--;
+		}
+
+		int distCount = Deflate.DIST_TABLE_SIZE_32;
+		byte[] distLengths = this.distEncoder.lengths();
+
+		while (distCount > Deflate.NUM_DIST_CODES_MIN && distLengths[distCount - 1] == 0) {
+			distCount--;
+		}
+		buildLevels(litLenLengths, litLenCount, distLengths, distCount);
+
+		int levelCount = Deflate.LEVEL_TABLE_SIZE;
+		byte[] levelLengths = this.levelEncoder.lengths();
+
+		while (levelCount > Deflate.NUM_LEVEL_CODES_MIN
+				&& levelLengths[Deflate.CODE_LENGTH_ALPHABET_ORDER[levelCount - 1]] == 0) {
+			levelCount--;
+		}
+
+		long dynamicCost = Deflate.NUM_LEN_CODES_FIELD_SIZE + Deflate.NUM_DIST_CODES_FIELD_SIZE
+				+ Deflate.NUM_LEVEL_CODES_FIELD_SIZE + levelCount * Deflate.LEVEL_FIELD_SIZE + levelsCost()
+				+ dataCost(litLenLengths, distLengths);
+		long fixedCost = dataCost(FIXED_LIT_LEN_ENCODER.lengths(), FIXED_DIST_ENCODER.lengths());
+		long storedCost = (rawOffset >= 0 ? storedCost(bits, rawLength) : Long.MAX_VALUE);
+
+		if (storedCost <= Math.min(fixedCost, dynamicCost)) {
+			encodeStoredBlock(bits, raw, rawOffset, rawLength, last);
+		} else if (fixedCost <= dynamicCost) {
+			encodeBlockHeader(bits, Deflate.BLOCK_TYPE_FIXED_HUFFMAN, last);
+			encodeSymbols(bits, FIXED_LIT_LEN_ENCODER, FIXED_DIST_ENCODER);
+		} else {
+			encodeBlockHeader(bits, Deflate.BLOCK_TYPE_DYNAMIC_HUFFMAN, last);
+			bits.encodeBits(litLenCount - Deflate.NUM_LIT_LEN_CODES_MIN, Deflate.NUM_LEN_CODES_FIELD_SIZE);
+			bits.encodeBits(distCount - Deflate.NUM_DIST_CODES_MIN, Deflate.NUM_DIST_CODES_FIELD_SIZE);
+			bits.encodeBits(levelCount - Deflate.NUM_LEVEL_CODES_MIN, Deflate.NUM_LEVEL_CODES_FIELD_SIZE);
+			for (int levelIndex = 0; levelIndex < levelCount; levelIndex++) {
+				bits.encodeBits(levelLengths[Deflate.CODE_LENGTH_ALPHABET_ORDER[levelIndex]], Deflate.LEVEL_FIELD_SIZE);
+			}
+			encodeLevels(bits);
+			encodeSymbols(bits, this.litLenEncoder, this.distEncoder);
+		}
+		reset();
+	}
+
+	/**
+	 * Encodes raw data as one or more stored blocks.
+	 *
+	 * @param bits the {@linkplain LsbBitEncoder} to encode into.
+	 * @param raw the buffer containing the raw data to store.
+	 * @param rawOffset the offset of the raw data to store.
+	 * @param rawLength the length of the raw data to store.
+	 * @param last whether the (last) stored block is the final block of the stream.
+	 */
+	static void encodeStoredBlock(LsbBitEncoder bits, byte[] raw, int rawOffset, int rawLength, boolean last) {
+		int storeOffset = rawOffset;
+		int storeRemaining = rawLength;
+
+		do {
+			int storeLength = Math.min(storeRemaining, Deflate.STORED_BLOCK_SIZE_MAX);
+
+			storeRemaining -= storeLength;
+			encodeBlockHeader(bits, Deflate.BLOCK_TYPE_STORED, last && storeRemaining == 0);
+			bits.alignToByte();
+			bits.encodeBits(storeLength, Deflate.STORED_BLOCK_LENGTH_FIELD_SIZE);
+			bits.encodeBits(~storeLength, Deflate.STORED_BLOCK_LENGTH_FIELD_SIZE);
+			bits.encodeBytes(raw, storeOffset, storeLength);
+			storeOffset += storeLength;
+		} while (storeRemaining > 0);
+	}
+
+	private static void encodeBlockHeader(LsbBitEncoder bits, int blockType, boolean last) {
+		bits.encodeBits(last ? 1 : 0, Deflate.FINAL_BLOCK_FIELD_SIZE);
+		bits.encodeBits(blockType, Deflate.BLOCK_TYPE_FIELD_SIZE);
+	}
+
+	private static long storedCost(LsbBitEncoder bits, int rawLength) {
+		int blockHeaderSize = Deflate.FINAL_BLOCK_FIELD_SIZE + Deflate.BLOCK_TYPE_FIELD_SIZE;
+		int pendingBits = (8 - bits.alignmentBits()) & 7;
+		int blockCount = Math.max(1, (rawLength + Deflate.STORED_BLOCK_SIZE_MAX - 1) / Deflate.STORED_BLOCK_SIZE_MAX);
+		long cost = ((pendingBits + blockHeaderSize + 7) & ~7) - pendingBits;
+
+		cost += (blockCount - 1) * 8L;
+		cost += blockCount * 2L * Deflate.STORED_BLOCK_LENGTH_FIELD_SIZE;
+		cost += rawLength * 8L;
+		return cost;
+	}
+
+	private long dataCost(byte[] litLenLengths, byte[] distLengths) {
+		long cost = Deflate.FINAL_BLOCK_FIELD_SIZE + Deflate.BLOCK_TYPE_FIELD_SIZE;
+
+		for (int symbol = 0; symbol < Deflate.SYMBOL_MATCH; symbol++) {
+			cost += ((long) this.litLenFreqs[symbol]) * litLenLengths[symbol];
+		}
+		for (int slot = 0; slot < Deflate.LEN_SLOTS; slot++) {
+			cost += ((long) this.litLenFreqs[Deflate.SYMBOL_MATCH + slot])
+					* (litLenLengths[Deflate.SYMBOL_MATCH + slot] + Deflate.LEN_DIRECT_BITS_32[slot]);
+		}
+		for (int slot = 0; slot < Deflate.DIST_TABLE_SIZE_32; slot++) {
+			cost += ((long) this.distFreqs[slot]) * (distLengths[slot] + Deflate.DIST_DIRECT_BITS[slot]);
+		}
+		return cost;
+	}
+
+	/*
+	 * Run length encodes the combined literal/length and distance code lengths into level symbols and builds the
+	 * level code.
+	 */
+	private void buildLevels(byte[] litLenLengths, int litLenCount, byte[] distLengths, int distCount) {
+		int levelTotal = litLenCount + distCount;
+
+		System.arraycopy(litLenLengths, 0, this.levels, 0, litLenCount);
+		System.arraycopy(distLengths, 0, this.levels, litLenCount, distCount);
+		this.levelSymbolCount = 0;
+		Arrays.fill(this.levelFreqs, 0);
+
+		int levelIndex = 0;
+
+		while (levelIndex < levelTotal) {
+			int level = this.levels[levelIndex];
+			int run = 1;
+
+			while (levelIndex + run < levelTotal && this.levels[levelIndex + run] == level) {
+				run++;
+			}
+			levelIndex += run;
+			if (level == 0) {
+				while (run >= LEVEL0_MIN2) {
+					int repeat = Math.min(run, LEVEL0_MAX2);
+
+					addLevelSymbol(Deflate.TABLE_LEVEL0_NUMBER2, repeat - LEVEL0_MIN2);
+					run -= repeat;
+				}
+				if (run >= LEVEL0_MIN) {
+					addLevelSymbol(Deflate.TABLE_LEVEL0_NUMBER, run - LEVEL0_MIN);
+					run = 0;
+				}
+			} else {
+				addLevelSymbol(level, 0);
+				run--;
+				while (run >= REP_LEVEL_MIN) {
+					int repeat = Math.min(run, REP_LEVEL_MAX);
+
+					addLevelSymbol(Deflate.TABLE_LEVEL_REP_NUMBER, repeat - REP_LEVEL_MIN);
+					run -= repeat;
+				}
+			}
+			while (run > 0) {
+				addLevelSymbol(level, 0);
+				run--;
+			}
+		}
+		this.levelEncoder.build(this.levelFreqs, Deflate.LEVEL_TABLE_SIZE);
+	}
+
+	private void addLevelSymbol(int levelSymbol, int extra) {
+		this.levelSymbols[this.levelSymbolCount++] = (extra << 8) | levelSymbol;
+		this.levelFreqs[levelSymbol]++;
+	}
+
+	private static int levelExtraBits(int levelSymbol) {
+		int extraBits;
+
+		switch (levelSymbol) {
+		case Deflate.TABLE_LEVEL_REP_NUMBER:
+			extraBits = REP_LEVEL_EXTRA_BITS;
+			break;
+		case Deflate.TABLE_LEVEL0_NUMBER:
+			extraBits = LEVEL0_EXTRA_BITS;
+			break;
+		case Deflate.TABLE_LEVEL0_NUMBER2:
+			extraBits = LEVEL0_EXTRA_BITS2;
+			break;
+		default:
+			extraBits = 0;
+		}
+		return extraBits;
+	}
+
+	private long levelsCost() {
+		byte[] levelLengths = this.levelEncoder.lengths();
+		long cost = 0;
+
+		for (int levelSymbol = 0; levelSymbol < Deflate.LEVEL_TABLE_SIZE; levelSymbol++) {
+			cost += ((long) this.levelFreqs[levelSymbol]) * (levelLengths[levelSymbol] + levelExtraBits(levelSymbol));
+		}
+		return cost;
+	}
+
+	private void encodeLevels(LsbBitEncoder bits) {
+		byte[] levelLengths = this.levelEncoder.lengths();
+		int[] levelCodes = this.levelEncoder.codes();
+
+		for (int levelSymbolIndex = 0; levelSymbolIndex < this.levelSymbolCount; levelSymbolIndex++) {
+			int levelSymbol = this.levelSymbols[levelSymbolIndex] & 0xff;
+
+			bits.encodeBits(levelCodes[levelSymbol], levelLengths[levelSymbol]);
+
+			int extraBits = levelExtraBits(levelSymbol);
+
+			if (extraBits > 0) {
+				bits.encodeBits(this.levelSymbols[levelSymbolIndex] >>> 8, extraBits);
+			}
+		}
+	}
+
+	private void encodeSymbols(LsbBitEncoder bits, HuffmanEncoder litLenCode, HuffmanEncoder distCode) {
+		byte[] litLenLengths = litLenCode.lengths();
+		int[] litLenCodes = litLenCode.codes();
+		byte[] distLengths = distCode.lengths();
+		int[] distCodes = distCode.codes();
+
+		for (int symbolIndex = 0; symbolIndex < this.symbolCount; symbolIndex++) {
+			int symbol = this.symbols[symbolIndex];
+
+			if (symbol < Deflate.SYMBOL_END_OF_BLOCK) {
+				bits.encodeBits(litLenCodes[symbol], litLenLengths[symbol]);
+			} else {
+				int lenIndex = symbol & 0xff;
+				int lenSlot = Deflate.LEN_SLOT_32[lenIndex];
+				int lenSymbol = Deflate.SYMBOL_MATCH + lenSlot;
+				int lenCodeLength = litLenLengths[lenSymbol];
+				int lenExtra = lenIndex - (Deflate.LEN_START_32[lenSlot] & 0xff);
+
+				bits.encodeBits(litLenCodes[lenSymbol] | (lenExtra << lenCodeLength),
+						lenCodeLength + Deflate.LEN_DIRECT_BITS_32[lenSlot]);
+
+				int distIndex = (symbol >>> 8) - 1;
+				int distSlot = Deflate.DIST_SLOT[distIndex];
+				int distCodeLength = distLengths[distSlot];
+				int distExtra = distIndex - Deflate.DIST_START[distSlot];
+
+				bits.encodeBits(distCodes[distSlot] | (distExtra << distCodeLength),
+						distCodeLength + Deflate.DIST_DIRECT_BITS[distSlot]);
+			}
+		}
+		bits.encodeBits(litLenCodes[Deflate.SYMBOL_END_OF_BLOCK], litLenLengths[Deflate.SYMBOL_END_OF_BLOCK]);
+	}
+
+}
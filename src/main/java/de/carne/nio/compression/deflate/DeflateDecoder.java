@@ -23,11 +23,10 @@ import java.nio.channels.ReadableByteChannel;
 import de.carne.nio.compression.CompressionInfos;
 import de.carne.nio.compression.InvalidDataException;
 import de.carne.nio.compression.common.BitDecoder;
-import de.carne.nio.compression.common.BitRegister;
 import de.carne.nio.compression.common.HistoryBuffer;
 import de.carne.nio.compression.common.HuffmanDecoder;
-import de.carne.nio.compression.common.LSBBitstreamBitRegister;
-import de.carne.nio.compression.common.LSBBytesBitRegister;
+import de.carne.nio.compression.common.HuffmanTableDecoder;
+import de.carne.nio.compression.common.LSBBytesWideBitRegister;
 import de.carne.nio.compression.spi.Decoder;
 
 /**
@@ -36,16 +35,13 @@ import de.carne.nio.compression.spi.Decoder;
 public class DeflateDecoder extends Decoder {
 
 	private final DeflateDecoderProperties properties;
-	private final BitDecoder bitDecoder = new BitDecoder(new BitRegister[] {
-
-			new LSBBitstreamBitRegister(),
-
-			new LSBBytesBitRegister()
-
-	}, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff);
-	private final HuffmanDecoder mainDecoder = new HuffmanDecoder(Deflate.HUFFMAN_BITS, Deflate.FIXED_MAIN_TABLE_SIZE);
-	private final HuffmanDecoder distDecoder = new HuffmanDecoder(Deflate.HUFFMAN_BITS, Deflate.FIXED_DIST_TABLE_SIZE);
-	private final HuffmanDecoder levelDecoder = new HuffmanDecoder(Deflate.HUFFMAN_BITS, Deflate.LEVEL_TABLE_SIZE);
+	private final BitDecoder bitDecoder;
+	private final HuffmanTableDecoder mainDecoder = new HuffmanTableDecoder(Deflate.HUFFMAN_BITS,
+			Deflate.FIXED_MAIN_TABLE_SIZE, Deflate.MAIN_TABLE_BITS, true);
+	private final HuffmanTableDecoder distDecoder = new HuffmanTableDecoder(Deflate.HUFFMAN_BITS,
+			Deflate.FIXED_DIST_TABLE_SIZE, Deflate.DIST_TABLE_BITS, true);
+	private final HuffmanDecoder levelDecoder = new HuffmanDecoder(Deflate.HUFFMAN_BITS, Deflate.LEVEL_TABLE_SIZE,
+			true);
 	private final HistoryBuffer historyBuffer;
 	private int blockRemaining;
 	private boolean readTables;
@@ -70,6 +66,8 @@ public class DeflateDecoder extends Decoder {
 	public DeflateDecoder(DeflateDecoderProperties properties) {
 		super(DeflateFactory.COMPRESSION_NAME);
 		this.properties = properties;
+		this.bitDecoder = new BitDecoder(this.properties.getReadAheadProperty(), new LSBBytesWideBitRegister(),
+				(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff);
 		this.historyBuffer = new HistoryBuffer(
 				this.properties.getHistory64Property() ? Deflate.HISTORY_SIZE_64 : Deflate.HISTORY_SIZE_32);
 		reset0();
@@ -118,12 +116,16 @@ public class DeflateDecoder extends Decoder {
 
 				int decodeRemaining = dst.remaining();
 
-				while (decodeRemaining > 0 && this.blockRemaining != -1) {
-					decodeBlock(src, Math.min(decodeRemaining, this.historyBuffer.getSize() >>> 1));
+				if (decodeRemaining >= Deflate.DIRECT_OUTPUT_MIN && dst.hasArray()) {
+					emitted += decodeDirect(dst, src);
+				} else {
+					while (decodeRemaining > 0 && this.blockRemaining != -1) {
+						decodeBlock(src, Math.min(decodeRemaining, this.historyBuffer.getSize() >>> 1));
+						emitted += this.historyBuffer.flush(dst);
+						decodeRemaining = dst.remaining();
+					}
 					emitted += this.historyBuffer.flush(dst);
-					decodeRemaining = dst.remaining();
 				}
-				emitted += this.historyBuffer.flush(dst);
 				if (this.blockRemaining == -1 && deflateFormat == DeflateFormat.ZLIB) {
 					processZLibTrailer(src);
 				}
@@ -138,22 +140,47 @@ public class DeflateDecoder extends Decoder {
 		return decoded;
 	}
 
+	@Override
+	public ByteBuffer drainInput() {
+		return this.bitDecoder.drainBytes();
+	}
+
+	private int decodeDirect(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		int dstPosition = dst.position();
+
+		this.historyBuffer.beginDirectOutput(dst.array(), dst.arrayOffset() + dstPosition, dst.remaining());
+
+		int emitted;
+
+		try {
+			int decodeRemaining = this.historyBuffer.directOutputRemaining();
+
+			while (decodeRemaining > 0 && this.blockRemaining != -1) {
+				decodeBlock(src, decodeRemaining);
+				decodeRemaining = this.historyBuffer.directOutputRemaining();
+			}
+		} finally {
+			emitted = this.historyBuffer.endDirectOutput();
+			dst.position(dstPosition + emitted);
+		}
+		return emitted;
+	}
+
 	private void processZLibHeader(ReadableByteChannel src) throws IOException {
-		this.bitDecoder.decodeBits(src, 8, 1);
-		this.bitDecoder.decodeBits(src, 4, 1);
-		this.bitDecoder.decodeBits(src, 4, 1);
+		this.bitDecoder.decodeBits(src, 8);
+		this.bitDecoder.decodeBits(src, 4);
+		this.bitDecoder.decodeBits(src, 4);
 	}
 
 	private void processZLibTrailer(ReadableByteChannel src) throws IOException {
 		this.bitDecoder.alignToByte();
-		this.bitDecoder.decodeBits(src, 8, 1);
-		this.bitDecoder.decodeBits(src, 8, 1);
-		this.bitDecoder.decodeBits(src, 8, 1);
-		this.bitDecoder.decodeBits(src, 8, 1);
+		this.bitDecoder.decodeBits(src, 8);
+		this.bitDecoder.decodeBits(src, 8);
+		this.bitDecoder.decodeBits(src, 8);
+		this.bitDecoder.decodeBits(src, 8);
 	}
 
 	private void decodeBlock(ReadableByteChannel src, int len) throws IOException {
-		boolean history64 = this.properties.getHistory64Property();
 		boolean keepHistory = this.properties.getKeepHistoryProperty();
 		int decodeRemaining = len;
 
@@ -194,43 +221,30 @@ public class DeflateDecoder extends Decoder {
 					decodeRemaining -= writeBufferLen;
 					done1 = decodeRemaining <= 0;
 				} else {
-					boolean done2 = decodeRemaining <= 0;
+					decodeRemaining = decodeSymbolsFast(src, decodeRemaining);
+
+					boolean done2 = this.readTables || decodeRemaining <= 0;
 
 					while (!done2) {
-						int symbol = this.mainDecoder.decodeSymbol(src, this.bitDecoder, 0);
+						int value = this.mainDecoder.decodeSymbol(src, this.bitDecoder, 0);
 
-						if (symbol < 0) {
-							throw new InvalidDataException(symbol);
-						} else if (symbol < 0x100) {
-							this.historyBuffer.putByte((byte) symbol);
+						if (value < 0) {
+							throw new InvalidDataException(value);
+						} else if (value < 0x100) {
+							this.historyBuffer.putByte((byte) value);
 							decodeRemaining--;
 							done2 = decodeRemaining <= 0;
-						} else if (symbol == Deflate.SYMBOL_END_OF_BLOCK) {
+						} else if (value == Deflate.SYMBOL_END_OF_BLOCK) {
 							this.readTables = true;
 							done2 = true;
-						} else if (symbol < Deflate.MAIN_TABLE_SIZE) {
-							symbol -= Deflate.SYMBOL_MATCH;
-
-							int decodeLen1;
-
-							if (history64) {
-								decodeLen1 = (Deflate.LEN_START_64[symbol] & 0xff) + Deflate.MATCH_MIN_LEN
-										+ this.bitDecoder.decodeBits(src, Deflate.LEN_DIRECT_BITS_64[symbol] & 0xff, 1);
-							} else {
-								decodeLen1 = (Deflate.LEN_START_32[symbol] & 0xff) + Deflate.MATCH_MIN_LEN
-										+ this.bitDecoder.decodeBits(src, Deflate.LEN_DIRECT_BITS_32[symbol] & 0xff, 1);
-							}
-
+						} else if (value >= Deflate.MATCH_VALUE) {
+							int decodeLen1 = value - Deflate.MATCH_VALUE;
 							final int decodeLen2 = Math.min(decodeLen1, decodeRemaining);
+							final int dist = this.distDecoder.decodeSymbol(src, this.bitDecoder, 0);
 
-							symbol = this.distDecoder.decodeSymbol(src, this.bitDecoder, 0);
-							if (symbol >= this.numDistLevels) {
-								throw new InvalidDataException(symbol);
+							if (dist < 0) {
+								throw new InvalidDataException(dist);
 							}
-
-							final int dist = Deflate.DIST_START[symbol]
-									+ this.bitDecoder.decodeBits(src, Deflate.DIST_DIRECT_BITS[symbol], 1);
-
 							this.historyBuffer.copyBlock(dist, decodeLen2);
 							decodeRemaining -= decodeLen2;
 							decodeLen1 -= decodeLen2;
@@ -242,7 +256,7 @@ public class DeflateDecoder extends Decoder {
 								done2 = true;
 							}
 						} else {
-							throw new InvalidDataException(symbol);
+							throw new InvalidDataException(value);
 						}
 					}
 					done1 = decodeRemaining <= 0;
@@ -251,22 +265,66 @@ public class DeflateDecoder extends Decoder {
 		}
 	}
 
+	/*
+	 * Decodes symbols as long as a worst case match can be decoded from the buffered input and written to the output.
+	 * Within this loop there is no need to check for the end of input or output after each symbol. Only a Deflate64
+	 * match exceeding the remaining output may have to be split.
+	 */
+	private int decodeSymbolsFast(ReadableByteChannel src, int len) throws IOException {
+		int decodeRemaining = len;
+
+		while (decodeRemaining >= Deflate.FAST_LOOP_MIN_OUTPUT
+				&& this.bitDecoder.bufferedBits() >= Deflate.FAST_LOOP_MIN_INPUT_BITS) {
+			int value = this.mainDecoder.decodeSymbol(src, this.bitDecoder, 0);
+
+			if (value < 0x100) {
+				if (value < 0) {
+					throw new InvalidDataException(value);
+				}
+				this.historyBuffer.putByte((byte) value);
+				decodeRemaining--;
+			} else if (value >= Deflate.MATCH_VALUE) {
+				final int matchLen = value - Deflate.MATCH_VALUE;
+				final int dist = this.distDecoder.decodeSymbol(src, this.bitDecoder, 0);
+
+				if (dist < 0) {
+					throw new InvalidDataException(dist);
+				}
+				if (matchLen <= decodeRemaining) {
+					this.historyBuffer.copyBlock(dist, matchLen);
+					decodeRemaining -= matchLen;
+				} else {
+					this.historyBuffer.copyBlock(dist, decodeRemaining);
+					this.blockRemaining = matchLen - decodeRemaining;
+					this.rep0Dist = dist;
+					decodeRemaining = 0;
+				}
+			} else if (value == Deflate.SYMBOL_END_OF_BLOCK) {
+				this.readTables = true;
+				break;
+			} else {
+				throw new InvalidDataException(value);
+			}
+		}
+		return decodeRemaining;
+	}
+
 	private void readTables(ReadableByteChannel src) throws IOException {
-		this.finalBlock = (this.bitDecoder.decodeBits(src, Deflate.FINAL_BLOCK_FIELD_SIZE, 1) != 0);
+		this.finalBlock = (this.bitDecoder.decodeBits(src, Deflate.FINAL_BLOCK_FIELD_SIZE) != 0);
 
 		DeflateFormat deflateFormat = this.properties.getFormatProperty();
 		boolean history64 = this.properties.getHistory64Property();
-		int blockType = this.bitDecoder.decodeBits(src, Deflate.BLOCK_TYPE_FIELD_SIZE, 1);
+		int blockType = this.bitDecoder.decodeBits(src, Deflate.BLOCK_TYPE_FIELD_SIZE);
 		DeflateLevels levels;
 
 		switch (blockType) {
 		case Deflate.BLOCK_TYPE_STORED:
 			this.storedMode = true;
 			this.bitDecoder.alignToByte();
-			this.storedBlockSize = this.bitDecoder.decodeBits(src, Deflate.STORED_BLOCK_LENGTH_FIELD_SIZE, 1);
+			this.storedBlockSize = this.bitDecoder.decodeBits(src, Deflate.STORED_BLOCK_LENGTH_FIELD_SIZE);
 
 			if (deflateFormat != DeflateFormat.NSIS) {
-				int storedBlockSizeCheck = this.bitDecoder.decodeBits(src, Deflate.STORED_BLOCK_LENGTH_FIELD_SIZE, 1);
+				int storedBlockSizeCheck = this.bitDecoder.decodeBits(src, Deflate.STORED_BLOCK_LENGTH_FIELD_SIZE);
 
 				if (((this.storedBlockSize ^ storedBlockSizeCheck) & 0xffff) != 0xffff) {
 					throw new InvalidDataException(this.storedBlockSize, storedBlockSizeCheck);
@@ -278,22 +336,21 @@ public class DeflateDecoder extends Decoder {
 			levels = new DeflateLevels();
 			levels.setFixedLevels();
 			this.numDistLevels = (history64 ? Deflate.DIST_TABLE_SIZE_64 : Deflate.DIST_TABLE_SIZE_32);
-			this.mainDecoder.setCodeLengths(levels.litLenLevels);
-			this.distDecoder.setCodeLengths(levels.distLevels);
+			setMatchCodeLengths(levels, history64);
 			break;
 		case Deflate.BLOCK_TYPE_DYNAMIC_HUFFMAN:
 			this.storedMode = false;
 
-			final int numLitLenLevels = this.bitDecoder.decodeBits(src, Deflate.NUM_LEN_CODES_FIELD_SIZE, 1)
+			final int numLitLenLevels = this.bitDecoder.decodeBits(src, Deflate.NUM_LEN_CODES_FIELD_SIZE)
 					+ Deflate.NUM_LIT_LEN_CODES_MIN;
 
-			this.numDistLevels = this.bitDecoder.decodeBits(src, Deflate.NUM_DIST_CODES_FIELD_SIZE, 1)
+			this.numDistLevels = this.bitDecoder.decodeBits(src, Deflate.NUM_DIST_CODES_FIELD_SIZE)
 					+ Deflate.NUM_DIST_CODES_MIN;
 			if (!history64 && this.numDistLevels > Deflate.DIST_TABLE_SIZE_32) {
 				throw new InvalidDataException(this.numDistLevels);
 			}
 
-			final int numLevelCodes = this.bitDecoder.decodeBits(src, Deflate.NUM_LEVEL_CODES_FIELD_SIZE, 1)
+			final int numLevelCodes = this.bitDecoder.decodeBits(src, Deflate.NUM_LEVEL_CODES_FIELD_SIZE)
 					+ Deflate.NUM_LEVEL_CODES_MIN;
 			final byte[] levelLevels = new byte[Deflate.LEVEL_TABLE_SIZE];
 
@@ -301,7 +358,7 @@ public class DeflateDecoder extends Decoder {
 				final int position = Deflate.CODE_LENGTH_ALPHABET_ORDER[levelIndex] & 0xff;
 
 				if (levelIndex < numLevelCodes) {
-					levelLevels[position] = (byte) this.bitDecoder.decodeBits(src, Deflate.LEVEL_FIELD_SIZE, 1);
+					levelLevels[position] = (byte) this.bitDecoder.decodeBits(src, Deflate.LEVEL_FIELD_SIZE);
 				} else {
 					levelLevels[position] = 0;
 				}
@@ -313,14 +370,23 @@ public class DeflateDecoder extends Decoder {
 			decodeLevels(src, levels, numLitLenLevels + this.numDistLevels);
 			levels.subClear();
 			levels.setLevels(numLitLenLevels, this.numDistLevels);
-			this.mainDecoder.setCodeLengths(levels.litLenLevels);
-			this.distDecoder.setCodeLengths(levels.distLevels);
+			setMatchCodeLengths(levels, history64);
 			break;
 		default:
 			throw new InvalidDataException(blockType);
 		}
 	}
 
+	private void setMatchCodeLengths(DeflateLevels levels, boolean history64) throws IOException {
+		if (history64) {
+			this.mainDecoder.setCodeLengths(levels.litLenLevels, Deflate.MAIN_VALUES_64, Deflate.MAIN_EXTRA_BITS_64);
+			this.distDecoder.setCodeLengths(levels.distLevels, Deflate.DIST_VALUES_64, Deflate.DIST_EXTRA_BITS);
+		} else {
+			this.mainDecoder.setCodeLengths(levels.litLenLevels, Deflate.MAIN_VALUES_32, Deflate.MAIN_EXTRA_BITS_32);
+			this.distDecoder.setCodeLengths(levels.distLevels, Deflate.DIST_VALUES_32, Deflate.DIST_EXTRA_BITS);
+		}
+	}
+
 	private void decodeLevels(ReadableByteChannel src, DeflateLevels levels, int numSymbols) throws IOException {
 		int levelIndex = 0;
 
@@ -338,7 +404,7 @@ public class DeflateDecoder extends Decoder {
 						throw new InvalidDataException();
 					}
 
-					int repNum = this.bitDecoder.decodeBits(src, 2, 1) + 3;
+					int repNum = this.bitDecoder.decodeBits(src, 2) + 3;
 
 					while (repNum > 0 && levelIndex < numSymbols) {
 						levels.levels[levelIndex] = levels.levels[levelIndex - 1];
@@ -346,8 +412,8 @@ public class DeflateDecoder extends Decoder {
 						repNum--;
 					}
 				} else {
-					int repNum = (symbol == Deflate.TABLE_LEVEL0_NUMBER ? this.bitDecoder.decodeBits(src, 3, 1) + 3
-							: this.bitDecoder.decodeBits(src, 7, 1) + 11);
+					int repNum = (symbol == Deflate.TABLE_LEVEL0_NUMBER ? this.bitDecoder.decodeBits(src, 3) + 3
+							: this.bitDecoder.decodeBits(src, 7) + 11);
 
 					while (repNum > 0 && levelIndex < numSymbols) {
 						levels.levels[levelIndex] = 0;
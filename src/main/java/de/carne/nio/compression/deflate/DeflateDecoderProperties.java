@@ -29,6 +29,7 @@ public class DeflateDecoderProperties extends CompressionProperties {
 	private static final CompressionProperty KEEP_HISTORY = new CompressionProperty("KEEP_HISTORY", Boolean.class);
 	private static final CompressionProperty RESTART_AFTER_EOS = new CompressionProperty("RESTART_AFTER_EOS",
 			Boolean.class);
+	private static final CompressionProperty READ_AHEAD = new CompressionProperty("READ_AHEAD", Integer.class);
 
 	/**
 	 * Constructs a new {@linkplain DeflateDecoderProperties} instance with default values.
@@ -38,6 +39,7 @@ public class DeflateDecoderProperties extends CompressionProperties {
 		registerProperty(HISTORY64, Boolean.FALSE);
 		registerProperty(KEEP_HISTORY, Boolean.FALSE);
 		registerProperty(RESTART_AFTER_EOS, Boolean.FALSE);
+		registerProperty(READ_AHEAD, Integer.valueOf(0));
 	}
 
 	/**
@@ -112,4 +114,32 @@ public class DeflateDecoderProperties extends CompressionProperties {
 		return getBooleanProperty(RESTART_AFTER_EOS);
 	}
 
+	/**
+	 * Sets the read-ahead option.
+	 * <p>
+	 * If set to a value greater than {@code 0}, the encoded data is read in chunks of the given size. Use
+	 * {@linkplain DeflateDecoder#drainInput()} to retrieve any bytes read beyond the end of the encoded data.
+	 * </p>
+	 * <p>
+	 * The fast symbol decoding loop as well as the bulk register refill are only used if read-ahead is enabled, hence
+	 * the default configuration ({@code 0}) gets neither of them. Decoding directly into the destination buffer does
+	 * not depend on this option. It is used whenever the destination buffer is backed by an accessible array and has
+	 * at least 4096 bytes remaining.
+	 * </p>
+	 *
+	 * @param readAhead the number of bytes to read ahead ({@code 0} to read only the bytes actually needed).
+	 */
+	public void setReadAheadProperty(int readAhead) {
+		setIntProperty(READ_AHEAD, readAhead);
+	}
+
+	/**
+	 * Gets the read-ahead option.
+	 *
+	 * @return the read-ahead option.
+	 */
+	public int getReadAheadProperty() {
+		return getIntProperty(READ_AHEAD);
+	}
+
 }
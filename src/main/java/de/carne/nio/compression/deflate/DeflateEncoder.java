@@ -0,0 +1,803 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.deflate;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.common.HuffmanEncoder;
+import de.carne.nio.compression.common.LsbBitEncoder;
+import de.carne.nio.compression.spi.Encoder;
+
+/**
+ * Encoder for Deflate compressed data.
+ * <p>
+ * Matches are searched via hash chains over the last 32 KiB of input. Depending on the configured level the matches
+ * are selected greedily (levels {@code 1} to {@code 3}), lazily (levels {@code 4} to {@code 8}) or by optimal parsing
+ * based on the estimated symbol costs (level {@code 9}). Level {@code 0} stores the input without compression.
+ */
+public class DeflateEncoder extends Encoder {
+
+	/**
+	 * The default compression level.
+	 */
+	public static final int DEFAULT_LEVEL = 6;
+
+	/**
+	 * The maximum compression level.
+	 */
+	public static final int MAX_LEVEL = 9;
+
+	private static final int WINDOW_SIZE = Deflate.HISTORY_SIZE_32;
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+	private static final int WINDOW_BUFFER_SIZE = 4 * WINDOW_SIZE;
+	private static final int MIN_LOOKAHEAD = Deflate.MATCH_MAX_LEN_32 + Deflate.MATCH_MIN_LEN + 1;
+
+	private static final int HASH_BITS = 15;
+	private static final int HASH_MULTIPLIER = 0x9e3779b1;
+
+	// Length 3 matches with a larger distance are not worth it (lazy matching only)
+	private static final int TOO_FAR = 4096;
+
+	private static final int OPTIMAL_SEGMENT_SIZE = 1 << 15;
+	private static final int OPTIMAL_MATCHES_PER_POSITION = 8;
+	// Matches exceeding this length are taken as is and the covered positions are not searched for matches
+	private static final int OPTIMAL_LONG_MATCH_LEN = 128;
+	private static final int OPTIMAL_COVERED_CHAIN_SHIFT = 6;
+
+	// Per level match search configuration: good length, lazy/insert length, nice length, maximum chain length
+	private static final int[][] LEVEL_CONFIGS = { { 0, 0, 0, 0 }, { 4, 4, 8, 4 }, { 4, 5, 16, 8 }, { 4, 6, 32, 32 },
+			{ 4, 4, 16, 16 }, { 8, 16, 32, 32 }, { 8, 16, 128, 128 }, { 8, 32, 128, 256 }, { 32, 128, 258, 1024 },
+			{ 32, 258, 258, 4096 } };
+
+	private static final int ZLIB_CMF = 0x78;
+
+	private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private final DeflateEncoderProperties properties;
+	private final DeflateFormat format;
+	private final int level;
+	private final int goodLength;
+	private final int lazyLength;
+	private final int niceLength;
+	private final int maxChainLength;
+	private final byte[] window = new byte[WINDOW_BUFFER_SIZE];
+	private final int[] hashHead;
+	private final int[] hashPrev;
+	private final DeflateBlockEncoder blockEncoder = new DeflateBlockEncoder();
+	private final LsbBitEncoder bitEncoder = new LsbBitEncoder();
+	private int windowEnd;
+	private int strStart;
+	private int blockStart;
+	private int blockLength;
+	private int matchLength;
+	private int matchDistance;
+	private boolean matchAvailable;
+	private int adler;
+	private boolean streamStarted;
+	// Optimal parsing state (level 9 only)
+	private final int[] optimalMatchLengths;
+	private final int[] optimalMatchDistances;
+	private final int[] optimalMatchCounts;
+	private final int[] optimalCosts;
+	private final int[] optimalSteps;
+	private final int[] optimalLitLenCosts = new int[Deflate.MAIN_TABLE_SIZE];
+	private final int[] optimalDistCosts = new int[Deflate.DIST_TABLE_SIZE_32];
+	private final int[] optimalLitLenFreqs = new int[Deflate.MAIN_TABLE_SIZE];
+	private final int[] optimalDistFreqs = new int[Deflate.DIST_TABLE_SIZE_32];
+	private final HuffmanEncoder optimalCostEncoder = new HuffmanEncoder(Deflate.HUFFMAN_BITS,
+			Deflate.MAIN_TABLE_SIZE, false);
+
+	/**
+	 * Constructs a new {@linkplain DeflateEncoder} instance.
+	 *
+	 * @param properties the encoder properties to use.
+	 */
+	public DeflateEncoder(DeflateEncoderProperties properties) {
+		super(DeflateFactory.COMPRESSION_NAME);
+		this.properties = properties;
+		this.format = this.properties.getFormat();
+		if (DeflateFormat.NSIS.equals(this.format)) {
+			throw new IllegalArgumentException("Unsupported deflate encoder format: " + this.format);
+		}
+		this.level = this.properties.getLevelProperty();
+		if (this.level < 0 || MAX_LEVEL < this.level) {
+			throw new IllegalArgumentException("Invalid deflate level: " + this.level);
+		}
+
+		int[] levelConfig = LEVEL_CONFIGS[this.level];
+
+		this.goodLength = levelConfig[0];
+		this.lazyLength = levelConfig[1];
+		this.niceLength = levelConfig[2];
+		this.maxChainLength = levelConfig[3];
+		this.hashHead = new int[this.level > 0 ? 1 << HASH_BITS : 0];
+		this.hashPrev = new int[this.level > 0 ? WINDOW_SIZE : 0];
+
+		int optimalSegmentSize = (this.level == MAX_LEVEL ? OPTIMAL_SEGMENT_SIZE : 0);
+
+		this.optimalMatchLengths = new int[optimalSegmentSize * OPTIMAL_MATCHES_PER_POSITION];
+		this.optimalMatchDistances = new int[optimalSegmentSize * OPTIMAL_MATCHES_PER_POSITION];
+		this.optimalMatchCounts = new int[optimalSegmentSize];
+		this.optimalCosts = new int[optimalSegmentSize + 1];
+		this.optimalSteps = new int[optimalSegmentSize + 1];
+		reset0();
+	}
+
+	private void reset0() {
+		this.bitEncoder.reset();
+		resetStream();
+	}
+
+	private void resetStream() {
+		Arrays.fill(this.hashHead, -1);
+		Arrays.fill(this.hashPrev, -1);
+		this.blockEncoder.reset();
+		this.windowEnd = 0;
+		this.strStart = 0;
+		this.blockStart = 0;
+		this.blockLength = 0;
+		this.matchLength = Deflate.MATCH_MIN_LEN - 1;
+		this.matchDistance = 0;
+		this.matchAvailable = false;
+		this.adler = Adler32.INITIAL;
+		this.streamStarted = false;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	public int encode(ByteBuffer src, WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int consumed = 0;
+		int encoded = 0;
+
+		try {
+			startStream();
+			while (src.hasRemaining()) {
+				if (this.windowEnd == this.window.length) {
+					slideWindow();
+				}
+
+				int chunkLength = Math.min(src.remaining(), this.window.length - this.windowEnd);
+
+				src.get(this.window, this.windowEnd, chunkLength);
+				if (DeflateFormat.ZLIB.equals(this.format)) {
+					this.adler = Adler32.update(this.adler, this.window, this.windowEnd, chunkLength);
+				}
+				this.windowEnd += chunkLength;
+				consumed += chunkLength;
+				deflate(false);
+			}
+			encoded = this.bitEncoder.flush(dst);
+		} finally {
+			endProcessing(beginTime, consumed, encoded);
+		}
+		return encoded;
+	}
+
+	@Override
+	public int finishEncoding(WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int encoded = 0;
+
+		try {
+			startStream();
+			finishBlocks(true);
+			encodeStreamTrailer(this.bitEncoder, this.format, this.adler);
+			encoded = this.bitEncoder.flush(dst);
+			// Any further input starts a new stream
+			resetStream();
+		} finally {
+			endProcessing(beginTime, 0, encoded);
+		}
+		return encoded;
+	}
+
+	private void startStream() {
+		if (!this.streamStarted) {
+			encodeStreamHeader(this.bitEncoder, this.format, this.level);
+			this.streamStarted = true;
+		}
+	}
+
+	/**
+	 * Encodes a single chunk of a stream being encoded in parallel.
+	 * <p>
+	 * The chunk is encoded independently of any previous chunk, except that its matches may refer to the given
+	 * dictionary. Unless this is the last chunk of the stream, the encoded chunk is terminated by a sync flush (an
+	 * empty stored block) to make it byte aligned and joinable with the next chunk. The encoded chunk is kept until it
+	 * is retrieved via {@linkplain #flushChunk(WritableByteChannel)}.
+	 * </p>
+	 *
+	 * @param buffer the buffer containing the dictionary followed by the chunk data.
+	 * @param dictionaryLength the dictionary length (at most 32 KiB).
+	 * @param length the chunk data length.
+	 * @param last whether this is the last chunk of the stream.
+	 * @return the Adler-32 checksum of the chunk data (only calculated for {@linkplain DeflateFormat#ZLIB} streams).
+	 */
+	int encodeChunk(byte[] buffer, int dictionaryLength, int length, boolean last) {
+		this.bitEncoder.reset();
+		resetStream();
+		System.arraycopy(buffer, 0, this.window, 0, dictionaryLength);
+		this.windowEnd = dictionaryLength;
+		this.strStart = dictionaryLength;
+		this.blockStart = dictionaryLength;
+
+		int dataOffset = dictionaryLength;
+		int dataEnd = dictionaryLength + length;
+		boolean dictionaryInserted = false;
+
+		while (dataOffset < dataEnd) {
+			if (this.windowEnd == this.window.length) {
+				slideWindow();
+			}
+
+			int dataLength = Math.min(dataEnd - dataOffset, this.window.length - this.windowEnd);
+
+			System.arraycopy(buffer, dataOffset, this.window, this.windowEnd, dataLength);
+			this.windowEnd += dataLength;
+			dataOffset += dataLength;
+			if (!dictionaryInserted) {
+				insertDictionary(dictionaryLength);
+				dictionaryInserted = true;
+			}
+			deflate(false);
+		}
+		finishBlocks(last);
+		if (!last) {
+			DeflateBlockEncoder.encodeStoredBlock(this.bitEncoder, this.window, 0, 0, false);
+		}
+		this.bitEncoder.alignToByte();
+		return (DeflateFormat.ZLIB.equals(this.format)
+				? Adler32.update(Adler32.INITIAL, buffer, dictionaryLength, length)
+				: Adler32.INITIAL);
+	}
+
+	/**
+	 * Writes the chunk encoded by the last call to {@linkplain #encodeChunk(byte[], int, int, boolean)}.
+	 *
+	 * @param dst the {@linkplain WritableByteChannel} to write to.
+	 * @return the number of written bytes.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	int flushChunk(WritableByteChannel dst) throws IOException {
+		return this.bitEncoder.flush(dst);
+	}
+
+	private void insertDictionary(int dictionaryLength) {
+		if (this.level > 0) {
+			for (int position = 0; position < dictionaryLength
+					&& position + Deflate.MATCH_MIN_LEN <= this.windowEnd; position++) {
+				insertString(position);
+			}
+		}
+	}
+
+	/*
+	 * Encodes all pending input and terminates the current block.
+	 */
+	private void finishBlocks(boolean last) {
+		deflate(true);
+		if (this.level > 0) {
+			if (last || !this.blockEncoder.isEmpty()) {
+				flushBlock(last);
+			}
+		} else if (last || this.strStart > this.blockStart) {
+			DeflateBlockEncoder.encodeStoredBlock(this.bitEncoder, this.window, this.blockStart,
+					this.strStart - this.blockStart, last);
+			this.blockStart = this.strStart;
+		}
+	}
+
+	static void encodeStreamHeader(LsbBitEncoder bits, DeflateFormat format, int level) {
+		if (DeflateFormat.ZLIB.equals(format)) {
+			int flevel;
+
+			if (level < 2) {
+				flevel = 0;
+			} else if (level < 6) {
+				flevel = 1;
+			} else if (level == 6) {
+				flevel = 2;
+			} else {
+				flevel = 3;
+			}
+
+			int flg = flevel << 6;
+
+			flg |= (31 - (((ZLIB_CMF << 8) | flg) % 31)) % 31;
+			bits.encodeBits(ZLIB_CMF, 8);
+			bits.encodeBits(flg, 8);
+		}
+	}
+
+	static void encodeStreamTrailer(LsbBitEncoder bits, DeflateFormat format, int adler) {
+		bits.alignToByte();
+		if (DeflateFormat.ZLIB.equals(format)) {
+			bits.encodeBits(Integer.reverseBytes(adler), 32);
+		}
+	}
+
+	/*
+	 * Drops the oldest input from the window while keeping at least the last 32 KiB before the current position. The
+	 * window is always shifted by a multiple of the window size to keep the hash chain indices valid.
+	 */
+	private void slideWindow() {
+		if (this.level == 0) {
+			// The pending input cannot be stored once it has been dropped
+			DeflateBlockEncoder.encodeStoredBlock(this.bitEncoder, this.window, this.blockStart,
+					this.strStart - this.blockStart, false);
+			this.blockStart = this.strStart;
+		}
+
+		int shift = (this.strStart - WINDOW_SIZE) & ~WINDOW_MASK;
+
+		System.arraycopy(this.window, shift, this.window, 0, this.windowEnd - shift);
+		this.windowEnd -= shift;
+		this.strStart -= shift;
+		this.blockStart -= shift;
+		slideHashTable(this.hashHead, shift);
+		slideHashTable(this.hashPrev, shift);
+	}
+
+	private static void slideHashTable(int[] table, int shift) {
+		for (int index = 0; index < table.length; index++) {
+			int position = table[index] - shift;
+
+			table[index] = (position >= 0 ? position : -1);
+		}
+	}
+
+	private void deflate(boolean flush) {
+		if (this.level == 0) {
+			deflateStored();
+		} else if (this.level < 4) {
+			deflateFast(flush);
+		} else if (this.level < MAX_LEVEL) {
+			deflateSlow(flush);
+		} else {
+			deflateOptimal(flush);
+		}
+	}
+
+	private void deflateStored() {
+		this.strStart = this.windowEnd;
+		while (this.strStart - this.blockStart >= Deflate.STORED_BLOCK_SIZE_MAX) {
+			DeflateBlockEncoder.encodeStoredBlock(this.bitEncoder, this.window, this.blockStart,
+					Deflate.STORED_BLOCK_SIZE_MAX, false);
+			this.blockStart += Deflate.STORED_BLOCK_SIZE_MAX;
+		}
+	}
+
+	private void deflateFast(boolean flush) {
+		while (true) {
+			int lookahead = this.windowEnd - this.strStart;
+
+			if (lookahead == 0 || (lookahead < MIN_LOOKAHEAD && !flush)) {
+				break;
+			}
+
+			int hashHeadPosition = (lookahead >= Deflate.MATCH_MIN_LEN ? insertString(this.strStart) : -1);
+			int currentMatchLength = Deflate.MATCH_MIN_LEN - 1;
+
+			if (hashHeadPosition >= 0) {
+				currentMatchLength = longestMatch(hashHeadPosition, Deflate.MATCH_MIN_LEN - 1);
+			}
+			if (currentMatchLength >= Deflate.MATCH_MIN_LEN) {
+				addMatch(currentMatchLength, this.matchDistance);
+				if (currentMatchLength <= this.lazyLength) {
+					int maxInsert = this.windowEnd - Deflate.MATCH_MIN_LEN;
+
+					for (int insertIndex = 1; insertIndex < currentMatchLength; insertIndex++) {
+						if (this.strStart + insertIndex <= maxInsert) {
+							insertString(this.strStart + insertIndex);
+						}
+					}
+				}
+				this.strStart += currentMatchLength;
+			} else {
+				addLiteral(this.window[this.strStart]);
+				this.strStart++;
+			}
+		}
+	}
+
+	private void deflateSlow(boolean flush) {
+		while (true) {
+			int lookahead = this.windowEnd - this.strStart;
+
+			if (lookahead == 0 || (lookahead < MIN_LOOKAHEAD && !flush)) {
+				break;
+			}
+
+			int hashHeadPosition = (lookahead >= Deflate.MATCH_MIN_LEN ? insertString(this.strStart) : -1);
+			int prevLength = this.matchLength;
+			int prevDistance = this.matchDistance;
+
+			this.matchLength = Deflate.MATCH_MIN_LEN - 1;
+			if (hashHeadPosition >= 0 && prevLength < this.lazyLength) {
+				this.matchLength = longestMatch(hashHeadPosition, prevLength);
+				if (this.matchLength <= prevLength) {
+					this.matchLength = Deflate.MATCH_MIN_LEN - 1;
+				} else if (this.matchLength == Deflate.MATCH_MIN_LEN && this.matchDistance > TOO_FAR) {
+					this.matchLength = Deflate.MATCH_MIN_LEN - 1;
+				}
+			}
+			if (prevLength >= Deflate.MATCH_MIN_LEN && this.matchLength <= prevLength) {
+				// The previous match is better than the current one
+				int maxInsert = this.windowEnd - Deflate.MATCH_MIN_LEN;
+
+				addMatch(prevLength, prevDistance);
+				for (int insertIndex = 1; insertIndex < prevLength - 1; insertIndex++) {
+					if (this.strStart + insertIndex <= maxInsert) {
+						insertString(this.strStart + insertIndex);
+					}
+				}
+				this.strStart += prevLength - 1;
+				this.matchAvailable = false;
+				this.matchLength = Deflate.MATCH_MIN_LEN - 1;
+			} else if (this.matchAvailable) {
+				addLiteral(this.window[this.strStart - 1]);
+				this.strStart++;
+			} else {
+				this.matchAvailable = true;
+				this.strStart++;
+			}
+		}
+		if (flush && this.matchAvailable) {
+			addLiteral(this.window[this.strStart - 1]);
+			this.matchAvailable = false;
+		}
+	}
+
+	private void deflateOptimal(boolean flush) {
+		while (true) {
+			int lookahead = this.windowEnd - this.strStart;
+
+			if (lookahead == 0 || (lookahead < OPTIMAL_SEGMENT_SIZE + MIN_LOOKAHEAD && !flush)) {
+				break;
+			}
+
+			int segmentLength = Math.min(lookahead, OPTIMAL_SEGMENT_SIZE);
+
+			findOptimalMatches(segmentLength);
+			// First pass: Estimate the costs using the fixed Huffman code
+			setFixedOptimalCosts();
+			parseOptimal(segmentLength);
+			// Second pass: Estimate the costs using the symbol statistics of the first pass
+			setStatisticalOptimalCosts(segmentLength);
+			parseOptimal(segmentLength);
+			emitOptimal(segmentLength);
+			this.strStart += segmentLength;
+		}
+	}
+
+	private void findOptimalMatches(int segmentLength) {
+		int segmentEnd = this.strStart + segmentLength;
+		int skipEnd = this.strStart;
+		int coverEnd = this.strStart;
+
+		for (int position = this.strStart; position < segmentEnd; position++) {
+			int matchIndex = (position - this.strStart) * OPTIMAL_MATCHES_PER_POSITION;
+			int matchCount = 0;
+			int hashHeadPosition = (position + Deflate.MATCH_MIN_LEN <= this.windowEnd ? insertString(position) : -1);
+
+			if (position >= skipEnd && hashHeadPosition >= 0) {
+				int maxLength = Math.min(Deflate.MATCH_MAX_LEN_32, segmentEnd - position);
+				int bestLength = Deflate.MATCH_MIN_LEN - 1;
+				int limit = Math.max(position - WINDOW_SIZE, -1);
+				// Search less if the position is already covered by a good match
+				int chainLength = (position < coverEnd ? this.maxChainLength >> OPTIMAL_COVERED_CHAIN_SHIFT
+						: this.maxChainLength);
+				int candidate = hashHeadPosition;
+
+				while (bestLength < maxLength && candidate > limit && chainLength-- > 0) {
+					if (this.window[candidate + bestLength] == this.window[position + bestLength]) {
+						int length = matchLength(candidate, position, maxLength);
+
+						if (length > bestLength) {
+							if (matchCount == OPTIMAL_MATCHES_PER_POSITION) {
+								matchCount--;
+							}
+							this.optimalMatchLengths[matchIndex + matchCount] = length;
+							this.optimalMatchDistances[matchIndex + matchCount] = position - candidate;
+							matchCount++;
+							bestLength = length;
+						}
+					}
+					candidate = this.hashPrev[candidate & WINDOW_MASK];
+				}
+				if (bestLength >= this.goodLength) {
+					coverEnd = Math.max(coverEnd, position + bestLength);
+				}
+				if (bestLength > OPTIMAL_LONG_MATCH_LEN) {
+					// Take the long match as is
+					this.optimalMatchLengths[matchIndex] = bestLength;
+					this.optimalMatchDistances[matchIndex] = this.optimalMatchDistances[matchIndex + matchCount - 1];
+					matchCount = -1;
+					skipEnd = position + bestLength;
+				}
+			}
+			this.optimalMatchCounts[position - this.strStart] = matchCount;
+		}
+	}
+
+	private void setFixedOptimalCosts() {
+		for (int symbol = 0; symbol < Deflate.MAIN_TABLE_SIZE; symbol++) {
+			int cost;
+
+			if (symbol < 144) {
+				cost = 8;
+			} else if (symbol < 256) {
+				cost = 9;
+			} else if (symbol < 280) {
+				cost = 7;
+			} else {
+				cost = 8;
+			}
+			this.optimalLitLenCosts[symbol] = cost;
+		}
+		Arrays.fill(this.optimalDistCosts, 5);
+	}
+
+	private void setStatisticalOptimalCosts(int segmentLength) {
+		Arrays.fill(this.optimalLitLenFreqs, 1);
+		Arrays.fill(this.optimalDistFreqs, 1);
+
+		int position = segmentLength;
+
+		while (position > 0) {
+			int step = this.optimalSteps[position];
+
+			if (step == 0) {
+				this.optimalLitLenFreqs[this.window[this.strStart + position - 1] & 0xff]++;
+				position--;
+			} else {
+				int length = step & 0x1ff;
+
+				this.optimalLitLenFreqs[Deflate.SYMBOL_MATCH + Deflate.LEN_SLOT_32[length - Deflate.MATCH_MIN_LEN]]++;
+				this.optimalDistFreqs[Deflate.DIST_SLOT[(step >>> 9) - 1]]++;
+				position -= length;
+			}
+		}
+		this.optimalCostEncoder.build(this.optimalLitLenFreqs, Deflate.MAIN_TABLE_SIZE);
+
+		byte[] lengths = this.optimalCostEncoder.lengths();
+
+		for (int symbol = 0; symbol < Deflate.MAIN_TABLE_SIZE; symbol++) {
+			this.optimalLitLenCosts[symbol] = lengths[symbol];
+		}
+		this.optimalCostEncoder.build(this.optimalDistFreqs, Deflate.DIST_TABLE_SIZE_32);
+		for (int slot = 0; slot < Deflate.DIST_TABLE_SIZE_32; slot++) {
+			this.optimalDistCosts[slot] = lengths[slot];
+		}
+	}
+
+	/*
+	 * Calculates the cheapest path through the segment. Each position's step records the symbol leading to it: 0 for
+	 * a literal and (distance << 9) | length for a match.
+	 */
+	private void parseOptimal(int segmentLength) {
+		int[] costs = this.optimalCosts;
+		int[] steps = this.optimalSteps;
+
+		Arrays.fill(costs, 1, segmentLength + 1, Integer.MAX_VALUE);
+		costs[0] = 0;
+		for (int position = 0; position < segmentLength; position++) {
+			int cost = costs[position];
+			int literalCost = cost + this.optimalLitLenCosts[this.window[this.strStart + position] & 0xff];
+
+			if (literalCost < costs[position + 1]) {
+				costs[position + 1] = literalCost;
+				steps[position + 1] = 0;
+			}
+
+			int matchCount = this.optimalMatchCounts[position];
+			int matchIndex = position * OPTIMAL_MATCHES_PER_POSITION;
+
+			if (matchCount < 0) {
+				// Long match: Only consider the full length
+				int length = this.optimalMatchLengths[matchIndex];
+				int distance = this.optimalMatchDistances[matchIndex];
+				int matchCost = cost + optimalMatchCost(length, distance);
+
+				if (matchCost < costs[position + length]) {
+					costs[position + length] = matchCost;
+					steps[position + length] = (distance << 9) | length;
+				}
+			} else {
+				int length = Deflate.MATCH_MIN_LEN;
+
+				for (int matchNumber = 0; matchNumber < matchCount; matchNumber++) {
+					int maxLength = this.optimalMatchLengths[matchIndex + matchNumber];
+					int distance = this.optimalMatchDistances[matchIndex + matchNumber];
+					int distSlot = Deflate.DIST_SLOT[distance - 1];
+					int distCost = cost + this.optimalDistCosts[distSlot] + Deflate.DIST_DIRECT_BITS[distSlot];
+
+					for (; length <= maxLength; length++) {
+						int lenSlot = Deflate.LEN_SLOT_32[length - Deflate.MATCH_MIN_LEN];
+						int matchCost = distCost + this.optimalLitLenCosts[Deflate.SYMBOL_MATCH + lenSlot]
+								+ Deflate.LEN_DIRECT_BITS_32[lenSlot];
+
+						if (matchCost < costs[position + length]) {
+							costs[position + length] = matchCost;
+							steps[position + length] = (distance << 9) | length;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private int optimalMatchCost(int length, int distance) {
+		int lenSlot = Deflate.LEN_SLOT_32[length - Deflate.MATCH_MIN_LEN];
+		int distSlot = Deflate.DIST_SLOT[distance - 1];
+
+		return this.optimalLitLenCosts[Deflate.SYMBOL_MATCH + lenSlot] + Deflate.LEN_DIRECT_BITS_32[lenSlot]
+				+ this.optimalDistCosts[distSlot] + Deflate.DIST_DIRECT_BITS[distSlot];
+	}
+
+	private void emitOptimal(int segmentLength) {
+		// Reverse the path in place (the steps are only read backwards from the segment end)
+		int[] steps = this.optimalSteps;
+		int[] path = this.optimalCosts;
+		int pathLength = 0;
+		int position = segmentLength;
+
+		while (position > 0) {
+			int step = steps[position];
+
+			path[pathLength++] = step;
+			position -= (step == 0 ? 1 : step & 0x1ff);
+		}
+
+		int emitPosition = this.strStart;
+
+		while (pathLength > 0) {
+			int step = path[--pathLength];
+
+			if (step == 0) {
+				addLiteral(this.window[emitPosition]);
+				emitPosition++;
+			} else {
+				int length = step & 0x1ff;
+
+				addMatch(length, step >>> 9);
+				emitPosition += length;
+			}
+		}
+	}
+
+	/*
+	 * Inserts the string starting at the given position into the hash chains and returns the previous head of the
+	 * string's hash chain.
+	 */
+	private int insertString(int position) {
+		byte[] buffer = this.window;
+		int hash = (((buffer[position] & 0xff) << 16) | ((buffer[position + 1] & 0xff) << 8)
+				| (buffer[position + 2] & 0xff)) * HASH_MULTIPLIER >>> (32 - HASH_BITS);
+		int headPosition = this.hashHead[hash];
+
+		this.hashPrev[position & WINDOW_MASK] = headPosition;
+		this.hashHead[hash] = position;
+		return headPosition;
+	}
+
+	/*
+	 * Searches the hash chain starting at the given position for a match longer than the given length. Returns the
+	 * length of the best match found (and updates the match distance accordingly) or the given length if no longer
+	 * match has been found.
+	 */
+	private int longestMatch(int chainStart, int prevLength) {
+		int lookahead = this.windowEnd - this.strStart;
+		int maxLength = Math.min(Deflate.MATCH_MAX_LEN_32, lookahead);
+
+		if (prevLength >= maxLength) {
+			return prevLength;
+		}
+
+		byte[] buffer = this.window;
+		int scan = this.strStart;
+		int chainLength = (prevLength >= this.goodLength ? this.maxChainLength >> 2 : this.maxChainLength);
+		int nice = Math.min(this.niceLength, lookahead);
+		int limit = Math.max(scan - WINDOW_SIZE, -1);
+		int bestLength = prevLength;
+		byte scanEnd1 = buffer[scan + bestLength - 1];
+		byte scanEnd = buffer[scan + bestLength];
+		int candidate = chainStart;
+
+		while (candidate > limit && chainLength-- > 0) {
+			if (buffer[candidate + bestLength] == scanEnd && buffer[candidate + bestLength - 1] == scanEnd1
+					&& buffer[candidate] == buffer[scan] && buffer[candidate + 1] == buffer[scan + 1]) {
+				int length = matchLength(candidate, scan, maxLength);
+
+				if (length > bestLength) {
+					this.matchDistance = scan - candidate;
+					bestLength = length;
+					if (length >= nice || length >= maxLength) {
+						break;
+					}
+					scanEnd1 = buffer[scan + bestLength - 1];
+					scanEnd = buffer[scan + bestLength];
+				}
+			}
+			candidate = this.hashPrev[candidate & WINDOW_MASK];
+		}
+		return bestLength;
+	}
+
+	private int matchLength(int candidate, int scan, int maxLength) {
+		byte[] buffer = this.window;
+		int length = 0;
+
+		// Compare 8 bytes at a time (the scanned range is always within the window)
+		while (length + Long.BYTES <= maxLength) {
+			long difference = (long) LONG_LE.get(buffer, candidate + length)
+					^ (long) LONG_LE.get(buffer, scan + length);
+
+			if (difference != 0L) {
+				return length + (Long.numberOfTrailingZeros(difference) >>> 3);
+			}
+			length += Long.BYTES;
+		}
+		while (length < maxLength && buffer[candidate + length] == buffer[scan + length]) {
+			length++;
+		}
+		return length;
+	}
+
+	private void addLiteral(byte literal) {
+		this.blockEncoder.addLiteral(literal & 0xff);
+		this.blockLength++;
+		if (this.blockEncoder.isFull()) {
+			flushBlock(false);
+		}
+	}
+
+	private void addMatch(int length, int distance) {
+		this.blockEncoder.addMatch(length, distance);
+		this.blockLength += length;
+		if (this.blockEncoder.isFull()) {
+			flushBlock(false);
+		}
+	}
+
+	private void flushBlock(boolean last) {
+		this.blockEncoder.encodeBlock(this.bitEncoder, this.window, this.blockStart >= 0 ? this.blockStart : -1,
+				this.blockLength, last);
+		this.blockStart += this.blockLength;
+		this.blockLength = 0;
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.deflate;
+
+import de.carne.nio.compression.CompressionProperties;
+import de.carne.nio.compression.CompressionProperty;
+
+/**
+ * {@linkplain DeflateEncoder} properties.
+ */
+public class DeflateEncoderProperties extends CompressionProperties {
+
+	private static final CompressionProperty FORMAT = new CompressionProperty("FORMAT", DeflateFormat.class);
+	private static final CompressionProperty LEVEL = new CompressionProperty("LEVEL", Integer.class);
+	private static final CompressionProperty THREADS = new CompressionProperty("THREADS", Integer.class);
+	private static final CompressionProperty CHUNK_SIZE = new CompressionProperty("CHUNK_SIZE", Integer.class);
+
+	/**
+	 * Constructs a new {@linkplain DeflateEncoderProperties} instance with default values.
+	 */
+	public DeflateEncoderProperties() {
+		registerProperty(FORMAT, DeflateFormat.DEFAULT);
+		registerProperty(LEVEL, Integer.valueOf(DeflateEncoder.DEFAULT_LEVEL));
+		registerProperty(THREADS, Integer.valueOf(1));
+		registerProperty(CHUNK_SIZE, Integer.valueOf(DeflateParallelEncoder.DEFAULT_CHUNK_SIZE));
+	}
+
+	/**
+	 * Sets the stream format to use for encoding.
+	 * <p>
+	 * {@linkplain DeflateFormat#DEFAULT} creates a raw Deflate stream, {@linkplain DeflateFormat#ZLIB} wraps the
+	 * Deflate stream into a ZLIB header and Adler-32 trailer. {@linkplain DeflateFormat#NSIS} is not supported for
+	 * encoding.
+	 * </p>
+	 *
+	 * @param format the stream format to use for encoding.
+	 */
+	public void setFormat(DeflateFormat format) {
+		setEnumProperty(FORMAT, format);
+	}
+
+	/**
+	 * Gets the stream format to use for encoding.
+	 *
+	 * @return the stream format for encoding.
+	 */
+	public DeflateFormat getFormat() {
+		return getEnumProperty(FORMAT, DeflateFormat.class);
+	}
+
+	/**
+	 * Sets the compression level.
+	 * <p>
+	 * Level {@code 0} only emits stored blocks. Levels {@code 1} to {@code 3} use greedy matching, levels {@code 4} to
+	 * {@code 8} use lazy matching with increasingly long hash chain searches and level {@code 9} uses optimal parsing
+	 * based on the block's symbol costs.
+	 * </p>
+	 *
+	 * @param level the compression level to use (in the range {@code [0, 9]}).
+	 */
+	public void setLevelProperty(int level) {
+		setIntProperty(LEVEL, level);
+	}
+
+	/**
+	 * Gets the compression level.
+	 *
+	 * @return the compression level.
+	 */
+	public int getLevelProperty() {
+		return getIntProperty(LEVEL);
+	}
+
+	/**
+	 * Sets the threads property.
+	 * <p>
+	 * If set to a value greater than {@code 1}, the input is split into chunks which are encoded in parallel using a
+	 * {@linkplain DeflateParallelEncoder}. The value defines the maximum number of chunks being encoded concurrently.
+	 * </p>
+	 *
+	 * @param threads the number of chunks to encode concurrently.
+	 */
+	public void setThreadsProperty(int threads) {
+		setIntProperty(THREADS, threads);
+	}
+
+	/**
+	 * Gets the threads property.
+	 *
+	 * @return the threads property.
+	 */
+	public int getThreadsProperty() {
+		return getIntProperty(THREADS);
+	}
+
+	/**
+	 * Sets the chunk size property.
+	 * <p>
+	 * The chunk size defines the number of input bytes encoded as one unit by the {@linkplain DeflateParallelEncoder}
+	 * (must be at least {@value DeflateParallelEncoder#MIN_CHUNK_SIZE}).
+	 * </p>
+	 *
+	 * @param chunkSize the chunk size to use.
+	 */
+	public void setChunkSizeProperty(int chunkSize) {
+		setIntProperty(CHUNK_SIZE, chunkSize);
+	}
+
+	/**
+	 * Gets the chunk size property.
+	 *
+	 * @return the chunk size property.
+	 */
+	public int getChunkSizeProperty() {
+		return getIntProperty(CHUNK_SIZE);
+	}
+
+}
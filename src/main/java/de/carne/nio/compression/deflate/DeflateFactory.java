@@ -21,11 +21,13 @@ import de.carne.nio.compression.CompressionInitializationException;
 import de.carne.nio.compression.CompressionProperties;
 import de.carne.nio.compression.spi.Decoder;
 import de.carne.nio.compression.spi.DecoderFactory;
+import de.carne.nio.compression.spi.Encoder;
+import de.carne.nio.compression.spi.EncoderFactory;
 
 /**
  * Deflate compression factory
  */
-public class DeflateFactory implements DecoderFactory {
+public class DeflateFactory implements DecoderFactory, EncoderFactory {
 
 	/**
 	 * The compression name.
@@ -47,4 +49,17 @@ public class DeflateFactory implements DecoderFactory {
 		return new DeflateDecoder(Check.isInstanceOf(properties, DeflateDecoderProperties.class));
 	}
 
+	@Override
+	public CompressionProperties defaultEncoderProperties() {
+		return new DeflateEncoderProperties();
+	}
+
+	@Override
+	public Encoder newEncoder(CompressionProperties properties) throws CompressionInitializationException {
+		DeflateEncoderProperties deflateProperties = Check.isInstanceOf(properties, DeflateEncoderProperties.class);
+
+		return (deflateProperties.getThreadsProperty() > 1 ? new DeflateParallelEncoder(deflateProperties)
+				: new DeflateEncoder(deflateProperties));
+	}
+
 }
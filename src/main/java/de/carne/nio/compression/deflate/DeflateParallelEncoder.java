@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.deflate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.common.LsbBitEncoder;
+import de.carne.nio.compression.spi.Encoder;
+
+/**
+ * Encoder for Deflate compressed data encoding multiple chunks in parallel.
+ * <p>
+ * The input is split into chunks of the configured chunk size. Every chunk is encoded as an independent task on the
+ * configured {@linkplain Executor} using the last 32 KiB of the preceding input as dictionary. The encoded chunks are
+ * terminated by a sync flush and joined in their original order. The Adler-32 checksums of the chunks are combined
+ * into the stream checksum.
+ * <p>
+ * The number of chunks encoded concurrently (and hence the memory in use) is bounded by
+ * {@linkplain DeflateEncoderProperties#getThreadsProperty()}.
+ */
+public class DeflateParallelEncoder extends Encoder {
+
+	/**
+	 * The default chunk size.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+
+	/**
+	 * The minimum chunk size.
+	 */
+	public static final int MIN_CHUNK_SIZE = 1024;
+
+	private static final int DICTIONARY_SIZE = Deflate.HISTORY_SIZE_32;
+
+	private final DeflateEncoderProperties properties;
+	private final Executor executor;
+	private final DeflateFormat format;
+	private final int threads;
+	private final int chunkSize;
+	private final Queue<Chunk> chunks = new ArrayDeque<>();
+	private final Queue<DeflateEncoder> chunkEncoders = new ArrayDeque<>();
+	private final ArrayDeque<PendingChunk> pendingChunks = new ArrayDeque<>();
+	private final byte[] dictionary = new byte[DICTIONARY_SIZE];
+	private final LsbBitEncoder bitEncoder = new LsbBitEncoder();
+	private @Nullable Chunk chunk = null;
+	private int dictionaryLength;
+	private int adler;
+	private boolean streamStarted;
+
+	private static final class Chunk {
+
+		final byte[] buffer;
+		int dictionaryLength = 0;
+		int length = 0;
+
+		Chunk(int chunkSize) {
+			this.buffer = new byte[DICTIONARY_SIZE + chunkSize];
+		}
+
+		int dataEnd() {
+			return this.dictionaryLength + this.length;
+		}
+
+	}
+
+	private static final class PendingChunk {
+
+		final Chunk chunk;
+		final DeflateEncoder chunkEncoder;
+		final CompletableFuture<Integer> future;
+
+		PendingChunk(Chunk chunk, DeflateEncoder chunkEncoder, CompletableFuture<Integer> future) {
+			this.chunk = chunk;
+			this.chunkEncoder = chunkEncoder;
+			this.future = future;
+		}
+
+	}
+
+	/**
+	 * Constructs a new {@linkplain DeflateParallelEncoder} instance using the common {@linkplain ForkJoinPool}.
+	 *
+	 * @param properties the encoder properties to use.
+	 */
+	public DeflateParallelEncoder(DeflateEncoderProperties properties) {
+		this(properties, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a new {@linkplain DeflateParallelEncoder} instance.
+	 *
+	 * @param properties the encoder properties to use.
+	 * @param executor the {@linkplain Executor} to use for chunk encoding.
+	 */
+	public DeflateParallelEncoder(DeflateEncoderProperties properties, Executor executor) {
+		super(DeflateFactory.COMPRESSION_NAME);
+		this.properties = properties;
+		this.executor = executor;
+		this.format = properties.getFormat();
+		this.threads = properties.getThreadsProperty();
+		if (this.threads < 1) {
+			throw new IllegalArgumentException("Invalid deflate threads: " + this.threads);
+		}
+		this.chunkSize = properties.getChunkSizeProperty();
+		if (this.chunkSize < MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("Invalid deflate chunk size: " + this.chunkSize);
+		}
+		// Validates the remaining properties
+		this.chunkEncoders.add(new DeflateEncoder(this.properties));
+		reset0();
+	}
+
+	private void reset0() {
+		for (PendingChunk pendingChunk : this.pendingChunks) {
+			pendingChunk.future.cancel(false);
+		}
+		this.pendingChunks.clear();
+		this.bitEncoder.reset();
+		this.chunk = null;
+		this.dictionaryLength = 0;
+		this.adler = Adler32.INITIAL;
+		this.streamStarted = false;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	public int encode(ByteBuffer src, WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int consumed = 0;
+		int encoded = 0;
+
+		try {
+			encoded += startStream(dst);
+			while (src.hasRemaining()) {
+				Chunk currentChunk = currentChunk();
+				int chunkLength = Math.min(src.remaining(), this.chunkSize - currentChunk.length);
+
+				src.get(currentChunk.buffer, currentChunk.dataEnd(), chunkLength);
+				currentChunk.length += chunkLength;
+				consumed += chunkLength;
+				if (currentChunk.length == this.chunkSize) {
+					encoded += submitChunk(currentChunk, false, dst);
+				}
+			}
+			encoded += collectChunks(dst, false);
+		} finally {
+			endProcessing(beginTime, consumed, encoded);
+		}
+		return encoded;
+	}
+
+	@Override
+	public int finishEncoding(WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int encoded = 0;
+
+		try {
+			encoded += startStream(dst);
+			encoded += submitChunk(currentChunk(), true, dst);
+			encoded += collectChunks(dst, true);
+			DeflateEncoder.encodeStreamTrailer(this.bitEncoder, this.format, this.adler);
+			encoded += this.bitEncoder.flush(dst);
+			// Any further input starts a new stream
+			this.dictionaryLength = 0;
+			this.adler = Adler32.INITIAL;
+			this.streamStarted = false;
+		} finally {
+			endProcessing(beginTime, 0, encoded);
+		}
+		return encoded;
+	}
+
+	private int startStream(WritableByteChannel dst) throws IOException {
+		int encoded = 0;
+
+		if (!this.streamStarted) {
+			DeflateEncoder.encodeStreamHeader(this.bitEncoder, this.format, this.properties.getLevelProperty());
+			this.bitEncoder.alignToByte();
+			encoded = this.bitEncoder.flush(dst);
+			this.streamStarted = true;
+		}
+		return encoded;
+	}
+
+	private Chunk currentChunk() {
+		Chunk currentChunk = this.chunk;
+
+		if (currentChunk == null) {
+			currentChunk = this.chunks.poll();
+			if (currentChunk == null) {
+				currentChunk = new Chunk(this.chunkSize);
+			}
+			System.arraycopy(this.dictionary, 0, currentChunk.buffer, 0, this.dictionaryLength);
+			currentChunk.dictionaryLength = this.dictionaryLength;
+			currentChunk.length = 0;
+			this.chunk = currentChunk;
+		}
+		return currentChunk;
+	}
+
+	private int submitChunk(Chunk submitChunk, boolean last, WritableByteChannel dst) throws IOException {
+		int encoded = 0;
+
+		// Bound the number of chunks in flight
+		while (this.pendingChunks.size() >= this.threads) {
+			encoded += collectChunk(dst);
+		}
+
+		// The end of this chunk becomes the dictionary of the next one
+		this.dictionaryLength = Math.min(submitChunk.dataEnd(), DICTIONARY_SIZE);
+		System.arraycopy(submitChunk.buffer, submitChunk.dataEnd() - this.dictionaryLength, this.dictionary, 0,
+				this.dictionaryLength);
+
+		DeflateEncoder chunkEncoder = this.chunkEncoders.poll();
+
+		if (chunkEncoder == null) {
+			chunkEncoder = new DeflateEncoder(this.properties);
+		}
+
+		DeflateEncoder submitChunkEncoder = chunkEncoder;
+
+		this.pendingChunks.add(new PendingChunk(submitChunk, submitChunkEncoder,
+				CompletableFuture.supplyAsync(() -> Integer.valueOf(submitChunkEncoder.encodeChunk(submitChunk.buffer,
+						submitChunk.dictionaryLength, submitChunk.length, last)), this.executor)));
+		this.chunk = null;
+		return encoded;
+	}
+
+	private int collectChunks(WritableByteChannel dst, boolean all) throws IOException {
+		int encoded = 0;
+		PendingChunk pendingChunk = this.pendingChunks.peek();
+
+		while (pendingChunk != null && (all || pendingChunk.future.isDone())) {
+			encoded += collectChunk(dst);
+			pendingChunk = this.pendingChunks.peek();
+		}
+		return encoded;
+	}
+
+	private int collectChunk(WritableByteChannel dst) throws IOException {
+		PendingChunk pendingChunk = this.pendingChunks.remove();
+		int chunkAdler;
+
+		try {
+			chunkAdler = pendingChunk.future.join().intValue();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw e;
+		}
+		this.adler = Adler32.combine(this.adler, chunkAdler, pendingChunk.chunk.length);
+
+		int encoded = pendingChunk.chunkEncoder.flushChunk(dst);
+
+		this.chunkEncoders.offer(pendingChunk.chunkEncoder);
+		this.chunks.offer(pendingChunk.chunk);
+		return encoded;
+	}
+
+}
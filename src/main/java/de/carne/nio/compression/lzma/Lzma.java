@@ -25,6 +25,9 @@ final class Lzma {
 		// Prevent instantiation
 	}
 
+	static final int WINDOW_SIZE_MIN = 1 << 12;
+	static final int WINDOW_SIZE_MAX = 1 << 30;
+
 	static final int NUM_REP_DISTANCES = 4;
 	static final int NUM_STATES = 12;
 
@@ -99,4 +102,36 @@ final class Lzma {
 	static final int NUM_LEN_SYMBOLS = NUM_LOW_LEN_SYMBOLS + NUM_MID_LEN_SYMBOLS + (1 << NUM_HIGH_LEN_BITS);
 	static final int MATCH_MAX_LEN = MATCH_MIN_LEN + NUM_LEN_SYMBOLS - 1;
 
+	static final int NUM_BIT_MODEL_TOTAL_BITS = 11;
+	static final int BIT_MODEL_TOTAL = (1 << NUM_BIT_MODEL_TOTAL_BITS);
+	static final int NUM_MOVE_BITS = 5;
+
+	// Layout of a length coder's probability models (relative to PROBS_LEN or PROBS_REP_LEN)
+	static final int LEN_CHOICE = 0;
+	static final int LEN_CHOICE2 = LEN_CHOICE + 1;
+	static final int LEN_LOW = LEN_CHOICE2 + 1;
+	static final int LEN_MID = LEN_LOW + (NUM_POS_STATES_MAX << NUM_LOW_LEN_BITS);
+	static final int LEN_HIGH = LEN_MID + (NUM_POS_STATES_MAX << NUM_MID_LEN_BITS);
+	static final int LEN_PROBS_SIZE = LEN_HIGH + (1 << NUM_HIGH_LEN_BITS);
+
+	// Layout of the complete probability model array
+	static final int PROBS_IS_MATCH = 0;
+	static final int PROBS_IS_REP = PROBS_IS_MATCH + (NUM_STATES << NUM_POS_STATES_BITS_MAX);
+	static final int PROBS_IS_REP_G0 = PROBS_IS_REP + NUM_STATES;
+	static final int PROBS_IS_REP_G1 = PROBS_IS_REP_G0 + NUM_STATES;
+	static final int PROBS_IS_REP_G2 = PROBS_IS_REP_G1 + NUM_STATES;
+	static final int PROBS_IS_REP0_LONG = PROBS_IS_REP_G2 + NUM_STATES;
+	static final int PROBS_POS_SLOT = PROBS_IS_REP0_LONG + (NUM_STATES << NUM_POS_STATES_BITS_MAX);
+	static final int PROBS_SPEC_POS = PROBS_POS_SLOT + (NUM_LEN2POS_STATES << NUM_POS_SLOT_BITS);
+	static final int PROBS_ALIGN = PROBS_SPEC_POS + NUM_FULL_DISTANCES - END_POS_MODEL_INDEX;
+	static final int PROBS_LEN = PROBS_ALIGN + ALIGN_TABLE_SIZE;
+	static final int PROBS_REP_LEN = PROBS_LEN + LEN_PROBS_SIZE;
+	static final int PROBS_LITERAL = PROBS_REP_LEN + LEN_PROBS_SIZE;
+
+	static final int LITERAL_PROBS_SIZE = 0x300;
+
+	static int probsSize(int lc, int lp) {
+		return PROBS_LITERAL + (LITERAL_PROBS_SIZE << (lc + lp));
+	}
+
 }
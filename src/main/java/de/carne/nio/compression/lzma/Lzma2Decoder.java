@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.InsufficientDataException;
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.spi.Decoder;
+
+/**
+ * Decoder for LZMA2 compressed data.
+ * <p>
+ * LZMA2 data consists of a sequence of chunks, each starting with a control byte signaling either an uncompressed chunk
+ * or a LZMA compressed chunk as well as whether the dictionary, the LZMA state or the lc/lp/pb parameters are reset.
+ * All chunks are decoded by a single {@linkplain LzmaDecoder} core which is reset accordingly.
+ * <p>
+ * As every chunk records its encoded size, the decoder never reads beyond the end of the encoded data.
+ */
+public class Lzma2Decoder extends Decoder {
+
+	private enum State {
+		CONTROL, LZMA, UNCOMPRESSED, EOFFLUSH, EOF
+	}
+
+	private static final int CONTROL_END = 0x00;
+	private static final int CONTROL_UNCOMPRESSED_RESET_DICTIONARY = 0x01;
+	private static final int CONTROL_UNCOMPRESSED = 0x02;
+	private static final int CONTROL_LZMA = 0x80;
+	private static final int CONTROL_LZMA_RESET_STATE = 0xa0;
+	private static final int CONTROL_LZMA_NEW_PROPERTIES = 0xc0;
+	private static final int CONTROL_LZMA_RESET_DICTIONARY = 0xe0;
+
+	private static final int DICTIONARY_SIZE_PROPERTY_MAX = 40;
+
+	// LZMA chunks are at most 64 KiB in size and are read as a whole
+	private static final int CHUNK_READ_AHEAD = 0x10000;
+
+	private final Lzma2DecoderProperties properties;
+	private final LzmaDecoder lzmaDecoder;
+	private final ChunkChannel chunkChannel = new ChunkChannel();
+	private final ByteBuffer headerBuffer = ByteBuffer.allocate(5);
+	private boolean needDictionaryReset;
+	private boolean needProperties;
+	private int uncompressedRemaining;
+	private State state = State.EOF;
+
+	/**
+	 * Constructs a new {@linkplain Lzma2Decoder} instance.
+	 *
+	 * @param properties the decoder properties to use.
+	 */
+	public Lzma2Decoder(Lzma2DecoderProperties properties) {
+		super(Lzma2Factory.COMPRESSION_NAME);
+		this.properties = properties;
+
+		final int dictionarySize = properties.getDictionarySizeProperty();
+
+		if (dictionarySize < 0 || dictionarySize > Lzma.WINDOW_SIZE_MAX) {
+			throw new IllegalArgumentException("Invalid LZMA2 dictionary size: " + dictionarySize);
+		}
+
+		LzmaDecoderProperties lzmaProperties = new LzmaDecoderProperties();
+
+		lzmaProperties.setDictionarySizeProperty(dictionarySize);
+		lzmaProperties.setReadAheadProperty(CHUNK_READ_AHEAD);
+		this.lzmaDecoder = new LzmaDecoder(lzmaProperties);
+		reset0();
+	}
+
+	private void reset0() {
+		this.lzmaDecoder.reset();
+		this.chunkChannel.reset();
+		this.needDictionaryReset = true;
+		this.needProperties = true;
+		this.uncompressedRemaining = 0;
+		this.state = State.CONTROL;
+	}
+
+	/**
+	 * Decodes the dictionary size from its encoded form as used by LZMA2 containers.
+	 *
+	 * @param dictionarySizeProperty the encoded dictionary size (must be in the range {@code [0, 40]}).
+	 * @return the decoded dictionary size (limited to {@linkplain Integer#MAX_VALUE}).
+	 */
+	static int decodeDictionarySize(byte dictionarySizeProperty) {
+		final int bits = dictionarySizeProperty & 0xff;
+
+		if (bits > DICTIONARY_SIZE_PROPERTY_MAX) {
+			throw new IllegalArgumentException("Invalid LZMA2 dictionary size property: " + bits);
+		}
+
+		final long dictionarySize = (bits < DICTIONARY_SIZE_PROPERTY_MAX ? (2L | (bits & 1)) << (bits / 2 + 11)
+				: 0xffffffffL);
+
+		return (int) Math.min(dictionarySize, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	public int decode(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		long beginTime = beginProcessing();
+		int decoded = -1;
+		long dstRemainingStart = dst.remaining();
+
+		try {
+			if (this.state != State.EOF) {
+				final long chunkTotalInStart = this.chunkChannel.totalIn();
+
+				decoded = 0;
+				this.chunkChannel.attach(src);
+				while (this.state != State.EOF && dst.hasRemaining()) {
+					switch (this.state) {
+					case CONTROL:
+						decoded += decodeControl(src);
+						break;
+					case LZMA:
+						if (this.lzmaDecoder.decodeLzma2Chunk(dst, this.chunkChannel)) {
+							this.lzmaDecoder.endLzma2Chunk();
+							if (this.chunkChannel.remaining() != 0) {
+								throw new InvalidDataException(this.chunkChannel.remaining());
+							}
+							this.state = State.CONTROL;
+						}
+						break;
+					case UNCOMPRESSED:
+						decoded += decodeUncompressed(dst, src);
+						break;
+					case EOFFLUSH:
+						this.lzmaDecoder.flushLzma2(dst);
+						if (dst.hasRemaining()) {
+							this.state = State.EOF;
+						}
+						break;
+					case EOF:
+						break;
+					}
+				}
+				this.chunkChannel.detach();
+				decoded += (int) (this.chunkChannel.totalIn() - chunkTotalInStart);
+			}
+		} finally {
+			endProcessing(beginTime, Math.max(decoded, 0), dstRemainingStart - dst.remaining());
+		}
+		return decoded;
+	}
+
+	private int decodeControl(ReadableByteChannel src) throws IOException {
+		final int control = readHeader(src, 1).get() & 0xff;
+		int read = 1;
+
+		if (control == CONTROL_END) {
+			this.state = State.EOFFLUSH;
+			return read;
+		}
+		if (control >= CONTROL_LZMA_RESET_DICTIONARY || control == CONTROL_UNCOMPRESSED_RESET_DICTIONARY) {
+			this.lzmaDecoder.resetLzma2Dictionary();
+			this.needDictionaryReset = false;
+			this.needProperties = true;
+		} else if (this.needDictionaryReset) {
+			throw new InvalidDataException(control);
+		}
+		if (control >= CONTROL_LZMA) {
+			final ByteBuffer header = readHeader(src, (control >= CONTROL_LZMA_NEW_PROPERTIES ? 5 : 4));
+			final int decodedSize = ((control & 0x1f) << 16) + (header.getShort() & 0xffff) + 1;
+			final int encodedSize = (header.getShort() & 0xffff) + 1;
+
+			read += header.limit();
+			if (control >= CONTROL_LZMA_NEW_PROPERTIES) {
+				final int lzmaPropertiesValue = header.get() & 0xff;
+
+				if (!isValidLzma2Properties(lzmaPropertiesValue)) {
+					throw new InvalidDataException(lzmaPropertiesValue);
+				}
+				this.lzmaDecoder.resetLzma2State(lzmaPropertiesValue);
+				this.needProperties = false;
+			} else if (this.needProperties) {
+				throw new InvalidDataException(control);
+			} else if (control >= CONTROL_LZMA_RESET_STATE) {
+				this.lzmaDecoder.resetLzma2State(-1);
+			}
+			this.chunkChannel.begin(encodedSize);
+			this.lzmaDecoder.beginLzma2Chunk(this.chunkChannel, decodedSize);
+			this.state = State.LZMA;
+		} else if (control <= CONTROL_UNCOMPRESSED) {
+			final ByteBuffer header = readHeader(src, 2);
+
+			read += header.limit();
+			this.uncompressedRemaining = (header.getShort() & 0xffff) + 1;
+			this.state = State.UNCOMPRESSED;
+		} else {
+			throw new InvalidDataException(control);
+		}
+		return read;
+	}
+
+	private int decodeUncompressed(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		final int copied = this.lzmaDecoder.copyLzma2Chunk(dst, src, this.uncompressedRemaining);
+
+		this.uncompressedRemaining -= copied;
+		if (this.uncompressedRemaining == 0) {
+			this.state = State.CONTROL;
+		}
+		return copied;
+	}
+
+	private static boolean isValidLzma2Properties(int lzmaPropertiesValue) {
+		// In contrast to plain LZMA, LZMA2 limits the number of literal context bits (lc + lp <= 4)
+		return lzmaPropertiesValue < (Lzma.NUM_POS_STATES_BITS_MAX + 1) * 5 * 9
+				&& (lzmaPropertiesValue % 9) + ((lzmaPropertiesValue / 9) % 5) <= 4;
+	}
+
+	private ByteBuffer readHeader(ReadableByteChannel src, int length) throws IOException {
+		final ByteBuffer header = this.headerBuffer;
+
+		header.clear().limit(length);
+		while (header.hasRemaining()) {
+			if (src.read(header) < 0) {
+				throw new InsufficientDataException(length, header.position());
+			}
+		}
+		header.flip();
+		return header;
+	}
+
+	/*
+	 * Channel view restricting the LZMA core's read-ahead to the encoded bytes of the current chunk.
+	 */
+	private static final class ChunkChannel implements ReadableByteChannel {
+
+		private @Nullable ReadableByteChannel src = null;
+		private int remaining = 0;
+		private long totalIn = 0;
+
+		ChunkChannel() {
+			// Nothing to do here
+		}
+
+		void reset() {
+			this.remaining = 0;
+			this.totalIn = 0;
+		}
+
+		void attach(ReadableByteChannel attachSrc) {
+			this.src = attachSrc;
+		}
+
+		void detach() {
+			this.src = null;
+		}
+
+		void begin(int encodedSize) {
+			this.remaining = encodedSize;
+		}
+
+		int remaining() {
+			return this.remaining;
+		}
+
+		long totalIn() {
+			return this.totalIn;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (this.remaining == 0) {
+				return -1;
+			}
+
+			final int limit = dst.limit();
+
+			dst.limit(dst.position() + Math.min(dst.remaining(), this.remaining));
+
+			int read;
+
+			try {
+				read = Objects.requireNonNull(this.src).read(dst);
+			} finally {
+				dst.limit(limit);
+			}
+			if (read > 0) {
+				this.remaining -= read;
+				this.totalIn += read;
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Nothing to do here
+		}
+
+	}
+
+}
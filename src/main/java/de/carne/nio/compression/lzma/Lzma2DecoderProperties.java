@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+import de.carne.nio.compression.CompressionProperties;
+import de.carne.nio.compression.CompressionProperty;
+
+/**
+ * {@linkplain Lzma2Decoder} properties.
+ */
+public class Lzma2DecoderProperties extends CompressionProperties {
+
+	private static final CompressionProperty DICTIONARY_SIZE = new CompressionProperty("DICTIONARY_SIZE",
+			Integer.class);
+	private static final CompressionProperty THREADS = new CompressionProperty("THREADS", Integer.class);
+
+	/**
+	 * Constructs a new {@linkplain Lzma2DecoderProperties} instance with default values.
+	 */
+	public Lzma2DecoderProperties() {
+		registerProperty(DICTIONARY_SIZE, Integer.valueOf(0x00800000));
+		registerProperty(THREADS, Integer.valueOf(1));
+	}
+
+	/**
+	 * Sets the dictionary size to use for decoding.
+	 * <p>
+	 * LZMA2 streams do not record their dictionary size. It is provided by the surrounding container (e.g. via the
+	 * {@code .xz} filter properties, see {@linkplain #setDictionarySizeProperty(byte)}).
+	 * </p>
+	 *
+	 * @param dictionarySize the dictionary size to use for decoding.
+	 */
+	public void setDictionarySizeProperty(int dictionarySize) {
+		setIntProperty(DICTIONARY_SIZE, dictionarySize);
+	}
+
+	/**
+	 * Sets the dictionary size to use for decoding from its encoded form as used by LZMA2 containers.
+	 *
+	 * @param dictionarySizeProperty the encoded dictionary size (must be in the range {@code [0, 40]}).
+	 */
+	public void setDictionarySizeProperty(byte dictionarySizeProperty) {
+		setDictionarySizeProperty(Lzma2Decoder.decodeDictionarySize(dictionarySizeProperty));
+	}
+
+	/**
+	 * Gets the dictionary size to use for decoding.
+	 *
+	 * @return the dictionary size to use for decoding.
+	 */
+	public int getDictionarySizeProperty() {
+		return getIntProperty(DICTIONARY_SIZE);
+	}
+
+	/**
+	 * Sets the threads property.
+	 * <p>
+	 * If set to a value greater than {@code 1}, the independent units (separated by dictionary resets) of the encoded
+	 * data are decoded in parallel using a {@linkplain Lzma2ParallelDecoder}. The value defines the maximum number of
+	 * units being decoded concurrently.
+	 * </p>
+	 *
+	 * @param threads the number of units to decode concurrently.
+	 */
+	public void setThreadsProperty(int threads) {
+		setIntProperty(THREADS, threads);
+	}
+
+	/**
+	 * Gets the threads property.
+	 *
+	 * @return the threads property.
+	 */
+	public int getThreadsProperty() {
+		return getIntProperty(THREADS);
+	}
+
+}
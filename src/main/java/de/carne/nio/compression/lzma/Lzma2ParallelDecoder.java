@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.InsufficientDataException;
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.common.ParallelDecoder;
+
+/**
+ * Decoder for LZMA2 compressed data decoding multiple independent units in parallel.
+ * <p>
+ * The input is scanned ahead chunk by chunk. Every dictionary reset chunk starts a new unit which does not depend on
+ * any previous data. Each unit is decoded as an independent task on the configured {@linkplain Executor}, while the
+ * decoded units are emitted in their original order. As the chunk headers record the decoded chunk sizes, the output
+ * buffer of each unit is allocated with its final size up front.
+ * <p>
+ * Units exceeding {@value #UNIT_SIZE_MAX} bytes as well as a stream consisting of a single unit are not buffered but
+ * streamed through a single {@linkplain Lzma2Decoder} instead. Parallel decoding only pays off for streams containing
+ * multiple dictionary resets (e.g. as created by multi-threaded encoders).
+ * <p>
+ * The number of units decoded concurrently is defined by {@linkplain Lzma2DecoderProperties#getThreadsProperty()}.
+ * Independent of this setting, scanning ahead stops as soon as the pending units occupy more than
+ * {@value #PENDING_SIZE_MAX} bytes (encoded and decoded).
+ */
+public class Lzma2ParallelDecoder extends ParallelDecoder<Long> {
+
+	private enum State {
+		UNIT, STREAM, EOF
+	}
+
+	private static final int CONTROL_END = 0x00;
+	private static final int CONTROL_UNCOMPRESSED_RESET_DICTIONARY = 0x01;
+	private static final int CONTROL_UNCOMPRESSED = 0x02;
+	private static final int CONTROL_LZMA = 0x80;
+	private static final int CONTROL_LZMA_NEW_PROPERTIES = 0xc0;
+	private static final int CONTROL_LZMA_RESET_DICTIONARY = 0xe0;
+
+	private static final int UNIT_SIZE_MAX = 0x2000000;
+	private static final long PENDING_SIZE_MAX = 0x6000000L;
+
+	private final Lzma2DecoderProperties properties;
+	private final Lzma2DecoderProperties unitProperties = new Lzma2DecoderProperties();
+	private final Queue<Lzma2Decoder> unitDecoders = new ConcurrentLinkedQueue<>();
+	private final UnitChannel unitChannel = new UnitChannel();
+	private @Nullable Lzma2Decoder streamDecoder = null;
+	private int unitCount;
+	private int scanPosition;
+	private State state = State.EOF;
+
+	/**
+	 * Constructs a new {@linkplain Lzma2ParallelDecoder} instance using the common {@linkplain ForkJoinPool}.
+	 *
+	 * @param properties the decoder properties to use.
+	 */
+	public Lzma2ParallelDecoder(Lzma2DecoderProperties properties) {
+		this(properties, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a new {@linkplain Lzma2ParallelDecoder} instance.
+	 *
+	 * @param properties the decoder properties to use.
+	 * @param executor the {@linkplain Executor} to use for unit decoding.
+	 */
+	public Lzma2ParallelDecoder(Lzma2DecoderProperties properties, Executor executor) {
+		super(Lzma2Factory.COMPRESSION_NAME, executor, properties.getThreadsProperty(), PENDING_SIZE_MAX);
+		this.properties = properties;
+
+		int threads = properties.getThreadsProperty();
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid LZMA2 threads: " + threads);
+		}
+		this.unitProperties.setDictionarySizeProperty(properties.getDictionarySizeProperty());
+		// Validates the dictionary size
+		this.unitDecoders.add(new Lzma2Decoder(this.unitProperties));
+		reset0();
+	}
+
+	private void reset0() {
+		this.unitChannel.reset();
+		this.unitCount = 0;
+		this.scanPosition = 0;
+		this.state = State.UNIT;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	protected boolean isScanning() {
+		return this.state == State.UNIT;
+	}
+
+	@Override
+	protected boolean isInputComplete() {
+		return this.state == State.EOF;
+	}
+
+	@Override
+	protected long consumed() {
+		return inputOffset() + this.scanPosition;
+	}
+
+	/*
+	 * Scans the chunks of a single unit (starting with a dictionary reset chunk and ending right before the next one or
+	 * the end marker) and submits it for decoding. Units too large for buffering are left for streaming.
+	 */
+	@Override
+	protected void scan(ReadableByteChannel src) throws IOException {
+		this.scanPosition -= compactInput(this.scanPosition);
+
+		int unitStart = this.scanPosition;
+		int chunkStart = unitStart;
+		long unitSize = 0;
+
+		while (true) {
+			if (chunkStart - unitStart > UNIT_SIZE_MAX || unitSize > UNIT_SIZE_MAX) {
+				this.state = State.STREAM;
+				return;
+			}
+			if (!ensureInput(src, chunkStart + 1)) {
+				throw new InsufficientDataException(1, 0);
+			}
+
+			int control = input()[chunkStart] & 0xff;
+
+			if (control == CONTROL_END) {
+				break;
+			}
+
+			boolean resetDictionary = isDictionaryReset(control);
+
+			if (chunkStart == unitStart) {
+				if (!resetDictionary) {
+					throw new InvalidDataException(control);
+				}
+			} else if (resetDictionary) {
+				break;
+			}
+
+			int headerSize = chunkHeaderSize(control);
+
+			if (!ensureInput(src, chunkStart + headerSize)) {
+				throw new InsufficientDataException(headerSize, inputLimit() - chunkStart);
+			}
+			unitSize += chunkDecodedSize(chunkStart);
+			chunkStart += headerSize + chunkEncodedSize(chunkStart);
+		}
+
+		byte[] input = input();
+
+		if (chunkStart > unitStart) {
+			if (this.unitCount == 0 && input[chunkStart] == CONTROL_END) {
+				// A single unit stream gains nothing from parallel decoding
+				this.state = State.STREAM;
+				return;
+			}
+
+			byte[] unit = Arrays.copyOfRange(input, unitStart, chunkStart);
+			int decodedSize = (int) unitSize;
+
+			submitUnit(Long.valueOf(consumed()), unit.length + unitSize, () -> decodeUnit(unit, decodedSize));
+			this.unitCount++;
+			this.scanPosition = chunkStart;
+		}
+		if (input[chunkStart] == CONTROL_END) {
+			this.scanPosition = chunkStart + 1;
+			setDrainStart(this.scanPosition);
+			this.state = State.EOF;
+		}
+	}
+
+	private static boolean isDictionaryReset(int control) {
+		return control >= CONTROL_LZMA_RESET_DICTIONARY || control == CONTROL_UNCOMPRESSED_RESET_DICTIONARY;
+	}
+
+	private static int chunkHeaderSize(int control) throws InvalidDataException {
+		int headerSize;
+
+		if (control >= CONTROL_LZMA) {
+			headerSize = (control >= CONTROL_LZMA_NEW_PROPERTIES ? 6 : 5);
+		} else if (CONTROL_END < control && control <= CONTROL_UNCOMPRESSED) {
+			headerSize = 3;
+		} else {
+			throw new InvalidDataException(control);
+		}
+		return headerSize;
+	}
+
+	private int chunkDecodedSize(int chunkStart) {
+		byte[] input = input();
+		int control = input[chunkStart] & 0xff;
+		int size = ((input[chunkStart + 1] & 0xff) << 8) + (input[chunkStart + 2] & 0xff) + 1;
+
+		return (control >= CONTROL_LZMA ? ((control & 0x1f) << 16) + size : size);
+	}
+
+	private int chunkEncodedSize(int chunkStart) {
+		byte[] input = input();
+		int control = input[chunkStart] & 0xff;
+
+		return (control >= CONTROL_LZMA ? ((input[chunkStart + 3] & 0xff) << 8) + (input[chunkStart + 4] & 0xff) + 1
+				: chunkDecodedSize(chunkStart));
+	}
+
+	private ByteBuffer decodeUnit(byte[] unit, int decodedSize) throws IOException {
+		Lzma2Decoder decoder = this.unitDecoders.poll();
+
+		if (decoder == null) {
+			decoder = new Lzma2Decoder(this.unitProperties);
+		}
+		try {
+			ReadableByteChannel unitDataChannel = Channels.newChannel(new ByteArrayInputStream(unit));
+			ByteBuffer output = ByteBuffer.allocate(decodedSize);
+
+			decoder.reset();
+			// As the unit data is not terminated by an end marker, decoding stops once the unit is complete
+			while (output.hasRemaining()) {
+				if (decoder.decode(output, unitDataChannel) < 0) {
+					throw new InsufficientDataException(decodedSize, output.position());
+				}
+			}
+			output.flip();
+			return output;
+		} finally {
+			this.unitDecoders.offer(decoder);
+		}
+	}
+
+	@Override
+	protected boolean decodeInline(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		if (this.state != State.STREAM) {
+			return false;
+		}
+
+		Lzma2Decoder decoder = this.streamDecoder;
+
+		if (decoder == null) {
+			decoder = new Lzma2Decoder(this.unitProperties);
+			this.streamDecoder = decoder;
+		}
+		if (!this.unitChannel.isStarted()) {
+			decoder.reset();
+			this.unitChannel.start();
+		}
+		this.unitChannel.attach(src);
+		try {
+			if (decoder.decode(dst, this.unitChannel) < 0) {
+				this.unitChannel.reset();
+				this.unitCount++;
+				this.state = State.UNIT;
+			}
+		} finally {
+			this.unitChannel.detach();
+		}
+		return true;
+	}
+
+	/*
+	 * Channel view feeding a single unit to the stream decoder. The unit's chunks are passed through as they are read
+	 * and the unit is terminated by an end marker right before the next dictionary reset chunk.
+	 */
+	private final class UnitChannel implements ReadableByteChannel {
+
+		private @Nullable ReadableByteChannel src = null;
+		private boolean started = false;
+		private boolean firstChunk = true;
+		private boolean ended = false;
+		private int chunkRemaining = 0;
+
+		UnitChannel() {
+			// Nothing to do here
+		}
+
+		void reset() {
+			this.started = false;
+		}
+
+		void attach(ReadableByteChannel attachSrc) {
+			this.src = attachSrc;
+		}
+
+		void detach() {
+			this.src = null;
+		}
+
+		boolean isStarted() {
+			return this.started;
+		}
+
+		void start() {
+			this.started = true;
+			this.firstChunk = true;
+			this.ended = false;
+			this.chunkRemaining = 0;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (this.ended) {
+				return -1;
+			}
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+
+			ReadableByteChannel currentSrc = Objects.requireNonNull(this.src);
+
+			if (this.chunkRemaining == 0) {
+				requireInput(currentSrc, 1);
+
+				int control = input()[Lzma2ParallelDecoder.this.scanPosition] & 0xff;
+
+				if (control == CONTROL_END || (!this.firstChunk && isDictionaryReset(control))) {
+					dst.put((byte) CONTROL_END);
+					this.ended = true;
+					return 1;
+				}
+
+				int headerSize = chunkHeaderSize(control);
+
+				requireInput(currentSrc, headerSize);
+				this.chunkRemaining = headerSize + chunkEncodedSize(Lzma2ParallelDecoder.this.scanPosition);
+				this.firstChunk = false;
+			}
+			requireInput(currentSrc, 1);
+
+			int read = Math.min(Math.min(dst.remaining(), this.chunkRemaining),
+					inputLimit() - Lzma2ParallelDecoder.this.scanPosition);
+
+			dst.put(input(), Lzma2ParallelDecoder.this.scanPosition, read);
+			Lzma2ParallelDecoder.this.scanPosition += read;
+			this.chunkRemaining -= read;
+			return read;
+		}
+
+		private void requireInput(ReadableByteChannel currentSrc, int length) throws IOException {
+			Lzma2ParallelDecoder.this.scanPosition -= compactInput(Lzma2ParallelDecoder.this.scanPosition);
+
+			int available = inputLimit() - Lzma2ParallelDecoder.this.scanPosition;
+
+			if (available < length
+					&& !ensureInput(currentSrc, Lzma2ParallelDecoder.this.scanPosition + length)) {
+				throw new InsufficientDataException(length, available);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Nothing to do here
+		}
+
+	}
+
+}
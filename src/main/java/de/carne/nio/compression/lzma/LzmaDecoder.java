@@ -18,10 +18,16 @@ package de.carne.nio.compression.lzma;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.Nullable;
 
 import de.carne.nio.compression.CompressionInfos;
 import de.carne.nio.compression.InsufficientDataException;
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.common.HistoryBuffer;
 import de.carne.nio.compression.spi.Decoder;
 
 /**
@@ -30,41 +36,30 @@ import de.carne.nio.compression.spi.Decoder;
 public class LzmaDecoder extends Decoder {
 
 	private enum State {
-		HEADER, BEGIN, DECODE, COPYFLUSH, EOFFLUSH, EOF
+		HEADER, BEGIN, DECODE, EOFFLUSH, EOF
 	}
 
-	private final LzmaDecoderProperties properties;
-
-	private final byte lzmaProperties;
+	private static final int HEADER_SIZE = 13;
 
-	private final LzmaRangeDecoder rangeDecoder = new LzmaRangeDecoder();
+	// Worst case number of input bytes consumed while decoding a single symbol (rounded up)
+	private static final int BATCH_INPUT_MIN = 32;
 
-	private final short[] isMatchDecoders = new short[Lzma.NUM_STATES << Lzma.NUM_POS_STATES_BITS_MAX];
-	private final short[] isRepDecoders = new short[Lzma.NUM_STATES];
-	private final short[] isRepG0Decoders = new short[Lzma.NUM_STATES];
-	private final short[] isRepG1Decoders = new short[Lzma.NUM_STATES];
-	private final short[] isRepG2Decoders = new short[Lzma.NUM_STATES];
-	private final short[] isRep0LongDecoders = new short[Lzma.NUM_STATES << Lzma.NUM_POS_STATES_BITS_MAX];
+	// Worst case number of input bytes consumed by a literal including its preceding isMatch bit
+	private static final int LITERAL_INPUT_MAX = 9;
 
-	private final LzmaBitTreeDecoder[] posSlotDecoder = new LzmaBitTreeDecoder[Lzma.NUM_LEN2POS_STATES];
-	private final short[] posDecoders = new short[Lzma.NUM_FULL_DISTANCES - Lzma.END_POS_MODEL_INDEX];
-
-	private final LzmaBitTreeDecoder posAlignDecoder = new LzmaBitTreeDecoder(Lzma.NUM_ALIGN_BITS);
+	private final LzmaDecoderProperties properties;
 
-	private final LzmaLenDecoder lenDecoder;
-	private final LzmaLenDecoder repLenDecoder;
+	private final LzmaRangeDecoder rangeDecoder;
 
-	private final LzmaLiteralDecoder literalDecoder;
+	private short[] probs = new short[0];
 
-	private final int posStateMask;
+	private int lc;
+	private int literalPosMask;
+	private int posStateMask;
 
-	private final int dictionarySize;
-	private final int dictionarySizeCheck;
+	private int dictionarySizeCheck;
 
-	private final byte[] outBuffer;
-	private int outBufferStart;
-	private int outBufferEnd;
-	private int copyDistance;
+	private @Nullable HistoryBuffer outWindow = null;
 	private int copyLength;
 
 	private int lzmaState;
@@ -76,8 +71,7 @@ public class LzmaDecoder extends Decoder {
 	private long currentPos;
 	private byte prevByte;
 
-	private long totalOut;
-	private final long totalOutLimit;
+	private long totalOutLimit;
 	private State state = State.EOF;
 
 	/**
@@ -88,61 +82,27 @@ public class LzmaDecoder extends Decoder {
 	public LzmaDecoder(LzmaDecoderProperties properties) {
 		super(LzmaFactory.COMPRESSION_NAME);
 		this.properties = properties;
-		for (int decoderIndex = 0; decoderIndex < this.posSlotDecoder.length; decoderIndex++) {
-			this.posSlotDecoder[decoderIndex] = new LzmaBitTreeDecoder(Lzma.NUM_POS_SLOT_BITS);
-		}
-
-		this.lzmaProperties = this.properties.getLcLpBpProperty();
-
-		final int lzmaPropertiesValue = this.lzmaProperties & 0xFF;
-		final int lc = lzmaPropertiesValue % 9;
-		final int remainder = lzmaPropertiesValue / 9;
-		final int lp = remainder % 5;
-		final int pb = remainder / 5;
-
-		if (lc > Lzma.NUM_LIT_CONTEXT_BITS_MAX || lp > 4 || pb > Lzma.NUM_POS_STATES_BITS_MAX) {
-			throw new IllegalArgumentException("Invalid LZMA properties: " + lzmaPropertiesValue);
+		if (properties.getReadAheadProperty() < 0) {
+			throw new IllegalArgumentException("Invalid LZMA read-ahead: " + properties.getReadAheadProperty());
 		}
-		this.literalDecoder = new LzmaLiteralDecoder(lp, lc);
+		this.rangeDecoder = new LzmaRangeDecoder(properties.getReadAheadProperty());
+		if (!LzmaFormat.LZMALIB.equals(properties.getFormat())) {
+			final int lzmaPropertiesValue = properties.getLcLpBpProperty() & 0xFF;
 
-		final int numPosStates = 1 << pb;
-
-		this.lenDecoder = new LzmaLenDecoder(numPosStates);
-		this.repLenDecoder = new LzmaLenDecoder(numPosStates);
-		this.posStateMask = numPosStates - 1;
-		if (properties.getDictionarySizeProperty() < 0) {
-			throw new IllegalArgumentException(
-					"Invalid LZMA dictionary size: " + properties.getDictionarySizeProperty());
+			if (!isValidLzmaProperties(lzmaPropertiesValue)) {
+				throw new IllegalArgumentException("Invalid LZMA properties: " + lzmaPropertiesValue);
+			}
+			if (!isValidDictionarySize(properties.getDictionarySizeProperty())) {
+				throw new IllegalArgumentException(
+						"Invalid LZMA dictionary size: " + properties.getDictionarySizeProperty());
+			}
 		}
-		this.dictionarySize = properties.getDictionarySizeProperty();
-		this.dictionarySizeCheck = Math.max(this.dictionarySize, 1);
-		this.outBuffer = new byte[Math.max(this.dictionarySizeCheck, (1 << 12))];
-		this.totalOutLimit = (properties.getDecodedSizeProperty() >= 0 ? properties.getDecodedSizeProperty()
-				: Long.MAX_VALUE);
 		reset0();
 	}
 
 	private void reset0() {
-		LzmaRangeDecoder.initBitModels(this.isMatchDecoders);
-		LzmaRangeDecoder.initBitModels(this.isRep0LongDecoders);
-		LzmaRangeDecoder.initBitModels(this.isRepDecoders);
-		LzmaRangeDecoder.initBitModels(this.isRepG0Decoders);
-		LzmaRangeDecoder.initBitModels(this.isRepG1Decoders);
-		LzmaRangeDecoder.initBitModels(this.isRepG2Decoders);
-		LzmaRangeDecoder.initBitModels(this.posDecoders);
-		this.literalDecoder.reset();
-		for (final LzmaBitTreeDecoder decoder : this.posSlotDecoder) {
-			decoder.reset();
-		}
-		this.lenDecoder.reset();
-		this.repLenDecoder.reset();
-		this.posAlignDecoder.reset();
 		this.rangeDecoder.reset();
-		this.outBufferStart = 0;
-		this.outBufferEnd = 0;
-		this.copyDistance = 0;
 		this.copyLength = 0;
-		this.totalOut = 0;
 		if (LzmaFormat.LZMALIB.equals(this.properties.getFormat())) {
 			this.state = State.HEADER;
 		} else {
@@ -150,6 +110,55 @@ public class LzmaDecoder extends Decoder {
 		}
 	}
 
+	private static boolean isValidLzmaProperties(int lzmaPropertiesValue) {
+		return lzmaPropertiesValue < (Lzma.NUM_POS_STATES_BITS_MAX + 1) * 5 * 9;
+	}
+
+	private static boolean isValidDictionarySize(int dictionarySize) {
+		return 0 <= dictionarySize && dictionarySize <= Lzma.WINDOW_SIZE_MAX;
+	}
+
+	/*
+	 * Sets up the decoder core (probability models and dictionary window) according to the current properties. As the
+	 * LZMALIB header may alter these properties, this is done right before decoding starts.
+	 */
+	private HistoryBuffer configure() {
+		final int lzmaPropertiesValue = this.properties.getLcLpBpProperty() & 0xFF;
+		final int lc = lzmaPropertiesValue % 9;
+		final int remainder = lzmaPropertiesValue / 9;
+		final int lp = remainder % 5;
+		final int pb = remainder / 5;
+
+		this.lc = lc;
+		this.literalPosMask = (1 << lp) - 1;
+		this.posStateMask = (1 << pb) - 1;
+
+		final int probsSize = Lzma.probsSize(lc, lp);
+
+		if (this.probs.length != probsSize) {
+			this.probs = new short[probsSize];
+		}
+		LzmaRangeDecoder.initBitModels(this.probs);
+
+		this.dictionarySizeCheck = Math.max(this.properties.getDictionarySizeProperty(), 1);
+
+		final int dictionaryWindowSize = Math.max(this.dictionarySizeCheck, Lzma.WINDOW_SIZE_MIN);
+		final int windowSize = (Integer.bitCount(dictionaryWindowSize) == 1 ? dictionaryWindowSize
+				: Integer.highestOneBit(dictionaryWindowSize) << 1);
+		HistoryBuffer window = this.outWindow;
+
+		if (window == null || window.getSize() != windowSize) {
+			window = new HistoryBuffer(windowSize);
+			this.outWindow = window;
+		} else {
+			window.clear();
+		}
+		this.totalOutLimit = (this.properties.getDecodedSizeProperty() >= 0
+				? this.properties.getDecodedSizeProperty()
+				: Long.MAX_VALUE);
+		return window;
+	}
+
 	@Override
 	public CompressionInfos properties() {
 		return this.properties;
@@ -170,31 +179,41 @@ public class LzmaDecoder extends Decoder {
 		try {
 			if (this.state != State.EOF) {
 				final long rangeDecoderTotalInStart = this.rangeDecoder.totalIn();
+				HistoryBuffer decodeWindow;
 
 				decoded = 0;
-				while (this.state != State.EOF && dst.remaining() > 0) {
+				while (this.state != State.EOF && dst.hasRemaining()) {
 					switch (this.state) {
 					case HEADER:
 						decoded += decodeHeader(src);
 						this.state = State.BEGIN;
 						break;
 					case BEGIN:
+						configure();
 						this.rangeDecoder.beginDecode(src);
 						this.lzmaState = Lzma.STATE_INIT;
 						this.rep0 = this.rep1 = this.rep2 = this.rep3 = 0;
 						this.currentPos = 0;
 						this.prevByte = 0;
 						this.state = State.DECODE;
-						decodeChunk(dst, src);
 						break;
 					case DECODE:
-						decodeChunk(dst, src);
-						break;
-					case COPYFLUSH:
-						copyBlock(dst);
+						decodeWindow = Objects.requireNonNull(this.outWindow);
+						decodeWindow.flush(dst);
+						if (dst.hasRemaining()) {
+							// Limit decoding to half the window to never overwrite data not yet flushed
+							final long decodeLimit = Math.min(dst.remaining(), decodeWindow.getSize() >>> 1);
+
+							decodeChunk(src, decodeWindow,
+									(int) Math.min(decodeLimit, this.totalOutLimit - this.currentPos));
+							decodeWindow.flush(dst);
+						}
 						break;
 					case EOFFLUSH:
-						flush(dst, State.EOF);
+						Objects.requireNonNull(this.outWindow).flush(dst);
+						if (dst.hasRemaining()) {
+							this.state = State.EOF;
+						}
 						break;
 					case EOF:
 						break;
@@ -208,169 +227,520 @@ public class LzmaDecoder extends Decoder {
 		return decoded;
 	}
 
+	@Override
+	public ByteBuffer drainInput() {
+		return this.rangeDecoder.drainBytes();
+	}
+
 	private int decodeHeader(ReadableByteChannel src) throws IOException {
-		ByteBuffer buffer = ByteBuffer.allocate(13);
-		int read = src.read(buffer);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		int read = 0;
 
-		if (read < buffer.capacity()) {
-			throw new InsufficientDataException(buffer.capacity(), read);
+		while (buffer.hasRemaining()) {
+			int headerRead = src.read(buffer);
+
+			if (headerRead <= 0) {
+				throw new InsufficientDataException(buffer.capacity(), read);
+			}
+			read += headerRead;
 		}
 		buffer.flip();
-		this.properties.setLcLpBpProperty(buffer.get());
-		this.properties.setDictionarySizeProperty(buffer.getInt());
-		this.properties.setDecodedSizeProperty(buffer.getLong());
+
+		final byte lzmaProperties = buffer.get();
+		final int dictionarySize = buffer.getInt();
+		final long decodedSize = buffer.getLong();
+
+		if (!isValidLzmaProperties(lzmaProperties & 0xff)) {
+			throw new InvalidDataException(lzmaProperties & 0xff);
+		}
+		if (!isValidDictionarySize(dictionarySize)) {
+			throw new InvalidDataException(Integer.toUnsignedLong(dictionarySize));
+		}
+		this.properties.setLcLpBpProperty(lzmaProperties);
+		this.properties.setDictionarySizeProperty(dictionarySize);
+		this.properties.setDecodedSizeProperty(decodedSize);
 		return read;
 	}
 
-	private void decodeChunk(ByteBuffer dst, ReadableByteChannel src) throws IOException {
-		while (this.state == State.DECODE) {
-			final int posState = (int) this.currentPos & this.posStateMask;
+	/*
+	 * LZMA2 support: The following functions let the Lzma2Decoder drive the decoder core chunk by chunk. The core is
+	 * set up once and afterwards only its dictionary, its state and probability models or its lc/lp/pb parameters are
+	 * reset as requested by the chunk control bytes.
+	 */
 
-			if (this.rangeDecoder.decodeBit(src, this.isMatchDecoders,
-					(this.lzmaState << Lzma.NUM_POS_STATES_BITS_MAX) + posState) == 0) {
-				final LzmaLiteralDecoder.Decoder2 decoder2 = this.literalDecoder.getDecoder((int) this.currentPos,
-						this.prevByte);
+	void resetLzma2Dictionary() {
+		HistoryBuffer window = this.outWindow;
 
-				if (!Lzma.stateIsCharState(this.lzmaState)) {
-					this.prevByte = decoder2.decodeWithMatchByte(src, this.rangeDecoder, getByte(this.rep0));
-				} else {
-					this.prevByte = decoder2.decodeNormal(src, this.rangeDecoder);
+		if (window == null) {
+			configure();
+		} else {
+			window.clear();
+		}
+		this.currentPos = 0;
+		this.prevByte = 0;
+		this.state = State.EOF;
+	}
+
+	void resetLzma2State(int lzmaPropertiesValue) {
+		if (lzmaPropertiesValue >= 0) {
+			final int lc = lzmaPropertiesValue % 9;
+			final int remainder = lzmaPropertiesValue / 9;
+			final int lp = remainder % 5;
+			final int pb = remainder / 5;
+
+			this.lc = lc;
+			this.literalPosMask = (1 << lp) - 1;
+			this.posStateMask = (1 << pb) - 1;
+
+			final int probsSize = Lzma.probsSize(lc, lp);
+
+			if (this.probs.length != probsSize) {
+				this.probs = new short[probsSize];
+			}
+		}
+		LzmaRangeDecoder.initBitModels(this.probs);
+		this.lzmaState = Lzma.STATE_INIT;
+		this.rep0 = this.rep1 = this.rep2 = this.rep3 = 0;
+	}
+
+	void beginLzma2Chunk(ReadableByteChannel src, int decodedSize) throws IOException {
+		this.rangeDecoder.beginDecode(src);
+		this.copyLength = 0;
+		this.totalOutLimit = this.currentPos + decodedSize;
+		this.state = State.DECODE;
+	}
+
+	boolean decodeLzma2Chunk(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		final HistoryBuffer window = Objects.requireNonNull(this.outWindow);
+
+		window.flush(dst);
+		if (this.state == State.DECODE && dst.hasRemaining()) {
+			final long decodeLimit = Math.min(dst.remaining(), window.getSize() >>> 1);
+
+			decodeChunk(src, window, (int) Math.min(decodeLimit, this.totalOutLimit - this.currentPos));
+			window.flush(dst);
+		}
+		return this.state != State.DECODE;
+	}
+
+	void endLzma2Chunk() throws IOException {
+		// A valid chunk ends exactly at the chunk's end with all input consumed and a finished range decoder
+		final int buffered = this.rangeDecoder.limit() - this.rangeDecoder.position();
+
+		if (this.currentPos != this.totalOutLimit || this.copyLength != 0 || buffered != 0
+				|| this.rangeDecoder.code() != 0) {
+			throw new InvalidDataException(this.currentPos, this.totalOutLimit, this.copyLength, buffered);
+		}
+		this.state = State.EOF;
+	}
+
+	int copyLzma2Chunk(ByteBuffer dst, ReadableByteChannel src, int length) throws IOException {
+		final HistoryBuffer window = Objects.requireNonNull(this.outWindow);
+		int copied = 0;
+
+		window.flush(dst);
+		if (dst.hasRemaining()) {
+			final byte[] history = window.buffer();
+			final int copyStart = window.bufferPos();
+			final int copyLimit = Math.min(Math.min(length, dst.remaining()),
+					Math.min(window.getSize() >>> 1, history.length - copyStart));
+			final ByteBuffer copyBuffer = ByteBuffer.wrap(history, copyStart, copyLimit);
+
+			while (copyBuffer.hasRemaining()) {
+				if (src.read(copyBuffer) < 0) {
+					throw new InsufficientDataException(copyLimit, copyBuffer.position() - copyStart);
 				}
-				this.lzmaState = Lzma.stateUpdateChar(this.lzmaState);
-				this.currentPos++;
-				putByte(dst, this.prevByte);
-			} else {
-				int len;
-
-				if (this.rangeDecoder.decodeBit(src, this.isRepDecoders, this.lzmaState) == 1) {
-					len = 0;
-					if (this.rangeDecoder.decodeBit(src, this.isRepG0Decoders, this.lzmaState) == 0) {
-						if (this.rangeDecoder.decodeBit(src, this.isRep0LongDecoders,
-								(this.lzmaState << Lzma.NUM_POS_STATES_BITS_MAX) + posState) == 0) {
-							this.lzmaState = Lzma.stateUpdateShortRep(this.lzmaState);
-							len = 1;
-						}
-					} else {
-						int distance;
+			}
+			copied = copyLimit;
+			window.advance(copied);
+			this.currentPos += copied;
+			this.prevByte = history[copyStart + copied - 1];
+			window.flush(dst);
+		}
+		return copied;
+	}
 
-						if (this.rangeDecoder.decodeBit(src, this.isRepG1Decoders, this.lzmaState) == 0) {
-							distance = this.rep1;
-						} else {
-							if (this.rangeDecoder.decodeBit(src, this.isRepG2Decoders, this.lzmaState) == 0) {
-								distance = this.rep2;
-							} else {
-								distance = this.rep3;
-								this.rep3 = this.rep2;
-							}
-							this.rep2 = this.rep1;
-						}
-						this.rep1 = this.rep0;
-						this.rep0 = distance;
-					}
-					if (len == 0) {
-						len = this.repLenDecoder.decode(src, this.rangeDecoder, posState) + Lzma.MATCH_MIN_LEN;
-						this.lzmaState = Lzma.stateUpdateRep(this.lzmaState);
-					}
-				} else {
-					this.rep3 = this.rep2;
-					this.rep2 = this.rep1;
-					this.rep1 = this.rep0;
-					len = Lzma.MATCH_MIN_LEN + this.lenDecoder.decode(src, this.rangeDecoder, posState);
-					this.lzmaState = Lzma.stateUpdateMatch(this.lzmaState);
+	int flushLzma2(ByteBuffer dst) {
+		final HistoryBuffer window = this.outWindow;
+
+		return (window != null ? window.flush(dst) : 0);
+	}
 
-					final int posSlot = this.posSlotDecoder[Lzma.getLenToPosState(len)].decode(src, this.rangeDecoder);
+	private void decodeChunk(ReadableByteChannel src, HistoryBuffer window, int decodeLimit) throws IOException {
+		int decodeRemaining = decodeLimit;
 
-					if (posSlot >= Lzma.START_POS_MODEL_INDEX) {
-						final int numDirectBits = (posSlot >> 1) - 1;
+		if (this.copyLength > 0) {
+			final int copyLen = Math.min(this.copyLength, decodeRemaining);
 
-						this.rep0 = ((2 | (posSlot & 1)) << numDirectBits);
-						if (posSlot < Lzma.END_POS_MODEL_INDEX) {
-							this.rep0 += LzmaBitTreeDecoder.reverseDecode(src, this.posDecoders,
-									this.rep0 - posSlot - 1, this.rangeDecoder, numDirectBits);
+			window.copyBlock(this.rep0, copyLen);
+			this.copyLength -= copyLen;
+			this.currentPos += copyLen;
+			decodeRemaining -= copyLen;
+			this.prevByte = window.getByte(0);
+		}
+		while (decodeRemaining > 0 && this.state == State.DECODE) {
+			if (this.rangeDecoder.fillBatch(src, BATCH_INPUT_MIN)) {
+				decodeRemaining = decodeBatch(src, window, decodeRemaining);
+			} else {
+				decodeRemaining = decodeSymbol(src, window, decodeRemaining);
+			}
+		}
+		if (this.currentPos >= this.totalOutLimit) {
+			this.state = State.EOFFLUSH;
+		}
+	}
+
+	/*
+	 * Decodes a batch of symbols directly from the range decoder's input buffer. While decoding isMatch bits and
+	 * literals, the range coder state as well as the input and output positions are kept in local variables. Matches
+	 * are decoded by decodeMatch, which requires writing back and reloading this state. A batch ends as soon as the
+	 * decode limit is reached or less than BATCH_INPUT_MIN input bytes are left, hence no input underflow can occur
+	 * within a batch.
+	 */
+	private int decodeBatch(ReadableByteChannel src, HistoryBuffer window, int decodeLimit) throws IOException {
+		final short[] probs = this.probs;
+		final byte[] in = this.rangeDecoder.buffer();
+		final int inBatchLimit = this.rangeDecoder.limit() - BATCH_INPUT_MIN;
+		int inPos = this.rangeDecoder.position();
+		int range = this.rangeDecoder.range();
+		int code = this.rangeDecoder.code();
+		int lzmaState = this.lzmaState;
+		long currentPos = this.currentPos;
+		byte prevByte = this.prevByte;
+		final int posStateMask = this.posStateMask;
+		int decodeRemaining = decodeLimit;
+		int probIndex;
+		int prob;
+		int bound;
+		int bit;
+
+		while (decodeRemaining > 0 && inPos <= inBatchLimit) {
+			int posState = (int) currentPos & posStateMask;
+
+			probIndex = Lzma.PROBS_IS_MATCH + (lzmaState << Lzma.NUM_POS_STATES_BITS_MAX) + posState;
+			prob = probs[probIndex];
+			bound = (range >>> Lzma.NUM_BIT_MODEL_TOTAL_BITS) * prob;
+			if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+				range = bound;
+				probs[probIndex] = (short) (prob + ((Lzma.BIT_MODEL_TOTAL - prob) >>> Lzma.NUM_MOVE_BITS));
+				bit = 0;
+			} else {
+				range -= bound;
+				code -= bound;
+				probs[probIndex] = (short) (prob - (prob >>> Lzma.NUM_MOVE_BITS));
+				bit = 1;
+			}
+			if ((range & LzmaRangeDecoder.TOP_MASK) == 0) {
+				code = (code << 8) | (in[inPos++] & 0xff);
+				range <<= 8;
+			}
+			if (bit == 0) {
+				// Decode a run of literals directly into the history buffer. The run length is limited once in advance
+				// by the remaining output, the end of the history buffer array and the buffered input (as each
+				// subsequent literal including its isMatch bit consumes at most LITERAL_INPUT_MAX input bytes).
+				final byte[] history = window.buffer();
+				final int runStart = window.bufferPos();
+				final int runEnd = runStart + Math.min(Math.min(decodeRemaining, history.length - runStart),
+						1 + (inBatchLimit - inPos) / LITERAL_INPUT_MAX);
+				int outPos = runStart;
+				int literalBase = literalBase(currentPos, prevByte);
+				int symbol = 1;
+
+				if (!Lzma.stateIsCharState(lzmaState)) {
+					int matchByte = history[(outPos - this.rep0 - 1) & (history.length - 1)];
+					int matchBit;
+
+					do {
+						matchBit = (matchByte >> 7) & 1;
+						matchByte <<= 1;
+						probIndex = literalBase + ((1 + matchBit) << 8) + symbol;
+						prob = probs[probIndex];
+						bound = (range >>> Lzma.NUM_BIT_MODEL_TOTAL_BITS) * prob;
+						if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+							range = bound;
+							probs[probIndex] = (short) (prob + ((Lzma.BIT_MODEL_TOTAL - prob) >>> Lzma.NUM_MOVE_BITS));
+							symbol <<= 1;
+						} else {
+							range -= bound;
+							code -= bound;
+							probs[probIndex] = (short) (prob - (prob >>> Lzma.NUM_MOVE_BITS));
+							symbol = (symbol << 1) | 1;
+						}
+						if ((range & LzmaRangeDecoder.TOP_MASK) == 0) {
+							code = (code << 8) | (in[inPos++] & 0xff);
+							range <<= 8;
+						}
+					} while (symbol < 0x100 && matchBit == (symbol & 1));
+				}
+				while (true) {
+					while (symbol < 0x100) {
+						probIndex = literalBase + symbol;
+						prob = probs[probIndex];
+						bound = (range >>> Lzma.NUM_BIT_MODEL_TOTAL_BITS) * prob;
+						if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+							range = bound;
+							probs[probIndex] = (short) (prob + ((Lzma.BIT_MODEL_TOTAL - prob) >>> Lzma.NUM_MOVE_BITS));
+							symbol <<= 1;
 						} else {
-							this.rep0 += this.rangeDecoder.decodeDirectBits(src,
-									numDirectBits - Lzma.NUM_ALIGN_BITS) << Lzma.NUM_ALIGN_BITS;
-							this.rep0 += this.posAlignDecoder.reverseDecode(src, this.rangeDecoder);
-							if (this.rep0 < 0) {
-								this.state = State.EOFFLUSH;
-							}
+							range -= bound;
+							code -= bound;
+							probs[probIndex] = (short) (prob - (prob >>> Lzma.NUM_MOVE_BITS));
+							symbol = (symbol << 1) | 1;
 						}
+						if ((range & LzmaRangeDecoder.TOP_MASK) == 0) {
+							code = (code << 8) | (in[inPos++] & 0xff);
+							range <<= 8;
+						}
+					}
+					history[outPos++] = (byte) symbol;
+					lzmaState = Lzma.stateUpdateChar(lzmaState);
+					currentPos++;
+					if (outPos >= runEnd) {
+						break;
+					}
+					// Any further literal of the run follows a literal and is therefore a plain (unmatched) one
+					posState = (int) currentPos & posStateMask;
+					probIndex = Lzma.PROBS_IS_MATCH + (lzmaState << Lzma.NUM_POS_STATES_BITS_MAX) + posState;
+					prob = probs[probIndex];
+					bound = (range >>> Lzma.NUM_BIT_MODEL_TOTAL_BITS) * prob;
+					if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+						range = bound;
+						probs[probIndex] = (short) (prob + ((Lzma.BIT_MODEL_TOTAL - prob) >>> Lzma.NUM_MOVE_BITS));
+						bit = 0;
 					} else {
-						this.rep0 = posSlot;
+						range -= bound;
+						code -= bound;
+						probs[probIndex] = (short) (prob - (prob >>> Lzma.NUM_MOVE_BITS));
+						bit = 1;
 					}
+					if ((range & LzmaRangeDecoder.TOP_MASK) == 0) {
+						code = (code << 8) | (in[inPos++] & 0xff);
+						range <<= 8;
+					}
+					if (bit == 1) {
+						break;
+					}
+					literalBase = literalBase(currentPos, (byte) symbol);
+					symbol = 1;
 				}
-				if (this.rep0 >= this.currentPos || this.rep0 >= this.dictionarySizeCheck) {
-					this.state = State.EOFFLUSH;
-				}
-				if (this.state == State.DECODE) {
-					this.copyDistance = this.rep0;
-					this.copyLength = len;
-					copyBlock(dst);
-					this.currentPos += len;
-					this.prevByte = getByte(this.copyLength);
+				window.advance(outPos - runStart);
+				decodeRemaining -= outPos - runStart;
+				prevByte = history[outPos - 1];
+			}
+			if (bit == 1) {
+				this.rangeDecoder.endBatch(inPos, range, code);
+				this.lzmaState = lzmaState;
+				this.currentPos = currentPos;
+				this.prevByte = prevByte;
+				decodeRemaining = decodeMatch(src, window, posState, decodeRemaining);
+				inPos = this.rangeDecoder.position();
+				range = this.rangeDecoder.range();
+				code = this.rangeDecoder.code();
+				lzmaState = this.lzmaState;
+				currentPos = this.currentPos;
+				prevByte = this.prevByte;
+				if (this.state != State.DECODE) {
+					break;
 				}
 			}
 		}
+		this.rangeDecoder.endBatch(inPos, range, code);
+		this.lzmaState = lzmaState;
+		this.currentPos = currentPos;
+		this.prevByte = prevByte;
+		return decodeRemaining;
 	}
 
-	private void flush(ByteBuffer dst, State nextState) {
-		final int outBufferLength = this.outBufferEnd - this.outBufferStart;
-		final long outRemaining = this.totalOutLimit - this.totalOut;
-		final int flushLength = Math.min(outBufferLength, (int) Math.min(outRemaining, dst.remaining()));
+	/*
+	 * Decodes a single symbol. All input is read via the range decoder, which reads from the channel whenever its
+	 * buffer runs empty. Used in exact read mode and whenever the buffered input is not sufficient for batch decoding.
+	 */
+	private int decodeSymbol(ReadableByteChannel src, HistoryBuffer window, int decodeLimit) throws IOException {
+		final short[] probs = this.probs;
+		int decodeRemaining = decodeLimit;
+
+		final int posState = (int) this.currentPos & this.posStateMask;
 
-		dst.put(this.outBuffer, this.outBufferStart, flushLength);
-		this.totalOut += flushLength;
-		this.outBufferStart += flushLength;
-		if (this.outBufferStart >= this.outBufferEnd) {
-			this.state = nextState;
-		}
-		if (this.outBufferEnd >= this.outBuffer.length) {
-			this.outBufferStart = this.outBufferEnd = 0;
-		}
-		if (this.totalOut >= this.totalOutLimit) {
-			this.state = State.EOF;
-		}
-	}
+		if (this.rangeDecoder.decodeBit(src, probs,
+				Lzma.PROBS_IS_MATCH + (this.lzmaState << Lzma.NUM_POS_STATES_BITS_MAX) + posState) == 0) {
+			final int literalBase = literalBase(this.currentPos, this.prevByte);
 
-	private boolean outBufferLimitReached() {
-		return this.outBufferEnd >= this.outBuffer.length
-				|| (this.totalOut + (this.outBufferEnd - this.outBufferStart) >= this.totalOutLimit);
+			if (!Lzma.stateIsCharState(this.lzmaState)) {
+				this.prevByte = decodeMatchedLiteral(src, literalBase, window.getByte(this.rep0));
+			} else {
+				this.prevByte = decodeLiteral(src, literalBase);
+			}
+			this.lzmaState = Lzma.stateUpdateChar(this.lzmaState);
+			this.currentPos++;
+			window.putByte(this.prevByte);
+			decodeRemaining--;
+		} else {
+			decodeRemaining = decodeMatch(src, window, posState, decodeRemaining);
+		}
+		return decodeRemaining;
 	}
 
-	private void copyBlock(ByteBuffer dst) {
-		int pos = this.outBufferEnd - this.copyDistance - 1;
+	/*
+	 * Decodes a match or rep symbol (following an isMatch bit of 1) and copies the matched bytes into the history
+	 * buffer.
+	 */
+	private int decodeMatch(ReadableByteChannel src, HistoryBuffer window, int posState, int decodeLimit)
+			throws IOException {
+		final short[] probs = this.probs;
+		int decodeRemaining = decodeLimit;
+		int len;
+
+		if (this.rangeDecoder.decodeBit(src, probs, Lzma.PROBS_IS_REP + this.lzmaState) == 1) {
+			len = 0;
+			if (this.rangeDecoder.decodeBit(src, probs, Lzma.PROBS_IS_REP_G0 + this.lzmaState) == 0) {
+				if (this.rangeDecoder.decodeBit(src, probs, Lzma.PROBS_IS_REP0_LONG
+						+ (this.lzmaState << Lzma.NUM_POS_STATES_BITS_MAX) + posState) == 0) {
+					this.lzmaState = Lzma.stateUpdateShortRep(this.lzmaState);
+					len = 1;
+				}
+			} else {
+				int distance;
 
-		if (pos < 0) {
-			pos += this.outBuffer.length;
-		}
-		for (; this.copyLength > 0; this.copyLength--) {
-			if (pos >= this.outBuffer.length) {
-				pos = 0;
+				if (this.rangeDecoder.decodeBit(src, probs, Lzma.PROBS_IS_REP_G1 + this.lzmaState) == 0) {
+					distance = this.rep1;
+				} else {
+					if (this.rangeDecoder.decodeBit(src, probs, Lzma.PROBS_IS_REP_G2 + this.lzmaState) == 0) {
+						distance = this.rep2;
+					} else {
+						distance = this.rep3;
+						this.rep3 = this.rep2;
+					}
+					this.rep2 = this.rep1;
+				}
+				this.rep1 = this.rep0;
+				this.rep0 = distance;
 			}
-			this.outBuffer[this.outBufferEnd++] = this.outBuffer[pos++];
-			if (outBufferLimitReached()) {
-				flush(dst, State.COPYFLUSH);
+			if (len == 0) {
+				len = decodeLen(src, Lzma.PROBS_REP_LEN, posState) + Lzma.MATCH_MIN_LEN;
+				this.lzmaState = Lzma.stateUpdateRep(this.lzmaState);
+			}
+		} else {
+			this.rep3 = this.rep2;
+			this.rep2 = this.rep1;
+			this.rep1 = this.rep0;
+			len = Lzma.MATCH_MIN_LEN + decodeLen(src, Lzma.PROBS_LEN, posState);
+			this.lzmaState = Lzma.stateUpdateMatch(this.lzmaState);
+
+			final int posSlot = decodeBitTree(src,
+					Lzma.PROBS_POS_SLOT + (Lzma.getLenToPosState(len) << Lzma.NUM_POS_SLOT_BITS),
+					Lzma.NUM_POS_SLOT_BITS);
+
+			if (posSlot >= Lzma.START_POS_MODEL_INDEX) {
+				final int numDirectBits = (posSlot >> 1) - 1;
+
+				this.rep0 = ((2 | (posSlot & 1)) << numDirectBits);
+				if (posSlot < Lzma.END_POS_MODEL_INDEX) {
+					this.rep0 += decodeReverseBitTree(src, Lzma.PROBS_SPEC_POS + this.rep0 - posSlot - 1,
+							numDirectBits);
+				} else {
+					this.rep0 += this.rangeDecoder.decodeDirectBits(src,
+							numDirectBits - Lzma.NUM_ALIGN_BITS) << Lzma.NUM_ALIGN_BITS;
+					this.rep0 += decodeReverseBitTree(src, Lzma.PROBS_ALIGN, Lzma.NUM_ALIGN_BITS);
+					if (this.rep0 < 0) {
+						this.state = State.EOFFLUSH;
+					}
+				}
+			} else {
+				this.rep0 = posSlot;
 			}
 		}
-		if (this.copyLength == 0) {
-			this.state = State.DECODE;
+		if (this.rep0 >= this.currentPos || this.rep0 >= this.dictionarySizeCheck) {
+			this.state = State.EOFFLUSH;
+		}
+		if (this.state == State.DECODE) {
+			final int copyLen = Math.min(len, decodeRemaining);
+
+			window.copyBlock(this.rep0, copyLen);
+			this.copyLength = len - copyLen;
+			this.currentPos += copyLen;
+			decodeRemaining -= copyLen;
+			this.prevByte = window.getByte(0);
 		}
+		return decodeRemaining;
 	}
 
-	private void putByte(ByteBuffer dst, byte b) {
-		this.outBuffer[this.outBufferEnd++] = b;
-		if (outBufferLimitReached()) {
-			flush(dst, State.DECODE);
+	private int decodeBitTree(ReadableByteChannel src, int base, int numBits) throws IOException {
+		final short[] probs = this.probs;
+		int m = 1;
+
+		for (int bitIndex = numBits; bitIndex != 0; bitIndex--) {
+			m = (m << 1) + this.rangeDecoder.decodeBit(src, probs, base + m);
+		}
+		return m - (1 << numBits);
+	}
+
+	private int decodeReverseBitTree(ReadableByteChannel src, int base, int numBits) throws IOException {
+		final short[] probs = this.probs;
+		int m = 1;
+		int symbol = 0;
+
+		for (int bitIndex = 0; bitIndex < numBits; bitIndex++) {
+			final int bit = this.rangeDecoder.decodeBit(src, probs, base + m);
+
+			m = (m << 1) + bit;
+			symbol |= (bit << bitIndex);
 		}
+		return symbol;
 	}
 
-	private byte getByte(int distance) {
-		int pos = this.outBufferEnd - distance - 1;
+	private int decodeLen(ReadableByteChannel src, int base, int posState) throws IOException {
+		int symbol;
 
-		if (pos < 0) {
-			pos += this.outBuffer.length;
+		if (this.rangeDecoder.decodeBit(src, this.probs, base + Lzma.LEN_CHOICE) == 0) {
+			symbol = decodeBitTree(src, base + Lzma.LEN_LOW + (posState << Lzma.NUM_LOW_LEN_BITS),
+					Lzma.NUM_LOW_LEN_BITS);
+		} else if (this.rangeDecoder.decodeBit(src, this.probs, base + Lzma.LEN_CHOICE2) == 0) {
+			symbol = Lzma.NUM_LOW_LEN_SYMBOLS
+					+ decodeBitTree(src, base + Lzma.LEN_MID + (posState << Lzma.NUM_MID_LEN_BITS),
+							Lzma.NUM_MID_LEN_BITS);
+		} else {
+			symbol = Lzma.NUM_LOW_LEN_SYMBOLS + Lzma.NUM_MID_LEN_SYMBOLS
+					+ decodeBitTree(src, base + Lzma.LEN_HIGH, Lzma.NUM_HIGH_LEN_BITS);
 		}
-		return this.outBuffer[pos];
+		return symbol;
+	}
+
+	private int literalBase(long pos, byte prev) {
+		return Lzma.PROBS_LITERAL + Lzma.LITERAL_PROBS_SIZE
+				* ((((int) pos & this.literalPosMask) << this.lc) + ((prev & 0xff) >>> (8 - this.lc)));
+	}
+
+	private byte decodeLiteral(ReadableByteChannel src, int base) throws IOException {
+		final short[] probs = this.probs;
+		int symbol = 1;
+
+		do {
+			symbol = (symbol << 1) | this.rangeDecoder.decodeBit(src, probs, base + symbol);
+		} while (symbol < 0x100);
+		return (byte) symbol;
+	}
+
+	private byte decodeMatchedLiteral(ReadableByteChannel src, int base, byte matchByte) throws IOException {
+		final short[] probs = this.probs;
+		int symbol = 1;
+		int currentMatchByte = matchByte;
+
+		do {
+			final int matchBit = (currentMatchByte >> 7) & 1;
+
+			currentMatchByte <<= 1;
+
+			final int bit = this.rangeDecoder.decodeBit(src, probs, base + ((1 + matchBit) << 8) + symbol);
+
+			symbol = (symbol << 1) | bit;
+			if (matchBit != bit) {
+				while (symbol < 0x100) {
+					symbol = (symbol << 1) | this.rangeDecoder.decodeBit(src, probs, base + symbol);
+				}
+				break;
+			}
+		} while (symbol < 0x100);
+		return (byte) symbol;
 	}
 
 }
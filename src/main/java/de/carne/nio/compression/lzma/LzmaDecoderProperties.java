@@ -29,6 +29,7 @@ public class LzmaDecoderProperties extends CompressionProperties {
 	private static final CompressionProperty DICTIONARY_SIZE = new CompressionProperty("DICTIONARY_SIZE",
 			Integer.class);
 	private static final CompressionProperty DECODED_SIZE = new CompressionProperty("DECODED_SIZE", Long.class);
+	private static final CompressionProperty READ_AHEAD = new CompressionProperty("READ_AHEAD", Integer.class);
 
 	/**
 	 * Constructs a new {@linkplain LzmaDecoderProperties} instance with default values.
@@ -38,6 +39,7 @@ public class LzmaDecoderProperties extends CompressionProperties {
 		registerProperty(LCLPBP, Byte.valueOf((byte) 0x5d));
 		registerProperty(DICTIONARY_SIZE, Integer.valueOf(0x00800000));
 		registerProperty(DECODED_SIZE, Long.valueOf(-1l));
+		registerProperty(READ_AHEAD, Integer.valueOf(0));
 	}
 
 	/**
@@ -112,4 +114,29 @@ public class LzmaDecoderProperties extends CompressionProperties {
 		return getLongProperty(DECODED_SIZE);
 	}
 
+	/**
+	 * Sets the read-ahead property.
+	 * <p>
+	 * If set to a value greater than {@code 0}, the encoded data is read in chunks of the given size. Use
+	 * {@linkplain LzmaDecoder#drainInput()} to retrieve any bytes read beyond the end of the encoded data.
+	 * </p>
+	 * <p>
+	 * The batched symbol decoding is only used if read-ahead is enabled.
+	 * </p>
+	 *
+	 * @param readAhead the number of bytes to read ahead ({@code 0} to read only the bytes actually needed).
+	 */
+	public void setReadAheadProperty(int readAhead) {
+		setIntProperty(READ_AHEAD, readAhead);
+	}
+
+	/**
+	 * Gets the read-ahead property.
+	 *
+	 * @return the read-ahead property.
+	 */
+	public int getReadAheadProperty() {
+		return getIntProperty(READ_AHEAD);
+	}
+
 }
@@ -0,0 +1,1313 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.spi.Encoder;
+
+/**
+ * Encoder for LZMA compressed data.
+ * <p>
+ * Depending on the configured {@linkplain LzmaMatchFinder} the input is either parsed using a fast greedy/lazy
+ * heuristic ({@linkplain LzmaMatchFinder#HC4}) or using the price based optimal parser of the LZMA SDK
+ * ({@linkplain LzmaMatchFinder#BT4}). As the input size is not known in advance, every stream is terminated by an end
+ * marker. Any input following a {@linkplain #finishEncoding(WritableByteChannel)} call starts a new stream.
+ */
+public class LzmaEncoder extends Encoder {
+
+	/**
+	 * The default preset.
+	 */
+	public static final int DEFAULT_PRESET = 6;
+
+	/**
+	 * The maximum preset.
+	 */
+	public static final int MAX_PRESET = 9;
+
+	/**
+	 * The maximum supported dictionary size.
+	 */
+	public static final int DICTIONARY_SIZE_MAX = 1 << 29;
+
+	/**
+	 * The minimum nice length.
+	 */
+	public static final int NICE_LENGTH_MIN = 5;
+
+	private static final int HEADER_SIZE = 13;
+
+	private static final int NUM_OPTS = 1 << 12;
+	private static final int INFINITY_PRICE = 0xfffffff;
+	// Input required ahead of the current position to run a complete optimal parsing step
+	private static final int LOOKAHEAD_SIZE = NUM_OPTS + Lzma.MATCH_MAX_LEN + 1;
+	private static final int MATCH_PRICE_UPDATE_INTERVAL = 1 << 7;
+
+	private final LzmaEncoderProperties properties;
+	private final LzmaFormat format;
+	private final byte lzmaProperties;
+	private final int lc;
+	private final int literalPosMask;
+	private final int posStateMask;
+	private final int dictionarySize;
+	private final boolean fastMode;
+	private final int niceLength;
+	private final int distTableSize;
+	private final int lenTableSize;
+	private final LzmaEncoderWindow window;
+	private final LzmaRangeEncoder rangeEncoder = new LzmaRangeEncoder();
+	private final short[] probs;
+	private final int[] reps = new int[Lzma.NUM_REP_DISTANCES];
+	private final int[] matchDistances = new int[Lzma.MATCH_MAX_LEN * 2 + 2];
+	private final Optimal[] optimum = new Optimal[NUM_OPTS];
+	private final int[] optimumReps = new int[Lzma.NUM_REP_DISTANCES];
+	private final int[] repLens = new int[Lzma.NUM_REP_DISTANCES];
+	private final int[] posSlotPrices = new int[1 << (Lzma.NUM_POS_SLOT_BITS + Lzma.NUM_LEN2POS_STATES_BITS)];
+	private final int[] distancesPrices = new int[Lzma.NUM_FULL_DISTANCES << Lzma.NUM_LEN2POS_STATES_BITS];
+	private final int[] tempPrices = new int[Lzma.NUM_FULL_DISTANCES];
+	private final int[] alignPrices = new int[Lzma.ALIGN_TABLE_SIZE];
+	private final int[] lenPrices = new int[Lzma.NUM_LEN_SYMBOLS << Lzma.NUM_POS_STATES_BITS_MAX];
+	private final int[] lenCounters = new int[Lzma.NUM_POS_STATES_MAX];
+	private final int[] repLenPrices = new int[Lzma.NUM_LEN_SYMBOLS << Lzma.NUM_POS_STATES_BITS_MAX];
+	private final int[] repLenCounters = new int[Lzma.NUM_POS_STATES_MAX];
+	private int state;
+	private byte previousByte;
+	private long nowPos;
+	private int additionalOffset;
+	private int numAvailable;
+	private int numDistancePairs;
+	private int longestMatchLength;
+	private boolean longestMatchWasFound;
+	private int optimumEndIndex;
+	private int optimumCurrentIndex;
+	private int backRes;
+	private int matchPriceCount;
+	private int alignPriceCount;
+	private boolean streamStarted;
+
+	private static final class Optimal {
+
+		int state;
+		boolean prev1IsChar;
+		boolean prev2;
+		int posPrev2;
+		int backPrev2;
+		int price;
+		int posPrev;
+		int backPrev;
+		int backs0;
+		int backs1;
+		int backs2;
+		int backs3;
+
+		Optimal() {
+			// Nothing to do here
+		}
+
+		void makeAsChar() {
+			this.backPrev = -1;
+			this.prev1IsChar = false;
+		}
+
+		void makeAsShortRep() {
+			this.backPrev = 0;
+			this.prev1IsChar = false;
+		}
+
+		boolean isShortRep() {
+			return this.backPrev == 0;
+		}
+
+	}
+
+	/**
+	 * Constructs a new {@linkplain LzmaEncoder} instance.
+	 *
+	 * @param properties the encoder properties to use.
+	 */
+	public LzmaEncoder(LzmaEncoderProperties properties) {
+		super(LzmaFactory.COMPRESSION_NAME);
+		this.properties = properties;
+		this.format = properties.getFormat();
+		this.lzmaProperties = properties.getLcLpBpProperty();
+
+		final int lzmaPropertiesValue = this.lzmaProperties & 0xff;
+
+		if (lzmaPropertiesValue >= (Lzma.NUM_POS_STATES_BITS_MAX + 1) * 5 * 9) {
+			throw new IllegalArgumentException("Invalid LZMA properties: " + lzmaPropertiesValue);
+		}
+		this.dictionarySize = properties.getDictionarySizeProperty();
+		if (this.dictionarySize < Lzma.WINDOW_SIZE_MIN || DICTIONARY_SIZE_MAX < this.dictionarySize) {
+			throw new IllegalArgumentException("Invalid LZMA dictionary size: " + this.dictionarySize);
+		}
+		this.niceLength = properties.getNiceLengthProperty();
+		if (this.niceLength < NICE_LENGTH_MIN || Lzma.MATCH_MAX_LEN < this.niceLength) {
+			throw new IllegalArgumentException("Invalid LZMA nice length: " + this.niceLength);
+		}
+
+		final int depth = properties.getDepthProperty();
+
+		if (depth < 1) {
+			throw new IllegalArgumentException("Invalid LZMA depth: " + depth);
+		}
+
+		final int lp = (lzmaPropertiesValue / 9) % 5;
+		final int pb = lzmaPropertiesValue / 45;
+
+		this.lc = lzmaPropertiesValue % 9;
+		this.literalPosMask = (1 << lp) - 1;
+		this.posStateMask = (1 << pb) - 1;
+		this.probs = new short[Lzma.probsSize(this.lc, lp)];
+
+		final LzmaMatchFinder matchFinder = properties.getMatchFinderProperty();
+
+		this.fastMode = LzmaMatchFinder.HC4.equals(matchFinder);
+		this.window = new LzmaEncoderWindow(matchFinder, this.dictionarySize, NUM_OPTS, this.niceLength,
+				LOOKAHEAD_SIZE, depth);
+
+		int dictionaryLogSize = 0;
+
+		while (this.dictionarySize > (1 << dictionaryLogSize)) {
+			dictionaryLogSize++;
+		}
+		this.distTableSize = dictionaryLogSize * 2;
+		this.lenTableSize = this.niceLength + 1 - Lzma.MATCH_MIN_LEN;
+		for (int i = 0; i < this.optimum.length; i++) {
+			this.optimum[i] = new Optimal();
+		}
+		reset0();
+	}
+
+	private void reset0() {
+		this.window.reset();
+		this.rangeEncoder.reset();
+		LzmaRangeDecoder.initBitModels(this.probs);
+		this.state = Lzma.STATE_INIT;
+		this.previousByte = 0;
+		for (int i = 0; i < Lzma.NUM_REP_DISTANCES; i++) {
+			this.reps[i] = 0;
+		}
+		this.nowPos = 0;
+		this.additionalOffset = 0;
+		this.longestMatchWasFound = false;
+		this.optimumEndIndex = 0;
+		this.optimumCurrentIndex = 0;
+		if (!this.fastMode) {
+			fillDistancesPrices();
+			fillAlignPrices();
+			for (int posState = 0; posState <= this.posStateMask; posState++) {
+				updateLenPrices(Lzma.PROBS_LEN, this.lenPrices, this.lenCounters, posState);
+				updateLenPrices(Lzma.PROBS_REP_LEN, this.repLenPrices, this.repLenCounters, posState);
+			}
+		}
+		this.streamStarted = false;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	public int encode(ByteBuffer src, WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int consumed = 0;
+		int encoded = 0;
+
+		try {
+			encoded += startStream(dst);
+			while (src.hasRemaining()) {
+				consumed += this.window.fill(src);
+				encodeAvailable(false);
+			}
+			encoded += this.rangeEncoder.flush(dst);
+		} finally {
+			endProcessing(beginTime, consumed, encoded);
+		}
+		return encoded;
+	}
+
+	@Override
+	public int finishEncoding(WritableByteChannel dst) throws IOException {
+		long beginTime = beginProcessing();
+		int encoded = 0;
+
+		try {
+			encoded += startStream(dst);
+			encodeAvailable(true);
+			encodeEndMarker((int) this.nowPos & this.posStateMask);
+			this.rangeEncoder.finish();
+			encoded += this.rangeEncoder.flush(dst);
+			// Any further input starts a new stream
+			reset0();
+		} finally {
+			endProcessing(beginTime, 0, encoded);
+		}
+		return encoded;
+	}
+
+	private int startStream(WritableByteChannel dst) throws IOException {
+		int written = 0;
+
+		if (!this.streamStarted) {
+			if (LzmaFormat.LZMALIB.equals(this.format)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+				header.put(this.lzmaProperties);
+				header.putInt(this.dictionarySize);
+				// The encoded size is unknown (the stream is terminated by an end marker)
+				header.putLong(-1L);
+				header.flip();
+				while (header.hasRemaining()) {
+					written += dst.write(header);
+				}
+			}
+			this.streamStarted = true;
+		}
+		return written;
+	}
+
+	/*
+	 * Encodes the buffered input. Unless the stream is finished, a parsing step is only started if enough input is
+	 * available ahead of the current position to make the result independent of the input chunking.
+	 */
+	private void encodeAvailable(boolean finish) {
+		while (true) {
+			if (this.optimumCurrentIndex == this.optimumEndIndex) {
+				int available = this.window.available();
+
+				if (finish ? available == 0 && this.additionalOffset == 0 : available < LOOKAHEAD_SIZE) {
+					break;
+				}
+			}
+			if (this.nowPos == 0) {
+				encodeFirstLiteral();
+				continue;
+			}
+
+			int len = (this.fastMode ? getOptimumFast() : getOptimum((int) this.nowPos));
+
+			encodeSymbol(len, this.backRes);
+			this.additionalOffset -= len;
+			this.nowPos += len;
+			if (this.additionalOffset == 0 && !this.fastMode) {
+				if (this.matchPriceCount >= MATCH_PRICE_UPDATE_INTERVAL) {
+					fillDistancesPrices();
+				}
+				if (this.alignPriceCount >= Lzma.ALIGN_TABLE_SIZE) {
+					fillAlignPrices();
+				}
+			}
+		}
+	}
+
+	private void encodeFirstLiteral() {
+		readMatchDistances();
+		this.rangeEncoder.encodeBit(this.probs, Lzma.PROBS_IS_MATCH + (this.state << Lzma.NUM_POS_STATES_BITS_MAX), 0);
+		this.state = Lzma.stateUpdateChar(this.state);
+
+		byte curByte = this.window.getIndexByte(-this.additionalOffset);
+
+		encodeLiteral(literalBase(0, this.previousByte), curByte);
+		this.previousByte = curByte;
+		this.additionalOffset--;
+		this.nowPos++;
+	}
+
+	private void encodeSymbol(int len, int pos) {
+		final LzmaRangeEncoder encoder = this.rangeEncoder;
+		final short[] probs = this.probs;
+		final int posState = (int) this.nowPos & this.posStateMask;
+		final int complexState = (this.state << Lzma.NUM_POS_STATES_BITS_MAX) + posState;
+
+		if (len == 1 && pos == -1) {
+			encoder.encodeBit(probs, Lzma.PROBS_IS_MATCH + complexState, 0);
+
+			byte curByte = this.window.getIndexByte(-this.additionalOffset);
+			int base = literalBase(this.nowPos, this.previousByte);
+
+			if (!Lzma.stateIsCharState(this.state)) {
+				byte matchByte = this.window.getIndexByte(-this.reps[0] - 1 - this.additionalOffset);
+
+				encodeMatchedLiteral(base, matchByte, curByte);
+			} else {
+				encodeLiteral(base, curByte);
+			}
+			this.previousByte = curByte;
+			this.state = Lzma.stateUpdateChar(this.state);
+		} else {
+			encoder.encodeBit(probs, Lzma.PROBS_IS_MATCH + complexState, 1);
+			if (pos < Lzma.NUM_REP_DISTANCES) {
+				encoder.encodeBit(probs, Lzma.PROBS_IS_REP + this.state, 1);
+				if (pos == 0) {
+					encoder.encodeBit(probs, Lzma.PROBS_IS_REP_G0 + this.state, 0);
+					encoder.encodeBit(probs, Lzma.PROBS_IS_REP0_LONG + complexState, len == 1 ? 0 : 1);
+				} else {
+					encoder.encodeBit(probs, Lzma.PROBS_IS_REP_G0 + this.state, 1);
+					if (pos == 1) {
+						encoder.encodeBit(probs, Lzma.PROBS_IS_REP_G1 + this.state, 0);
+					} else {
+						encoder.encodeBit(probs, Lzma.PROBS_IS_REP_G1 + this.state, 1);
+						encoder.encodeBit(probs, Lzma.PROBS_IS_REP_G2 + this.state, pos - 2);
+					}
+				}
+				if (len == 1) {
+					this.state = Lzma.stateUpdateShortRep(this.state);
+				} else {
+					encodeLen(Lzma.PROBS_REP_LEN, this.repLenPrices, this.repLenCounters, len - Lzma.MATCH_MIN_LEN,
+							posState);
+					this.state = Lzma.stateUpdateRep(this.state);
+				}
+
+				int distance = this.reps[pos];
+
+				for (int i = pos; i >= 1; i--) {
+					this.reps[i] = this.reps[i - 1];
+				}
+				this.reps[0] = distance;
+			} else {
+				encoder.encodeBit(probs, Lzma.PROBS_IS_REP + this.state, 0);
+				this.state = Lzma.stateUpdateMatch(this.state);
+				encodeLen(Lzma.PROBS_LEN, this.lenPrices, this.lenCounters, len - Lzma.MATCH_MIN_LEN, posState);
+
+				int distance = pos - Lzma.NUM_REP_DISTANCES;
+
+				encodeDistance(distance, len);
+				for (int i = Lzma.NUM_REP_DISTANCES - 1; i >= 1; i--) {
+					this.reps[i] = this.reps[i - 1];
+				}
+				this.reps[0] = distance;
+				this.matchPriceCount++;
+			}
+			this.previousByte = this.window.getIndexByte(len - 1 - this.additionalOffset);
+		}
+	}
+
+	private void encodeDistance(int distance, int len) {
+		final LzmaRangeEncoder encoder = this.rangeEncoder;
+		final int posSlot = getPosSlot(distance);
+
+		encoder.encodeBitTree(this.probs, Lzma.PROBS_POS_SLOT + (Lzma.getLenToPosState(len) << Lzma.NUM_POS_SLOT_BITS),
+				Lzma.NUM_POS_SLOT_BITS, posSlot);
+		if (posSlot >= Lzma.START_POS_MODEL_INDEX) {
+			final int footerBits = (posSlot >>> 1) - 1;
+			final int baseVal = (2 | (posSlot & 1)) << footerBits;
+			final int posReduced = distance - baseVal;
+
+			if (posSlot < Lzma.END_POS_MODEL_INDEX) {
+				encoder.encodeReverseBitTree(this.probs, Lzma.PROBS_SPEC_POS + baseVal - posSlot - 1, footerBits,
+						posReduced);
+			} else {
+				encoder.encodeDirectBits(posReduced >>> Lzma.NUM_ALIGN_BITS, footerBits - Lzma.NUM_ALIGN_BITS);
+				encoder.encodeReverseBitTree(this.probs, Lzma.PROBS_ALIGN, Lzma.NUM_ALIGN_BITS,
+						posReduced & Lzma.ALIGN_MASK);
+				this.alignPriceCount++;
+			}
+		}
+	}
+
+	private void encodeEndMarker(int posState) {
+		final LzmaRangeEncoder encoder = this.rangeEncoder;
+
+		encoder.encodeBit(this.probs,
+				Lzma.PROBS_IS_MATCH + (this.state << Lzma.NUM_POS_STATES_BITS_MAX) + posState, 1);
+		encoder.encodeBit(this.probs, Lzma.PROBS_IS_REP + this.state, 0);
+		this.state = Lzma.stateUpdateMatch(this.state);
+		encodeLen(Lzma.PROBS_LEN, this.lenPrices, this.lenCounters, 0, posState);
+
+		// The end marker is the distance 0xffffffff
+		final int posSlot = (1 << Lzma.NUM_POS_SLOT_BITS) - 1;
+		final int footerBits = 30;
+		final int posReduced = (1 << footerBits) - 1;
+		final int lenToPosState = Lzma.getLenToPosState(Lzma.MATCH_MIN_LEN);
+
+		encoder.encodeBitTree(this.probs, Lzma.PROBS_POS_SLOT + (lenToPosState << Lzma.NUM_POS_SLOT_BITS),
+				Lzma.NUM_POS_SLOT_BITS, posSlot);
+		encoder.encodeDirectBits(posReduced >>> Lzma.NUM_ALIGN_BITS, footerBits - Lzma.NUM_ALIGN_BITS);
+		encoder.encodeReverseBitTree(this.probs, Lzma.PROBS_ALIGN, Lzma.NUM_ALIGN_BITS, posReduced & Lzma.ALIGN_MASK);
+	}
+
+	private int literalBase(long position, byte prevByte) {
+		return Lzma.PROBS_LITERAL + Lzma.LITERAL_PROBS_SIZE
+				* ((((int) position & this.literalPosMask) << this.lc) + ((prevByte & 0xff) >>> (8 - this.lc)));
+	}
+
+	private void encodeLiteral(int base, byte symbol) {
+		int context = 1;
+
+		for (int i = 7; i >= 0; i--) {
+			final int bit = (symbol >>> i) & 1;
+
+			this.rangeEncoder.encodeBit(this.probs, base + context, bit);
+			context = (context << 1) | bit;
+		}
+	}
+
+	private void encodeMatchedLiteral(int base, byte matchByte, byte symbol) {
+		int context = 1;
+		boolean same = true;
+
+		for (int i = 7; i >= 0; i--) {
+			final int bit = (symbol >>> i) & 1;
+			int index = context;
+
+			if (same) {
+				final int matchBit = (matchByte >>> i) & 1;
+
+				index += (1 + matchBit) << 8;
+				same = (matchBit == bit);
+			}
+			this.rangeEncoder.encodeBit(this.probs, base + index, bit);
+			context = (context << 1) | bit;
+		}
+	}
+
+	private int getLiteralPrice(int base, boolean matchMode, byte matchByte, byte symbol) {
+		final short[] probs = this.probs;
+		int price = 0;
+		int context = 1;
+		int i = 7;
+
+		if (matchMode) {
+			for (; i >= 0; i--) {
+				final int matchBit = (matchByte >>> i) & 1;
+				final int bit = (symbol >>> i) & 1;
+
+				price += LzmaRangeEncoder.getPrice(probs[base + ((1 + matchBit) << 8) + context], bit);
+				context = (context << 1) | bit;
+				if (matchBit != bit) {
+					i--;
+					break;
+				}
+			}
+		}
+		for (; i >= 0; i--) {
+			final int bit = (symbol >>> i) & 1;
+
+			price += LzmaRangeEncoder.getPrice(probs[base + context], bit);
+			context = (context << 1) | bit;
+		}
+		return price;
+	}
+
+	private void encodeLen(int base, int[] prices, int[] counters, int symbol, int posState) {
+		final LzmaRangeEncoder encoder = this.rangeEncoder;
+
+		if (symbol < Lzma.NUM_LOW_LEN_SYMBOLS) {
+			encoder.encodeBit(this.probs, base + Lzma.LEN_CHOICE, 0);
+			encoder.encodeBitTree(this.probs, base + Lzma.LEN_LOW + (posState << Lzma.NUM_LOW_LEN_BITS),
+					Lzma.NUM_LOW_LEN_BITS, symbol);
+		} else {
+			encoder.encodeBit(this.probs, base + Lzma.LEN_CHOICE, 1);
+			if (symbol < Lzma.NUM_LOW_LEN_SYMBOLS + Lzma.NUM_MID_LEN_SYMBOLS) {
+				encoder.encodeBit(this.probs, base + Lzma.LEN_CHOICE2, 0);
+				encoder.encodeBitTree(this.probs, base + Lzma.LEN_MID + (posState << Lzma.NUM_MID_LEN_BITS),
+						Lzma.NUM_MID_LEN_BITS, symbol - Lzma.NUM_LOW_LEN_SYMBOLS);
+			} else {
+				encoder.encodeBit(this.probs, base + Lzma.LEN_CHOICE2, 1);
+				encoder.encodeBitTree(this.probs, base + Lzma.LEN_HIGH, Lzma.NUM_HIGH_LEN_BITS,
+						symbol - Lzma.NUM_LOW_LEN_SYMBOLS - Lzma.NUM_MID_LEN_SYMBOLS);
+			}
+		}
+		if (!this.fastMode && --counters[posState] == 0) {
+			updateLenPrices(base, prices, counters, posState);
+		}
+	}
+
+	private void updateLenPrices(int base, int[] prices, int[] counters, int posState) {
+		final short[] probs = this.probs;
+		final int a0 = LzmaRangeEncoder.getPrice0(probs[base + Lzma.LEN_CHOICE]);
+		final int a1 = LzmaRangeEncoder.getPrice1(probs[base + Lzma.LEN_CHOICE]);
+		final int b0 = a1 + LzmaRangeEncoder.getPrice0(probs[base + Lzma.LEN_CHOICE2]);
+		final int b1 = a1 + LzmaRangeEncoder.getPrice1(probs[base + Lzma.LEN_CHOICE2]);
+		final int st = posState * Lzma.NUM_LEN_SYMBOLS;
+		final int midStart = Lzma.NUM_LOW_LEN_SYMBOLS;
+		final int highStart = Lzma.NUM_LOW_LEN_SYMBOLS + Lzma.NUM_MID_LEN_SYMBOLS;
+		int i = 0;
+
+		for (; i < midStart && i < this.lenTableSize; i++) {
+			prices[st + i] = a0 + LzmaRangeEncoder.getBitTreePrice(probs,
+					base + Lzma.LEN_LOW + (posState << Lzma.NUM_LOW_LEN_BITS), Lzma.NUM_LOW_LEN_BITS, i);
+		}
+		for (; i < highStart && i < this.lenTableSize; i++) {
+			prices[st + i] = b0 + LzmaRangeEncoder.getBitTreePrice(probs,
+					base + Lzma.LEN_MID + (posState << Lzma.NUM_MID_LEN_BITS), Lzma.NUM_MID_LEN_BITS, i - midStart);
+		}
+		for (; i < this.lenTableSize; i++) {
+			prices[st + i] = b1 + LzmaRangeEncoder.getBitTreePrice(probs, base + Lzma.LEN_HIGH,
+					Lzma.NUM_HIGH_LEN_BITS, i - highStart);
+		}
+		counters[posState] = this.lenTableSize;
+	}
+
+	private static int getPosSlot(int distance) {
+		int posSlot;
+
+		if (distance < Lzma.START_POS_MODEL_INDEX) {
+			posSlot = distance;
+		} else {
+			final int highBit = 31 - Integer.numberOfLeadingZeros(distance);
+
+			posSlot = (highBit << 1) | ((distance >>> (highBit - 1)) & 1);
+		}
+		return posSlot;
+	}
+
+	private void fillDistancesPrices() {
+		final short[] probs = this.probs;
+
+		for (int i = Lzma.START_POS_MODEL_INDEX; i < Lzma.NUM_FULL_DISTANCES; i++) {
+			final int posSlot = getPosSlot(i);
+			final int footerBits = (posSlot >>> 1) - 1;
+			final int baseVal = (2 | (posSlot & 1)) << footerBits;
+
+			this.tempPrices[i] = LzmaRangeEncoder.getReverseBitTreePrice(probs,
+					Lzma.PROBS_SPEC_POS + baseVal - posSlot - 1, footerBits, i - baseVal);
+		}
+		for (int lenToPosState = 0; lenToPosState < Lzma.NUM_LEN2POS_STATES; lenToPosState++) {
+			final int st = lenToPosState << Lzma.NUM_POS_SLOT_BITS;
+			final int posSlotBase = Lzma.PROBS_POS_SLOT + st;
+
+			for (int posSlot = 0; posSlot < this.distTableSize; posSlot++) {
+				this.posSlotPrices[st + posSlot] = LzmaRangeEncoder.getBitTreePrice(probs, posSlotBase,
+						Lzma.NUM_POS_SLOT_BITS, posSlot);
+			}
+			for (int posSlot = Lzma.END_POS_MODEL_INDEX; posSlot < this.distTableSize; posSlot++) {
+				this.posSlotPrices[st + posSlot] += (((posSlot >>> 1) - 1)
+						- Lzma.NUM_ALIGN_BITS) << LzmaRangeEncoder.NUM_BIT_PRICE_SHIFT_BITS;
+			}
+
+			final int st2 = lenToPosState * Lzma.NUM_FULL_DISTANCES;
+			int i = 0;
+
+			for (; i < Lzma.START_POS_MODEL_INDEX; i++) {
+				this.distancesPrices[st2 + i] = this.posSlotPrices[st + i];
+			}
+			for (; i < Lzma.NUM_FULL_DISTANCES; i++) {
+				this.distancesPrices[st2 + i] = this.posSlotPrices[st + getPosSlot(i)] + this.tempPrices[i];
+			}
+		}
+		this.matchPriceCount = 0;
+	}
+
+	private void fillAlignPrices() {
+		for (int i = 0; i < Lzma.ALIGN_TABLE_SIZE; i++) {
+			this.alignPrices[i] = LzmaRangeEncoder.getReverseBitTreePrice(this.probs, Lzma.PROBS_ALIGN,
+					Lzma.NUM_ALIGN_BITS, i);
+		}
+		this.alignPriceCount = 0;
+	}
+
+	private int getRepLen1Price(int state, int posState) {
+		return LzmaRangeEncoder.getPrice0(this.probs[Lzma.PROBS_IS_REP_G0 + state]) + LzmaRangeEncoder
+				.getPrice0(this.probs[Lzma.PROBS_IS_REP0_LONG + (state << Lzma.NUM_POS_STATES_BITS_MAX) + posState]);
+	}
+
+	private int getPureRepPrice(int repIndex, int state, int posState) {
+		final short[] probs = this.probs;
+		int price;
+
+		if (repIndex == 0) {
+			price = LzmaRangeEncoder.getPrice0(probs[Lzma.PROBS_IS_REP_G0 + state]);
+			price += LzmaRangeEncoder
+					.getPrice1(probs[Lzma.PROBS_IS_REP0_LONG + (state << Lzma.NUM_POS_STATES_BITS_MAX) + posState]);
+		} else {
+			price = LzmaRangeEncoder.getPrice1(probs[Lzma.PROBS_IS_REP_G0 + state]);
+			if (repIndex == 1) {
+				price += LzmaRangeEncoder.getPrice0(probs[Lzma.PROBS_IS_REP_G1 + state]);
+			} else {
+				price += LzmaRangeEncoder.getPrice1(probs[Lzma.PROBS_IS_REP_G1 + state]);
+				price += LzmaRangeEncoder.getPrice(probs[Lzma.PROBS_IS_REP_G2 + state], repIndex - 2);
+			}
+		}
+		return price;
+	}
+
+	private int getRepPrice(int repIndex, int len, int state, int posState) {
+		return this.repLenPrices[posState * Lzma.NUM_LEN_SYMBOLS + len - Lzma.MATCH_MIN_LEN]
+				+ getPureRepPrice(repIndex, state, posState);
+	}
+
+	private int getPosLenPrice(int distance, int len, int posState) {
+		final int lenToPosState = Lzma.getLenToPosState(len);
+		int price;
+
+		if (distance < Lzma.NUM_FULL_DISTANCES) {
+			price = this.distancesPrices[lenToPosState * Lzma.NUM_FULL_DISTANCES + distance];
+		} else {
+			price = this.posSlotPrices[(lenToPosState << Lzma.NUM_POS_SLOT_BITS) + getPosSlot(distance)]
+					+ this.alignPrices[distance & Lzma.ALIGN_MASK];
+		}
+		return price + this.lenPrices[posState * Lzma.NUM_LEN_SYMBOLS + len - Lzma.MATCH_MIN_LEN];
+	}
+
+	private int isMatchPrice0(int state, int posState) {
+		return LzmaRangeEncoder
+				.getPrice0(this.probs[Lzma.PROBS_IS_MATCH + (state << Lzma.NUM_POS_STATES_BITS_MAX) + posState]);
+	}
+
+	private int isMatchPrice1(int state, int posState) {
+		return LzmaRangeEncoder
+				.getPrice1(this.probs[Lzma.PROBS_IS_MATCH + (state << Lzma.NUM_POS_STATES_BITS_MAX) + posState]);
+	}
+
+	private int readMatchDistances() {
+		int lenRes = 0;
+
+		this.numAvailable = this.window.available();
+		this.numDistancePairs = this.window.getMatches(this.matchDistances);
+		if (this.numDistancePairs > 0) {
+			lenRes = this.matchDistances[this.numDistancePairs - 2];
+			if (lenRes == this.niceLength) {
+				lenRes += this.window.getMatchLen(lenRes - 1, this.matchDistances[this.numDistancePairs - 1],
+						Lzma.MATCH_MAX_LEN - lenRes);
+			}
+		}
+		this.additionalOffset++;
+		return lenRes;
+	}
+
+	private void movePos(int num) {
+		if (num > 0) {
+			this.window.skip(num);
+			this.additionalOffset += num;
+		}
+	}
+
+	private static boolean changePair(int smallDistance, int bigDistance) {
+		return (bigDistance >>> 7) > smallDistance;
+	}
+
+	/*
+	 * Fast parsing: takes the longest match unless a repeated match of almost the same length is available or a
+	 * (lazily checked) match at the next position is better.
+	 */
+	private int getOptimumFast() {
+		final int[] matches = this.matchDistances;
+		int mainLen;
+
+		if (this.additionalOffset == 0) {
+			mainLen = readMatchDistances();
+		} else {
+			mainLen = this.longestMatchLength;
+		}
+
+		int numPairs = this.numDistancePairs;
+		int numAvail = this.numAvailable;
+
+		this.backRes = -1;
+		if (numAvail < 2) {
+			return 1;
+		}
+		numAvail = Math.min(numAvail, Lzma.MATCH_MAX_LEN);
+
+		int repLen = 0;
+		int repIndex = 0;
+
+		for (int i = 0; i < Lzma.NUM_REP_DISTANCES; i++) {
+			int len = this.window.getMatchLen(-1, this.reps[i], numAvail);
+
+			if (len < 2) {
+				continue;
+			}
+			if (len >= this.niceLength) {
+				this.backRes = i;
+				movePos(len - 1);
+				return len;
+			}
+			if (len > repLen) {
+				repIndex = i;
+				repLen = len;
+			}
+		}
+		if (mainLen >= this.niceLength) {
+			this.backRes = matches[numPairs - 1] + Lzma.NUM_REP_DISTANCES;
+			movePos(mainLen - 1);
+			return mainLen;
+		}
+
+		int mainDist = 0;
+
+		if (mainLen >= 2) {
+			mainDist = matches[numPairs - 1];
+			while (numPairs > 2 && mainLen == matches[numPairs - 4] + 1) {
+				if (!changePair(matches[numPairs - 3], mainDist)) {
+					break;
+				}
+				numPairs -= 2;
+				mainLen = matches[numPairs - 2];
+				mainDist = matches[numPairs - 1];
+			}
+			if (mainLen == 2 && mainDist >= 0x80) {
+				mainLen = 1;
+			}
+		}
+		if (repLen >= 2 && (repLen + 1 >= mainLen || (repLen + 2 >= mainLen && mainDist >= (1 << 9))
+				|| (repLen + 3 >= mainLen && mainDist >= (1 << 15)))) {
+			this.backRes = repIndex;
+			movePos(repLen - 1);
+			return repLen;
+		}
+		if (mainLen < 2 || numAvail <= 2) {
+			return 1;
+		}
+
+		// Check whether a literal followed by the next position's match is the better choice
+		this.longestMatchLength = readMatchDistances();
+		if (this.longestMatchLength >= 2) {
+			final int newDistance = matches[this.numDistancePairs - 1];
+
+			if ((this.longestMatchLength >= mainLen && newDistance < mainDist)
+					|| (this.longestMatchLength == mainLen + 1 && !changePair(mainDist, newDistance))
+					|| this.longestMatchLength > mainLen + 1
+					|| (this.longestMatchLength + 1 >= mainLen && mainLen >= 3 && changePair(newDistance, mainDist))) {
+				return 1;
+			}
+		}
+
+		final int limit = mainLen - 1;
+
+		for (int i = 0; i < Lzma.NUM_REP_DISTANCES; i++) {
+			int len = this.window.getMatchLen(-1, this.reps[i], Math.max(limit, 2));
+
+			if (len >= 2 && len >= limit) {
+				return 1;
+			}
+		}
+		this.backRes = mainDist + Lzma.NUM_REP_DISTANCES;
+		movePos(mainLen - 2);
+		return mainLen;
+	}
+
+	private int backward(int end) {
+		final Optimal[] opts = this.optimum;
+		int cur = end;
+
+		this.optimumEndIndex = cur;
+
+		int posMem = opts[cur].posPrev;
+		int backMem = opts[cur].backPrev;
+
+		do {
+			if (opts[cur].prev1IsChar) {
+				opts[posMem].makeAsChar();
+				opts[posMem].posPrev = posMem - 1;
+				if (opts[cur].prev2) {
+					opts[posMem - 1].prev1IsChar = false;
+					opts[posMem - 1].posPrev = opts[cur].posPrev2;
+					opts[posMem - 1].backPrev = opts[cur].backPrev2;
+				}
+			}
+
+			final int posPrev = posMem;
+			final int backCur = backMem;
+
+			backMem = opts[posPrev].backPrev;
+			posMem = opts[posPrev].posPrev;
+			opts[posPrev].backPrev = backCur;
+			opts[posPrev].posPrev = cur;
+			cur = posPrev;
+		} while (cur > 0);
+		this.backRes = opts[0].backPrev;
+		this.optimumCurrentIndex = opts[0].posPrev;
+		return this.optimumCurrentIndex;
+	}
+
+	/*
+	 * Optimal parsing: determines the cheapest sequence of literals, matches and repeated matches for the upcoming
+	 * positions (up to the next long match) based on the current model prices.
+	 */
+	private int getOptimum(int startPosition) {
+		final Optimal[] opts = this.optimum;
+		final LzmaEncoderWindow win = this.window;
+
+		if (this.optimumEndIndex != this.optimumCurrentIndex) {
+			final Optimal current = opts[this.optimumCurrentIndex];
+			final int lenRes = current.posPrev - this.optimumCurrentIndex;
+
+			this.backRes = current.backPrev;
+			this.optimumCurrentIndex = current.posPrev;
+			return lenRes;
+		}
+		this.optimumCurrentIndex = 0;
+		this.optimumEndIndex = 0;
+
+		int position = startPosition;
+		int lenMain;
+
+		if (!this.longestMatchWasFound) {
+			lenMain = readMatchDistances();
+		} else {
+			lenMain = this.longestMatchLength;
+			this.longestMatchWasFound = false;
+		}
+
+		int numDistancePairsCur = this.numDistancePairs;
+		int numAvailableBytes = win.available() + 1;
+
+		if (numAvailableBytes < 2) {
+			this.backRes = -1;
+			return 1;
+		}
+
+		final int[] curReps = this.optimumReps;
+		int repMaxIndex = 0;
+
+		for (int i = 0; i < Lzma.NUM_REP_DISTANCES; i++) {
+			curReps[i] = this.reps[i];
+			this.repLens[i] = win.getMatchLen(-1, curReps[i], Lzma.MATCH_MAX_LEN);
+			if (this.repLens[i] > this.repLens[repMaxIndex]) {
+				repMaxIndex = i;
+			}
+		}
+		if (this.repLens[repMaxIndex] >= this.niceLength) {
+			this.backRes = repMaxIndex;
+
+			final int lenRes = this.repLens[repMaxIndex];
+
+			movePos(lenRes - 1);
+			return lenRes;
+		}
+		if (lenMain >= this.niceLength) {
+			this.backRes = this.matchDistances[numDistancePairsCur - 1] + Lzma.NUM_REP_DISTANCES;
+			movePos(lenMain - 1);
+			return lenMain;
+		}
+
+		byte currentByte = win.getIndexByte(-1);
+		byte matchByte = win.getIndexByte(-curReps[0] - 1 - 1);
+
+		if (lenMain < 2 && currentByte != matchByte && this.repLens[repMaxIndex] < 2) {
+			this.backRes = -1;
+			return 1;
+		}
+		opts[0].state = this.state;
+
+		int posState = position & this.posStateMask;
+
+		opts[1].price = isMatchPrice0(this.state, posState) + getLiteralPrice(literalBase(position, this.previousByte),
+				!Lzma.stateIsCharState(this.state), matchByte, currentByte);
+		opts[1].makeAsChar();
+
+		int matchPrice = isMatchPrice1(this.state, posState);
+		int repMatchPrice = matchPrice + LzmaRangeEncoder.getPrice1(this.probs[Lzma.PROBS_IS_REP + this.state]);
+
+		if (matchByte == currentByte) {
+			final int shortRepPrice = repMatchPrice + getRepLen1Price(this.state, posState);
+
+			if (shortRepPrice < opts[1].price) {
+				opts[1].price = shortRepPrice;
+				opts[1].makeAsShortRep();
+			}
+		}
+
+		int lenEnd = Math.max(lenMain, this.repLens[repMaxIndex]);
+
+		if (lenEnd < 2) {
+			this.backRes = opts[1].backPrev;
+			return 1;
+		}
+		opts[1].posPrev = 0;
+		opts[0].backs0 = curReps[0];
+		opts[0].backs1 = curReps[1];
+		opts[0].backs2 = curReps[2];
+		opts[0].backs3 = curReps[3];
+		for (int len = lenEnd; len >= 2; len--) {
+			opts[len].price = INFINITY_PRICE;
+		}
+		for (int i = 0; i < Lzma.NUM_REP_DISTANCES; i++) {
+			int repLen = this.repLens[i];
+
+			if (repLen < 2) {
+				continue;
+			}
+
+			final int price = repMatchPrice + getPureRepPrice(i, this.state, posState);
+
+			do {
+				final int curAndLenPrice = price
+						+ this.repLenPrices[posState * Lzma.NUM_LEN_SYMBOLS + repLen - Lzma.MATCH_MIN_LEN];
+				final Optimal opt = opts[repLen];
+
+				if (curAndLenPrice < opt.price) {
+					opt.price = curAndLenPrice;
+					opt.posPrev = 0;
+					opt.backPrev = i;
+					opt.prev1IsChar = false;
+				}
+			} while (--repLen >= 2);
+		}
+
+		int normalMatchPrice = matchPrice + LzmaRangeEncoder.getPrice0(this.probs[Lzma.PROBS_IS_REP + this.state]);
+		int len = (this.repLens[0] >= 2 ? this.repLens[0] + 1 : 2);
+
+		if (len <= lenMain) {
+			int offs = 0;
+
+			while (len > this.matchDistances[offs]) {
+				offs += 2;
+			}
+			for (;; len++) {
+				final int distance = this.matchDistances[offs + 1];
+				final int curAndLenPrice = normalMatchPrice + getPosLenPrice(distance, len, posState);
+				final Optimal opt = opts[len];
+
+				if (curAndLenPrice < opt.price) {
+					opt.price = curAndLenPrice;
+					opt.posPrev = 0;
+					opt.backPrev = distance + Lzma.NUM_REP_DISTANCES;
+					opt.prev1IsChar = false;
+				}
+				if (len == this.matchDistances[offs]) {
+					offs += 2;
+					if (offs == numDistancePairsCur) {
+						break;
+					}
+				}
+			}
+		}
+
+		int cur = 0;
+
+		while (true) {
+			cur++;
+			if (cur == lenEnd) {
+				return backward(cur);
+			}
+
+			int newLen = readMatchDistances();
+
+			numDistancePairsCur = this.numDistancePairs;
+			if (newLen >= this.niceLength) {
+				this.longestMatchLength = newLen;
+				this.longestMatchWasFound = true;
+				return backward(cur);
+			}
+			position++;
+
+			final Optimal curOpt = opts[cur];
+			int posPrev = curOpt.posPrev;
+			int curState;
+
+			if (curOpt.prev1IsChar) {
+				posPrev--;
+				if (curOpt.prev2) {
+					curState = opts[curOpt.posPrev2].state;
+					if (curOpt.backPrev2 < Lzma.NUM_REP_DISTANCES) {
+						curState = Lzma.stateUpdateRep(curState);
+					} else {
+						curState = Lzma.stateUpdateMatch(curState);
+					}
+				} else {
+					curState = opts[posPrev].state;
+				}
+				curState = Lzma.stateUpdateChar(curState);
+			} else {
+				curState = opts[posPrev].state;
+			}
+			if (posPrev == cur - 1) {
+				if (curOpt.isShortRep()) {
+					curState = Lzma.stateUpdateShortRep(curState);
+				} else {
+					curState = Lzma.stateUpdateChar(curState);
+				}
+			} else {
+				int pos;
+
+				if (curOpt.prev1IsChar && curOpt.prev2) {
+					posPrev = curOpt.posPrev2;
+					pos = curOpt.backPrev2;
+					curState = Lzma.stateUpdateRep(curState);
+				} else {
+					pos = curOpt.backPrev;
+					if (pos < Lzma.NUM_REP_DISTANCES) {
+						curState = Lzma.stateUpdateRep(curState);
+					} else {
+						curState = Lzma.stateUpdateMatch(curState);
+					}
+				}
+
+				final Optimal opt = opts[posPrev];
+
+				if (pos < Lzma.NUM_REP_DISTANCES) {
+					if (pos == 0) {
+						curReps[0] = opt.backs0;
+						curReps[1] = opt.backs1;
+						curReps[2] = opt.backs2;
+						curReps[3] = opt.backs3;
+					} else if (pos == 1) {
+						curReps[0] = opt.backs1;
+						curReps[1] = opt.backs0;
+						curReps[2] = opt.backs2;
+						curReps[3] = opt.backs3;
+					} else if (pos == 2) {
+						curReps[0] = opt.backs2;
+						curReps[1] = opt.backs0;
+						curReps[2] = opt.backs1;
+						curReps[3] = opt.backs3;
+					} else {
+						curReps[0] = opt.backs3;
+						curReps[1] = opt.backs0;
+						curReps[2] = opt.backs1;
+						curReps[3] = opt.backs2;
+					}
+				} else {
+					curReps[0] = pos - Lzma.NUM_REP_DISTANCES;
+					curReps[1] = opt.backs0;
+					curReps[2] = opt.backs1;
+					curReps[3] = opt.backs2;
+				}
+			}
+			curOpt.state = curState;
+			curOpt.backs0 = curReps[0];
+			curOpt.backs1 = curReps[1];
+			curOpt.backs2 = curReps[2];
+			curOpt.backs3 = curReps[3];
+
+			final int curPrice = curOpt.price;
+
+			currentByte = win.getIndexByte(-1);
+			matchByte = win.getIndexByte(-curReps[0] - 1 - 1);
+			posState = position & this.posStateMask;
+
+			final int curAnd1Price = curPrice + isMatchPrice0(curState, posState)
+					+ getLiteralPrice(literalBase(position, win.getIndexByte(-2)), !Lzma.stateIsCharState(curState),
+							matchByte, currentByte);
+			final Optimal nextOpt = opts[cur + 1];
+			boolean nextIsChar = false;
+
+			if (curAnd1Price < nextOpt.price) {
+				nextOpt.price = curAnd1Price;
+				nextOpt.posPrev = cur;
+				nextOpt.makeAsChar();
+				nextIsChar = true;
+			}
+			matchPrice = curPrice + isMatchPrice1(curState, posState);
+			repMatchPrice = matchPrice + LzmaRangeEncoder.getPrice1(this.probs[Lzma.PROBS_IS_REP + curState]);
+			if (matchByte == currentByte && !(nextOpt.posPrev < cur && nextOpt.backPrev == 0)) {
+				final int shortRepPrice = repMatchPrice + getRepLen1Price(curState, posState);
+
+				if (shortRepPrice <= nextOpt.price) {
+					nextOpt.price = shortRepPrice;
+					nextOpt.posPrev = cur;
+					nextOpt.makeAsShortRep();
+					nextIsChar = true;
+				}
+			}
+
+			final int numAvailableBytesFull = Math.min(NUM_OPTS - 1 - cur, win.available() + 1);
+
+			numAvailableBytes = numAvailableBytesFull;
+			if (numAvailableBytes < 2) {
+				continue;
+			}
+			if (numAvailableBytes > this.niceLength) {
+				numAvailableBytes = this.niceLength;
+			}
+			if (!nextIsChar && matchByte != currentByte) {
+				// Try literal + rep0
+				final int t = Math.min(numAvailableBytesFull - 1, this.niceLength);
+				final int lenTest2 = win.getMatchLen(0, curReps[0], t);
+
+				if (lenTest2 >= 2) {
+					final int state2 = Lzma.stateUpdateChar(curState);
+					final int posStateNext = (position + 1) & this.posStateMask;
+					final int nextRepMatchPrice = curAnd1Price + isMatchPrice1(state2, posStateNext)
+							+ LzmaRangeEncoder.getPrice1(this.probs[Lzma.PROBS_IS_REP + state2]);
+					final int offset = cur + 1 + lenTest2;
+
+					while (lenEnd < offset) {
+						opts[++lenEnd].price = INFINITY_PRICE;
+					}
+
+					final int curAndLenPrice = nextRepMatchPrice + getRepPrice(0, lenTest2, state2, posStateNext);
+					final Optimal opt = opts[offset];
+
+					if (curAndLenPrice < opt.price) {
+						opt.price = curAndLenPrice;
+						opt.posPrev = cur + 1;
+						opt.backPrev = 0;
+						opt.prev1IsChar = true;
+						opt.prev2 = false;
+					}
+				}
+			}
+
+			int startLen = 2;
+
+			for (int repIndex = 0; repIndex < Lzma.NUM_REP_DISTANCES; repIndex++) {
+				int lenTest = win.getMatchLen(-1, curReps[repIndex], numAvailableBytes);
+
+				if (lenTest < 2) {
+					continue;
+				}
+
+				final int lenTestTemp = lenTest;
+
+				do {
+					while (lenEnd < cur + lenTest) {
+						opts[++lenEnd].price = INFINITY_PRICE;
+					}
+
+					final int curAndLenPrice = repMatchPrice + getRepPrice(repIndex, lenTest, curState, posState);
+					final Optimal opt = opts[cur + lenTest];
+
+					if (curAndLenPrice < opt.price) {
+						opt.price = curAndLenPrice;
+						opt.posPrev = cur;
+						opt.backPrev = repIndex;
+						opt.prev1IsChar = false;
+					}
+				} while (--lenTest >= 2);
+				lenTest = lenTestTemp;
+				if (repIndex == 0) {
+					startLen = lenTest + 1;
+				}
+				if (lenTest < numAvailableBytesFull) {
+					// Try rep match + literal + rep0
+					final int t = Math.min(numAvailableBytesFull - 1 - lenTest, this.niceLength);
+					final int lenTest2 = win.getMatchLen(lenTest, curReps[repIndex], t);
+
+					if (lenTest2 >= 2) {
+						int state2 = Lzma.stateUpdateRep(curState);
+						int posStateNext = (position + lenTest) & this.posStateMask;
+						final int curAndLenCharPrice = repMatchPrice
+								+ getRepPrice(repIndex, lenTest, curState, posState)
+								+ isMatchPrice0(state2, posStateNext)
+								+ getLiteralPrice(literalBase(position + lenTest, win.getIndexByte(lenTest - 1 - 1)),
+										true, win.getIndexByte(lenTest - 1 - (curReps[repIndex] + 1)),
+										win.getIndexByte(lenTest - 1));
+
+						state2 = Lzma.stateUpdateChar(state2);
+						posStateNext = (position + lenTest + 1) & this.posStateMask;
+
+						final int nextMatchPrice = curAndLenCharPrice + isMatchPrice1(state2, posStateNext);
+						final int nextRepMatchPrice = nextMatchPrice
+								+ LzmaRangeEncoder.getPrice1(this.probs[Lzma.PROBS_IS_REP + state2]);
+						final int offset = lenTest + 1 + lenTest2;
+
+						while (lenEnd < cur + offset) {
+							opts[++lenEnd].price = INFINITY_PRICE;
+						}
+
+						final int curAndLenPrice = nextRepMatchPrice + getRepPrice(0, lenTest2, state2, posStateNext);
+						final Optimal opt = opts[cur + offset];
+
+						if (curAndLenPrice < opt.price) {
+							opt.price = curAndLenPrice;
+							opt.posPrev = cur + lenTest + 1;
+							opt.backPrev = 0;
+							opt.prev1IsChar = true;
+							opt.prev2 = true;
+							opt.posPrev2 = cur;
+							opt.backPrev2 = repIndex;
+						}
+					}
+				}
+			}
+			if (newLen > numAvailableBytes) {
+				newLen = numAvailableBytes;
+				numDistancePairsCur = 0;
+				while (newLen > this.matchDistances[numDistancePairsCur]) {
+					numDistancePairsCur += 2;
+				}
+				this.matchDistances[numDistancePairsCur] = newLen;
+				numDistancePairsCur += 2;
+			}
+			if (newLen >= startLen) {
+				normalMatchPrice = matchPrice + LzmaRangeEncoder.getPrice0(this.probs[Lzma.PROBS_IS_REP + curState]);
+				while (lenEnd < cur + newLen) {
+					opts[++lenEnd].price = INFINITY_PRICE;
+				}
+
+				int offs = 0;
+
+				while (startLen > this.matchDistances[offs]) {
+					offs += 2;
+				}
+				for (int lenTest = startLen;; lenTest++) {
+					final int curBack = this.matchDistances[offs + 1];
+					int curAndLenPrice = normalMatchPrice + getPosLenPrice(curBack, lenTest, posState);
+					Optimal opt = opts[cur + lenTest];
+
+					if (curAndLenPrice < opt.price) {
+						opt.price = curAndLenPrice;
+						opt.posPrev = cur;
+						opt.backPrev = curBack + Lzma.NUM_REP_DISTANCES;
+						opt.prev1IsChar = false;
+					}
+					if (lenTest == this.matchDistances[offs]) {
+						if (lenTest < numAvailableBytesFull) {
+							// Try match + literal + rep0
+							final int t = Math.min(numAvailableBytesFull - 1 - lenTest, this.niceLength);
+							final int lenTest2 = win.getMatchLen(lenTest, curBack, t);
+
+							if (lenTest2 >= 2) {
+								int state2 = Lzma.stateUpdateMatch(curState);
+								int posStateNext = (position + lenTest) & this.posStateMask;
+								final int curAndLenCharPrice = curAndLenPrice + isMatchPrice0(state2, posStateNext)
+										+ getLiteralPrice(
+												literalBase(position + lenTest, win.getIndexByte(lenTest - 1 - 1)),
+												true, win.getIndexByte(lenTest - (curBack + 1) - 1),
+												win.getIndexByte(lenTest - 1));
+
+								state2 = Lzma.stateUpdateChar(state2);
+								posStateNext = (position + lenTest + 1) & this.posStateMask;
+
+								final int nextMatchPrice = curAndLenCharPrice + isMatchPrice1(state2, posStateNext);
+								final int nextRepMatchPrice = nextMatchPrice
+										+ LzmaRangeEncoder.getPrice1(this.probs[Lzma.PROBS_IS_REP + state2]);
+								final int offset = lenTest + 1 + lenTest2;
+
+								while (lenEnd < cur + offset) {
+									opts[++lenEnd].price = INFINITY_PRICE;
+								}
+								curAndLenPrice = nextRepMatchPrice + getRepPrice(0, lenTest2, state2, posStateNext);
+								opt = opts[cur + offset];
+								if (curAndLenPrice < opt.price) {
+									opt.price = curAndLenPrice;
+									opt.posPrev = cur + lenTest + 1;
+									opt.backPrev = 0;
+									opt.prev1IsChar = true;
+									opt.prev2 = true;
+									opt.posPrev2 = cur;
+									opt.backPrev2 = curBack + Lzma.NUM_REP_DISTANCES;
+								}
+							}
+						}
+						offs += 2;
+						if (offs == numDistancePairsCur) {
+							break;
+						}
+					}
+				}
+			}
+		}
+	}
+
+}
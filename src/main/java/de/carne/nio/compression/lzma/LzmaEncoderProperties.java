@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+import de.carne.nio.compression.CompressionProperties;
+import de.carne.nio.compression.CompressionProperty;
+
+/**
+ * {@linkplain LzmaEncoder} properties.
+ * <p>
+ * The properties are initialized according to the default preset {@value LzmaEncoder#DEFAULT_PRESET}. Setting a
+ * preset via {@linkplain #setPresetProperty(int)} overwrites all settings derived from the preset. Individual settings
+ * can be adjusted afterwards.
+ * </p>
+ */
+public class LzmaEncoderProperties extends CompressionProperties {
+
+	private static final CompressionProperty FORMAT = new CompressionProperty("FORMAT", LzmaFormat.class);
+	private static final CompressionProperty PRESET = new CompressionProperty("PRESET", Integer.class);
+	private static final CompressionProperty LCLPBP = new CompressionProperty("LCLPBP", Byte.class);
+	private static final CompressionProperty DICTIONARY_SIZE = new CompressionProperty("DICTIONARY_SIZE",
+			Integer.class);
+	private static final CompressionProperty MATCH_FINDER = new CompressionProperty("MATCH_FINDER",
+			LzmaMatchFinder.class);
+	private static final CompressionProperty NICE_LENGTH = new CompressionProperty("NICE_LENGTH", Integer.class);
+	private static final CompressionProperty DEPTH = new CompressionProperty("DEPTH", Integer.class);
+
+	// Dictionary sizes (log2) per preset
+	private static final int[] PRESET_DICTIONARY_BITS = { 18, 20, 21, 22, 22, 23, 23, 24, 25, 26 };
+	// Hash chain depths for the fast presets (0 to 3)
+	private static final int[] PRESET_FAST_DEPTHS = { 4, 8, 24, 48 };
+
+	/**
+	 * Constructs a new {@linkplain LzmaEncoderProperties} instance with default values.
+	 */
+	public LzmaEncoderProperties() {
+		registerProperty(FORMAT, LzmaFormat.DEFAULT);
+		registerProperty(PRESET, Integer.valueOf(LzmaEncoder.DEFAULT_PRESET));
+		registerProperty(LCLPBP, Byte.valueOf((byte) 0x5d));
+		registerProperty(DICTIONARY_SIZE, Integer.valueOf(0));
+		registerProperty(MATCH_FINDER, LzmaMatchFinder.BT4);
+		registerProperty(NICE_LENGTH, Integer.valueOf(0));
+		registerProperty(DEPTH, Integer.valueOf(0));
+		applyPreset(LzmaEncoder.DEFAULT_PRESET);
+	}
+
+	/**
+	 * Sets the stream format to use for encoding.
+	 * <p>
+	 * {@linkplain LzmaFormat#DEFAULT} creates a raw LZMA stream (the decoder has to be configured with the same
+	 * lc/lp/pb and dictionary size properties). {@linkplain LzmaFormat#LZMALIB} prefixes the stream with a header
+	 * containing these properties (as used by {@code .lzma} files). As the encoded size is not known in advance, the
+	 * stream is always terminated by an end marker.
+	 * </p>
+	 *
+	 * @param format the stream format to use for encoding.
+	 */
+	public void setFormat(LzmaFormat format) {
+		setEnumProperty(FORMAT, format);
+	}
+
+	/**
+	 * Gets the stream format to use for encoding.
+	 *
+	 * @return the stream format for encoding.
+	 */
+	public LzmaFormat getFormat() {
+		return getEnumProperty(FORMAT, LzmaFormat.class);
+	}
+
+	/**
+	 * Sets the compression preset.
+	 * <p>
+	 * The presets follow the ones of the xz utilities. Presets {@code 0} to {@code 3} use the
+	 * {@linkplain LzmaMatchFinder#HC4} match finder with fast parsing, presets {@code 4} to {@code 9} use the
+	 * {@linkplain LzmaMatchFinder#BT4} match finder with optimal parsing. The dictionary size grows from 256 KiB
+	 * (preset {@code 0}) to 64 MiB (preset {@code 9}). Besides the preset itself this sets the lc/lp/pb parameters,
+	 * the dictionary size, the match finder, the nice length and the search depth.
+	 * </p>
+	 *
+	 * @param preset the compression preset to use (in the range {@code [0, 9]}).
+	 */
+	public void setPresetProperty(int preset) {
+		if (preset < 0 || LzmaEncoder.MAX_PRESET < preset) {
+			throw new IllegalArgumentException("Invalid LZMA preset: " + preset);
+		}
+		applyPreset(preset);
+	}
+
+	private void applyPreset(int preset) {
+		setIntProperty(PRESET, preset);
+		setByteProperty(LCLPBP, (byte) 0x5d);
+		setIntProperty(DICTIONARY_SIZE, 1 << PRESET_DICTIONARY_BITS[preset]);
+		if (preset < PRESET_FAST_DEPTHS.length) {
+			setEnumProperty(MATCH_FINDER, LzmaMatchFinder.HC4);
+			setIntProperty(NICE_LENGTH, preset <= 1 ? 128 : Lzma.MATCH_MAX_LEN);
+			setIntProperty(DEPTH, PRESET_FAST_DEPTHS[preset]);
+		} else {
+			int niceLength = (preset == 4 ? 16 : preset == 5 ? 32 : 64);
+
+			setEnumProperty(MATCH_FINDER, LzmaMatchFinder.BT4);
+			setIntProperty(NICE_LENGTH, niceLength);
+			setIntProperty(DEPTH, 16 + niceLength / 2);
+		}
+	}
+
+	/**
+	 * Gets the compression preset.
+	 *
+	 * @return the compression preset.
+	 */
+	public int getPresetProperty() {
+		return getIntProperty(PRESET);
+	}
+
+	/**
+	 * Sets the lc/lp/bp parameters to use for encoding.
+	 * <p>
+	 * The parameters are combined the same way as for {@linkplain LzmaDecoderProperties#setLcLpBpProperty(byte)}
+	 * ({@code (pb * 5 + lp) * 9 + lc}).
+	 * </p>
+	 *
+	 * @param lclpbp the lc/lp/bp parameters to use for encoding.
+	 */
+	public void setLcLpBpProperty(byte lclpbp) {
+		setByteProperty(LCLPBP, lclpbp);
+	}
+
+	/**
+	 * Gets the lc/lp/bp parameters to use for encoding.
+	 *
+	 * @return the lc/lp/bp parameters to use for encoding.
+	 */
+	public byte getLcLpBpProperty() {
+		return getByteProperty(LCLPBP);
+	}
+
+	/**
+	 * Sets the dictionary size to use for encoding.
+	 *
+	 * @param dictionarySize the dictionary size to use for encoding (in the range {@code [4 KiB, 512 MiB]}).
+	 */
+	public void setDictionarySizeProperty(int dictionarySize) {
+		setIntProperty(DICTIONARY_SIZE, dictionarySize);
+	}
+
+	/**
+	 * Gets the dictionary size to use for encoding.
+	 *
+	 * @return the dictionary size to use for encoding.
+	 */
+	public int getDictionarySizeProperty() {
+		return getIntProperty(DICTIONARY_SIZE);
+	}
+
+	/**
+	 * Sets the match finder to use for encoding.
+	 * <p>
+	 * {@linkplain LzmaMatchFinder#HC4} is combined with fast parsing, {@linkplain LzmaMatchFinder#BT4} with optimal
+	 * parsing.
+	 * </p>
+	 *
+	 * @param matchFinder the match finder to use for encoding.
+	 */
+	public void setMatchFinderProperty(LzmaMatchFinder matchFinder) {
+		setEnumProperty(MATCH_FINDER, matchFinder);
+	}
+
+	/**
+	 * Gets the match finder to use for encoding.
+	 *
+	 * @return the match finder to use for encoding.
+	 */
+	public LzmaMatchFinder getMatchFinderProperty() {
+		return getEnumProperty(MATCH_FINDER, LzmaMatchFinder.class);
+	}
+
+	/**
+	 * Sets the nice length property.
+	 * <p>
+	 * A match of at least this length is taken immediately without searching for better alternatives.
+	 * </p>
+	 *
+	 * @param niceLength the nice length to use (in the range {@code [5, 273]}).
+	 */
+	public void setNiceLengthProperty(int niceLength) {
+		setIntProperty(NICE_LENGTH, niceLength);
+	}
+
+	/**
+	 * Gets the nice length property.
+	 *
+	 * @return the nice length property.
+	 */
+	public int getNiceLengthProperty() {
+		return getIntProperty(NICE_LENGTH);
+	}
+
+	/**
+	 * Sets the search depth property.
+	 * <p>
+	 * The search depth limits the number of match candidates checked per position by the match finder.
+	 * </p>
+	 *
+	 * @param depth the search depth to use (must be greater than {@code 0}).
+	 */
+	public void setDepthProperty(int depth) {
+		setIntProperty(DEPTH, depth);
+	}
+
+	/**
+	 * Gets the search depth property.
+	 *
+	 * @return the search depth property.
+	 */
+	public int getDepthProperty() {
+		return getIntProperty(DEPTH);
+	}
+
+}
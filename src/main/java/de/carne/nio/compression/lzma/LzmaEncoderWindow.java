@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Input window and match finder used by the {@linkplain LzmaEncoder}.
+ * <p>
+ * Positions are tracked as absolute values starting at {@code 1} ({@code 0} marks an empty hash or link entry) and are
+ * normalized once they reach {@value #MAX_POS_FOR_NORMALIZE}. The matches are found via 2, 3 and 4 byte hashes
+ * followed by either a hash chain ({@linkplain LzmaMatchFinder#HC4}) or a binary tree
+ * ({@linkplain LzmaMatchFinder#BT4}) search.
+ */
+final class LzmaEncoderWindow {
+
+	private static final int EMPTY_HASH_VALUE = 0;
+	private static final int MAX_POS_FOR_NORMALIZE = (1 << 30) - 1;
+
+	private static final int HASH2_SIZE = 1 << 10;
+	private static final int HASH3_SIZE = 1 << 16;
+	private static final int HASH3_OFFSET = HASH2_SIZE;
+	private static final int FIX_HASH_SIZE = HASH2_SIZE + HASH3_SIZE;
+	private static final int MIN_MATCH_CHECK = 4;
+	private static final int START_MAX_LEN = 1;
+
+	private static final int[] CRC_TABLE = crcTable();
+
+	private final boolean binaryTree;
+	private final byte[] buffer;
+	private final int keepSizeBefore;
+	private final int cyclicBufferSize;
+	private final int matchMaxLen;
+	private final int cutValue;
+	private final int[] son;
+	private final int[] hash;
+	private final int hashMask;
+	private int bufferOffset;
+	private int pos;
+	private int streamPos;
+	private int cyclicBufferPos;
+
+	/**
+	 * Constructs a new {@linkplain LzmaEncoderWindow} instance.
+	 *
+	 * @param matchFinder the match finder to use.
+	 * @param dictionarySize the dictionary size (the maximum match distance).
+	 * @param keepAddBufferBefore the number of additional bytes to keep before the current position.
+	 * @param matchMaxLen the maximum match length reported by the match finder.
+	 * @param keepAddBufferAfter the number of additional bytes to buffer ahead of the current position.
+	 * @param cutValue the maximum number of match candidates to check per position.
+	 */
+	LzmaEncoderWindow(LzmaMatchFinder matchFinder, int dictionarySize, int keepAddBufferBefore, int matchMaxLen,
+			int keepAddBufferAfter, int cutValue) {
+		this.binaryTree = LzmaMatchFinder.BT4.equals(matchFinder);
+		this.keepSizeBefore = dictionarySize + keepAddBufferBefore;
+
+		int keepSizeAfter = matchMaxLen + keepAddBufferAfter;
+		int keepSizeReserve = (this.keepSizeBefore + keepSizeAfter) / 2 + 256;
+
+		this.buffer = new byte[this.keepSizeBefore + keepSizeAfter + keepSizeReserve];
+		this.cyclicBufferSize = dictionarySize + 1;
+		this.matchMaxLen = matchMaxLen;
+		this.cutValue = cutValue;
+		this.son = new int[this.binaryTree ? this.cyclicBufferSize * 2 : this.cyclicBufferSize];
+
+		int hashSize = dictionarySize - 1;
+
+		hashSize |= hashSize >>> 1;
+		hashSize |= hashSize >>> 2;
+		hashSize |= hashSize >>> 4;
+		hashSize |= hashSize >>> 8;
+		hashSize >>>= 1;
+		hashSize |= 0xffff;
+		if (hashSize > (1 << 24)) {
+			hashSize >>>= 1;
+		}
+		this.hashMask = hashSize;
+		this.hash = new int[FIX_HASH_SIZE + hashSize + 1];
+		reset();
+	}
+
+	private static int[] crcTable() {
+		int[] table = new int[256];
+
+		for (int i = 0; i < table.length; i++) {
+			int r = i;
+
+			for (int j = 0; j < 8; j++) {
+				r = ((r & 1) != 0 ? (r >>> 1) ^ 0xedb88320 : r >>> 1);
+			}
+			table[i] = r;
+		}
+		return table;
+	}
+
+	public void reset() {
+		Arrays.fill(this.hash, EMPTY_HASH_VALUE);
+		this.cyclicBufferPos = 0;
+		// Start at position 1 as 0 is used as the empty value
+		this.bufferOffset = -1;
+		this.pos = 1;
+		this.streamPos = 1;
+	}
+
+	/**
+	 * Adds input data to the window.
+	 *
+	 * @param src the {@linkplain ByteBuffer} to read from.
+	 * @return the number of added bytes.
+	 */
+	public int fill(ByteBuffer src) {
+		if (this.bufferOffset + this.streamPos == this.buffer.length) {
+			moveBlock();
+		}
+
+		int fillLength = Math.min(src.remaining(), this.buffer.length - (this.bufferOffset + this.streamPos));
+
+		src.get(this.buffer, this.bufferOffset + this.streamPos, fillLength);
+		this.streamPos += fillLength;
+		return fillLength;
+	}
+
+	private void moveBlock() {
+		int offset = this.bufferOffset + this.pos - this.keepSizeBefore;
+
+		// Keep the byte preceding the dictionary (needed as the previous byte of the literal context)
+		if (offset > 0) {
+			offset--;
+			System.arraycopy(this.buffer, offset, this.buffer, 0, this.bufferOffset + this.streamPos - offset);
+			this.bufferOffset -= offset;
+		}
+	}
+
+	/**
+	 * Gets the number of bytes available ahead of the current position.
+	 *
+	 * @return the number of bytes available ahead of the current position.
+	 */
+	public int available() {
+		return this.streamPos - this.pos;
+	}
+
+	public byte getIndexByte(int index) {
+		return this.buffer[this.bufferOffset + this.pos + index];
+	}
+
+	/**
+	 * Gets the length of the match at the given distance.
+	 *
+	 * @param index the index (relative to the current position) to start comparing at.
+	 * @param distance the match distance minus {@code 1}.
+	 * @param limit the maximum length to check.
+	 * @return the match length.
+	 */
+	public int getMatchLen(int index, int distance, int limit) {
+		final byte[] buf = this.buffer;
+		final int cur = this.bufferOffset + this.pos + index;
+		final int match = cur - distance - 1;
+		final int checkLimit = Math.min(limit, this.streamPos - (this.pos + index));
+		int len = 0;
+
+		while (len < checkLimit && buf[cur + len] == buf[match + len]) {
+			len++;
+		}
+		return len;
+	}
+
+	/**
+	 * Finds the matches for the current position and advances to the next position.
+	 * <p>
+	 * The matches are stored as pairs of length and distance minus {@code 1} in ascending length order.
+	 * </p>
+	 *
+	 * @param distances the array receiving the matches.
+	 * @return the number of stored array entries (twice the number of matches).
+	 */
+	public int getMatches(int[] distances) {
+		int lenLimit = this.matchMaxLen;
+
+		if (this.pos + lenLimit > this.streamPos) {
+			lenLimit = this.streamPos - this.pos;
+			if (lenLimit < MIN_MATCH_CHECK) {
+				movePos();
+				return 0;
+			}
+		}
+
+		final byte[] buf = this.buffer;
+		final int[] hashes = this.hash;
+		final int cur = this.bufferOffset + this.pos;
+		final int matchMinPos = (this.pos > this.cyclicBufferSize ? this.pos - this.cyclicBufferSize : 0);
+		int temp = CRC_TABLE[buf[cur] & 0xff] ^ (buf[cur + 1] & 0xff);
+		final int hash2Value = temp & (HASH2_SIZE - 1);
+
+		temp ^= (buf[cur + 2] & 0xff) << 8;
+
+		final int hash3Value = temp & (HASH3_SIZE - 1);
+		final int hashValue = (temp ^ (CRC_TABLE[buf[cur + 3] & 0xff] << 5)) & this.hashMask;
+		int curMatch2 = hashes[hash2Value];
+		final int curMatch3 = hashes[HASH3_OFFSET + hash3Value];
+		final int curMatch = hashes[FIX_HASH_SIZE + hashValue];
+		int offset = 0;
+		int maxLen = START_MAX_LEN;
+
+		hashes[hash2Value] = this.pos;
+		hashes[HASH3_OFFSET + hash3Value] = this.pos;
+		hashes[FIX_HASH_SIZE + hashValue] = this.pos;
+		if (curMatch2 > matchMinPos && buf[this.bufferOffset + curMatch2] == buf[cur]) {
+			distances[offset++] = maxLen = 2;
+			distances[offset++] = this.pos - curMatch2 - 1;
+		}
+		if (curMatch3 > matchMinPos && buf[this.bufferOffset + curMatch3] == buf[cur]) {
+			if (curMatch3 == curMatch2) {
+				offset -= 2;
+			}
+			distances[offset++] = maxLen = 3;
+			distances[offset++] = this.pos - curMatch3 - 1;
+			curMatch2 = curMatch3;
+		}
+		// Drop the short match if it is found again by the main search
+		if (offset != 0 && curMatch2 == curMatch) {
+			offset -= 2;
+			maxLen = START_MAX_LEN;
+		}
+		if (this.binaryTree) {
+			offset = searchBinaryTree(curMatch, matchMinPos, lenLimit, distances, offset, maxLen);
+		} else {
+			offset = searchHashChain(curMatch, matchMinPos, lenLimit, distances, offset, maxLen);
+		}
+		movePos();
+		return offset;
+	}
+
+	/**
+	 * Skips positions (the skipped positions are still inserted into the match finder).
+	 *
+	 * @param num the number of positions to skip.
+	 */
+	public void skip(int num) {
+		final byte[] buf = this.buffer;
+		final int[] hashes = this.hash;
+
+		for (int remaining = num; remaining > 0; remaining--) {
+			int lenLimit = this.matchMaxLen;
+
+			if (this.pos + lenLimit > this.streamPos) {
+				lenLimit = this.streamPos - this.pos;
+				if (lenLimit < MIN_MATCH_CHECK) {
+					movePos();
+					continue;
+				}
+			}
+
+			final int cur = this.bufferOffset + this.pos;
+			final int matchMinPos = (this.pos > this.cyclicBufferSize ? this.pos - this.cyclicBufferSize : 0);
+			int temp = CRC_TABLE[buf[cur] & 0xff] ^ (buf[cur + 1] & 0xff);
+
+			hashes[temp & (HASH2_SIZE - 1)] = this.pos;
+			temp ^= (buf[cur + 2] & 0xff) << 8;
+			hashes[HASH3_OFFSET + (temp & (HASH3_SIZE - 1))] = this.pos;
+
+			final int hashValue = (temp ^ (CRC_TABLE[buf[cur + 3] & 0xff] << 5)) & this.hashMask;
+			final int curMatch = hashes[FIX_HASH_SIZE + hashValue];
+
+			hashes[FIX_HASH_SIZE + hashValue] = this.pos;
+			if (this.binaryTree) {
+				searchBinaryTree(curMatch, matchMinPos, lenLimit, null, 0, Integer.MAX_VALUE);
+			} else {
+				this.son[this.cyclicBufferPos] = curMatch;
+			}
+			movePos();
+		}
+	}
+
+	private int searchHashChain(int headMatch, int matchMinPos, int lenLimit, int[] distances, int distancesOffset,
+			int startMaxLen) {
+		final byte[] buf = this.buffer;
+		final int[] links = this.son;
+		final int cur = this.bufferOffset + this.pos;
+		int curMatch = headMatch;
+		int offset = distancesOffset;
+		int maxLen = startMaxLen;
+
+		links[this.cyclicBufferPos] = curMatch;
+		for (int count = this.cutValue; count > 0 && curMatch > matchMinPos; count--) {
+			final int delta = this.pos - curMatch;
+			final int match = this.bufferOffset + curMatch;
+
+			if (buf[match + maxLen] == buf[cur + maxLen] && buf[match] == buf[cur]) {
+				int len = 1;
+
+				while (len < lenLimit && buf[match + len] == buf[cur + len]) {
+					len++;
+				}
+				if (maxLen < len) {
+					distances[offset++] = maxLen = len;
+					distances[offset++] = delta - 1;
+					if (len == lenLimit) {
+						break;
+					}
+				}
+			}
+			curMatch = links[delta <= this.cyclicBufferPos ? this.cyclicBufferPos - delta
+					: this.cyclicBufferPos - delta + this.cyclicBufferSize];
+		}
+		return offset;
+	}
+
+	/*
+	 * Searches the binary tree and re-roots it at the current position. If distances is null, the tree is only
+	 * updated (the matches are not reported).
+	 */
+	private int searchBinaryTree(int rootMatch, int matchMinPos, int lenLimit, int @Nullable [] distances,
+			int distancesOffset, int startMaxLen) {
+		final byte[] buf = this.buffer;
+		final int[] links = this.son;
+		final int cur = this.bufferOffset + this.pos;
+		int curMatch = rootMatch;
+		int offset = distancesOffset;
+		int maxLen = startMaxLen;
+		int ptr0 = (this.cyclicBufferPos << 1) + 1;
+		int ptr1 = this.cyclicBufferPos << 1;
+		int len0 = 0;
+		int len1 = 0;
+		int count = this.cutValue;
+
+		while (true) {
+			if (curMatch <= matchMinPos || count-- == 0) {
+				links[ptr0] = EMPTY_HASH_VALUE;
+				links[ptr1] = EMPTY_HASH_VALUE;
+				break;
+			}
+
+			final int delta = this.pos - curMatch;
+			final int cyclicPos = (delta <= this.cyclicBufferPos ? this.cyclicBufferPos - delta
+					: this.cyclicBufferPos - delta + this.cyclicBufferSize) << 1;
+			final int match = this.bufferOffset + curMatch;
+			int len = Math.min(len0, len1);
+
+			if (buf[match + len] == buf[cur + len]) {
+				while (++len != lenLimit && buf[match + len] == buf[cur + len]) {
+					// Count the matching bytes
+				}
+				if (distances != null && maxLen < len) {
+					distances[offset++] = maxLen = len;
+					distances[offset++] = delta - 1;
+				}
+				if (len == lenLimit) {
+					links[ptr1] = links[cyclicPos];
+					links[ptr0] = links[cyclicPos + 1];
+					break;
+				}
+			}
+			if ((buf[match + len] & 0xff) < (buf[cur + len] & 0xff)) {
+				links[ptr1] = curMatch;
+				ptr1 = cyclicPos + 1;
+				curMatch = links[ptr1];
+				len1 = len;
+			} else {
+				links[ptr0] = curMatch;
+				ptr0 = cyclicPos;
+				curMatch = links[ptr0];
+				len0 = len;
+			}
+		}
+		return offset;
+	}
+
+	private void movePos() {
+		if (++this.cyclicBufferPos >= this.cyclicBufferSize) {
+			this.cyclicBufferPos = 0;
+		}
+		this.pos++;
+		if (this.pos == MAX_POS_FOR_NORMALIZE) {
+			final int subValue = this.pos - this.cyclicBufferSize;
+
+			normalizeLinks(this.son, subValue);
+			normalizeLinks(this.hash, subValue);
+			this.bufferOffset += subValue;
+			this.pos -= subValue;
+			this.streamPos -= subValue;
+		}
+	}
+
+	private static void normalizeLinks(int[] links, int subValue) {
+		for (int i = 0; i < links.length; i++) {
+			final int value = links[i];
+
+			links[i] = (value <= subValue ? EMPTY_HASH_VALUE : value - subValue);
+		}
+	}
+
+}
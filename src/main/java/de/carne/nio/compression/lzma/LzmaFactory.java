@@ -21,11 +21,13 @@ import de.carne.nio.compression.CompressionInitializationException;
 import de.carne.nio.compression.CompressionProperties;
 import de.carne.nio.compression.spi.Decoder;
 import de.carne.nio.compression.spi.DecoderFactory;
+import de.carne.nio.compression.spi.Encoder;
+import de.carne.nio.compression.spi.EncoderFactory;
 
 /**
  * LZMA compression factory
  */
-public class LzmaFactory implements DecoderFactory {
+public class LzmaFactory implements DecoderFactory, EncoderFactory {
 
 	/**
 	 * The compression name.
@@ -47,4 +49,14 @@ public class LzmaFactory implements DecoderFactory {
 		return new LzmaDecoder(Check.isInstanceOf(properties, LzmaDecoderProperties.class));
 	}
 
+	@Override
+	public CompressionProperties defaultEncoderProperties() {
+		return new LzmaEncoderProperties();
+	}
+
+	@Override
+	public Encoder newEncoder(CompressionProperties properties) throws CompressionInitializationException {
+		return new LzmaEncoder(Check.isInstanceOf(properties, LzmaEncoderProperties.class));
+	}
+
 }
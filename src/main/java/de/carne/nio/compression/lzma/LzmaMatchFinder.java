@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+/**
+ * Match finders available for LZMA encoding.
+ */
+public enum LzmaMatchFinder {
+
+	/**
+	 * Hash chain match finder (2, 3 and 4 byte hashing).
+	 * <p>
+	 * Combined with a fast greedy/lazy parser for fast encoding.
+	 * </p>
+	 */
+	HC4,
+
+	/**
+	 * Binary tree match finder (2, 3 and 4 byte hashing).
+	 * <p>
+	 * Combined with a price based optimal parser for best compression ratio.
+	 * </p>
+	 */
+	BT4
+
+}
@@ -27,44 +27,52 @@ import de.carne.nio.compression.InsufficientDataException;
  */
 final class LzmaRangeDecoder {
 
-	private static final int TOP_MASK = ~((1 << 24) - 1);
+	static final int TOP_MASK = ~((1 << 24) - 1);
 
-	private static final int NUM_BIT_MODEL_TOTAL_BITS = 11;
-	private static final int BIT_MODEL_TOTAL = (1 << NUM_BIT_MODEL_TOTAL_BITS);
-	private static final int NUM_MOVE_BITS = 5;
+	private static final int BEGIN_DECODE_SIZE = 5;
+	private static final int BATCH_BUFFER_SIZE_MIN = 256;
 
+	private final boolean readAhead;
+	private final ByteBuffer readBuffer;
 	private long totalIn;
 	private int code;
 	private int range;
 
-	LzmaRangeDecoder() {
+	LzmaRangeDecoder(int readAheadSize) {
+		this.readAhead = readAheadSize > 0;
+		this.readBuffer = ByteBuffer.allocate(
+				this.readAhead ? Math.max(readAheadSize, BATCH_BUFFER_SIZE_MIN) : BEGIN_DECODE_SIZE);
 		reset();
 	}
 
 	public void reset() {
+		this.readBuffer.clear().flip();
 		this.totalIn = 0;
 		this.code = 0;
 		this.range = -1;
 	}
 
 	public void beginDecode(ReadableByteChannel src) throws IOException {
-		final ByteBuffer buffer = ByteBuffer.allocate(5);
-		final int read = src.read(buffer);
+		if (this.readBuffer.remaining() < BEGIN_DECODE_SIZE) {
+			fillReadBuffer(src, BEGIN_DECODE_SIZE);
+		}
+
+		final int read = Math.min(this.readBuffer.remaining(), BEGIN_DECODE_SIZE);
 
-		if (read < buffer.capacity()) {
-			throw new InsufficientDataException(buffer.capacity(), read);
+		if (read < BEGIN_DECODE_SIZE) {
+			throw new InsufficientDataException(BEGIN_DECODE_SIZE, read);
 		}
 		this.totalIn += read;
-		buffer.flip();
-		this.code = buffer.get() & 0xff;
+		this.range = -1;
+		this.code = this.readBuffer.get() & 0xff;
 		this.code <<= 8;
-		this.code |= buffer.get() & 0xff;
+		this.code |= this.readBuffer.get() & 0xff;
 		this.code <<= 8;
-		this.code |= buffer.get() & 0xff;
+		this.code |= this.readBuffer.get() & 0xff;
 		this.code <<= 8;
-		this.code |= buffer.get() & 0xff;
+		this.code |= this.readBuffer.get() & 0xff;
 		this.code <<= 8;
-		this.code |= buffer.get() & 0xff;
+		this.code |= this.readBuffer.get() & 0xff;
 	}
 
 	public int decodeDirectBits(ReadableByteChannel src, int numTotalBits) throws IOException {
@@ -87,12 +95,12 @@ final class LzmaRangeDecoder {
 
 	public int decodeBit(ReadableByteChannel src, short[] probs, int index) throws IOException {
 		final int prob = probs[index];
-		final int newBound = (this.range >>> NUM_BIT_MODEL_TOTAL_BITS) * prob;
+		final int newBound = (this.range >>> Lzma.NUM_BIT_MODEL_TOTAL_BITS) * prob;
 		int bit;
 
 		if ((this.code ^ 0x80000000) < (newBound ^ 0x80000000)) {
 			this.range = newBound;
-			probs[index] = (short) (prob + ((BIT_MODEL_TOTAL - prob) >>> NUM_MOVE_BITS));
+			probs[index] = (short) (prob + ((Lzma.BIT_MODEL_TOTAL - prob) >>> Lzma.NUM_MOVE_BITS));
 			if ((this.range & TOP_MASK) == 0) {
 				this.code = (this.code << 8) | readByte(src);
 				this.range <<= 8;
@@ -101,7 +109,7 @@ final class LzmaRangeDecoder {
 		} else {
 			this.range -= newBound;
 			this.code -= newBound;
-			probs[index] = (short) (prob - ((prob) >>> NUM_MOVE_BITS));
+			probs[index] = (short) (prob - ((prob) >>> Lzma.NUM_MOVE_BITS));
 			if ((this.range & TOP_MASK) == 0) {
 				this.code = (this.code << 8) | readByte(src);
 				this.range <<= 8;
@@ -111,25 +119,95 @@ final class LzmaRangeDecoder {
 		return bit;
 	}
 
+	/**
+	 * Makes sure the given number of input bytes is available for batch decoding.
+	 * <p>
+	 * Batch decoding accesses the input buffer directly (see {@linkplain #buffer()}) and is only possible in read-ahead
+	 * mode, as it would otherwise read beyond the actually needed bytes.
+	 * </p>
+	 *
+	 * @param src the channel to read from if the buffered input is not sufficient.
+	 * @param required the number of input bytes required.
+	 * @return {@code true} if the required number of bytes is buffered.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public boolean fillBatch(ReadableByteChannel src, int required) throws IOException {
+		return this.readAhead && (this.readBuffer.remaining() >= required || fillReadBuffer(src, required) >= required);
+	}
+
+	public byte[] buffer() {
+		return this.readBuffer.array();
+	}
+
+	public int position() {
+		return this.readBuffer.position();
+	}
+
+	public int limit() {
+		return this.readBuffer.limit();
+	}
+
+	public int range() {
+		return this.range;
+	}
+
+	public int code() {
+		return this.code;
+	}
+
+	/**
+	 * Writes back the decoder state after a batch of symbols has been decoded directly from the input buffer.
+	 *
+	 * @param position the updated input buffer position.
+	 * @param batchRange the updated range value.
+	 * @param batchCode the updated code value.
+	 */
+	public void endBatch(int position, int batchRange, int batchCode) {
+		this.totalIn += position - this.readBuffer.position();
+		this.readBuffer.position(position);
+		this.range = batchRange;
+		this.code = batchCode;
+	}
+
 	private int readByte(ReadableByteChannel src) throws IOException {
-		final ByteBuffer buffer = ByteBuffer.allocate(1);
-		final int read = src.read(buffer);
+		int b;
 
-		if (read < buffer.capacity()) {
-			buffer.put((byte) 0xff);
+		if (this.readBuffer.hasRemaining() || fillReadBuffer(src, 1) > 0) {
+			b = this.readBuffer.get() & 0xff;
+			this.totalIn++;
+		} else {
+			b = 0xff;
 		}
-		this.totalIn += read;
-		buffer.flip();
-		return buffer.get() & 0xff;
+		return b;
+	}
+
+	private int fillReadBuffer(ReadableByteChannel src, int count) throws IOException {
+		this.readBuffer.compact();
+		if (!this.readAhead) {
+			this.readBuffer.limit(Math.min(this.readBuffer.position() + count, this.readBuffer.capacity()));
+		}
+		while (this.readBuffer.position() < count && src.read(this.readBuffer) > 0) {
+			// Read until the requested number of bytes is available or the channel is exhausted
+		}
+		this.readBuffer.flip();
+		return this.readBuffer.remaining();
 	}
 
 	public long totalIn() {
 		return this.totalIn;
 	}
 
+	public ByteBuffer drainBytes() {
+		final ByteBuffer drained = ByteBuffer.allocate(this.readBuffer.remaining());
+
+		drained.put(this.readBuffer);
+		drained.flip();
+		return drained;
+	}
+
 	public static void initBitModels(short[] probs) {
 		for (int i = 0; i < probs.length; i++) {
-			probs[i] = (BIT_MODEL_TOTAL >>> 1);
+			probs[i] = (Lzma.BIT_MODEL_TOTAL >>> 1);
 		}
 	}
 
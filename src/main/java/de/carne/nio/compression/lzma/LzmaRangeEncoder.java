@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.lzma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * LZMA RangeEncoder
+ * <p>
+ * The encoded bytes are collected in a growing buffer and written via {@linkplain #flush(WritableByteChannel)}.
+ */
+final class LzmaRangeEncoder {
+
+	private static final int INITIAL_BUFFER_SIZE = 0x10000;
+
+	private static final int NUM_MOVE_REDUCING_BITS = 2;
+	static final int NUM_BIT_PRICE_SHIFT_BITS = 6;
+
+	private static final int[] PROB_PRICES = probPrices();
+
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private int bufferLimit;
+	private long low;
+	private int range;
+	private int cache;
+	private long cacheSize;
+
+	LzmaRangeEncoder() {
+		reset();
+	}
+
+	private static int[] probPrices() {
+		final int numBits = Lzma.NUM_BIT_MODEL_TOTAL_BITS - NUM_MOVE_REDUCING_BITS;
+		int[] prices = new int[Lzma.BIT_MODEL_TOTAL >>> NUM_MOVE_REDUCING_BITS];
+
+		for (int i = numBits - 1; i >= 0; i--) {
+			int start = 1 << (numBits - i - 1);
+			int end = 1 << (numBits - i);
+
+			for (int j = start; j < end; j++) {
+				prices[j] = (i << NUM_BIT_PRICE_SHIFT_BITS)
+						+ (((end - j) << NUM_BIT_PRICE_SHIFT_BITS) >>> (numBits - i - 1));
+			}
+		}
+		return prices;
+	}
+
+	public void reset() {
+		this.bufferLimit = 0;
+		this.low = 0;
+		this.range = -1;
+		this.cache = 0;
+		this.cacheSize = 1;
+	}
+
+	public void encodeBit(short[] probs, int index, int bit) {
+		final int prob = probs[index];
+		final int bound = (this.range >>> Lzma.NUM_BIT_MODEL_TOTAL_BITS) * prob;
+
+		if (bit == 0) {
+			this.range = bound;
+			probs[index] = (short) (prob + ((Lzma.BIT_MODEL_TOTAL - prob) >>> Lzma.NUM_MOVE_BITS));
+		} else {
+			this.low += bound & 0xffffffffL;
+			this.range -= bound;
+			probs[index] = (short) (prob - (prob >>> Lzma.NUM_MOVE_BITS));
+		}
+		if ((this.range & LzmaRangeDecoder.TOP_MASK) == 0) {
+			this.range <<= 8;
+			shiftLow();
+		}
+	}
+
+	public void encodeDirectBits(int bits, int numTotalBits) {
+		for (int i = numTotalBits - 1; i >= 0; i--) {
+			this.range >>>= 1;
+			if (((bits >>> i) & 1) != 0) {
+				this.low += this.range;
+			}
+			if ((this.range & LzmaRangeDecoder.TOP_MASK) == 0) {
+				this.range <<= 8;
+				shiftLow();
+			}
+		}
+	}
+
+	public void encodeBitTree(short[] probs, int base, int numBits, int symbol) {
+		int m = 1;
+
+		for (int bitIndex = numBits - 1; bitIndex >= 0; bitIndex--) {
+			final int bit = (symbol >>> bitIndex) & 1;
+
+			encodeBit(probs, base + m, bit);
+			m = (m << 1) | bit;
+		}
+	}
+
+	public void encodeReverseBitTree(short[] probs, int base, int numBits, int symbol) {
+		int m = 1;
+		int remaining = symbol;
+
+		for (int bitIndex = 0; bitIndex < numBits; bitIndex++) {
+			final int bit = remaining & 1;
+
+			encodeBit(probs, base + m, bit);
+			m = (m << 1) | bit;
+			remaining >>>= 1;
+		}
+	}
+
+	/**
+	 * Flushes the encoder state (the encoder has to be reset before it can be used again).
+	 */
+	public void finish() {
+		for (int i = 0; i < 5; i++) {
+			shiftLow();
+		}
+	}
+
+	public int flush(WritableByteChannel dst) throws IOException {
+		ByteBuffer flushBuffer = ByteBuffer.wrap(this.buffer, 0, this.bufferLimit);
+
+		while (flushBuffer.hasRemaining()) {
+			dst.write(flushBuffer);
+		}
+
+		int flushed = this.bufferLimit;
+
+		this.bufferLimit = 0;
+		return flushed;
+	}
+
+	private void shiftLow() {
+		final int lowHi = (int) (this.low >>> 32);
+
+		if (lowHi != 0 || this.low < 0xff000000L) {
+			ensureCapacity(this.cacheSize);
+
+			int temp = this.cache;
+
+			do {
+				this.buffer[this.bufferLimit++] = (byte) (temp + lowHi);
+				temp = 0xff;
+			} while (--this.cacheSize != 0);
+			this.cache = ((int) this.low) >>> 24;
+		}
+		this.cacheSize++;
+		this.low = (this.low & 0x00ffffffL) << 8;
+	}
+
+	private void ensureCapacity(long count) {
+		if (this.bufferLimit + count > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer,
+					(int) Math.max(this.buffer.length << 1L, this.bufferLimit + count));
+		}
+	}
+
+	static int getPrice(int prob, int bit) {
+		return PROB_PRICES[(((prob - bit) ^ (-bit)) & (Lzma.BIT_MODEL_TOTAL - 1)) >>> NUM_MOVE_REDUCING_BITS];
+	}
+
+	static int getPrice0(int prob) {
+		return PROB_PRICES[prob >>> NUM_MOVE_REDUCING_BITS];
+	}
+
+	static int getPrice1(int prob) {
+		return PROB_PRICES[(Lzma.BIT_MODEL_TOTAL - prob) >>> NUM_MOVE_REDUCING_BITS];
+	}
+
+	static int getBitTreePrice(short[] probs, int base, int numBits, int symbol) {
+		int price = 0;
+		int m = 1;
+
+		for (int bitIndex = numBits - 1; bitIndex >= 0; bitIndex--) {
+			final int bit = (symbol >>> bitIndex) & 1;
+
+			price += getPrice(probs[base + m], bit);
+			m = (m << 1) | bit;
+		}
+		return price;
+	}
+
+	static int getReverseBitTreePrice(short[] probs, int base, int numBits, int symbol) {
+		int price = 0;
+		int m = 1;
+		int remaining = symbol;
+
+		for (int bitIndex = 0; bitIndex < numBits; bitIndex++) {
+			final int bit = remaining & 1;
+
+			price += getPrice(probs[base + m], bit);
+			m = (m << 1) | bit;
+			remaining >>>= 1;
+		}
+		return price;
+	}
+
+}
@@ -44,4 +44,20 @@ public abstract class Decoder extends Compression {
 	 */
 	public abstract int decode(ByteBuffer dst, ReadableByteChannel src) throws IOException;
 
+	/**
+	 * Drains any input bytes which have been read from the source channel but which have not been consumed by the
+	 * decoder.
+	 * <p>
+	 * Decoders reading their input in bulk may read beyond the end of the encoded stream. If the encoded stream is
+	 * followed by further data (e.g. a container trailer), this function has to be called after the end of the encoded
+	 * stream has been reached to retrieve the start of the following data. The drained bytes are not counted as
+	 * consumed (see {@linkplain #totalIn()}).
+	 * </p>
+	 *
+	 * @return the drained input bytes (may be empty).
+	 */
+	public ByteBuffer drainInput() {
+		return ByteBuffer.allocate(0);
+	}
+
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.xz;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+import de.carne.nio.compression.InvalidDataException;
+
+/**
+ * Common parameters/functions for XZ processing
+ */
+final class Xz {
+
+	private Xz() {
+		// Prevent instantiation
+	}
+
+	static final int STREAM_HEADER_SIZE = 12;
+	static final int STREAM_FOOTER_SIZE = 12;
+	static final int STREAM_MAGIC_SIZE = 6;
+	static final int BLOCK_HEADER_SIZE_MAX = 1024;
+	static final int INDEX_INDICATOR = 0x00;
+	static final int CRC32_SIZE = 4;
+
+	static final int CHECK_NONE = 0x00;
+	static final int CHECK_CRC32 = 0x01;
+	static final int CHECK_CRC64 = 0x04;
+	static final int CHECK_SHA256 = 0x0a;
+
+	static final long FILTER_LZMA2 = 0x21;
+
+	// The largest dictionary supported by the LZMA2 decoder
+	static final int DICTIONARY_SIZE_MAX = 1 << 30;
+
+	private static final byte[] HEADER_MAGIC = { (byte) 0xfd, (byte) 0x37, (byte) 0x7a, (byte) 0x58, (byte) 0x5a,
+			(byte) 0x00 };
+	private static final byte[] FOOTER_MAGIC = { (byte) 0x59, (byte) 0x5a };
+
+	private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Checks whether a byte range matches the beginning of the stream header magic.
+	 *
+	 * @param buffer the buffer containing the bytes to check.
+	 * @param offset the offset of the first byte to check.
+	 * @param length the number of bytes to check (at most {@linkplain #STREAM_MAGIC_SIZE}).
+	 * @return {@code true} if the bytes match the beginning of the stream header magic.
+	 */
+	static boolean isStreamMagic(byte[] buffer, int offset, int length) {
+		for (int magicIndex = 0; magicIndex < length; magicIndex++) {
+			if (buffer[offset + magicIndex] != HEADER_MAGIC[magicIndex]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a stream header.
+	 *
+	 * @param buffer the buffer containing the stream header.
+	 * @param offset the offset of the stream header.
+	 * @return the check type of the stream.
+	 * @throws InvalidDataException if the stream header is invalid.
+	 */
+	static int decodeStreamHeader(byte[] buffer, int offset) throws InvalidDataException {
+		if (!isStreamMagic(buffer, offset, STREAM_MAGIC_SIZE)) {
+			throw new InvalidDataException(buffer[offset], buffer[offset + 1], buffer[offset + 2]);
+		}
+
+		int crc = getInt(buffer, offset + 8);
+
+		if (crc != crc32(buffer, offset + STREAM_MAGIC_SIZE, 2)) {
+			throw new InvalidDataException(crc);
+		}
+		return decodeStreamFlags(buffer, offset + STREAM_MAGIC_SIZE);
+	}
+
+	/**
+	 * Decodes a stream footer.
+	 *
+	 * @param buffer the buffer containing the stream footer.
+	 * @param offset the offset of the stream footer.
+	 * @param checkType the check type as defined by the stream header.
+	 * @return the size of the stream's index as recorded in the stream footer.
+	 * @throws InvalidDataException if the stream footer is invalid or does not match the stream header.
+	 */
+	static long decodeStreamFooter(byte[] buffer, int offset, int checkType) throws InvalidDataException {
+		if (buffer[offset + 10] != FOOTER_MAGIC[0] || buffer[offset + 11] != FOOTER_MAGIC[1]) {
+			throw new InvalidDataException(buffer[offset + 10], buffer[offset + 11]);
+		}
+
+		int crc = getInt(buffer, offset);
+
+		if (crc != crc32(buffer, offset + 4, 6)) {
+			throw new InvalidDataException(crc);
+		}
+
+		int footerCheckType = decodeStreamFlags(buffer, offset + 8);
+
+		if (footerCheckType != checkType) {
+			throw new InvalidDataException(footerCheckType, checkType);
+		}
+		return (Integer.toUnsignedLong(getInt(buffer, offset + 4)) + 1) * 4;
+	}
+
+	private static int decodeStreamFlags(byte[] buffer, int offset) throws InvalidDataException {
+		if (buffer[offset] != 0 || (buffer[offset + 1] & 0xf0) != 0) {
+			throw new InvalidDataException(buffer[offset], buffer[offset + 1]);
+		}
+		return buffer[offset + 1] & 0x0f;
+	}
+
+	/**
+	 * Gets the size of a check.
+	 *
+	 * @param checkType the check type to get the size for.
+	 * @return the size of the check.
+	 */
+	static int checkSize(int checkType) {
+		return (checkType == CHECK_NONE ? 0 : 4 << ((checkType - 1) / 3));
+	}
+
+	/**
+	 * Gets the size of a block header.
+	 *
+	 * @param blockHeaderSize the encoded block header size (the first byte of the block header).
+	 * @return the size of the block header.
+	 */
+	static int blockHeaderSize(byte blockHeaderSize) {
+		return ((blockHeaderSize & 0xff) + 1) * 4;
+	}
+
+	/**
+	 * Gets the number of padding bytes required to align a size to a multiple of 4.
+	 *
+	 * @param size the size to align.
+	 * @return the number of padding bytes.
+	 */
+	static int paddingSize(long size) {
+		return (int) (-size & 3);
+	}
+
+	/**
+	 * Reads a little endian 32 bit integer.
+	 *
+	 * @param buffer the buffer to read from.
+	 * @param offset the offset to read from.
+	 * @return the read value.
+	 */
+	static int getInt(byte[] buffer, int offset) {
+		return (int) INT_LE.get(buffer, offset);
+	}
+
+	/**
+	 * Calculates the CRC32 of a range of bytes.
+	 *
+	 * @param buffer the buffer containing the bytes.
+	 * @param offset the offset of the first byte.
+	 * @param length the number of bytes.
+	 * @return the calculated CRC32.
+	 */
+	static int crc32(byte[] buffer, int offset, int length) {
+		CRC32 crc32 = new CRC32();
+
+		crc32.update(buffer, offset, length);
+		return (int) crc32.getValue();
+	}
+
+}
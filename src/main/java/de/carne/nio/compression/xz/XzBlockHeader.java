@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.xz;
+
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.lzma.Lzma2DecoderProperties;
+
+/**
+ * XZ block header.
+ */
+final class XzBlockHeader {
+
+	private static final int FLAGS_FILTER_COUNT_MASK = 0x03;
+	private static final int FLAGS_RESERVED_MASK = 0x3c;
+	private static final int FLAGS_COMPRESSED_SIZE = 0x40;
+	private static final int FLAGS_UNCOMPRESSED_SIZE = 0x80;
+
+	private static final int VARINT_SIZE_MAX = 9;
+
+	private final byte[] buffer;
+	private final int limit;
+	private int position;
+
+	/**
+	 * The size of the block header.
+	 */
+	final int headerSize;
+
+	/**
+	 * The compressed size of the block ({@code -1} if not recorded).
+	 */
+	final long compressedSize;
+
+	/**
+	 * The uncompressed size of the block ({@code -1} if not recorded).
+	 */
+	final long uncompressedSize;
+
+	/**
+	 * The encoded LZMA2 dictionary size.
+	 */
+	final byte dictionarySizeProperty;
+
+	/**
+	 * Decodes a block header.
+	 *
+	 * @param buffer the buffer containing the complete block header.
+	 * @param offset the offset of the block header.
+	 * @throws InvalidDataException if the block header is invalid or uses an unsupported filter.
+	 */
+	XzBlockHeader(byte[] buffer, int offset) throws InvalidDataException {
+		this.buffer = buffer;
+		this.headerSize = Xz.blockHeaderSize(buffer[offset]);
+		this.limit = offset + this.headerSize - Xz.CRC32_SIZE;
+		this.position = offset + 1;
+
+		int crc = Xz.getInt(buffer, this.limit);
+
+		if (crc != Xz.crc32(buffer, offset, this.headerSize - Xz.CRC32_SIZE)) {
+			throw new InvalidDataException(crc);
+		}
+
+		int flags = nextByte();
+
+		if ((flags & FLAGS_RESERVED_MASK) != 0) {
+			throw new InvalidDataException((byte) flags);
+		}
+		this.compressedSize = ((flags & FLAGS_COMPRESSED_SIZE) != 0 ? nextVarint() : -1);
+		if (this.compressedSize == 0) {
+			throw new InvalidDataException(this.compressedSize);
+		}
+		this.uncompressedSize = ((flags & FLAGS_UNCOMPRESSED_SIZE) != 0 ? nextVarint() : -1);
+
+		// Only a single LZMA2 filter is supported (filter chains like BCJ + LZMA2 are rejected)
+		int filterCount = (flags & FLAGS_FILTER_COUNT_MASK) + 1;
+		long filterId = nextVarint();
+		long filterPropertiesSize = nextVarint();
+
+		if (filterCount != 1 || filterId != Xz.FILTER_LZMA2 || filterPropertiesSize != 1) {
+			throw new InvalidDataException(filterCount, filterId, filterPropertiesSize);
+		}
+		this.dictionarySizeProperty = (byte) nextByte();
+		while (this.position < this.limit) {
+			if (nextByte() != 0) {
+				throw new InvalidDataException(this.buffer[this.position - 1]);
+			}
+		}
+	}
+
+	/**
+	 * Creates the LZMA2 decoder properties for decoding the block data.
+	 *
+	 * @return the LZMA2 decoder properties for decoding the block data.
+	 * @throws InvalidDataException if the dictionary size is not supported.
+	 */
+	Lzma2DecoderProperties lzma2Properties() throws InvalidDataException {
+		Lzma2DecoderProperties lzma2Properties = new Lzma2DecoderProperties();
+
+		try {
+			lzma2Properties.setDictionarySizeProperty(this.dictionarySizeProperty);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidDataException(this.dictionarySizeProperty);
+		}
+		if (lzma2Properties.getDictionarySizeProperty() > Xz.DICTIONARY_SIZE_MAX) {
+			throw new InvalidDataException(lzma2Properties.getDictionarySizeProperty());
+		}
+		return lzma2Properties;
+	}
+
+	private int nextByte() throws InvalidDataException {
+		if (this.position >= this.limit) {
+			throw new InvalidDataException(this.position);
+		}
+		return this.buffer[this.position++] & 0xff;
+	}
+
+	private long nextVarint() throws InvalidDataException {
+		long value = 0;
+
+		for (int byteIndex = 0; byteIndex < VARINT_SIZE_MAX; byteIndex++) {
+			int b = nextByte();
+
+			// A zero byte must not follow the first one (non-minimal encoding)
+			if (byteIndex > 0 && b == 0) {
+				throw new InvalidDataException((byte) b);
+			}
+			value |= ((long) (b & 0x7f)) << (byteIndex * 7);
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new InvalidDataException(value);
+	}
+
+}
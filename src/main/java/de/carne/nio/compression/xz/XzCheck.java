@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.xz;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * XZ block check (integrity check of the uncompressed block data).
+ */
+abstract class XzCheck {
+
+	private final int size;
+
+	protected XzCheck(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * Creates a {@linkplain XzCheck} instance for a check type.
+	 * <p>
+	 * Check types which are not supported get a check instance skipping the verification.
+	 *
+	 * @param checkType the check type to create the instance for.
+	 * @return the created {@linkplain XzCheck} instance.
+	 */
+	static XzCheck newInstance(int checkType) {
+		XzCheck check;
+
+		switch (checkType) {
+		case Xz.CHECK_CRC32:
+			check = new Crc32Check();
+			break;
+		case Xz.CHECK_CRC64:
+			check = new Crc64Check();
+			break;
+		case Xz.CHECK_SHA256:
+			check = new Sha256Check();
+			break;
+		default:
+			check = new SkipCheck(Xz.checkSize(checkType));
+		}
+		return check;
+	}
+
+	/**
+	 * Gets the size of the check value.
+	 *
+	 * @return the size of the check value.
+	 */
+	final int size() {
+		return this.size;
+	}
+
+	/**
+	 * Resets the check for the next block.
+	 */
+	abstract void reset();
+
+	/**
+	 * Updates the check with the remaining bytes of a buffer.
+	 *
+	 * @param buffer the buffer containing the bytes to add.
+	 */
+	abstract void update(ByteBuffer buffer);
+
+	/**
+	 * Verifies the check.
+	 *
+	 * @param buffer the buffer containing the stored check value.
+	 * @param offset the offset of the stored check value.
+	 * @return {@code true} if the stored check value matches the calculated one.
+	 */
+	abstract boolean verify(byte[] buffer, int offset);
+
+	private static final class SkipCheck extends XzCheck {
+
+		SkipCheck(int size) {
+			super(size);
+		}
+
+		@Override
+		void reset() {
+			// Nothing to do here
+		}
+
+		@Override
+		void update(ByteBuffer buffer) {
+			buffer.position(buffer.limit());
+		}
+
+		@Override
+		boolean verify(byte[] buffer, int offset) {
+			return true;
+		}
+
+	}
+
+	private static final class Crc32Check extends XzCheck {
+
+		private final CRC32 crc32 = new CRC32();
+
+		Crc32Check() {
+			super(4);
+		}
+
+		@Override
+		void reset() {
+			this.crc32.reset();
+		}
+
+		@Override
+		void update(ByteBuffer buffer) {
+			this.crc32.update(buffer);
+		}
+
+		@Override
+		boolean verify(byte[] buffer, int offset) {
+			return Xz.getInt(buffer, offset) == (int) this.crc32.getValue();
+		}
+
+	}
+
+	private static final class Crc64Check extends XzCheck {
+
+		private static final long POLY = 0xc96c5795d7870f42L;
+
+		// Tables for slicing-by-8 CRC calculation (TABLES[n * 256 + b] is the CRC of b followed by n zero bytes)
+		private static final long[] TABLES = new long[8 * 256];
+
+		static {
+			for (int i = 0; i < 256; i++) {
+				long r = i;
+
+				for (int j = 8; j > 0; j--) {
+					r = ((r & 1) != 0 ? ((r >>> 1) ^ POLY) : (r >>> 1));
+				}
+				TABLES[i] = r;
+			}
+			for (int i = 256; i < TABLES.length; i++) {
+				final long r = TABLES[i - 256];
+
+				TABLES[i] = (r >>> 8) ^ TABLES[(int) r & 0xff];
+			}
+		}
+
+		private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+				ByteOrder.LITTLE_ENDIAN);
+
+		private final byte[] bytes = new byte[0x1000];
+		private long crc;
+
+		Crc64Check() {
+			super(8);
+		}
+
+		@Override
+		void reset() {
+			this.crc = 0;
+		}
+
+		@Override
+		void update(ByteBuffer buffer) {
+			if (buffer.hasArray()) {
+				this.crc = update(this.crc, buffer.array(), buffer.arrayOffset() + buffer.position(),
+						buffer.remaining());
+				buffer.position(buffer.limit());
+			} else {
+				while (buffer.hasRemaining()) {
+					final int length = Math.min(buffer.remaining(), this.bytes.length);
+
+					buffer.get(this.bytes, 0, length);
+					this.crc = update(this.crc, this.bytes, 0, length);
+				}
+			}
+		}
+
+		private static long update(long crc, byte[] buffer, int offset, int length) {
+			final int end = offset + length;
+			final int end8 = end - 7;
+			int index = offset;
+			long c = ~crc;
+
+			while (index < end8) {
+				c ^= (long) LONG_LE.get(buffer, index);
+				c = TABLES[7 * 256 + ((int) c & 0xff)] ^ TABLES[6 * 256 + ((int) (c >>> 8) & 0xff)]
+						^ TABLES[5 * 256 + ((int) (c >>> 16) & 0xff)] ^ TABLES[4 * 256 + ((int) (c >>> 24) & 0xff)]
+						^ TABLES[3 * 256 + ((int) (c >>> 32) & 0xff)] ^ TABLES[2 * 256 + ((int) (c >>> 40) & 0xff)]
+						^ TABLES[256 + ((int) (c >>> 48) & 0xff)] ^ TABLES[(int) (c >>> 56)];
+				index += 8;
+			}
+			while (index < end) {
+				c = TABLES[((int) c ^ buffer[index]) & 0xff] ^ (c >>> 8);
+				index++;
+			}
+			return ~c;
+		}
+
+		@Override
+		boolean verify(byte[] buffer, int offset) {
+			return (long) LONG_LE.get(buffer, offset) == this.crc;
+		}
+
+	}
+
+	private static final class Sha256Check extends XzCheck {
+
+		private final MessageDigest sha256;
+
+		Sha256Check() {
+			super(32);
+			try {
+				this.sha256 = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// SHA-256 is a mandatory algorithm of every Java platform
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		void reset() {
+			this.sha256.reset();
+		}
+
+		@Override
+		void update(ByteBuffer buffer) {
+			this.sha256.update(buffer);
+		}
+
+		@Override
+		boolean verify(byte[] buffer, int offset) {
+			byte[] digest = this.sha256.digest();
+
+			return MessageDigest.isEqual(digest, Arrays.copyOfRange(buffer, offset, offset + digest.length));
+		}
+
+	}
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.xz;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.InsufficientDataException;
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.lzma.Lzma2Decoder;
+import de.carne.nio.compression.spi.Decoder;
+
+/**
+ * Decoder for XZ compressed data.
+ * <p>
+ * The stream headers and footers, the block headers and the index are decoded and verified. The block data is decoded
+ * via a {@linkplain Lzma2Decoder} and (unless disabled via {@linkplain XzDecoderProperties#getVerifyCheckProperty()})
+ * verified against the block's integrity check. Concatenated streams as well as stream padding are decoded as a whole.
+ * Any data following the last stream is not consumed and can be retrieved via {@linkplain #drainInput()}.
+ */
+public class XzDecoder extends Decoder {
+
+	private enum State {
+		STREAM_HEADER, BLOCK_HEADER, BLOCK_DATA, BLOCK_TRAILER, INDEX, STREAM_FOOTER, STREAM_PADDING, EOF
+	}
+
+	private final XzDecoderProperties properties;
+	private final boolean verifyCheck;
+	private final InputChannel input = new InputChannel();
+	private final byte[] buffer = new byte[Xz.BLOCK_HEADER_SIZE_MAX];
+	private final XzIndex index = new XzIndex();
+	private int checkType = Xz.CHECK_NONE;
+	private XzCheck check = XzCheck.newInstance(Xz.CHECK_NONE);
+	private @Nullable Lzma2Decoder lzma2Decoder = null;
+	private byte lzma2DictionarySizeProperty;
+	private @Nullable XzBlockHeader blockHeader = null;
+	private long blockDataStart;
+	private long blockCompressed;
+	private long blockUncompressed;
+	private ByteBuffer drained = ByteBuffer.allocate(0);
+	private State state = State.EOF;
+
+	/**
+	 * Constructs a new {@linkplain XzDecoder} instance.
+	 *
+	 * @param properties the decoder properties to use.
+	 */
+	public XzDecoder(XzDecoderProperties properties) {
+		super(XzFactory.COMPRESSION_NAME);
+		this.properties = properties;
+		this.verifyCheck = properties.getVerifyCheckProperty();
+		reset0();
+	}
+
+	private void reset0() {
+		this.input.reset();
+		this.index.reset();
+		this.blockHeader = null;
+		this.drained = ByteBuffer.allocate(0);
+		this.state = State.STREAM_HEADER;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	public int decode(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		long beginTime = beginProcessing();
+		int decoded = -1;
+		long dstRemainingStart = dst.remaining();
+
+		try {
+			if (this.state != State.EOF) {
+				final long inputTotalInStart = this.input.totalIn();
+
+				this.input.attach(src);
+				try {
+					while (this.state != State.EOF && dst.hasRemaining()) {
+						switch (this.state) {
+						case STREAM_HEADER:
+							decodeStreamHeader();
+							break;
+						case BLOCK_HEADER:
+							decodeBlockHeader();
+							break;
+						case BLOCK_DATA:
+							decodeBlockData(dst);
+							break;
+						case BLOCK_TRAILER:
+							decodeBlockTrailer();
+							break;
+						case INDEX:
+							decodeIndex();
+							break;
+						case STREAM_FOOTER:
+							decodeStreamFooter();
+							break;
+						case STREAM_PADDING:
+							decodeStreamPadding();
+							break;
+						case EOF:
+							break;
+						}
+					}
+				} finally {
+					this.input.detach();
+				}
+				decoded = (int) (this.input.totalIn() - inputTotalInStart);
+			}
+		} finally {
+			endProcessing(beginTime, Math.max(decoded, 0), dstRemainingStart - dst.remaining());
+		}
+		return decoded;
+	}
+
+	@Override
+	public ByteBuffer drainInput() {
+		ByteBuffer drainedInput = this.drained;
+
+		this.drained = ByteBuffer.allocate(0);
+		return drainedInput;
+	}
+
+	private void decodeStreamHeader() throws IOException {
+		readFully(0, Xz.STREAM_HEADER_SIZE);
+		beginStream(Xz.decodeStreamHeader(this.buffer, 0));
+	}
+
+	private void beginStream(int streamCheckType) {
+		if (this.checkType != streamCheckType) {
+			this.checkType = streamCheckType;
+			this.check = XzCheck.newInstance(streamCheckType);
+		}
+		this.index.reset();
+		this.state = State.BLOCK_HEADER;
+	}
+
+	private void decodeBlockHeader() throws IOException {
+		readFully(0, 1);
+		if (this.buffer[0] == Xz.INDEX_INDICATOR) {
+			this.index.update(Xz.INDEX_INDICATOR);
+			this.state = State.INDEX;
+		} else {
+			readFully(1, Xz.blockHeaderSize(this.buffer[0]) - 1);
+
+			XzBlockHeader header = new XzBlockHeader(this.buffer, 0);
+			Lzma2Decoder decoder = this.lzma2Decoder;
+
+			if (decoder != null && this.lzma2DictionarySizeProperty == header.dictionarySizeProperty) {
+				decoder.reset();
+			} else {
+				this.lzma2Decoder = new Lzma2Decoder(header.lzma2Properties());
+				this.lzma2DictionarySizeProperty = header.dictionarySizeProperty;
+			}
+			this.check.reset();
+			this.blockHeader = header;
+			this.blockDataStart = this.input.totalIn();
+			this.blockUncompressed = 0;
+			this.state = State.BLOCK_DATA;
+		}
+	}
+
+	private void decodeBlockData(ByteBuffer dst) throws IOException {
+		final XzBlockHeader header = Objects.requireNonNull(this.blockHeader);
+		final int dstStart = dst.position();
+		final int lzma2Decoded = Objects.requireNonNull(this.lzma2Decoder).decode(dst, this.input);
+		final int dstEnd = dst.position();
+
+		if (this.verifyCheck && dstEnd > dstStart) {
+			ByteBuffer checkBuffer = dst.duplicate();
+
+			checkBuffer.limit(dstEnd);
+			checkBuffer.position(dstStart);
+			this.check.update(checkBuffer);
+		}
+		this.blockCompressed = this.input.totalIn() - this.blockDataStart;
+		this.blockUncompressed += dstEnd - dstStart;
+
+		final boolean blockDataComplete = lzma2Decoded < 0;
+
+		checkBlockSize(header.compressedSize, this.blockCompressed, blockDataComplete);
+		checkBlockSize(header.uncompressedSize, this.blockUncompressed, blockDataComplete);
+		if (blockDataComplete) {
+			this.state = State.BLOCK_TRAILER;
+		}
+	}
+
+	private static void checkBlockSize(long recordedSize, long size, boolean complete) throws InvalidDataException {
+		if (recordedSize >= 0 && (complete ? size != recordedSize : size > recordedSize)) {
+			throw new InvalidDataException(size, recordedSize);
+		}
+	}
+
+	private void decodeBlockTrailer() throws IOException {
+		final XzBlockHeader header = Objects.requireNonNull(this.blockHeader);
+		final int paddingSize = Xz.paddingSize(this.blockCompressed);
+		final int checkSize = this.check.size();
+
+		readFully(0, paddingSize + checkSize);
+		for (int paddingIndex = 0; paddingIndex < paddingSize; paddingIndex++) {
+			if (this.buffer[paddingIndex] != 0) {
+				throw new InvalidDataException(this.buffer[paddingIndex]);
+			}
+		}
+		if (this.verifyCheck && !this.check.verify(this.buffer, paddingSize)) {
+			throw new InvalidDataException(this.checkType);
+		}
+		this.index.addRecord(header.headerSize + this.blockCompressed + checkSize, this.blockUncompressed);
+		this.blockHeader = null;
+		this.state = State.BLOCK_HEADER;
+	}
+
+	private void decodeIndex() throws IOException {
+		do {
+			readFully(0, 1);
+		} while (!this.index.update(this.buffer[0] & 0xff));
+		this.state = State.STREAM_FOOTER;
+	}
+
+	private void decodeStreamFooter() throws IOException {
+		readFully(0, Xz.STREAM_FOOTER_SIZE);
+
+		final long indexSize = Xz.decodeStreamFooter(this.buffer, 0, this.checkType);
+
+		if (indexSize != this.index.size()) {
+			throw new InvalidDataException(indexSize, this.index.size());
+		}
+		this.state = State.STREAM_PADDING;
+	}
+
+	private void decodeStreamPadding() throws IOException {
+		// Stream padding is a multiple of 4 zero bytes and may be followed by another stream
+		int read = readAvailable(0, 4);
+
+		if (read == 4 && Xz.getInt(this.buffer, 0) == 0) {
+			return;
+		}
+		if (read == 4 && Xz.isStreamMagic(this.buffer, 0, 4)) {
+			read += readAvailable(4, Xz.STREAM_MAGIC_SIZE - 4);
+			if (read == Xz.STREAM_MAGIC_SIZE && Xz.isStreamMagic(this.buffer, 0, Xz.STREAM_MAGIC_SIZE)) {
+				readFully(Xz.STREAM_MAGIC_SIZE, Xz.STREAM_HEADER_SIZE - Xz.STREAM_MAGIC_SIZE);
+				beginStream(Xz.decodeStreamHeader(this.buffer, 0));
+				return;
+			}
+		}
+		// Anything else is not part of the encoded data
+		this.drained = ByteBuffer.wrap(Arrays.copyOf(this.buffer, read));
+		this.input.unread(read);
+		this.state = State.EOF;
+	}
+
+	private void readFully(int offset, int length) throws IOException {
+		final int read = readAvailable(offset, length);
+
+		if (read < length) {
+			throw new InsufficientDataException(length, read);
+		}
+	}
+
+	private int readAvailable(int offset, int length) throws IOException {
+		final ByteBuffer readBuffer = ByteBuffer.wrap(this.buffer, offset, length);
+
+		while (readBuffer.hasRemaining() && this.input.read(readBuffer) > 0) {
+			// Read until the requested number of bytes is available or the channel is exhausted
+		}
+		return readBuffer.position() - offset;
+	}
+
+	/*
+	 * Channel view counting all bytes read from the currently attached source channel.
+	 */
+	private static final class InputChannel implements ReadableByteChannel {
+
+		private @Nullable ReadableByteChannel src = null;
+		private long totalIn = 0;
+
+		InputChannel() {
+			// Nothing to do here
+		}
+
+		void reset() {
+			this.totalIn = 0;
+		}
+
+		void attach(ReadableByteChannel attachSrc) {
+			this.src = attachSrc;
+		}
+
+		void detach() {
+			this.src = null;
+		}
+
+		long totalIn() {
+			return this.totalIn;
+		}
+
+		void unread(int count) {
+			this.totalIn -= count;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			final int read = Objects.requireNonNull(this.src).read(dst);
+
+			if (read > 0) {
+				this.totalIn += read;
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Nothing to do here
+		}
+
+	}
+
+}
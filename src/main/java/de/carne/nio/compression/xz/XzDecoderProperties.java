@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.xz;
+
+import de.carne.nio.compression.CompressionProperties;
+import de.carne.nio.compression.CompressionProperty;
+
+/**
+ * {@linkplain XzDecoder} properties.
+ */
+public class XzDecoderProperties extends CompressionProperties {
+
+	private static final CompressionProperty VERIFY_CHECK = new CompressionProperty("VERIFY_CHECK", Boolean.class);
+	private static final CompressionProperty THREADS = new CompressionProperty("THREADS", Integer.class);
+
+	/**
+	 * Constructs a new {@linkplain XzDecoderProperties} instance with default values.
+	 */
+	public XzDecoderProperties() {
+		registerProperty(VERIFY_CHECK, Boolean.TRUE);
+		registerProperty(THREADS, Integer.valueOf(1));
+	}
+
+	/**
+	 * Sets the verify check property.
+	 * <p>
+	 * If enabled, the integrity check (CRC32, CRC64 or SHA-256) of every decoded block is verified and a mismatch
+	 * causes an {@linkplain de.carne.nio.compression.InvalidDataException}. If disabled, no check is calculated at all,
+	 * which speeds up decoding at the cost of integrity checking. The stream headers, block headers and the index are
+	 * always verified.
+	 * </p>
+	 *
+	 * @param verifyCheck whether to verify the block checks.
+	 */
+	public void setVerifyCheckProperty(boolean verifyCheck) {
+		setBooleanProperty(VERIFY_CHECK, verifyCheck);
+	}
+
+	/**
+	 * Gets the verify check property.
+	 *
+	 * @return the verify check property.
+	 */
+	public boolean getVerifyCheckProperty() {
+		return getBooleanProperty(VERIFY_CHECK);
+	}
+
+	/**
+	 * Sets the threads property.
+	 * <p>
+	 * If set to a value greater than {@code 1}, the blocks of the encoded data are decoded in parallel using a
+	 * {@linkplain XzParallelDecoder}. The value defines the maximum number of blocks being decoded concurrently.
+	 * </p>
+	 *
+	 * @param threads the number of blocks to decode concurrently.
+	 */
+	public void setThreadsProperty(int threads) {
+		setIntProperty(THREADS, threads);
+	}
+
+	/**
+	 * Gets the threads property.
+	 *
+	 * @return the threads property.
+	 */
+	public int getThreadsProperty() {
+		return getIntProperty(THREADS);
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.xz;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import de.carne.nio.compression.InvalidDataException;
+
+/**
+ * Incremental decoder for the XZ stream index.
+ * <p>
+ * The sizes of all blocks decoded so far are recorded via {@linkplain #addRecord(long, long)}. Afterwards the index is
+ * fed byte by byte via {@linkplain #update(int)} and every index record is verified against the recorded sizes.
+ */
+final class XzIndex {
+
+	private enum State {
+		INDICATOR, COUNT, UNPADDED_SIZE, UNCOMPRESSED_SIZE, PADDING, CRC, DONE
+	}
+
+	private static final int VARINT_SIZE_MAX = 9;
+
+	private final CRC32 crc32 = new CRC32();
+	private long[] records = new long[2 * 16];
+	private int recordCount;
+	private int recordIndex;
+	private long size;
+	private long varint;
+	private int varintSize;
+	private int crc;
+	private int crcSize;
+	private State state = State.INDICATOR;
+
+	/**
+	 * Resets the index for decoding the next stream.
+	 */
+	void reset() {
+		this.crc32.reset();
+		this.recordCount = 0;
+		this.recordIndex = 0;
+		this.size = 0;
+		this.varint = 0;
+		this.varintSize = 0;
+		this.crc = 0;
+		this.crcSize = 0;
+		this.state = State.INDICATOR;
+	}
+
+	/**
+	 * Records the sizes of a decoded block.
+	 *
+	 * @param unpaddedSize the unpadded size of the block (block header, compressed data and check).
+	 * @param uncompressedSize the uncompressed size of the block.
+	 */
+	void addRecord(long unpaddedSize, long uncompressedSize) {
+		if (2 * this.recordCount == this.records.length) {
+			this.records = Arrays.copyOf(this.records, this.records.length << 1);
+		}
+		this.records[2 * this.recordCount] = unpaddedSize;
+		this.records[2 * this.recordCount + 1] = uncompressedSize;
+		this.recordCount++;
+	}
+
+	/**
+	 * Gets the number of index bytes decoded so far.
+	 *
+	 * @return the number of index bytes decoded so far.
+	 */
+	long size() {
+		return this.size;
+	}
+
+	/**
+	 * Decodes the next index byte.
+	 *
+	 * @param b the index byte to decode.
+	 * @return {@code true} if the index is complete.
+	 * @throws InvalidDataException if the index is invalid or does not match the recorded block sizes.
+	 */
+	boolean update(int b) throws InvalidDataException {
+		this.size++;
+		if (this.state != State.CRC) {
+			this.crc32.update(b);
+		}
+		switch (this.state) {
+		case INDICATOR:
+			if (b != Xz.INDEX_INDICATOR) {
+				throw new InvalidDataException((byte) b);
+			}
+			this.state = State.COUNT;
+			break;
+		case COUNT:
+			if (updateVarint(b)) {
+				checkRecord(this.recordCount);
+				this.state = (this.recordCount > 0 ? State.UNPADDED_SIZE : nextPaddingState());
+			}
+			break;
+		case UNPADDED_SIZE:
+			if (updateVarint(b)) {
+				checkRecord(this.records[2 * this.recordIndex]);
+				this.state = State.UNCOMPRESSED_SIZE;
+			}
+			break;
+		case UNCOMPRESSED_SIZE:
+			if (updateVarint(b)) {
+				checkRecord(this.records[2 * this.recordIndex + 1]);
+				this.recordIndex++;
+				this.state = (this.recordIndex < this.recordCount ? State.UNPADDED_SIZE : nextPaddingState());
+			}
+			break;
+		case PADDING:
+			if (b != 0) {
+				throw new InvalidDataException((byte) b);
+			}
+			this.state = nextPaddingState();
+			break;
+		case CRC:
+			this.crc |= b << (8 * this.crcSize);
+			this.crcSize++;
+			if (this.crcSize == Xz.CRC32_SIZE) {
+				if (this.crc != (int) this.crc32.getValue()) {
+					throw new InvalidDataException(this.crc, (int) this.crc32.getValue());
+				}
+				this.state = State.DONE;
+			}
+			break;
+		case DONE:
+			throw new InvalidDataException((byte) b);
+		}
+		return this.state == State.DONE;
+	}
+
+	private State nextPaddingState() {
+		return (Xz.paddingSize(this.size) > 0 ? State.PADDING : State.CRC);
+	}
+
+	private boolean updateVarint(int b) throws InvalidDataException {
+		// A zero byte must not follow the first one (non-minimal encoding)
+		if (this.varintSize > 0 && b == 0) {
+			throw new InvalidDataException((byte) b);
+		}
+		this.varint |= ((long) (b & 0x7f)) << (7 * this.varintSize);
+		this.varintSize++;
+
+		boolean complete = (b & 0x80) == 0;
+
+		if (!complete && this.varintSize == VARINT_SIZE_MAX) {
+			throw new InvalidDataException(this.varint);
+		}
+		return complete;
+	}
+
+	private void checkRecord(long expectedValue) throws InvalidDataException {
+		if (this.varint != expectedValue) {
+			throw new InvalidDataException(this.varint, expectedValue);
+		}
+		this.varint = 0;
+		this.varintSize = 0;
+	}
+
+}
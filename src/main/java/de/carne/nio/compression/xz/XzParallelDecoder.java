@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.xz;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.InsufficientDataException;
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.common.ParallelDecoder;
+import de.carne.nio.compression.lzma.Lzma2Decoder;
+import de.carne.nio.compression.lzma.Lzma2DecoderProperties;
+
+/**
+ * Decoder for XZ compressed data decoding multiple blocks in parallel.
+ * <p>
+ * The input is scanned ahead block by block. As the LZMA2 chunk headers record the encoded as well as the decoded
+ * chunk sizes, the extent and the uncompressed size of every block are known before the block is decoded (even if the
+ * block header does not record them). Each block is decoded and verified as an independent task on the configured
+ * {@linkplain Executor} into an output buffer allocated with the block's final size, while the decoded blocks are
+ * emitted in their original order. The index of every stream is verified against the scanned block sizes.
+ * <p>
+ * Blocks exceeding {@value #BLOCK_SIZE_MAX} bytes as well as the block of a single block stream are not buffered but
+ * streamed through a single {@linkplain Lzma2Decoder} instead. Parallel decoding only pays off for streams containing
+ * multiple blocks (e.g. as created by {@code xz -T}).
+ * <p>
+ * The number of blocks decoded concurrently is defined by {@linkplain XzDecoderProperties#getThreadsProperty()}.
+ * Independent of this setting, scanning ahead stops as soon as the pending blocks occupy more than
+ * {@value #PENDING_SIZE_MAX} bytes (encoded and decoded).
+ */
+public class XzParallelDecoder extends ParallelDecoder<Long> {
+
+	private enum State {
+		STREAM_HEADER, BLOCK, BLOCK_STREAM, STREAM_FOOTER, STREAM_PADDING, EOF
+	}
+
+	private static final int LZMA2_CONTROL_END = 0x00;
+	private static final int LZMA2_CONTROL_UNCOMPRESSED = 0x02;
+	private static final int LZMA2_CONTROL_LZMA = 0x80;
+	private static final int LZMA2_CONTROL_LZMA_NEW_PROPERTIES = 0xc0;
+
+	private static final int BLOCK_SIZE_MAX = 0x2000000;
+	private static final long PENDING_SIZE_MAX = 0x6000000L;
+
+	private final XzDecoderProperties properties;
+	private final boolean verifyCheck;
+	private final Queue<Lzma2Decoder> blockDecoders = new ConcurrentLinkedQueue<>();
+	private final XzIndex index = new XzIndex();
+	private final BlockChannel blockChannel = new BlockChannel();
+	private @Nullable Lzma2Decoder streamDecoder = null;
+	private @Nullable XzBlockHeader streamHeader = null;
+	private @Nullable XzCheck streamCheck = null;
+	private long streamUncompressed;
+	private int blockCount;
+	private int scanPosition;
+	private int checkType;
+	private State state = State.EOF;
+
+	/**
+	 * Constructs a new {@linkplain XzParallelDecoder} instance using the common {@linkplain ForkJoinPool}.
+	 *
+	 * @param properties the decoder properties to use.
+	 */
+	public XzParallelDecoder(XzDecoderProperties properties) {
+		this(properties, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a new {@linkplain XzParallelDecoder} instance.
+	 *
+	 * @param properties the decoder properties to use.
+	 * @param executor the {@linkplain Executor} to use for block decoding.
+	 */
+	public XzParallelDecoder(XzDecoderProperties properties, Executor executor) {
+		super(XzFactory.COMPRESSION_NAME, executor, properties.getThreadsProperty(), PENDING_SIZE_MAX);
+		this.properties = properties;
+
+		int threads = properties.getThreadsProperty();
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid XZ threads: " + threads);
+		}
+		this.verifyCheck = properties.getVerifyCheckProperty();
+		reset0();
+	}
+
+	private void reset0() {
+		this.index.reset();
+		this.streamHeader = null;
+		this.streamUncompressed = 0;
+		this.blockCount = 0;
+		this.scanPosition = 0;
+		this.checkType = Xz.CHECK_NONE;
+		this.state = State.STREAM_HEADER;
+	}
+
+	@Override
+	public CompressionInfos properties() {
+		return this.properties;
+	}
+
+	@Override
+	public synchronized void reset() {
+		super.reset();
+		reset0();
+	}
+
+	@Override
+	protected boolean isScanning() {
+		return this.state != State.EOF && this.state != State.BLOCK_STREAM;
+	}
+
+	@Override
+	protected boolean isInputComplete() {
+		return this.state == State.EOF;
+	}
+
+	@Override
+	protected long consumed() {
+		return inputOffset() + this.scanPosition;
+	}
+
+	@Override
+	protected void scan(ReadableByteChannel src) throws IOException {
+		this.scanPosition -= compactInput(this.scanPosition);
+		switch (this.state) {
+		case STREAM_HEADER:
+			scanStreamHeader(src);
+			break;
+		case BLOCK:
+			scanBlock(src);
+			break;
+		case STREAM_FOOTER:
+			scanStreamFooter(src);
+			break;
+		case STREAM_PADDING:
+			scanStreamPadding(src);
+			break;
+		case BLOCK_STREAM:
+		case EOF:
+			break;
+		}
+	}
+
+	private void scanStreamHeader(ReadableByteChannel src) throws IOException {
+		requireInput(src, Xz.STREAM_HEADER_SIZE);
+		this.checkType = Xz.decodeStreamHeader(input(), this.scanPosition);
+		this.index.reset();
+		this.blockCount = 0;
+		this.scanPosition += Xz.STREAM_HEADER_SIZE;
+		this.state = State.BLOCK;
+	}
+
+	private void scanBlock(ReadableByteChannel src) throws IOException {
+		requireInput(src, 1);
+		if (input()[this.scanPosition] == Xz.INDEX_INDICATOR) {
+			scanIndex(src);
+			return;
+		}
+
+		final int headerSize = Xz.blockHeaderSize(input()[this.scanPosition]);
+
+		requireInput(src, headerSize);
+
+		final XzBlockHeader header = new XzBlockHeader(input(), this.scanPosition);
+		final Lzma2DecoderProperties lzma2Properties = header.lzma2Properties();
+		final int dataStart = this.scanPosition + headerSize;
+		int chunkStart = dataStart;
+		long uncompressedSize = 0;
+
+		// Determine the block extent and the uncompressed block size from the LZMA2 chunk headers
+		while (true) {
+			if (chunkStart - dataStart > BLOCK_SIZE_MAX || uncompressedSize > BLOCK_SIZE_MAX) {
+				beginStreamBlock(header, dataStart);
+				return;
+			}
+			requireInput(src, chunkStart - this.scanPosition + 1);
+
+			int control = input()[chunkStart] & 0xff;
+
+			if (control == LZMA2_CONTROL_END) {
+				chunkStart++;
+				break;
+			}
+
+			int chunkHeaderSize;
+
+			if (control >= LZMA2_CONTROL_LZMA) {
+				chunkHeaderSize = (control >= LZMA2_CONTROL_LZMA_NEW_PROPERTIES ? 6 : 5);
+			} else if (control <= LZMA2_CONTROL_UNCOMPRESSED) {
+				chunkHeaderSize = 3;
+			} else {
+				throw new InvalidDataException(control);
+			}
+			requireInput(src, chunkStart - this.scanPosition + chunkHeaderSize);
+
+			byte[] input = input();
+			int size1 = ((input[chunkStart + 1] & 0xff) << 8) + (input[chunkStart + 2] & 0xff) + 1;
+
+			if (control >= LZMA2_CONTROL_LZMA) {
+				int size2 = ((input[chunkStart + 3] & 0xff) << 8) + (input[chunkStart + 4] & 0xff) + 1;
+
+				uncompressedSize += ((control & 0x1f) << 16) + size1;
+				chunkStart += chunkHeaderSize + size2;
+			} else {
+				uncompressedSize += size1;
+				chunkStart += chunkHeaderSize + size1;
+			}
+		}
+
+		final long compressedSize = chunkStart - dataStart;
+
+		if ((header.compressedSize >= 0 && header.compressedSize != compressedSize)
+				|| (header.uncompressedSize >= 0 && header.uncompressedSize != uncompressedSize)) {
+			throw new InvalidDataException(compressedSize, uncompressedSize);
+		}
+
+		final int paddingSize = Xz.paddingSize(compressedSize);
+		final int checkSize = Xz.checkSize(this.checkType);
+		final int blockEnd = chunkStart + paddingSize + checkSize;
+
+		requireInput(src, blockEnd - this.scanPosition);
+		for (int paddingIndex = chunkStart; paddingIndex < chunkStart + paddingSize; paddingIndex++) {
+			byte padding = input()[paddingIndex];
+
+			if (padding != 0) {
+				throw new InvalidDataException(padding);
+			}
+		}
+		if (this.blockCount == 0 && ensureInput(src, blockEnd + 1) && input()[blockEnd] == Xz.INDEX_INDICATOR) {
+			// A single block stream gains nothing from parallel decoding
+			beginStreamBlock(header, dataStart);
+			return;
+		}
+
+		final byte[] blockData = Arrays.copyOfRange(input(), dataStart, chunkStart);
+		final byte[] blockCheck = Arrays.copyOfRange(input(), chunkStart + paddingSize, blockEnd);
+		final int blockCheckType = this.checkType;
+		final int blockSize = (int) uncompressedSize;
+
+		submitUnit(Long.valueOf(consumed()), blockData.length + uncompressedSize,
+				() -> decodeBlock(lzma2Properties, blockData, blockSize, blockCheckType, blockCheck));
+		this.index.addRecord(headerSize + compressedSize + checkSize, uncompressedSize);
+		this.blockCount++;
+		this.scanPosition = blockEnd;
+	}
+
+	private ByteBuffer decodeBlock(Lzma2DecoderProperties lzma2Properties, byte[] blockData, int blockSize,
+			int blockCheckType, byte[] blockCheck) throws IOException {
+		Lzma2Decoder decoder = this.blockDecoders.poll();
+
+		if (decoder == null || !isReusable(decoder, lzma2Properties)) {
+			decoder = new Lzma2Decoder(lzma2Properties);
+		}
+		try {
+			ReadableByteChannel blockDataChannel = Channels.newChannel(new ByteArrayInputStream(blockData));
+			ByteBuffer output = ByteBuffer.allocate(blockSize);
+
+			decoder.reset();
+			// As the output is allocated with the final block size, decoding stops right before the end marker
+			while (output.hasRemaining()) {
+				if (decoder.decode(output, blockDataChannel) < 0) {
+					throw new InsufficientDataException(blockSize, output.position());
+				}
+			}
+			output.flip();
+			if (this.verifyCheck) {
+				XzCheck check = XzCheck.newInstance(blockCheckType);
+
+				check.update(output.duplicate());
+				if (!check.verify(blockCheck, 0)) {
+					throw new InvalidDataException(blockCheckType);
+				}
+			}
+			return output;
+		} finally {
+			this.blockDecoders.offer(decoder);
+		}
+	}
+
+	// Decoders are only reused for blocks with the same dictionary size
+	private static boolean isReusable(Lzma2Decoder decoder, Lzma2DecoderProperties lzma2Properties) {
+		return ((Lzma2DecoderProperties) decoder.properties()).getDictionarySizeProperty() == lzma2Properties
+				.getDictionarySizeProperty();
+	}
+
+	private void beginStreamBlock(XzBlockHeader header, int dataStart) throws IOException {
+		final Lzma2DecoderProperties lzma2Properties = header.lzma2Properties();
+		Lzma2Decoder decoder = this.streamDecoder;
+
+		if (decoder != null && isReusable(decoder, lzma2Properties)) {
+			decoder.reset();
+		} else {
+			this.streamDecoder = new Lzma2Decoder(lzma2Properties);
+		}
+		this.streamCheck = XzCheck.newInstance(this.checkType);
+		this.streamHeader = header;
+		this.streamUncompressed = 0;
+		this.blockChannel.begin();
+		this.scanPosition = dataStart;
+		this.state = State.BLOCK_STREAM;
+	}
+
+	/*
+	 * Decodes the next part of a block which is streamed (instead of being decoded in parallel). Once the block data is
+	 * complete, the block padding and check are verified and the block is added to the index.
+	 */
+	@Override
+	protected boolean decodeInline(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		if (this.state != State.BLOCK_STREAM) {
+			return false;
+		}
+		this.blockChannel.attach(src);
+		try {
+			streamBlock(dst, src);
+		} finally {
+			this.blockChannel.detach();
+		}
+		return true;
+	}
+
+	private void streamBlock(ByteBuffer dst, ReadableByteChannel src) throws IOException {
+		final XzBlockHeader header = Objects.requireNonNull(this.streamHeader);
+		final XzCheck check = Objects.requireNonNull(this.streamCheck);
+		final int dstStart = dst.position();
+		final int lzma2Decoded = Objects.requireNonNull(this.streamDecoder).decode(dst, this.blockChannel);
+		final int dstEnd = dst.position();
+
+		if (this.verifyCheck && dstEnd > dstStart) {
+			ByteBuffer checkBuffer = dst.duplicate();
+
+			checkBuffer.limit(dstEnd);
+			checkBuffer.position(dstStart);
+			check.update(checkBuffer);
+		}
+		this.streamUncompressed += dstEnd - dstStart;
+
+		final long compressedSize = this.blockChannel.totalIn();
+		final boolean blockDataComplete = lzma2Decoded < 0;
+
+		checkBlockSize(header.compressedSize, compressedSize, blockDataComplete);
+		checkBlockSize(header.uncompressedSize, this.streamUncompressed, blockDataComplete);
+		if (blockDataComplete) {
+			final int paddingSize = Xz.paddingSize(compressedSize);
+			final int checkSize = check.size();
+
+			this.scanPosition -= compactInput(this.scanPosition);
+			requireInput(src, paddingSize + checkSize);
+			for (int paddingIndex = 0; paddingIndex < paddingSize; paddingIndex++) {
+				byte padding = input()[this.scanPosition + paddingIndex];
+
+				if (padding != 0) {
+					throw new InvalidDataException(padding);
+				}
+			}
+			if (this.verifyCheck && !check.verify(input(), this.scanPosition + paddingSize)) {
+				throw new InvalidDataException(this.checkType);
+			}
+			this.index.addRecord(header.headerSize + compressedSize + checkSize, this.streamUncompressed);
+			this.blockCount++;
+			this.scanPosition += paddingSize + checkSize;
+			this.streamHeader = null;
+			this.state = State.BLOCK;
+		}
+	}
+
+	private static void checkBlockSize(long recordedSize, long size, boolean complete) throws InvalidDataException {
+		if (recordedSize >= 0 && (complete ? size != recordedSize : size > recordedSize)) {
+			throw new InvalidDataException(size, recordedSize);
+		}
+	}
+
+	private void scanIndex(ReadableByteChannel src) throws IOException {
+		int indexPosition = this.scanPosition;
+		boolean indexComplete;
+
+		do {
+			requireInput(src, indexPosition - this.scanPosition + 1);
+			indexComplete = this.index.update(input()[indexPosition] & 0xff);
+			indexPosition++;
+		} while (!indexComplete);
+		this.scanPosition = indexPosition;
+		this.state = State.STREAM_FOOTER;
+	}
+
+	private void scanStreamFooter(ReadableByteChannel src) throws IOException {
+		requireInput(src, Xz.STREAM_FOOTER_SIZE);
+
+		final long indexSize = Xz.decodeStreamFooter(input(), this.scanPosition, this.checkType);
+
+		if (indexSize != this.index.size()) {
+			throw new InvalidDataException(indexSize, this.index.size());
+		}
+		this.scanPosition += Xz.STREAM_FOOTER_SIZE;
+		this.state = State.STREAM_PADDING;
+	}
+
+	private void scanStreamPadding(ReadableByteChannel src) throws IOException {
+		// Stream padding is a multiple of 4 zero bytes and may be followed by another stream
+		if (ensureInput(src, this.scanPosition + 4) && Xz.getInt(input(), this.scanPosition) == 0) {
+			this.scanPosition += 4;
+		} else if (ensureInput(src, this.scanPosition + Xz.STREAM_MAGIC_SIZE)
+				&& Xz.isStreamMagic(input(), this.scanPosition, Xz.STREAM_MAGIC_SIZE)) {
+			this.state = State.STREAM_HEADER;
+		} else {
+			// Anything else is not part of the encoded data (and therefore neither consumed nor counted)
+			setDrainStart(this.scanPosition);
+			this.state = State.EOF;
+		}
+	}
+
+	private void requireInput(ReadableByteChannel src, int length) throws IOException {
+		if (!ensureInput(src, this.scanPosition + length)) {
+			throw new InsufficientDataException(length, inputLimit() - this.scanPosition);
+		}
+	}
+
+	/*
+	 * Channel view feeding the data of a streamed block to the stream decoder. As the LZMA2 decoder stops right after
+	 * the block's end marker, the input is passed through as it is and only the consumed bytes are counted.
+	 */
+	private final class BlockChannel implements ReadableByteChannel {
+
+		private @Nullable ReadableByteChannel src = null;
+		private long totalIn = 0;
+
+		BlockChannel() {
+			// Nothing to do here
+		}
+
+		void begin() {
+			this.totalIn = 0;
+		}
+
+		void attach(ReadableByteChannel attachSrc) {
+			this.src = attachSrc;
+		}
+
+		void detach() {
+			this.src = null;
+		}
+
+		long totalIn() {
+			return this.totalIn;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			XzParallelDecoder.this.scanPosition -= compactInput(XzParallelDecoder.this.scanPosition);
+			if (XzParallelDecoder.this.scanPosition == inputLimit()
+					&& !readInput(Objects.requireNonNull(this.src))) {
+				return -1;
+			}
+
+			int read = Math.min(dst.remaining(),
+					inputLimit() - XzParallelDecoder.this.scanPosition);
+
+			dst.put(input(), XzParallelDecoder.this.scanPosition, read);
+			XzParallelDecoder.this.scanPosition += read;
+			this.totalIn += read;
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Nothing to do here
+		}
+
+	}
+
+}
@@ -9,4 +9,5 @@ module de.carne.compression {
 	exports de.carne.nio.compression.deflate;
 	exports de.carne.nio.compression.lzma;
 	exports de.carne.nio.compression.spi;
+	exports de.carne.nio.compression.xz;
 }
@@ -25,24 +25,31 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.ServiceLoader;
 
+import org.eclipse.jdt.annotation.Nullable;
 import org.junit.jupiter.api.Assertions;
 
 import de.carne.nio.compression.CompressionInfos;
+import de.carne.nio.compression.CompressionProperties;
 import de.carne.nio.compression.CompressionProperty;
 import de.carne.nio.compression.spi.Decoder;
 import de.carne.nio.compression.spi.DecoderFactory;
+import de.carne.nio.compression.spi.Encoder;
+import de.carne.nio.compression.spi.EncoderFactory;
 
 /**
  * Base class for compression tests.
  */
 public abstract class CompressionTest {
 
+	private static final byte[] TRAILING_DATA = "TRAILING DATA".getBytes(StandardCharsets.US_ASCII);
+
 	/**
 	 * Tests decoder output.
 	 *
@@ -52,24 +59,157 @@ public abstract class CompressionTest {
 	 * @throws IOException if an I/O error occurs.
 	 */
 	protected void runDecoderTest(String compressionName, URL encodedDataUrl, URL decodedDataUrl) throws IOException {
+		Decoder decoder = newDecoder(compressionName, null);
+		byte[] encodedData = loadData(encodedDataUrl);
+		byte[] decodedData = loadData(decodedDataUrl);
+		byte[] decoderResult = decodeData(decoder, Channels.newChannel(new ByteArrayInputStream(encodedData)));
+
+		Assertions.assertArrayEquals(decodedData, decoderResult);
+	}
+
+	/**
+	 * Tests decoder output for a specific decode buffer (e.g. a direct or a very small one).
+	 *
+	 * @param compressionName the compression name to test the decoder for.
+	 * @param properties the decoder properties to use.
+	 * @param encodedDataUrl the {@linkplain URL} to the encoded test data.
+	 * @param decodedDataUrl the {@linkplain URL} to the decoded test data.
+	 * @param decodeBuffer the {@linkplain ByteBuffer} to decode into.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected void runDecoderTest(String compressionName, CompressionProperties properties, URL encodedDataUrl,
+			URL decodedDataUrl, ByteBuffer decodeBuffer) throws IOException {
+		Decoder decoder = newDecoder(compressionName, properties);
+		byte[] encodedData = loadData(encodedDataUrl);
+		byte[] decodedData = loadData(decodedDataUrl);
+		byte[] decoderResult = decodeData(decoder, Channels.newChannel(new ByteArrayInputStream(encodedData)),
+				decodeBuffer);
+
+		Assertions.assertArrayEquals(decodedData, decoderResult);
+	}
+
+	/**
+	 * Tests decoder output as well as input draining.
+	 * <p>
+	 * The encoded test data is followed by some trailing data, which must be fully recoverable via
+	 * {@linkplain Decoder#drainInput()} and the remaining channel data after decoding.
+	 * </p>
+	 *
+	 * @param compressionName the compression name to test the decoder for.
+	 * @param properties the decoder properties to use.
+	 * @param encodedDataUrl the {@linkplain URL} to the encoded test data.
+	 * @param decodedDataUrl the {@linkplain URL} to the decoded test data.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected void runDecoderDrainTest(String compressionName, CompressionProperties properties, URL encodedDataUrl,
+			URL decodedDataUrl) throws IOException {
+		Decoder decoder = newDecoder(compressionName, properties);
+		ByteArrayOutputStream encodedBytes = new ByteArrayOutputStream();
+		byte[] encodedData = loadData(encodedDataUrl);
+
+		encodedBytes.write(encodedData);
+		encodedBytes.write(TRAILING_DATA);
+
+		byte[] decodedData = loadData(decodedDataUrl);
+		ReadableByteChannel encodedChannel = Channels.newChannel(new ByteArrayInputStream(encodedBytes.toByteArray()));
+		byte[] decoderResult = decodeData(decoder, encodedChannel);
+
+		Assertions.assertArrayEquals(decodedData, decoderResult);
+		Assertions.assertEquals(encodedData.length, decoder.totalIn());
+
+		ByteBuffer drainedInput = decoder.drainInput();
+		ByteBuffer trailingData = ByteBuffer.allocate(TRAILING_DATA.length + 1);
+
+		trailingData.put(drainedInput);
+		while (encodedChannel.read(trailingData) > 0) {
+			// Read until EOF
+		}
+		trailingData.flip();
+
+		byte[] trailingBytes = new byte[trailingData.remaining()];
+
+		trailingData.get(trailingBytes);
+
+		Assertions.assertArrayEquals(TRAILING_DATA, trailingBytes);
+	}
+
+	/**
+	 * Tests encoder output by decoding the encoded data again.
+	 *
+	 * @param compressionName the compression name to test the encoder for.
+	 * @param encoderProperties the encoder properties to use.
+	 * @param decoderProperties the decoder properties to use.
+	 * @param decodedDataUrl the {@linkplain URL} to the test data to encode.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected void runEncoderTest(String compressionName, CompressionProperties encoderProperties,
+			CompressionProperties decoderProperties, URL decodedDataUrl) throws IOException {
+		Encoder encoder = newEncoder(compressionName, encoderProperties);
+		Decoder decoder = newDecoder(compressionName, decoderProperties);
+		byte[] decodedData = loadData(decodedDataUrl);
+		byte[] encodedData = encodeData(encoder, decodedData);
+		byte[] decoderResult = decodeData(decoder, Channels.newChannel(new ByteArrayInputStream(encodedData)));
+
+		Assertions.assertArrayEquals(decodedData, decoderResult);
+	}
+
+	private Encoder newEncoder(String compressionName, CompressionProperties properties) throws IOException {
+		ServiceLoader<EncoderFactory> encoderFactories = ServiceLoader.load(EncoderFactory.class);
+		Encoder encoder = null;
+
+		for (EncoderFactory encoderFactory : encoderFactories) {
+			if (encoderFactory.compressionName().equals(compressionName)) {
+				encoder = encoderFactory.newEncoder(properties);
+				break;
+			}
+		}
+
+		Assertions.assertNotNull(encoder);
+		return Objects.requireNonNull(encoder);
+	}
+
+	private byte[] encodeData(Encoder encoder, byte[] data) throws IOException {
+		ByteArrayOutputStream encodedBytes = new ByteArrayOutputStream();
+		WritableByteChannel encodedChannel = Channels.newChannel(encodedBytes);
+		ByteBuffer encodeBuffer = ByteBuffer.allocate(4096);
+		long encoded = 0;
+
+		System.out.println("Testing encoder: " + encoder.name() + "...");
+		encoder.reset();
+		for (int dataIndex = 0; dataIndex < data.length; dataIndex += encodeBuffer.capacity()) {
+			encodeBuffer.clear();
+			encodeBuffer.put(data, dataIndex, Math.min(encodeBuffer.capacity(), data.length - dataIndex));
+			encodeBuffer.flip();
+			encoded += encoder.encode(encodeBuffer, encodedChannel);
+
+			Assertions.assertFalse(encodeBuffer.hasRemaining());
+		}
+		encoded += encoder.finishEncoding(encodedChannel);
+		System.out.println("Total in (bytes)  : " + encoder.totalIn());
+		System.out.println("Total out (bytes) : " + encoder.totalOut());
+
+		byte[] encodedData = encodedBytes.toByteArray();
+
+		Assertions.assertEquals(data.length, encoder.totalIn());
+		Assertions.assertEquals(encodedData.length, encoder.totalOut());
+		Assertions.assertEquals(encodedData.length, encoded);
+		return encodedData;
+	}
+
+	private Decoder newDecoder(String compressionName, @Nullable CompressionProperties properties)
+			throws IOException {
 		ServiceLoader<DecoderFactory> decoderFactories = ServiceLoader.load(DecoderFactory.class);
 		Decoder decoder = null;
 
 		for (DecoderFactory decoderFactory : decoderFactories) {
 			if (decoderFactory.compressionName().equals(compressionName)) {
-				decoder = decoderFactory.newDecoder();
+				decoder = (properties != null ? decoderFactory.newDecoder(properties) : decoderFactory.newDecoder());
 				break;
 			}
 		}
 
 		Assertions.assertNotNull(decoder);
-		Objects.requireNonNull(decoder);
-
-		byte[] encodedData = loadData(encodedDataUrl);
-		byte[] decodedData = loadData(decodedDataUrl);
-		byte[] decoderResult = decodeData(decoder, encodedData);
-
-		Assertions.assertArrayEquals(decodedData, decoderResult);
+		return Objects.requireNonNull(decoder);
 	}
 
 	private byte[] loadData(URL dataUrl) throws IOException {
@@ -89,11 +229,14 @@ public abstract class CompressionTest {
 		return dataBytes.toByteArray();
 	}
 
-	private byte[] decodeData(Decoder decoder, byte[] encodedData) throws IOException {
-		ReadableByteChannel encodedChannel = Channels.newChannel(new ByteArrayInputStream(encodedData));
+	private byte[] decodeData(Decoder decoder, ReadableByteChannel encodedChannel) throws IOException {
+		return decodeData(decoder, encodedChannel, ByteBuffer.allocate(4096));
+	}
+
+	private byte[] decodeData(Decoder decoder, ReadableByteChannel encodedChannel, ByteBuffer decodeBuffer)
+			throws IOException {
 		ByteArrayOutputStream decodedBytes = new ByteArrayOutputStream();
 		WritableByteChannel decodedChannel = Channels.newChannel(decodedBytes);
-		ByteBuffer decodeBuffer = ByteBuffer.allocate(4096);
 
 		System.out.println("Testing decoder: " + decoder.name() + "...");
 		decoder.reset();
@@ -113,7 +256,7 @@ public abstract class CompressionTest {
 					" " + decoderProperty.key() + "(" + decoderPropertyValue.getClass() + "): " + decoderPropertyValue);
 		}
 		while (true) {
-			decodeBuffer.rewind();
+			decodeBuffer.clear();
 
 			int decoded = decoder.decode(decodeBuffer, encodedChannel);
 
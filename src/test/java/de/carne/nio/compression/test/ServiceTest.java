@@ -25,9 +25,11 @@ import org.junit.jupiter.api.Test;
 
 import de.carne.nio.compression.bzip2.Bzip2Factory;
 import de.carne.nio.compression.deflate.DeflateFactory;
+import de.carne.nio.compression.lzma.Lzma2Factory;
 import de.carne.nio.compression.lzma.LzmaFactory;
 import de.carne.nio.compression.spi.DecoderFactory;
 import de.carne.nio.compression.spi.EncoderFactory;
+import de.carne.nio.compression.xz.XzFactory;
 
 /**
  * Test encode and encoder service definitions.
@@ -37,7 +39,9 @@ class ServiceTest {
 	private static Set<String> ENCODER_NAMES = new HashSet<>();
 
 	static {
-		// Add if available
+		ENCODER_NAMES.add(Bzip2Factory.COMPRESSION_NAME);
+		ENCODER_NAMES.add(DeflateFactory.COMPRESSION_NAME);
+		ENCODER_NAMES.add(LzmaFactory.COMPRESSION_NAME);
 	}
 
 	private static Set<String> DECODER_NAMES = new HashSet<>();
@@ -46,6 +50,8 @@ class ServiceTest {
 		DECODER_NAMES.add(Bzip2Factory.COMPRESSION_NAME);
 		DECODER_NAMES.add(DeflateFactory.COMPRESSION_NAME);
 		DECODER_NAMES.add(LzmaFactory.COMPRESSION_NAME);
+		DECODER_NAMES.add(Lzma2Factory.COMPRESSION_NAME);
+		DECODER_NAMES.add(XzFactory.COMPRESSION_NAME);
 	}
 
 	@Test
@@ -20,9 +20,15 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.Objects;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.bzip2.Bzip2BlockSize;
+import de.carne.nio.compression.bzip2.Bzip2DecoderProperties;
+import de.carne.nio.compression.bzip2.Bzip2EncoderProperties;
 import de.carne.nio.compression.bzip2.Bzip2Factory;
+import de.carne.nio.compression.bzip2.Bzip2Format;
 import de.carne.nio.compression.test.CompressionTest;
 
 /**
@@ -31,6 +37,14 @@ import de.carne.nio.compression.test.CompressionTest;
 class Bzip2Test extends CompressionTest {
 
 	private static final URL ENCODED_DATA_URL = Objects.requireNonNull(Bzip2Test.class.getResource("ENCODED.bin"));
+	private static final URL ENCODED_BADCRC_DATA_URL = Objects
+			.requireNonNull(Bzip2Test.class.getResource("ENCODED_BADCRC.bin"));
+	private static final URL ENCODED_MULTISTREAM_DATA_URL = Objects
+			.requireNonNull(Bzip2Test.class.getResource("ENCODED_MULTISTREAM.bin"));
+	private static final URL ENCODED_RANDOMIZED_DATA_URL = Objects
+			.requireNonNull(Bzip2Test.class.getResource("ENCODED_RANDOMIZED.bin"));
+	private static final URL ENCODED_RANDOMIZED_BADCRC_DATA_URL = Objects
+			.requireNonNull(Bzip2Test.class.getResource("ENCODED_RANDOMIZED_BADCRC.bin"));
 	private static final URL DECODED_DATA_URL = Objects.requireNonNull(Bzip2Test.class.getResource("DECODED.bin"));
 
 	@Test
@@ -38,4 +52,131 @@ class Bzip2Test extends CompressionTest {
 		runDecoderTest(Bzip2Factory.COMPRESSION_NAME, ENCODED_DATA_URL, DECODED_DATA_URL);
 	}
 
+	@Test
+	void testBzip2DrainInput() throws IOException {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2ReadAheadDrainInput() throws IOException {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		properties.setReadAheadProperty(4096);
+		runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2CrcCheck() {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		Assertions.assertThrows(InvalidDataException.class, () -> runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME,
+				properties, ENCODED_BADCRC_DATA_URL, DECODED_DATA_URL));
+	}
+
+	@Test
+	void testBzip2NoCrcCheck() throws IOException {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		properties.setCrcCheckProperty(false);
+		runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME, properties, ENCODED_BADCRC_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2Randomized() throws IOException {
+		runDecoderTest(Bzip2Factory.COMPRESSION_NAME, ENCODED_RANDOMIZED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2RandomizedCrcCheck() {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		Assertions.assertThrows(InvalidDataException.class, () -> runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME,
+				properties, ENCODED_RANDOMIZED_BADCRC_DATA_URL, DECODED_DATA_URL));
+	}
+
+	@Test
+	void testBzip2ParallelDrainInput() throws IOException {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		properties.setThreadsProperty(4);
+		runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2ParallelCrcCheck() {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		properties.setThreadsProperty(4);
+		Assertions.assertThrows(InvalidDataException.class, () -> runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME,
+				properties, ENCODED_BADCRC_DATA_URL, DECODED_DATA_URL));
+	}
+
+	@Test
+	void testBzip2MultiStream() throws IOException {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		properties.setFormat(Bzip2Format.BZ2LIB);
+		runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME, properties, ENCODED_MULTISTREAM_DATA_URL,
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2ReadAheadMultiStream() throws IOException {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		properties.setFormat(Bzip2Format.BZ2LIB);
+		properties.setReadAheadProperty(4096);
+		runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME, properties, ENCODED_MULTISTREAM_DATA_URL,
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2ParallelMultiStream() throws IOException {
+		Bzip2DecoderProperties properties = new Bzip2DecoderProperties();
+
+		properties.setFormat(Bzip2Format.BZ2LIB);
+		properties.setThreadsProperty(2);
+		runDecoderDrainTest(Bzip2Factory.COMPRESSION_NAME, properties, ENCODED_MULTISTREAM_DATA_URL,
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2Encoder() throws IOException {
+		runEncoderTest(Bzip2Factory.COMPRESSION_NAME, new Bzip2EncoderProperties(), new Bzip2DecoderProperties(),
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2EncoderBz2LibFormat() throws IOException {
+		Bzip2EncoderProperties encoderProperties = new Bzip2EncoderProperties();
+		Bzip2DecoderProperties decoderProperties = new Bzip2DecoderProperties();
+
+		encoderProperties.setFormat(Bzip2Format.BZ2LIB);
+		encoderProperties.setBlockSizeProperty(Bzip2BlockSize.SIZE1);
+		decoderProperties.setFormat(Bzip2Format.BZ2LIB);
+		runEncoderTest(Bzip2Factory.COMPRESSION_NAME, encoderProperties, decoderProperties, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testBzip2EncoderInvalidBlockSize() {
+		Bzip2EncoderProperties encoderProperties = new Bzip2EncoderProperties();
+
+		encoderProperties.setBlockSizeProperty(Bzip2BlockSize.SIZE0);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> runEncoderTest(Bzip2Factory.COMPRESSION_NAME,
+				encoderProperties, new Bzip2DecoderProperties(), DECODED_DATA_URL));
+	}
+
+	@Test
+	void testBzip2ParallelEncoder() throws IOException {
+		Bzip2EncoderProperties encoderProperties = new Bzip2EncoderProperties();
+		Bzip2DecoderProperties decoderProperties = new Bzip2DecoderProperties();
+
+		encoderProperties.setFormat(Bzip2Format.BZ2LIB);
+		encoderProperties.setThreadsProperty(4);
+		decoderProperties.setFormat(Bzip2Format.BZ2LIB);
+		runEncoderTest(Bzip2Factory.COMPRESSION_NAME, encoderProperties, decoderProperties, DECODED_DATA_URL);
+	}
+
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.test.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.common.HistoryBuffer;
+
+/**
+ * Test {@linkplain HistoryBuffer} class.
+ * <p>
+ * Note: A copy distance of {@code 0} refers to the most recently put byte (hence {@code dist + 1} is the LZ77
+ * distance).
+ */
+class HistoryBufferTest {
+
+	@Test
+	void testCopyBlockDistance1() throws IOException {
+		HistoryBuffer history = new HistoryBuffer(64);
+		byte[] data = put(history, "ab");
+
+		history.copyBlock(0, 20);
+
+		Assertions.assertArrayEquals(copy(data, 0, 20), flush(history));
+	}
+
+	@Test
+	void testCopyBlockDistanceLessThanLength() throws IOException {
+		HistoryBuffer history = new HistoryBuffer(64);
+		byte[] data = put(history, "abc");
+
+		history.copyBlock(2, 20);
+
+		Assertions.assertArrayEquals(copy(data, 2, 20), flush(history));
+	}
+
+	@Test
+	void testCopyBlockDistanceNotLessThanLength() throws IOException {
+		HistoryBuffer history = new HistoryBuffer(64);
+		byte[] data = put(history, "abcdefghij");
+
+		history.copyBlock(7, 8);
+
+		Assertions.assertArrayEquals(copy(data, 7, 8), flush(history));
+	}
+
+	@Test
+	void testCopyBlockInvalidDistance() {
+		HistoryBuffer history = new HistoryBuffer(64);
+
+		put(history, "abc");
+		Assertions.assertThrows(InvalidDataException.class, () -> history.copyBlock(3, 1));
+	}
+
+	@Test
+	void testCopyBlockStraddlingRingEnd() throws IOException {
+		HistoryBuffer history = new HistoryBuffer(16);
+		byte[] data = put(history, "0123456789ab");
+
+		history.copyBlock(7, 8);
+
+		Assertions.assertArrayEquals(copy(data, 7, 8), flush(history));
+	}
+
+	@Test
+	void testCopyBlockFromRingEnd() throws IOException {
+		HistoryBuffer history = new HistoryBuffer(16);
+		byte[] data = put(history, "0123456789abcdefghij");
+
+		history.copyBlock(6, 7);
+
+		Assertions.assertArrayEquals(copy(data, 6, 7), flush(history));
+	}
+
+	@Test
+	void testCopyBlockDistanceLessThanLengthSpanningRingEnd() throws IOException {
+		HistoryBuffer history = new HistoryBuffer(16);
+		byte[] data = put(history, "0123456789abcd");
+
+		history.copyBlock(2, 10);
+
+		Assertions.assertArrayEquals(copy(data, 2, 10), flush(history));
+	}
+
+	@Test
+	void testDirectOutputCopyBlock() throws IOException {
+		HistoryBuffer history = new HistoryBuffer(16);
+		byte[] data = put(history, "0123456789abcdefghij");
+		byte[] directOutput = new byte[48];
+		byte[] expected = data;
+
+		history.beginDirectOutput(directOutput, 3, 40);
+		// Starts within the history buffer (wrapping around its end) and continues within the direct output
+		history.copyBlock(6, 12);
+		expected = concat(expected, copy(expected, 6, 12));
+		history.putByte((byte) 'x');
+		expected = concat(expected, new byte[] { 'x' });
+		history.copyBlock(0, 5);
+		expected = concat(expected, copy(expected, 0, 5));
+		history.copyBlock(2, 9);
+		expected = concat(expected, copy(expected, 2, 9));
+		// Starts within the history buffer again, after some data has been written to the direct output
+		history.copyBlock(30, 6);
+		expected = concat(expected, copy(expected, 30, 6));
+
+		int written = history.endDirectOutput();
+
+		Assertions.assertEquals(expected.length - data.length, written);
+		Assertions.assertArrayEquals(Arrays.copyOfRange(expected, data.length, expected.length),
+				Arrays.copyOfRange(directOutput, 3, 3 + written));
+		Assertions.assertEquals(expected[expected.length - 1], history.getByte(0));
+
+		// The history buffer continues with the data written to the direct output
+		history.copyBlock(13, 8);
+
+		Assertions.assertArrayEquals(copy(expected, 13, 8), flush(history));
+	}
+
+	// Puts and flushes the given data, hence only subsequently copied data is flushed afterwards
+	private static byte[] put(HistoryBuffer history, String data) {
+		byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer flushed = ByteBuffer.allocate(bytes.length);
+
+		for (byte b : bytes) {
+			history.putByte(b);
+			history.flush(flushed);
+		}
+		Assertions.assertArrayEquals(bytes, flushed.array());
+		return bytes;
+	}
+
+	private static byte[] flush(HistoryBuffer history) {
+		ByteBuffer dst = ByteBuffer.allocate(history.getSize());
+
+		history.flush(dst);
+		return Arrays.copyOf(dst.array(), dst.position());
+	}
+
+	// Reference implementation copying byte by byte
+	private static byte[] copy(byte[] data, int dist, int len) {
+		byte[] copied = Arrays.copyOf(data, data.length + len);
+
+		for (int i = data.length; i < copied.length; i++) {
+			copied[i] = copied[i - dist - 1];
+		}
+		return Arrays.copyOfRange(copied, data.length, copied.length);
+	}
+
+	private static byte[] concat(byte[] data1, byte[] data2) {
+		byte[] data = Arrays.copyOf(data1, data1.length + data2.length);
+
+		System.arraycopy(data2, 0, data, data1.length, data2.length);
+		return data;
+	}
+
+}
@@ -18,11 +18,18 @@ package de.carne.nio.compression.test.deflate;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import de.carne.nio.compression.deflate.DeflateDecoderProperties;
+import de.carne.nio.compression.deflate.DeflateEncoder;
+import de.carne.nio.compression.deflate.DeflateEncoderProperties;
 import de.carne.nio.compression.deflate.DeflateFactory;
+import de.carne.nio.compression.deflate.DeflateFormat;
+import de.carne.nio.compression.deflate.DeflateParallelEncoder;
 import de.carne.nio.compression.test.CompressionTest;
 
 /**
@@ -32,10 +39,121 @@ class DeflateTest extends CompressionTest {
 
 	private static final URL ENCODED_DATA_URL = Objects.requireNonNull(DeflateTest.class.getResource("ENCODED.bin"));
 	private static final URL DECODED_DATA_URL = Objects.requireNonNull(DeflateTest.class.getResource("DECODED.bin"));
+	private static final URL ENCODED_LOG_DATA_URL = Objects
+			.requireNonNull(DeflateTest.class.getResource("ENCODED_LOG.bin"));
+	private static final URL DECODED_LOG_DATA_URL = Objects
+			.requireNonNull(DeflateTest.class.getResource("DECODED_LOG.bin"));
+
+	// Heap buffers of at least this size are decoded directly (see Deflate.DIRECT_OUTPUT_MIN)
+	private static final int DIRECT_OUTPUT_MIN = 0x1000;
 
 	@Test
 	void testDeflate() throws IOException {
 		runDecoderTest(DeflateFactory.COMPRESSION_NAME, ENCODED_DATA_URL, DECODED_DATA_URL);
 	}
 
+	@Test
+	void testDeflateDrainInput() throws IOException {
+		DeflateDecoderProperties properties = new DeflateDecoderProperties();
+
+		runDecoderDrainTest(DeflateFactory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testDeflateReadAheadDrainInput() throws IOException {
+		DeflateDecoderProperties properties = new DeflateDecoderProperties();
+
+		properties.setReadAheadProperty(4096);
+		runDecoderDrainTest(DeflateFactory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testDeflateReadAheadSmallBuffer() throws IOException {
+		DeflateDecoderProperties properties = new DeflateDecoderProperties();
+
+		properties.setReadAheadProperty(4096);
+		runDecoderTest(DeflateFactory.COMPRESSION_NAME, properties, ENCODED_LOG_DATA_URL, DECODED_LOG_DATA_URL,
+				ByteBuffer.allocate(DIRECT_OUTPUT_MIN - 1));
+	}
+
+	@Test
+	void testDeflateReadAheadDirectBuffer() throws IOException {
+		DeflateDecoderProperties properties = new DeflateDecoderProperties();
+
+		properties.setReadAheadProperty(4096);
+		runDecoderTest(DeflateFactory.COMPRESSION_NAME, properties, ENCODED_LOG_DATA_URL, DECODED_LOG_DATA_URL,
+				ByteBuffer.allocateDirect(DIRECT_OUTPUT_MIN * 2));
+	}
+
+	@Test
+	void testDeflateReadAheadMidMatch() throws IOException {
+		DeflateDecoderProperties properties = new DeflateDecoderProperties();
+
+		properties.setReadAheadProperty(4096);
+		// Odd buffer sizes make the decode buffer end within a match (in the direct as well as the buffered case)
+		runDecoderTest(DeflateFactory.COMPRESSION_NAME, properties, ENCODED_LOG_DATA_URL, DECODED_LOG_DATA_URL,
+				ByteBuffer.allocate(DIRECT_OUTPUT_MIN + 1));
+		runDecoderTest(DeflateFactory.COMPRESSION_NAME, properties, ENCODED_LOG_DATA_URL, DECODED_LOG_DATA_URL,
+				ByteBuffer.allocate(1001));
+	}
+
+	@Test
+	void testDeflateEncoder() throws IOException {
+		runEncoderTest(DeflateFactory.COMPRESSION_NAME, new DeflateEncoderProperties(), new DeflateDecoderProperties(),
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testDeflateEncoderLevels() throws IOException {
+		// Greedy, lazy and optimal parsing
+		for (int level : new int[] { 1, 4, DeflateEncoder.MAX_LEVEL }) {
+			DeflateEncoderProperties encoderProperties = new DeflateEncoderProperties();
+
+			encoderProperties.setLevelProperty(level);
+			runEncoderTest(DeflateFactory.COMPRESSION_NAME, encoderProperties, new DeflateDecoderProperties(),
+					DECODED_DATA_URL);
+		}
+	}
+
+	@Test
+	void testDeflateEncoderZlibFormat() throws IOException {
+		DeflateEncoderProperties encoderProperties = new DeflateEncoderProperties();
+		DeflateDecoderProperties decoderProperties = new DeflateDecoderProperties();
+
+		encoderProperties.setFormat(DeflateFormat.ZLIB);
+		decoderProperties.setFormatProperty(DeflateFormat.ZLIB);
+		runEncoderTest(DeflateFactory.COMPRESSION_NAME, encoderProperties, decoderProperties, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testDeflateEncoderInvalidLevel() {
+		DeflateEncoderProperties encoderProperties = new DeflateEncoderProperties();
+
+		encoderProperties.setLevelProperty(DeflateEncoder.MAX_LEVEL + 1);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> runEncoderTest(DeflateFactory.COMPRESSION_NAME,
+				encoderProperties, new DeflateDecoderProperties(), DECODED_DATA_URL));
+	}
+
+	@Test
+	void testDeflateParallelEncoder() throws IOException {
+		DeflateEncoderProperties encoderProperties = new DeflateEncoderProperties();
+		DeflateDecoderProperties decoderProperties = new DeflateDecoderProperties();
+
+		encoderProperties.setFormat(DeflateFormat.ZLIB);
+		encoderProperties.setThreadsProperty(4);
+		encoderProperties.setChunkSizeProperty(4096);
+		decoderProperties.setFormatProperty(DeflateFormat.ZLIB);
+		runEncoderTest(DeflateFactory.COMPRESSION_NAME, encoderProperties, decoderProperties, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testDeflateParallelEncoderInvalidChunkSize() {
+		DeflateEncoderProperties encoderProperties = new DeflateEncoderProperties();
+
+		encoderProperties.setThreadsProperty(4);
+		encoderProperties.setChunkSizeProperty(DeflateParallelEncoder.MIN_CHUNK_SIZE - 1);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> runEncoderTest(DeflateFactory.COMPRESSION_NAME,
+				encoderProperties, new DeflateDecoderProperties(), DECODED_DATA_URL));
+	}
+
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.test.lzma;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Objects;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import de.carne.nio.compression.lzma.Lzma2DecoderProperties;
+import de.carne.nio.compression.lzma.Lzma2Factory;
+import de.carne.nio.compression.test.CompressionTest;
+
+/**
+ * Test LZMA2 compression engine.
+ */
+class Lzma2Test extends CompressionTest {
+
+	private static final URL ENCODED_DATA_URL = Objects
+			.requireNonNull(Lzma2Test.class.getResource("ENCODED_LZMA2.bin"));
+	private static final URL DECODED_DATA_URL = Objects
+			.requireNonNull(Lzma2Test.class.getResource("DECODED_LZMA2.bin"));
+	private static final URL ENCODED_MULTI_DATA_URL = Objects
+			.requireNonNull(Lzma2Test.class.getResource("ENCODED_LZMA2_MULTI.bin"));
+	private static final URL ENCODED_UNCOMPRESSED_DATA_URL = Objects
+			.requireNonNull(Lzma2Test.class.getResource("ENCODED_LZMA2_UNCOMPRESSED.bin"));
+	private static final URL DECODED_UNCOMPRESSED_DATA_URL = Objects
+			.requireNonNull(Lzma2Test.class.getResource("DECODED.bin"));
+
+	@Test
+	void testLzma2() throws IOException {
+		runDecoderTest(Lzma2Factory.COMPRESSION_NAME, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzma2DrainInput() throws IOException {
+		Lzma2DecoderProperties properties = new Lzma2DecoderProperties();
+
+		properties.setDictionarySizeProperty((byte) 10);
+		runDecoderDrainTest(Lzma2Factory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzma2Uncompressed() throws IOException {
+		runDecoderDrainTest(Lzma2Factory.COMPRESSION_NAME, new Lzma2DecoderProperties(), ENCODED_UNCOMPRESSED_DATA_URL,
+				DECODED_UNCOMPRESSED_DATA_URL);
+	}
+
+	@Test
+	void testLzma2MultiUnit() throws IOException {
+		Lzma2DecoderProperties properties = new Lzma2DecoderProperties();
+
+		properties.setDictionarySizeProperty(65536);
+		runDecoderDrainTest(Lzma2Factory.COMPRESSION_NAME, properties, ENCODED_MULTI_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzma2ParallelDrainInput() throws IOException {
+		Lzma2DecoderProperties properties = new Lzma2DecoderProperties();
+
+		properties.setDictionarySizeProperty(65536);
+		properties.setThreadsProperty(2);
+		runDecoderDrainTest(Lzma2Factory.COMPRESSION_NAME, properties, ENCODED_MULTI_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzma2ParallelSingleUnit() throws IOException {
+		Lzma2DecoderProperties properties = new Lzma2DecoderProperties();
+
+		properties.setThreadsProperty(4);
+		runDecoderDrainTest(Lzma2Factory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzma2InvalidDictionarySize() {
+		Lzma2DecoderProperties properties = new Lzma2DecoderProperties();
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> properties.setDictionarySizeProperty((byte) 41));
+	}
+
+}
@@ -20,9 +20,15 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.Objects;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import de.carne.nio.compression.lzma.LzmaDecoderProperties;
+import de.carne.nio.compression.lzma.LzmaEncoder;
+import de.carne.nio.compression.lzma.LzmaEncoderProperties;
 import de.carne.nio.compression.lzma.LzmaFactory;
+import de.carne.nio.compression.lzma.LzmaFormat;
+import de.carne.nio.compression.lzma.LzmaMatchFinder;
 import de.carne.nio.compression.test.CompressionTest;
 
 /**
@@ -31,6 +37,8 @@ import de.carne.nio.compression.test.CompressionTest;
 class LzmaTest extends CompressionTest {
 
 	private static final URL ENCODED_DATA_URL = Objects.requireNonNull(LzmaTest.class.getResource("ENCODED.bin"));
+	private static final URL ENCODED_LZMALIB_DATA_URL = Objects
+			.requireNonNull(LzmaTest.class.getResource("ENCODED_LZMALIB.bin"));
 	private static final URL DECODED_DATA_URL = Objects.requireNonNull(LzmaTest.class.getResource("DECODED.bin"));
 
 	@Test
@@ -38,4 +46,88 @@ class LzmaTest extends CompressionTest {
 		runDecoderTest(LzmaFactory.COMPRESSION_NAME, ENCODED_DATA_URL, DECODED_DATA_URL);
 	}
 
+	@Test
+	void testLzmaDrainInput() throws IOException {
+		LzmaDecoderProperties properties = new LzmaDecoderProperties();
+
+		runDecoderDrainTest(LzmaFactory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzmaReadAheadDrainInput() throws IOException {
+		LzmaDecoderProperties properties = new LzmaDecoderProperties();
+
+		properties.setReadAheadProperty(4096);
+		runDecoderDrainTest(LzmaFactory.COMPRESSION_NAME, properties, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzmaLibFormat() throws IOException {
+		LzmaDecoderProperties properties = new LzmaDecoderProperties();
+
+		properties.setFormat(LzmaFormat.LZMALIB);
+		runDecoderDrainTest(LzmaFactory.COMPRESSION_NAME, properties, ENCODED_LZMALIB_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzmaEncoder() throws IOException {
+		runEncoderTest(LzmaFactory.COMPRESSION_NAME, new LzmaEncoderProperties(), new LzmaDecoderProperties(),
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzmaEncoderLzmaLibFormat() throws IOException {
+		LzmaEncoderProperties encoderProperties = new LzmaEncoderProperties();
+		LzmaDecoderProperties decoderProperties = new LzmaDecoderProperties();
+
+		encoderProperties.setFormat(LzmaFormat.LZMALIB);
+		encoderProperties.setLcLpBpProperty((byte) ((1 * 5 + 1) * 9 + 4));
+		decoderProperties.setFormat(LzmaFormat.LZMALIB);
+		runEncoderTest(LzmaFactory.COMPRESSION_NAME, encoderProperties, decoderProperties, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testLzmaEncoderPresets() throws IOException {
+		// Hash chain with fast parsing and binary tree with optimal parsing
+		for (int preset : new int[] { 1, 4 }) {
+			LzmaEncoderProperties encoderProperties = new LzmaEncoderProperties();
+			LzmaDecoderProperties decoderProperties = new LzmaDecoderProperties();
+
+			encoderProperties.setFormat(LzmaFormat.LZMALIB);
+			encoderProperties.setPresetProperty(preset);
+			decoderProperties.setFormat(LzmaFormat.LZMALIB);
+			runEncoderTest(LzmaFactory.COMPRESSION_NAME, encoderProperties, decoderProperties, DECODED_DATA_URL);
+		}
+	}
+
+	@Test
+	void testLzmaEncoderSmallDictionary() throws IOException {
+		for (LzmaMatchFinder matchFinder : LzmaMatchFinder.values()) {
+			LzmaEncoderProperties encoderProperties = new LzmaEncoderProperties();
+			LzmaDecoderProperties decoderProperties = new LzmaDecoderProperties();
+
+			encoderProperties.setMatchFinderProperty(matchFinder);
+			encoderProperties.setDictionarySizeProperty(4096);
+			decoderProperties.setDictionarySizeProperty(4096);
+			runEncoderTest(LzmaFactory.COMPRESSION_NAME, encoderProperties, decoderProperties, DECODED_DATA_URL);
+		}
+	}
+
+	@Test
+	void testLzmaEncoderInvalidPreset() {
+		LzmaEncoderProperties encoderProperties = new LzmaEncoderProperties();
+
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> encoderProperties.setPresetProperty(LzmaEncoder.MAX_PRESET + 1));
+	}
+
+	@Test
+	void testLzmaEncoderInvalidNiceLength() {
+		LzmaEncoderProperties encoderProperties = new LzmaEncoderProperties();
+
+		encoderProperties.setNiceLengthProperty(LzmaEncoder.NICE_LENGTH_MIN - 1);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> runEncoderTest(LzmaFactory.COMPRESSION_NAME,
+				encoderProperties, new LzmaDecoderProperties(), DECODED_DATA_URL));
+	}
+
 }
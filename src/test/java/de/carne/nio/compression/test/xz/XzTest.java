@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016-2022 Holger de Carne and contributors, All Rights Reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.carne.nio.compression.test.xz;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Objects;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import de.carne.nio.compression.InvalidDataException;
+import de.carne.nio.compression.test.CompressionTest;
+import de.carne.nio.compression.xz.XzDecoderProperties;
+import de.carne.nio.compression.xz.XzFactory;
+import de.carne.nio.compression.xz.XzParallelDecoder;
+
+/**
+ * Test XZ compression engine.
+ */
+class XzTest extends CompressionTest {
+
+	private static final URL ENCODED_DATA_URL = Objects.requireNonNull(XzTest.class.getResource("ENCODED_XZ.bin"));
+	private static final URL ENCODED_CRC32_DATA_URL = Objects
+			.requireNonNull(XzTest.class.getResource("ENCODED_XZ_CRC32.bin"));
+	private static final URL ENCODED_SHA256_DATA_URL = Objects
+			.requireNonNull(XzTest.class.getResource("ENCODED_XZ_SHA256.bin"));
+	private static final URL ENCODED_NONE_DATA_URL = Objects
+			.requireNonNull(XzTest.class.getResource("ENCODED_XZ_NONE.bin"));
+	private static final URL ENCODED_CONCAT_DATA_URL = Objects
+			.requireNonNull(XzTest.class.getResource("ENCODED_XZ_CONCAT.bin"));
+	private static final URL ENCODED_MULTI_DATA_URL = Objects
+			.requireNonNull(XzTest.class.getResource("ENCODED_XZ_MULTI.bin"));
+	private static final URL ENCODED_CORRUPT_CHECK_DATA_URL = Objects
+			.requireNonNull(XzTest.class.getResource("ENCODED_XZ_CORRUPT_CHECK.bin"));
+	private static final URL DECODED_DATA_URL = Objects.requireNonNull(XzTest.class.getResource("DECODED.bin"));
+
+	@Test
+	void testXz() throws IOException {
+		runDecoderTest(XzFactory.COMPRESSION_NAME, ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzChecks() throws IOException {
+		runDecoderTest(XzFactory.COMPRESSION_NAME, ENCODED_CRC32_DATA_URL, DECODED_DATA_URL);
+		runDecoderTest(XzFactory.COMPRESSION_NAME, ENCODED_SHA256_DATA_URL, DECODED_DATA_URL);
+		runDecoderTest(XzFactory.COMPRESSION_NAME, ENCODED_NONE_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzDrainInput() throws IOException {
+		runDecoderDrainTest(XzFactory.COMPRESSION_NAME, new XzDecoderProperties(), ENCODED_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzConcatenatedStreams() throws IOException {
+		runDecoderDrainTest(XzFactory.COMPRESSION_NAME, new XzDecoderProperties(), ENCODED_CONCAT_DATA_URL,
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzMultiBlock() throws IOException {
+		runDecoderDrainTest(XzFactory.COMPRESSION_NAME, new XzDecoderProperties(), ENCODED_MULTI_DATA_URL,
+				DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzCorruptCheck() {
+		Assertions.assertThrows(InvalidDataException.class, () -> runDecoderDrainTest(XzFactory.COMPRESSION_NAME,
+				new XzDecoderProperties(), ENCODED_CORRUPT_CHECK_DATA_URL, DECODED_DATA_URL));
+	}
+
+	@Test
+	void testXzSkipCheck() throws IOException {
+		XzDecoderProperties properties = new XzDecoderProperties();
+
+		properties.setVerifyCheckProperty(false);
+		runDecoderDrainTest(XzFactory.COMPRESSION_NAME, properties, ENCODED_CORRUPT_CHECK_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzParallelDrainInput() throws IOException {
+		XzDecoderProperties properties = new XzDecoderProperties();
+
+		properties.setThreadsProperty(2);
+		runDecoderDrainTest(XzFactory.COMPRESSION_NAME, properties, ENCODED_MULTI_DATA_URL, DECODED_DATA_URL);
+		runDecoderDrainTest(XzFactory.COMPRESSION_NAME, properties, ENCODED_CONCAT_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzParallelCorruptCheck() {
+		XzDecoderProperties properties = new XzDecoderProperties();
+
+		properties.setThreadsProperty(2);
+		Assertions.assertThrows(InvalidDataException.class, () -> runDecoderDrainTest(XzFactory.COMPRESSION_NAME,
+				properties, ENCODED_CORRUPT_CHECK_DATA_URL, DECODED_DATA_URL));
+	}
+
+	@Test
+	void testXzParallelSkipCheck() throws IOException {
+		XzDecoderProperties properties = new XzDecoderProperties();
+
+		properties.setThreadsProperty(2);
+		properties.setVerifyCheckProperty(false);
+		runDecoderDrainTest(XzFactory.COMPRESSION_NAME, properties, ENCODED_CORRUPT_CHECK_DATA_URL, DECODED_DATA_URL);
+	}
+
+	@Test
+	void testXzInvalidThreads() {
+		XzDecoderProperties properties = new XzDecoderProperties();
+
+		properties.setThreadsProperty(0);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new XzParallelDecoder(properties));
+	}
+
+}